@@ -1,11 +1,14 @@
 package agg;
 
+import common.ConsistentHashRing;
 import common.LamportClock;
 
 import java.io.File;
+import java.nio.file.Paths;
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.time.Duration;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -14,49 +17,166 @@ public class AggregationServer {
     // Server configuration
     private final int port;
     private final ExecutorService pool;
+    private final ServerConfig config;
 
     // Core components
     private final LamportClock clock = new LamportClock();   // Lamport clock for ordering
     private final StateStore store = new StateStore();       // In-memory data store
-    private final WalManager wal;                           // Write-Ahead Log for crash recovery
-    private final PutWorker putWorker;                      // Worker that serializes PUT requests
-    private final Thread putThread;                         // Thread running the PutWorker
-    private final Thread sweeperThread;                     // Thread running the expiry sweeper
+    private final Metrics metrics = new Metrics();           // Counters reported by GET /metrics
+    private final WalManager wal;                           // Write-Ahead Log for crash recovery (primary only)
+    private final PutWorker putWorker;                      // Worker that serializes PUT requests (primary only)
+    private final ReplicationSource replication;            // Ships the WAL to replicas (primary only)
+    private final ReplicaClient replica;                    // Follows the primary (replica only)
+    private final Cluster cluster;                          // Shard membership (cluster mode only)
     private final Router router;                            // Routes HTTP requests (GET/PUT)
+    private final StationHistory history;                   // Recent updates per station (null if disabled)
+    private final GeoIndex geo;                             // Station positions for ?near=/?bbox= (null if disabled)
+    private final LamportWaiters waiters;                   // GETs parked on X-Min-Lamport
+    private final Feeds feeds;                              // Named feeds under /feeds/ (null if off)
 
     public AggregationServer(int port, int handlers) throws IOException {
+        this(port, handlers, new ServerConfig());
+    }
+
+    public AggregationServer(int port, int handlers, ServerConfig config) throws IOException {
         this.port = port;
+        this.config = config;
         this.pool = Executors.newFixedThreadPool(Math.max(2, handlers));
+        this.cluster = config.clusterNodes == null ? null : new Cluster(
+                ConsistentHashRing.parse(config.clusterNodes, config.clusterVirtualNodes),
+                config.clusterSelf != null ? config.clusterSelf : "localhost:" + port,
+                clock, config.clusterTimeoutMillis);
+
+        this.history = config.historySize > 0
+                ? new StationHistory(config.historySize, config.historyFields) : null;
+        // The geo index follows every change, including recovery and replica resyncs
+        this.geo = config.geoCellDeg > 0 ? new GeoIndex(config.geoCellDeg) : null;
+        if (geo != null) store.addListener(geo);
+
+        if (config.replicaOf != null) {
+            // Read-only replica: state comes from the primary's WAL stream
+            String[] hp = config.replicaOf.split(":");
+            this.wal = null;
+            this.putWorker = null;
+            this.replication = null;
+            this.waiters = new LamportWaiters(0, pool, config.minLamportWaitMillis, config.minLamportMaxWaiters);
+            this.replica = new ReplicaClient(hp[0], hp.length > 1 ? Integer.parseInt(hp[1]) : 4567, store, clock,
+                    waiters);
+            this.feeds = null;
+            this.router = new Router(store, clock, null, config.retryAfterSeconds, replica, null, cluster,
+                    null, metrics, history, geo, waiters, null);
+            if (history != null) store.addListener(history);
+
+            Thread replicaThread = new Thread(replica, "replica-follower");
+            replicaThread.setDaemon(true);
+            replicaThread.start();
+            return;
+        }
 
         // Initialize WAL and replay log for crash recovery
-        this.wal = new WalManager(new File("wal.log"));
-        this.wal.replay(store, clock);
+        this.wal = new WalManager(new File(config.walPath), config.seenIntervalMillis, config.walFullEvery,
+                config.walFsync);
+        long recoveryStart = System.nanoTime();
+        long recovered;
+        if (config.storePath != null) {
+            // Load the mapped records, then replay only the WAL written after them
+            MappedStationStore mapped = MappedStationStore.open(Paths.get(config.storePath), wal,
+                    config.storeSlots, config.storeArenaBytes);
+            long offset = mapped.load(store, clock);
+            store.addListener(mapped);
+            recovered = this.wal.replayFrom(offset, store, clock);
+            mapped.checkpoint();
+
+            Thread checkpointThread = new Thread(() -> mapped.runCheckpoints(config.storeCheckpointMillis),
+                    "store-checkpoint");
+            checkpointThread.setDaemon(true);
+            checkpointThread.start();
+        } else {
+            recovered = this.wal.replay(store, clock);
+        }
+        System.out.printf("Recovered %d WAL records (%d bytes) in %.1f ms%n", recovered, wal.position(),
+                (System.nanoTime() - recoveryStart) / 1e6);
+        // History starts after recovery: replayed records carry the restart time, not their own
+        if (history != null) store.addListener(history);
 
         // Initialize router and workers
-        this.putWorker = new PutWorker(store, wal, clock);
-        this.router = new Router(store, clock, putWorker);
+        this.waiters = new LamportWaiters(Long.MAX_VALUE, pool,
+                config.minLamportWaitMillis, config.minLamportMaxWaiters);
+        PutLimits limits = new PutLimits(new PutLimits.Limit(config.putRate, config.putBurst),
+                config.putQuantumBytes, config.putMaxQueuedPerServer);
+        this.putWorker = new PutWorker(store, wal, clock, config.putQueueCapacity, config.putDeadlineMillis,
+                metrics, waiters, config.putHoldMillis, limits);
+        this.replication = new ReplicationSource(store, clock, config.replicationHeartbeatMillis, waiters);
+        this.replica = null;
+        // Named feeds live on one node; they are not sharded or replicated
+        this.feeds = cluster == null && config.feedsMax > 0 ? new Feeds(config, clock, metrics) : null;
+        this.router = new Router(store, clock, putWorker, config.retryAfterSeconds, null, replication, cluster,
+                new LivenessTracker(store, wal, clock), metrics, history, geo, waiters, feeds);
 
         // Start background worker thread for handling PUT queue
-        this.putThread = new Thread(putWorker, "put-worker");
-        this.putThread.setDaemon(true);
-        this.putThread.start();
+        Thread putThread = new Thread(putWorker, "put-worker");
+        putThread.setDaemon(true);
+        putThread.start();
 
-        // Start background sweeper thread for 30s expiry
-        this.sweeperThread = new Thread(
-                new ExpirySweeper(store, wal, clock, Duration.ofSeconds(30)),
+        // Start background sweeper thread for expiry (30s by default)
+        Thread sweeperThread = new Thread(
+                new ExpirySweeper(store, wal, clock, Duration.ofMillis(config.ttlMillis)),
                 "expiry-sweeper"
         );
-        this.sweeperThread.setDaemon(true);
-        this.sweeperThread.start();
+        sweeperThread.setDaemon(true);
+        sweeperThread.start();
     }
 
     public void start() throws IOException {
-        try (ServerSocket server = new ServerSocket(port)) {
-            System.out.println("AggregationServer listening on port " + port);
+        ConnectionGuard guard = new ConnectionGuard(config, metrics);
+
+        // Local readers get the feed from shared memory (primary or replica)
+        if (config.snapshotPath != null) {
+            SnapshotPublisher publisher = new SnapshotPublisher(Paths.get(config.snapshotPath), store,
+                    config.snapshotMinIntervalMillis);
+            store.addListener(publisher);
+            Thread snapshotThread = new Thread(publisher, "snapshot-publisher");
+            snapshotThread.setDaemon(true);
+            snapshotThread.start();
+        }
+
+        // Binary ingest feeds the same PutWorker as HTTP PUT
+        if (config.binaryPort > 0 && putWorker != null) {
+            Thread binaryThread = new Thread(new BinaryIngestServer(config.binaryPort, putWorker, clock, cluster, pool,
+                    config.binaryMaxFrameBytes, config.binaryMaxInFlight, config.binaryMaxConnections),
+                    "binary-ingest");
+            binaryThread.setDaemon(true);
+            binaryThread.start();
+        }
+
+        // Idle keep-alive connections wait here instead of on a handler thread
+        KeepAlivePoller poller = new KeepAlivePoller(pool, config.keepAliveIdleMillis);
+        Thread pollerThread = new Thread(poller, "keep-alive-poller");
+        pollerThread.setDaemon(true);
+        pollerThread.start();
+
+        // Channel-backed sockets, so idle connections can be parked on a selector
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(port));
+            System.out.println("AggregationServer listening on port " + port
+                    + (replica != null ? " (replica of " + replica.primary() + ")" : "")
+                    + (cluster != null ? " (shard " + cluster.self() + ")" : ""));
             while (true) {
-                // Accept client connections and hand off to thread pool
-                Socket client = server.accept();
-                pool.submit(new ClientHandler(client, router, clock));
+                // Accept client connections; past the per-address cap they get 503
+                Socket client = server.accept().socket();
+                client.setTcpNoDelay(true); // a response is head then body; don't hold the body for an ACK
+                if (!guard.admit(client)) {
+                    guard.reject(client);
+                    poller.park(client.getChannel(), () -> ConnectionGuard.drainAndClose(client), null, 1000);
+                    continue;
+                }
+                // Until its first bytes arrive a connection waits on the selector,
+                // not on a handler thread; one that never speaks is closed
+                ClientHandler handler = new ClientHandler(client, router, clock, pool, replication, poller, guard);
+                poller.park(client.getChannel(), handler, () -> {
+                    metrics.headerTimeouts.increment();
+                    handler.closeQuietly();
+                }, config.headerTimeoutMillis);
             }
         }
     }
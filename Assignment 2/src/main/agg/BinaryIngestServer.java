@@ -0,0 +1,145 @@
+package agg;
+
+import common.BinaryIngest;
+import common.LamportClock;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Listener for the binary ingest protocol (common.BinaryIngest) on a
+// second port. Updates go through the same PutWorker as HTTP PUTs, so
+// ordering, deduplication and WAL records are identical; only the framing
+// differs. Each connection has a reader thread that keeps submitting
+// frames, and ACKs are written from the handler pool in frame order as
+// their updates are applied. A connection has a bounded number of frames
+// in flight, so a client that never reads its ACKs stops being read.
+public class BinaryIngestServer implements Runnable {
+    private final int port;
+    private final PutWorker putWorker;     // same pipeline as HTTP PUT
+    private final LamportClock clock;      // shared Lamport clock
+    private final Cluster cluster;         // station ownership check, or null
+    private final Executor writer;         // writes ACKs once a frame is applied
+    private final int maxFrameBytes;       // larger frames close the connection
+    private final int maxInFlight;         // frames submitted but not yet acknowledged, per connection
+    private final int maxConnections;      // further connections are closed at once
+    private final AtomicInteger open = new AtomicInteger();
+
+    public BinaryIngestServer(int port, PutWorker putWorker, LamportClock clock, Cluster cluster, Executor writer,
+                              int maxFrameBytes, int maxInFlight, int maxConnections) {
+        this.port = port;
+        this.putWorker = putWorker;
+        this.clock = clock;
+        this.cluster = cluster;
+        this.writer = writer;
+        this.maxFrameBytes = maxFrameBytes;
+        this.maxInFlight = maxInFlight;
+        this.maxConnections = maxConnections;
+    }
+
+    @Override
+    public void run() {
+        try (ServerSocket server = new ServerSocket(port)) {
+            System.out.println("Binary ingest listening on port " + port);
+            while (true) {
+                Socket s = server.accept();
+                if (open.incrementAndGet() > maxConnections) {
+                    open.decrementAndGet();
+                    try { s.close(); } catch (IOException ignored) { }
+                    continue;
+                }
+                Thread t = new Thread(() -> serve(s), "binary-ingest-" + s.getRemoteSocketAddress());
+                t.setDaemon(true);
+                t.start();
+            }
+        } catch (IOException e) {
+            System.err.println("Binary ingest stopped: " + e.getMessage());
+        }
+    }
+
+    // Read frames until the client closes; ACKs are chained so they leave in frame order
+    private void serve(Socket socket) {
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        Queue<CompletableFuture<Void>> unacked = new ConcurrentLinkedQueue<>(); // in frame order
+        CompletableFuture<Void> acked = CompletableFuture.completedFuture(null);
+        String anon = "anon-" + socket.getInetAddress().getHostAddress();
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            BinaryIngest.Frame f;
+            while ((f = BinaryIngest.readUpdates(in, maxFrameBytes)) != null) {
+                inFlight.acquire();
+                clock.onReceive(f.lamport);
+                String contentServerId = f.contentServerId.isBlank() ? anon : f.contentServerId;
+
+                List<CompletableFuture<Byte>> results = new ArrayList<>(f.json.size());
+                for (int i = 0; i < f.json.size(); i++) {
+                    results.add(submit(f.lamport, contentServerId, f.stationIds.get(i), f.json.get(i)));
+                }
+                int seq = f.seq;
+                CompletableFuture<Void> applied = CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0]));
+                unacked.add(applied);
+                acked = acked.thenCombineAsync(applied, (a, b) -> {
+                    byte[] statuses = new byte[results.size()];
+                    for (int i = 0; i < statuses.length; i++) statuses[i] = results.get(i).join();
+                    try {
+                        BinaryIngest.writeAck(out, seq, clock.onSend(), statuses);
+                        // Flush unless the next frame is already applied and its ACK can share the write
+                        unacked.poll();
+                        CompletableFuture<Void> next = unacked.peek();
+                        if (next == null || !next.isDone()) out.flush();
+                        inFlight.release();
+                    } catch (IOException e) {
+                        // Client gone: unblock the reader so it notices
+                        try { socket.close(); } catch (IOException ignored) { }
+                        inFlight.release(maxInFlight);
+                        throw new CompletionException(e);
+                    }
+                    return null;
+                }, writer);
+            }
+            // Client finished sending: wait for the last ACKs to go out
+            acked.thenRun(() -> {
+                try { out.flush(); } catch (IOException ignored) { }
+            }).get(putWorker.deadlineMillis() * 2, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            // Broken frame or connection; pending ACKs are dropped with it
+        } finally {
+            open.decrementAndGet();
+        }
+    }
+
+    // One update, with the same outcomes as Router's PUT handling
+    private CompletableFuture<Byte> submit(long lamport, String contentServerId, String stationId, byte[] json) {
+        if (stationId.isEmpty()) return CompletableFuture.completedFuture(BinaryIngest.INVALID);
+        if (cluster != null && !cluster.owns(stationId)) {
+            return CompletableFuture.completedFuture(BinaryIngest.MISDIRECTED);
+        }
+        return putWorker.submit(lamport, contentServerId, stationId, json).handle((res, err) -> {
+            if (err == null) return res.created ? BinaryIngest.CREATED : BinaryIngest.OK;
+            Throwable cause = err instanceof CompletionException && err.getCause() != null
+                    ? err.getCause() : err;
+            if (cause instanceof RejectedExecutionException || cause instanceof TimeoutException) {
+                return BinaryIngest.RETRY;
+            }
+            return BinaryIngest.FAILED;
+        });
+    }
+}
@@ -2,48 +2,205 @@ package agg;
 
 import common.HttpMessage.HttpRequest;
 import common.HttpMessage.HttpResponse;
+import common.HttpMessage.LimitExceededException;
 import common.HttpMessage;
 import common.LamportClock;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class ClientHandler implements Runnable {
     private final Socket socket;       // client connection socket
     private final Router router;       // routes requests to GET/PUT handlers
     private final LamportClock clock;  // shared Lamport clock
+    private final Executor writer;     // runs the response write once it is ready
+    private final ReplicationSource replication; // streams the WAL to replicas (primary only)
+    private final KeepAlivePoller poller;        // parks idle keep-alive connections (may be null)
+    private final ConnectionGuard guard;         // timeouts, size caps, per-address count (may be null)
+    private final AtomicBoolean closed = new AtomicBoolean(); // socket closed and released once
+    private BufferedInputStream in;              // kept across requests on a persistent connection
+    private DeadlineInputStream deadline;        // under `in` when guarded
+    private boolean readingBody;                 // which deadline a timeout belongs to
 
     public ClientHandler(Socket socket, Router router, LamportClock clock) {
+        this(socket, router, clock, Runnable::run, null, null);
+    }
+
+    public ClientHandler(Socket socket, Router router, LamportClock clock, Executor writer,
+                         ReplicationSource replication, KeepAlivePoller poller) {
+        this(socket, router, clock, writer, replication, poller, null);
+    }
+
+    public ClientHandler(Socket socket, Router router, LamportClock clock, Executor writer,
+                         ReplicationSource replication, KeepAlivePoller poller, ConnectionGuard guard) {
+        this.guard = guard;
         this.socket = socket;
         this.router = router;
         this.clock = clock;
+        this.writer = writer;
+        this.replication = replication;
+        this.poller = poller;
     }
 
+    // Handles one request; on a keep-alive connection it is re-run for the next one
     @Override
     public void run() {
-        try (Socket s = socket;
-             InputStream in = s.getInputStream();
-             OutputStream out = s.getOutputStream()) {
-
+        HttpRequest req;
+        TraceEvents.RequestParse parse = new TraceEvents.RequestParse();
+        try {
             // Parse incoming HTTP request
-            HttpRequest req = HttpMessage.HttpRequest.parse(in);
+            if (in == null) {
+                if (guard != null) deadline = new DeadlineInputStream(socket);
+                in = new BufferedInputStream(deadline != null ? deadline : socket.getInputStream());
+            }
+            parse.begin();
+            if (guard == null) {
+                req = HttpMessage.HttpRequest.parse(in);
+            } else {
+                // Headers and body each have a deadline for the whole phase
+                readingBody = false;
+                deadline.expireAfter(guard.headerTimeoutMillis);
+                req = HttpMessage.HttpRequest.parse(in, guard.maxHeaderBytes, guard.maxBodyBytes, () -> {
+                    readingBody = true;
+                    deadline.expireAfter(guard.bodyTimeoutMillis);
+                });
+                deadline.clear();
+            }
+            req.remoteAddress = socket.getInetAddress().getHostAddress();
+            parse.end();
+            if (parse.shouldCommit()) {
+                parse.method = req.method;
+                parse.path = req.path;
+                parse.contentServerId = req.headers.get("X-Content-Server");
+                parse.lamport = req.lamportHeader().orElse(-1);
+                parse.bodyBytes = req.body != null ? req.body.length : 0;
+                parse.commit();
+            }
+        } catch (LimitExceededException e) {
+            if (e.status == 431) guard.metrics().headersTooLarge.increment();
+            else guard.metrics().bodiesTooLarge.increment();
+            refuse(e.status, e.reason);
+            return;
+        } catch (SocketTimeoutException e) {
+            if (guard != null) {
+                if (readingBody) guard.metrics().bodyTimeouts.increment();
+                else guard.metrics().headerTimeouts.increment();
+            }
+            closeQuietly();
+            return;
+        } catch (IOException e) {
+            // Ignore I/O errors from broken connections
+            closeQuietly();
+            return;
+        }
 
-            // Update Lamport clock on receive (if header exists)
-            req.lamportHeader().ifPresent(clock::onReceive);
+        // Update Lamport clock on receive (if header exists)
+        req.lamportHeader().ifPresent(clock::onReceive);
 
-            // Route request to appropriate handler (GET/PUT/error)
-            HttpResponse resp = router.handle(req);
+        // Replication streams are long-lived; they get their own thread
+        if (replication != null && "GET".equalsIgnoreCase(req.method)
+                && ReplicationSource.PATH.equals(req.path)) {
+            // Not counted against the address's connections from here on
+            if (guard != null && closed.compareAndSet(false, true)) guard.release(socket);
+            replication.serve(socket);
+            return;
+        }
 
-            // Add Lamport header before sending response
-            resp.headers.put("X-Lamport", Long.toString(clock.onSend()));
+        boolean keepAlive = wantsKeepAlive(req);
 
-            // Send response to client
-            resp.write(out);
+        // Route request to appropriate handler (GET/PUT/error); the response
+        // is written from a callback so this thread is free while a PUT is queued
+        long routedAt = System.nanoTime();
+        router.handleAsync(req).whenCompleteAsync((resp, err) -> {
+            long readyAt = System.nanoTime();
+            TraceEvents.ResponseWrite traced = new TraceEvents.ResponseWrite();
+            boolean reuse = false;
+            try {
+                if (resp == null) {
+                    resp = HttpResponse.of(500, "Internal Server Error", null, null);
+                }
+                // Add Lamport header before sending response
+                long sentLamport = clock.onSend();
+                resp.headers.put("X-Lamport", Long.toString(sentLamport));
+                if (!keepAlive) resp.headers.put("Connection", "close");
 
-        } catch (IOException e) {
-            // Ignore I/O errors from broken connections
+                // Send response to client; a stalled reader is cut off by the watchdog
+                OutputStream out = socket.getOutputStream();
+                ScheduledFuture<?> watch = guard != null ? guard.watchWrite(socket) : null;
+                traced.begin();
+                try {
+                    resp.write(out);
+                } finally {
+                    if (watch != null) watch.cancel(false);
+                }
+                traced.end();
+                if (traced.shouldCommit()) {
+                    traced.method = req.method;
+                    traced.path = req.path;
+                    traced.status = resp.statusCode;
+                    traced.lamport = sentLamport;
+                    traced.handlerTime = readyAt - routedAt;
+                    traced.commit();
+                }
+                reuse = keepAlive && !socket.isClosed();
+            } catch (IOException e) {
+                // Ignore I/O errors from broken connections
+            } finally {
+                if (reuse) awaitNextRequest();
+                else closeQuietly();
+            }
+        }, writer);
+    }
+
+    // HTTP/1.1 connections persist unless the client says otherwise
+    private static boolean wantsKeepAlive(HttpRequest req) {
+        String conn = req.headers.get("Connection");
+        if (conn == null) return "HTTP/1.1".equalsIgnoreCase(req.version);
+        return conn.equalsIgnoreCase("keep-alive");
+    }
+
+    // Read the next request now if it is already buffered, otherwise park
+    // the idle connection so it does not hold a handler thread
+    private void awaitNextRequest() {
+        try {
+            SocketChannel ch = socket.getChannel();
+            if (in.available() > 0 || poller == null || ch == null) {
+                writer.execute(this);
+            } else {
+                poller.park(ch, this, this::closeQuietly);
+            }
+        } catch (IOException | RuntimeException e) {
+            closeQuietly();
         }
     }
-}
\ No newline at end of file
+
+    // Answer a request that broke a size limit, then drop the connection
+    private void refuse(int status, String reason) {
+        HttpResponse r = HttpResponse.of(status, reason, "{\"error\":\"" + reason + "\"}", "application/json");
+        r.headers.put("X-Lamport", Long.toString(clock.onSend()));
+        r.headers.put("Connection", "close");
+        ScheduledFuture<?> watch = guard.watchWrite(socket);
+        try {
+            r.write(socket.getOutputStream());
+        } catch (IOException ignored) {
+            // Client already gone
+        } finally {
+            watch.cancel(false);
+            closeQuietly();
+        }
+    }
+
+    // Close the connection and give back its per-address slot; safe to call more than once
+    void closeQuietly() {
+        if (!closed.compareAndSet(false, true)) return;
+        try { socket.close(); } catch (IOException ignored) { }
+        if (guard != null) guard.release(socket);
+    }
+}
@@ -0,0 +1,135 @@
+package agg;
+
+import common.ConsistentHashRing;
+import common.HttpMessage.HttpResponse;
+import common.LamportClock;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Sharded cluster membership: station ids are partitioned across nodes with
+// a consistent hash ring, and GETs scatter-gather the other shards.
+public class Cluster {
+    public static final String SCOPE_HEADER = "X-Shard-Scope"; // "local" = this shard only
+
+    private final ConsistentHashRing ring; // station id -> owning node
+    private final String self;             // this node's host:port as listed in the ring
+    private final LamportClock clock;      // shared Lamport clock
+    private final int timeoutMillis;       // per-shard connect/read timeout
+    private final ExecutorService fanout;  // runs shard requests in parallel
+
+    public Cluster(ConsistentHashRing ring, String self, LamportClock clock, int timeoutMillis) {
+        this.ring = ring;
+        this.self = self;
+        this.clock = clock;
+        this.timeoutMillis = timeoutMillis;
+        this.fanout = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "shard-fanout");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public String self() { return self; }
+
+    public String ownerOf(String stationId) { return ring.nodeFor(stationId); }
+
+    public boolean owns(String stationId) { return self.equals(ring.nodeFor(stationId)); }
+
+    // Every node except this one
+    public List<String> peers() {
+        List<String> peers = ring.nodes();
+        peers.remove(self);
+        return peers;
+    }
+
+    // Fetch one shard's local stations; completes exceptionally if the shard is unreachable
+    public CompletableFuture<HttpResponse> fetchShard(String node) {
+        return fetchShard(node, null);
+    }
+
+    // Same, passing the GET's query string (geo queries) through to the shard
+    public CompletableFuture<HttpResponse> fetchShard(String node, String query) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                HttpResponse r = get(node, query);
+                r.lamportHeader().ifPresent(clock::onReceive);
+                return r;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, fanout);
+    }
+
+    private HttpResponse get(String node, String query) throws IOException {
+        String[] hp = node.split(":");
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(hp[0], Integer.parseInt(hp[1])), timeoutMillis);
+            socket.setSoTimeout(timeoutMillis);
+            OutputStream out = socket.getOutputStream();
+            String request =
+                    "GET /weather.json" + (query == null ? "" : "?" + query) + " HTTP/1.1\r\n" +
+                            "Host: " + node + "\r\n" +
+                            "X-Lamport: " + clock.onSend() + "\r\n" +
+                            SCOPE_HEADER + ": local\r\n" +
+                            "\r\n";
+            out.write(request.getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            return HttpResponse.parse(new BufferedInputStream(socket.getInputStream()));
+        }
+    }
+
+    // Pull the elements out of a {"stations": [ ... ]} body, without the brackets
+    public static byte[] stationElements(byte[] body) {
+        if (body == null) return new byte[0];
+        int open = 0;
+        while (open < body.length && body[open] != '[') open++;
+        int close = body.length - 1;
+        while (close > open && body[close] != ']') close--;
+        int from = open + 1;
+        int to = close;
+        while (from < to && isSpace(body[from])) from++;
+        while (to > from && isSpace(body[to - 1])) to--;
+        return from < to ? Arrays.copyOfRange(body, from, to) : new byte[0];
+    }
+
+    // The individual station objects of a shard's body, split at top-level
+    // commas (commas inside strings or nested values are skipped)
+    public static List<byte[]> stationObjects(byte[] body) {
+        byte[] elements = stationElements(body);
+        List<byte[]> out = new ArrayList<>();
+        int depth = 0;
+        int start = 0;
+        boolean inString = false;
+        for (int i = 0; i < elements.length; i++) {
+            byte b = elements[i];
+            if (inString) {
+                if (b == '\\') i++;
+                else if (b == '"') inString = false;
+            } else if (b == '"') {
+                inString = true;
+            } else if (b == '{' || b == '[') {
+                depth++;
+            } else if (b == '}' || b == ']') {
+                depth--;
+            } else if (b == ',' && depth == 0) {
+                out.add(Arrays.copyOfRange(elements, start, i));
+                start = i + 1;
+            }
+        }
+        if (start < elements.length) out.add(Arrays.copyOfRange(elements, start, elements.length));
+        return out;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+    }
+}
@@ -0,0 +1,100 @@
+package agg;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// Limits that keep slow or hostile clients from tying up the handler pool:
+// read deadlines and size caps for requests, a deadline for writing each
+// response, and a cap on concurrent connections per client address.
+// Every rejection is counted in Metrics.
+public class ConnectionGuard {
+    public final long headerTimeoutMillis;  // whole header block must arrive within this
+    public final long bodyTimeoutMillis;    // whole body must arrive within this after the headers
+    public final long writeTimeoutMillis;   // a response write taking longer closes the connection
+    public final int maxHeaderBytes;        // larger header blocks get 431
+    public final int maxBodyBytes;          // larger bodies get 413
+    public final int maxConnectionsPerIp;   // further connections from one address get 503
+
+    private final Metrics metrics;
+    private final ConcurrentHashMap<String, Integer> perIp = new ConcurrentHashMap<>(); // open connections per address
+    private final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "write-watchdog");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public ConnectionGuard(ServerConfig config, Metrics metrics) {
+        this.headerTimeoutMillis = config.headerTimeoutMillis;
+        this.bodyTimeoutMillis = config.bodyTimeoutMillis;
+        this.writeTimeoutMillis = config.writeTimeoutMillis;
+        this.maxHeaderBytes = config.maxHeaderBytes;
+        this.maxBodyBytes = config.maxBodyBytes;
+        this.maxConnectionsPerIp = config.maxConnectionsPerIp;
+        this.metrics = metrics;
+    }
+
+    public Metrics metrics() { return metrics; }
+
+    // Count a new connection; false (and nothing counted) if its address is at the cap
+    public boolean admit(Socket socket) {
+        boolean[] ok = {false};
+        perIp.compute(address(socket), (ip, n) -> {
+            int open = n == null ? 0 : n;
+            if (open >= maxConnectionsPerIp) return n;
+            ok[0] = true;
+            return open + 1;
+        });
+        if (!ok[0]) metrics.connectionsRejected.increment();
+        return ok[0];
+    }
+
+    // Forget a connection counted by admit; call exactly once
+    public void release(Socket socket) {
+        perIp.computeIfPresent(address(socket), (ip, n) -> n <= 1 ? null : n - 1);
+    }
+
+    // Refuse a connection over the per-address cap: answer 503 and half-close.
+    // The caller closes it with drainAndClose once the request is in; closing
+    // with the request unread would reset the connection and lose the 503.
+    public void reject(Socket socket) {
+        try {
+            OutputStream out = socket.getOutputStream();
+            String body = "{\"error\":\"too many connections\"}";
+            out.write(("HTTP/1.1 503 Service Unavailable\r\nContent-Type: application/json\r\n"
+                    + "Content-Length: " + body.length() + "\r\nRetry-After: 1\r\nConnection: close\r\n\r\n"
+                    + body).getBytes(StandardCharsets.US_ASCII));
+            socket.shutdownOutput();
+        } catch (IOException ignored) {
+            // A fresh socket's send buffer takes this without blocking
+        }
+    }
+
+    // Discard whatever the client has sent so far, then close
+    public static void drainAndClose(Socket socket) {
+        try (Socket s = socket) {
+            InputStream in = s.getInputStream();
+            while (in.available() > 0) in.skip(in.available());
+        } catch (IOException ignored) { }
+    }
+
+    // Close the socket if a write is still going after the write timeout;
+    // cancel the returned future once the write is done
+    public ScheduledFuture<?> watchWrite(Socket socket) {
+        return watchdog.schedule(() -> {
+            metrics.writeTimeouts.increment();
+            try { socket.close(); } catch (IOException ignored) { }
+        }, writeTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private static String address(Socket socket) {
+        return socket.getInetAddress() == null ? "unknown" : socket.getInetAddress().getHostAddress();
+    }
+}
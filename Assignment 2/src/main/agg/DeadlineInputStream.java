@@ -0,0 +1,50 @@
+package agg;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+// Socket input with a deadline for the current read phase (headers, body).
+// Every read waits at most until the deadline, so a client trickling one
+// byte at a time cannot hold a handler thread past it.
+public class DeadlineInputStream extends FilterInputStream {
+    private final Socket socket;
+    private long deadlineNanos;  // System.nanoTime() limit
+    private boolean armed;       // false = no deadline
+
+    public DeadlineInputStream(Socket socket) throws IOException {
+        super(socket.getInputStream());
+        this.socket = socket;
+    }
+
+    // Reads from now on must finish within millis
+    public void expireAfter(long millis) {
+        deadlineNanos = System.nanoTime() + millis * 1_000_000L;
+        armed = true;
+    }
+
+    public void clear() throws IOException {
+        armed = false;
+        socket.setSoTimeout(0);
+    }
+
+    @Override
+    public int read() throws IOException {
+        arm();
+        return super.read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        arm();
+        return super.read(b, off, len);
+    }
+
+    private void arm() throws IOException {
+        if (!armed) return;
+        long left = (deadlineNanos - System.nanoTime()) / 1_000_000L;
+        if (left <= 0) throw new SocketTimeoutException("read deadline passed");
+        socket.setSoTimeout((int) Math.min(Integer.MAX_VALUE, left));
+    }
+}
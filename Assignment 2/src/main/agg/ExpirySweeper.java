@@ -4,6 +4,7 @@ import common.LamportClock;
 
 import java.io.IOException;
 import java.time.*;
+import java.util.List;
 import java.util.Map;
 
 public class ExpirySweeper implements Runnable {
@@ -39,9 +40,18 @@ public class ExpirySweeper implements Runnable {
 
                     // Expire entries older than TTL
                     if (age > ttlMillis) {
-                        clock.tick(); // increment Lamport clock
-                        wal.appendExpire(clock.peek(), e.getKey()); // log expiry
-                        store.removeAllFromContentServer(e.getKey()); // remove data
+                        TraceEvents.Expire traced = new TraceEvents.Expire();
+                        traced.begin();
+                        long L = clock.tick(); // increment Lamport clock
+                        List<String> removed = wal.appendAndApplyExpire(store, L, e.getKey()); // log expiry, then remove data
+                        traced.end();
+                        if (traced.shouldCommit()) {
+                            traced.contentServerId = e.getKey();
+                            traced.lamport = L;
+                            traced.stations = removed.size();
+                            traced.silence = age;
+                            traced.commit();
+                        }
                     }
                 }
 
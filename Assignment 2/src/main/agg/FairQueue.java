@@ -0,0 +1,95 @@
+package agg;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Deficit round-robin over one FIFO per content server, in front of the
+// PutWorker's ordered apply stage. Each round, every content server with
+// queued PUTs gets quantumBytes of credit and hands over PUTs (costed by
+// body size) while its credit lasts, so one content server sending in a
+// tight loop gets the same share as any other, not the whole worker. A
+// content server's own PUTs keep their arrival order.
+public class FairQueue {
+    private static class Flow {
+        final String contentServerId;
+        final ArrayDeque<PutWorker.PutTask> tasks = new ArrayDeque<>();
+        long deficit;                          // credit left over from earlier rounds
+
+        Flow(String contentServerId) { this.contentServerId = contentServerId; }
+    }
+
+    private final PutLimits limits;            // quantum and per-server cap, changeable at runtime
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Map<String, Flow> flows = new HashMap<>();   // content servers with queued PUTs
+    private final ArrayDeque<Flow> active = new ArrayDeque<>(); // the same flows, in round order
+    private int size;
+
+    public FairQueue(PutLimits limits) {
+        this.limits = limits;
+    }
+
+    // Queue a PUT behind its content server's earlier ones, or throw
+    // PutLimits.Exceeded when that content server already has its share queued
+    public void add(PutWorker.PutTask t) {
+        lock.lock();
+        try {
+            Flow f = flows.get(t.contentServerId);
+            if (f == null) {
+                f = new Flow(t.contentServerId);
+                flows.put(t.contentServerId, f);
+                active.add(f);
+            } else if (f.tasks.size() >= limits.maxQueued()) {
+                throw new PutLimits.Exceeded("queue share used by " + t.contentServerId, 0);
+            }
+            f.tasks.add(t);
+            size++;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try { return size; }
+        finally { lock.unlock(); }
+    }
+
+    // Wait up to waitNanos (forever if negative) for PUTs, then move one
+    // round's worth into out; false if nothing arrived in time
+    public boolean takeRound(long waitNanos, List<PutWorker.PutTask> out) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            boolean forever = waitNanos < 0;
+            while (size == 0) {
+                if (forever) notEmpty.await();
+                else if (waitNanos <= 0) return false;
+                else waitNanos = notEmpty.awaitNanos(waitNanos);
+            }
+            int quantum = limits.quantumBytes();
+            for (int n = active.size(); n > 0; n--) {
+                Flow f = active.poll();
+                f.deficit += quantum;
+                while (!f.tasks.isEmpty() && f.tasks.peek().json.length <= f.deficit) {
+                    PutWorker.PutTask t = f.tasks.poll();
+                    f.deficit -= t.json.length;
+                    out.add(t);
+                    size--;
+                }
+                if (f.tasks.isEmpty()) {
+                    flows.remove(f.contentServerId); // idle flows keep no credit
+                } else {
+                    active.add(f);
+                }
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package agg;
+
+import common.HttpMessage.HttpRequest;
+import common.HttpMessage.HttpResponse;
+import common.LamportClock;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+// Named feeds served at /feeds/{name}.json next to the default
+// /weather.json. Each feed has its own StateStore, PutWorker thread, WAL
+// file, PutLimits and ExpirySweeper with its own TTL, so a burst of PUTs on
+// one feed queues only behind that feed's worker and fsyncs, and uses only
+// that feed's rate budget. Feeds share the connection front end, the
+// Lamport clock and the metrics. They come from agg.feeds, from WAL files
+// found in agg.feeds.dir at startup, or from the first PUT to a new name.
+// A feed is opened (its WAL replayed) outside any lock shared with other
+// names; PUTs racing to create the same name wait for the one opening it.
+public class Feeds {
+    public static final String PREFIX = "/feeds";
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+
+    // One feed and the threads that serve it
+    public static class Feed {
+        public final String name;
+        public final long ttlMillis;
+        final StateStore store = new StateStore();
+        final PutLimits limits;  // this feed's own, starting from the agg.put.* settings
+        final PutWorker worker;
+        final Router router;
+
+        Feed(String name, long ttlMillis, File dir, ServerConfig config, LamportClock clock, Metrics metrics)
+                throws IOException {
+            this.name = name;
+            this.ttlMillis = ttlMillis;
+            WalManager wal = new WalManager(new File(dir, name + ".wal"), ttlMillis / 3, config.walFullEvery,
+                    config.walFsync);
+            wal.replay(store, clock);
+            this.limits = new PutLimits(new PutLimits.Limit(config.putRate, config.putBurst),
+                    config.putQuantumBytes, config.putMaxQueuedPerServer);
+            this.worker = new PutWorker(store, wal, clock, config.putQueueCapacity, config.putDeadlineMillis,
+                    metrics, null, config.putHoldMillis, limits);
+            this.router = new Router(PREFIX + "/" + name + ".json", PREFIX + "/" + name + "/heartbeat",
+                    store, clock, worker, config.retryAfterSeconds, new LivenessTracker(store, wal, clock), metrics);
+
+            Thread putThread = new Thread(worker, "put-worker-" + name);
+            putThread.setDaemon(true);
+            putThread.start();
+            Thread sweeperThread = new Thread(new ExpirySweeper(store, wal, clock, Duration.ofMillis(ttlMillis)),
+                    "expiry-sweeper-" + name);
+            sweeperThread.setDaemon(true);
+            sweeperThread.start();
+        }
+
+        public int stationCount() { return store.stationCount(); }
+
+        public PutLimits limits() { return limits; }
+    }
+
+    private final File dir;                          // <name>.wal files live here
+    private final ServerConfig config;
+    private final LamportClock clock;
+    private final Metrics metrics;
+    private final Map<String, Long> configuredTtl;   // name -> TTL from agg.feeds
+    private final Map<String, Feed> feeds = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<Feed>> opening = new ConcurrentHashMap<>(); // name -> being opened
+    private final AtomicInteger reserved = new AtomicInteger(); // feeds open or being opened, for the cap
+
+    public Feeds(ServerConfig config, LamportClock clock, Metrics metrics) throws IOException {
+        this.dir = new File(config.feedsDir);
+        this.config = config;
+        this.clock = clock;
+        this.metrics = metrics;
+        this.configuredTtl = parse(config.feeds, config.ttlMillis);
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("cannot create " + dir);
+
+        // Feeds from the configuration, then any others with a WAL on disk
+        for (String name : configuredTtl.keySet()) open(name);
+        File[] logs = dir.listFiles((d, f) -> f.endsWith(".wal"));
+        if (logs != null) {
+            for (File f : logs) {
+                String name = f.getName().substring(0, f.getName().length() - ".wal".length());
+                if (NAME.matcher(name).matches() && !feeds.containsKey(name)) open(name);
+            }
+        }
+    }
+
+    // agg.feeds value: name[:ttlSec],name[:ttlSec],...
+    static Map<String, Long> parse(String spec, long defaultTtlMillis) {
+        Map<String, Long> out = new HashMap<>();
+        if (spec == null || spec.isBlank()) return out;
+        for (String part : spec.split(",")) {
+            String[] nt = part.trim().split(":");
+            if (!NAME.matcher(nt[0]).matches()) throw new IllegalArgumentException("bad feed name: " + nt[0]);
+            out.put(nt[0], nt.length > 1 ? Long.parseLong(nt[1]) * 1000 : defaultTtlMillis);
+        }
+        return out;
+    }
+
+    public static boolean owns(String path) {
+        return path.equals(PREFIX) || path.startsWith(PREFIX + "/");
+    }
+
+    public Feed get(String name) { return feeds.get(name); }
+
+    public int size() { return feeds.size(); }
+
+    // Handle /feeds (list), /feeds/{name}.json and /feeds/{name}/heartbeat
+    public CompletableFuture<HttpResponse> route(HttpRequest req) {
+        if (req.path.equals(PREFIX) || req.path.equals(PREFIX + "/")) {
+            if (!"GET".equalsIgnoreCase(req.method)) return done(error(400, "Bad Request", "unsupported method"));
+            return done(list());
+        }
+        String rest = req.path.substring(PREFIX.length() + 1);
+        String name = rest.endsWith(".json") ? rest.substring(0, rest.length() - ".json".length())
+                : rest.endsWith("/heartbeat") ? rest.substring(0, rest.length() - "/heartbeat".length())
+                : null;
+        if (name == null || !NAME.matcher(name).matches()) {
+            return done(error(400, "Bad Request", "bad feed path"));
+        }
+
+        Feed feed = feeds.get(name);
+        if (feed == null && "PUT".equalsIgnoreCase(req.method) && config.feedsAutoCreate) {
+            try {
+                feed = open(name);
+            } catch (IOException e) {
+                return done(error(500, "Internal Server Error", "cannot open feed"));
+            }
+            if (feed == null) return done(error(403, "Forbidden", "feed limit reached"));
+        }
+        if (feed == null) return done(error(404, "Not Found", "no such feed"));
+        return feed.router.handleAsync(req);
+    }
+
+    // Open a feed, or return the one already open; null once the cap is reached
+    private Feed open(String name) throws IOException {
+        Feed feed = feeds.get(name);
+        if (feed != null) return feed;
+        CompletableFuture<Feed> mine = new CompletableFuture<>();
+        CompletableFuture<Feed> theirs = opening.putIfAbsent(name, mine);
+        if (theirs != null) return await(theirs);
+        try {
+            feed = feeds.get(name); // opened while we were checking
+            if (feed == null) {
+                if (reserved.incrementAndGet() > config.feedsMax) {
+                    reserved.decrementAndGet();
+                } else {
+                    try {
+                        feed = new Feed(name, configuredTtl.getOrDefault(name, config.ttlMillis), dir, config,
+                                clock, metrics);
+                    } catch (IOException | RuntimeException e) {
+                        reserved.decrementAndGet();
+                        mine.completeExceptionally(e);
+                        throw e;
+                    }
+                    feeds.put(name, feed);
+                }
+            }
+            mine.complete(feed);
+            return feed;
+        } finally {
+            opening.remove(name, mine);
+        }
+    }
+
+    // The feed another request is opening
+    private static Feed await(CompletableFuture<Feed> f) throws IOException {
+        try {
+            return f.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException io) throw io;
+            throw e;
+        }
+    }
+
+    // GET /feeds: every feed with its size
+    private HttpResponse list() {
+        clock.tick();
+        List<String> items = new ArrayList<>();
+        for (Feed f : feeds.values()) {
+            items.add("{\"name\":\"" + f.name + "\",\"stations\":" + f.stationCount()
+                    + ",\"queued\":" + f.worker.queued() + ",\"ttlSec\":" + f.ttlMillis / 1000 + "}");
+        }
+        HttpResponse r = HttpResponse.of(200, "OK", "{\"feeds\":[" + String.join(",", items) + "]}",
+                "application/json");
+        r.headers.put("X-Lamport", Long.toString(clock.peek()));
+        return r;
+    }
+
+    private HttpResponse error(int status, String reason, String why) {
+        clock.tick();
+        HttpResponse r = HttpResponse.of(status, reason, "{\"error\":\"" + why + "\"}", "application/json");
+        r.headers.put("X-Lamport", Long.toString(clock.peek()));
+        return r;
+    }
+
+    private static CompletableFuture<HttpResponse> done(HttpResponse r) {
+        return CompletableFuture.completedFuture(r);
+    }
+}
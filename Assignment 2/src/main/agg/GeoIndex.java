@@ -0,0 +1,305 @@
+package agg;
+
+import common.JsonUtil;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Uniform lat/lon grid over station coordinates, kept up to date as a
+// StateStore listener. Each cell holds a linked list of station slots
+// threaded through int arrays, so an update is a few array writes.
+// Nearest-neighbour queries search rings of cells outward from the query
+// point until no unvisited cell can hold anything closer.
+public class GeoIndex implements StateStore.Listener {
+    private static final double EARTH_KM = 6371.0088;
+    private static final byte[] LAT = JsonUtil.fieldKey("lat");
+    private static final byte[] LON = JsonUtil.fieldKey("lon");
+
+    private final double cellDeg;   // cell size in degrees
+    private final int rows;         // latitude bands
+    private final int cols;         // longitude bands (wrap around)
+    private final int[] cellHead;   // cell -> first slot, or -1
+    private final ReentrantReadWriteLock rw = new ReentrantReadWriteLock();
+
+    private final IdTable slots = new IdTable(1024);  // station id -> slot
+    private StateStore.WeatherRecord[] records = new StateStore.WeatherRecord[1024];
+    private double[] lat = new double[1024];
+    private double[] lon = new double[1024];
+    private int[] cellOf = new int[1024];   // slot -> cell
+    private int[] next = new int[1024];     // slot -> next slot in the same cell, or -1
+    private int[] prev = new int[1024];     // slot -> previous slot in the same cell, or -1
+    private int size;                       // indexed stations
+
+    public GeoIndex(double cellDeg) {
+        this.cellDeg = cellDeg;
+        this.rows = (int) Math.ceil(180 / cellDeg);
+        this.cols = (int) Math.ceil(360 / cellDeg);
+        this.cellHead = new int[rows * cols];
+        Arrays.fill(cellHead, -1);
+    }
+
+    public int size() { return size; }
+
+    @Override
+    public void onPut(StateStore.WeatherRecord rec) {
+        double la = JsonUtil.numberField(rec.json, LAT);
+        double lo = JsonUtil.numberField(rec.json, LON);
+        rw.writeLock().lock();
+        try {
+            if (Double.isNaN(la) || Double.isNaN(lo) || Math.abs(la) > 90 || Math.abs(lo) > 180) {
+                remove(rec.stationId); // no usable position any more
+            } else {
+                put(rec, la, lo);
+            }
+        } finally { rw.writeLock().unlock(); }
+    }
+
+    @Override
+    public void onExpire(String contentServerId, List<String> stationIds, long lamport) {
+        rw.writeLock().lock();
+        try {
+            for (String id : stationIds) remove(id);
+        } finally { rw.writeLock().unlock(); }
+    }
+
+    @Override
+    public void onLoad(List<StateStore.WeatherRecord> all) {
+        rw.writeLock().lock();
+        try {
+            for (int s = 0; s < slots.limit(); s++) {
+                String id = slots.name(s);
+                if (id != null) remove(id);
+            }
+        } finally { rw.writeLock().unlock(); }
+        for (StateStore.WeatherRecord rec : all) onPut(rec);
+    }
+
+    // The k stations nearest to a point, nearest first
+    public List<StateStore.WeatherRecord> nearest(double qLat, double qLon, int k) {
+        rw.readLock().lock();
+        try {
+            k = Math.min(k, size);
+            double[] bestDist = new double[k];
+            int[] bestSlot = new int[k];
+            int found = 0;
+            int r0 = row(qLat);
+            int c0 = col(qLon);
+            int maxRing = Math.max(rows, cols / 2 + 1);
+            for (int ring = 0; ring <= maxRing && k > 0; ring++) {
+                // Every cell from this ring on is at least (ring - 1) cells away
+                if (found == k && lowerBoundKm(qLat, (ring - 1) * cellDeg) > bestDist[k - 1]) break;
+                for (int r = r0 - ring; r <= r0 + ring; r++) {
+                    if (r < 0 || r >= rows) continue;
+                    boolean edgeRow = Math.abs(r - r0) == ring;
+                    for (int c : ringColumns(c0, ring, edgeRow)) {
+                        for (int s = cellHead[r * cols + c]; s >= 0; s = next[s]) {
+                            double d = distanceKm(qLat, qLon, lat[s], lon[s]);
+                            if (found == k && d >= bestDist[k - 1]) continue;
+                            // Insertion into the sorted best list (k is small)
+                            int i = found < k ? found++ : k - 1;
+                            while (i > 0 && bestDist[i - 1] > d) {
+                                bestDist[i] = bestDist[i - 1];
+                                bestSlot[i] = bestSlot[i - 1];
+                                i--;
+                            }
+                            bestDist[i] = d;
+                            bestSlot[i] = s;
+                        }
+                    }
+                }
+            }
+            List<StateStore.WeatherRecord> out = new ArrayList<>(found);
+            for (int i = 0; i < found; i++) out.add(records[bestSlot[i]]);
+            return out;
+        } finally { rw.readLock().unlock(); }
+    }
+
+    // Stations inside a box; minLon > maxLon means the box crosses 180 degrees
+    public List<StateStore.WeatherRecord> within(double minLat, double minLon, double maxLat, double maxLon) {
+        rw.readLock().lock();
+        try {
+            List<StateStore.WeatherRecord> out = new ArrayList<>();
+            boolean wraps = minLon > maxLon;
+            int cFrom = col(minLon);
+            int cCount = wraps || cFrom > col(maxLon)
+                    ? cols - cFrom + col(maxLon) + 1
+                    : col(maxLon) - cFrom + 1;
+            for (int r = row(minLat); r <= row(maxLat); r++) {
+                for (int n = 0; n < Math.min(cCount, cols); n++) {
+                    int c = (cFrom + n) % cols;
+                    for (int s = cellHead[r * cols + c]; s >= 0; s = next[s]) {
+                        boolean inLon = wraps ? (lon[s] >= minLon || lon[s] <= maxLon)
+                                : (lon[s] >= minLon && lon[s] <= maxLon);
+                        if (lat[s] >= minLat && lat[s] <= maxLat && inLon) out.add(records[s]);
+                    }
+                }
+            }
+            return out;
+        } finally { rw.readLock().unlock(); }
+    }
+
+    // A parsed ?near=lat,lon&k=n or ?bbox=minLat,minLon,maxLat,maxLon query
+    public static class Query {
+        public static final int MAX_K = 1000;
+
+        public final boolean near;        // true: k nearest; false: bounding box
+        public final double[] args;       // lat,lon or minLat,minLon,maxLat,maxLon
+        public final int k;               // result count for near queries
+
+        private Query(boolean near, double[] args, int k) {
+            this.near = near;
+            this.args = args;
+            this.k = k;
+        }
+
+        // null when the request has neither parameter; throws
+        // IllegalArgumentException on malformed or out-of-range values
+        public static Query parse(String near, String k, String bbox) {
+            if (near != null) {
+                double[] p = numbers(near, 2);
+                checkLat(p[0]);
+                checkLon(p[1]);
+                int n = k == null || k.isEmpty() ? 5 : Integer.parseInt(k);
+                if (n < 1) throw new IllegalArgumentException("k must be positive");
+                return new Query(true, p, Math.min(n, MAX_K));
+            }
+            if (bbox != null) {
+                double[] b = numbers(bbox, 4);
+                checkLat(b[0]);
+                checkLat(b[2]);
+                checkLon(b[1]);
+                checkLon(b[3]);
+                if (b[0] > b[2]) throw new IllegalArgumentException("minLat above maxLat");
+                return new Query(false, b, 0);
+            }
+            return null;
+        }
+
+        public List<StateStore.WeatherRecord> run(GeoIndex index) {
+            return near ? index.nearest(args[0], args[1], k) : index.within(args[0], args[1], args[2], args[3]);
+        }
+
+        // Distance from the query point to a station's JSON (infinite without a position)
+        public double distanceKm(byte[] json) {
+            double la = JsonUtil.numberField(json, LAT);
+            double lo = JsonUtil.numberField(json, LON);
+            if (Double.isNaN(la) || Double.isNaN(lo)) return Double.POSITIVE_INFINITY;
+            return GeoIndex.distanceKm(args[0], args[1], la, lo);
+        }
+
+        private static double[] numbers(String csv, int n) {
+            String[] parts = csv.split(",");
+            if (parts.length != n) throw new IllegalArgumentException("expected " + n + " numbers");
+            double[] out = new double[n];
+            for (int i = 0; i < n; i++) out[i] = Double.parseDouble(parts[i].trim());
+            return out;
+        }
+
+        private static void checkLat(double v) {
+            if (!(v >= -90 && v <= 90)) throw new IllegalArgumentException("latitude out of range");
+        }
+
+        private static void checkLon(double v) {
+            if (!(v >= -180 && v <= 180)) throw new IllegalArgumentException("longitude out of range");
+        }
+    }
+
+    // Great-circle distance (haversine)
+    public static double distanceKm(double lat1, double lon1, double lat2, double lon2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2))
+                * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 2 * EARTH_KM * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    // Smallest distance from the query to any point at least `deg` degrees
+    // away in latitude or in longitude. The longitude term is the distance
+    // to the nearest meridian that far away: asin(cos(lat) * sin(deg)).
+    private static double lowerBoundKm(double qLat, double deg) {
+        if (deg <= 0) return 0;
+        double latKm = Math.toRadians(deg) * EARTH_KM;
+        double lonKm = Math.asin(Math.cos(Math.toRadians(qLat)) * Math.sin(Math.toRadians(Math.min(90, deg))))
+                * EARTH_KM;
+        return Math.min(latKm, lonKm);
+    }
+
+    // Columns of the cells at Chebyshev distance `ring` in one row: every
+    // column within reach on the ring's top/bottom rows, only the two side
+    // columns on the rows in between. Columns wrap and are not repeated.
+    private int[] ringColumns(int c0, int ring, boolean edgeRow) {
+        if (edgeRow) {
+            if (2 * ring + 1 >= cols) {
+                int[] all = new int[cols];
+                for (int c = 0; c < cols; c++) all[c] = c;
+                return all;
+            }
+            int[] cs = new int[2 * ring + 1];
+            for (int d = -ring; d <= ring; d++) cs[d + ring] = Math.floorMod(c0 + d, cols);
+            return cs;
+        }
+        if (2 * ring > cols) return new int[0];
+        if (2 * ring == cols) return new int[]{Math.floorMod(c0 + ring, cols)};
+        return new int[]{Math.floorMod(c0 - ring, cols), Math.floorMod(c0 + ring, cols)};
+    }
+
+    private int row(double la) {
+        return Math.min(rows - 1, Math.max(0, (int) Math.floor((la + 90) / cellDeg)));
+    }
+
+    private int col(double lo) {
+        return Math.floorMod((int) Math.floor((lo + 180) / cellDeg), cols);
+    }
+
+    private void put(StateStore.WeatherRecord rec, double la, double lo) {
+        boolean added = slots.find(rec.stationId) < 0;
+        int s = slots.intern(rec.stationId);
+        if (s >= records.length) grow(Math.max(s + 1, records.length * 2));
+        int cell = row(la) * cols + col(lo);
+        if (added) {
+            size++;
+            link(s, cell);
+        } else if (cellOf[s] != cell) {
+            unlink(s);
+            link(s, cell);
+        }
+        records[s] = rec;
+        lat[s] = la;
+        lon[s] = lo;
+    }
+
+    private void remove(String stationId) {
+        int s = slots.find(stationId);
+        if (s < 0) return;
+        unlink(s);
+        records[s] = null;
+        slots.release(s);
+        size--;
+    }
+
+    private void link(int s, int cell) {
+        cellOf[s] = cell;
+        prev[s] = -1;
+        next[s] = cellHead[cell];
+        if (cellHead[cell] >= 0) prev[cellHead[cell]] = s;
+        cellHead[cell] = s;
+    }
+
+    private void unlink(int s) {
+        if (prev[s] >= 0) next[prev[s]] = next[s];
+        else cellHead[cellOf[s]] = next[s];
+        if (next[s] >= 0) prev[next[s]] = prev[s];
+    }
+
+    private void grow(int cap) {
+        records = Arrays.copyOf(records, cap);
+        lat = Arrays.copyOf(lat, cap);
+        lon = Arrays.copyOf(lon, cap);
+        cellOf = Arrays.copyOf(cellOf, cap);
+        next = Arrays.copyOf(next, cap);
+        prev = Arrays.copyOf(prev, cap);
+    }
+}
@@ -0,0 +1,145 @@
+package agg;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+// Reorder stage in front of the PutWorker. A PUT is held for up to the
+// window after it arrives, so a PUT with a lower Lamport time that arrives
+// a little later is still applied before it. Held PUTs sit in a ring of
+// time buckets by due time, not a global heap. When a bucket falls due,
+// every held PUT up to the highest Lamport time in it is released in
+// Lamport order. A PUT is also released early once every content server
+// seen recently has sent something at least as new (its watermark), since
+// nothing older can arrive from them any more. Content server ids are
+// interned to int handles, so ties are broken without String compares.
+// Not thread-safe; only the worker thread uses it.
+public class HoldBackBuffer {
+    private static final long MIN_ACTIVE_NANOS = 1_000_000_000L;
+
+    // Release order: Lamport time, then content server, then arrival
+    private static final Comparator<PutWorker.PutTask> ORDER = (a, b) -> {
+        int c = Long.compare(a.lamport, b.lamport);
+        if (c != 0) return c;
+        c = Integer.compare(a.serverHandle, b.serverHandle);
+        return c != 0 ? c : Long.compare(a.arrivalSeq, b.arrivalSeq);
+    };
+
+    private final long windowNanos;     // how long a PUT may be held
+    private final long bucketNanos;     // width of one time bucket
+    private final long activeNanos;     // a content server counts for the watermark this long after its last PUT
+    private final Metrics metrics;      // reorder counters
+
+    private final PutWorker.PutTask[][] buckets; // ring, indexed by due slot % length
+    private final int[] counts;                  // tasks in each bucket
+    private long cursor;                         // oldest slot that may still hold tasks
+    private long lastSlot;                       // newest slot used
+    private int held;                            // tasks in all buckets
+
+    private final IdTable servers = new IdTable(64);  // content server id -> handle
+    private long[] watermark = new long[64];          // handle -> highest Lamport time submitted
+    private long[] seenAt = new long[64];             // handle -> nanoTime of its last PUT
+
+    private long maxAdded = Long.MIN_VALUE;     // highest Lamport time taken in
+    private long maxReleased = Long.MIN_VALUE;  // highest Lamport time let out
+
+    public HoldBackBuffer(long windowMillis, Metrics metrics) {
+        this.windowNanos = Math.max(0, windowMillis) * 1_000_000L;
+        this.bucketNanos = Math.max(1_000_000L, windowNanos / 32);
+        this.activeNanos = Math.max(MIN_ACTIVE_NANOS, windowNanos * 10);
+        this.metrics = metrics;
+        int n = (int) (windowNanos / bucketNanos) + 3; // due slots never span more than this
+        this.buckets = new PutWorker.PutTask[n][];
+        this.counts = new int[n];
+        for (int i = 0; i < n; i++) buckets[i] = new PutWorker.PutTask[8];
+    }
+
+    public int size() { return held; }
+
+    // Take in a newly submitted PUT
+    public void add(PutWorker.PutTask t, long now) {
+        int h = servers.intern(t.contentServerId);
+        if (h >= watermark.length) {
+            watermark = Arrays.copyOf(watermark, Math.max(h + 1, watermark.length * 2));
+            seenAt = Arrays.copyOf(seenAt, watermark.length);
+        }
+        if (seenAt[h] == 0 || t.lamport > watermark[h]) watermark[h] = t.lamport;
+        seenAt[h] = now | 1; // never 0, which marks a handle not seen yet
+        t.serverHandle = h;
+
+        // Lower than something already applied: the window was too short for it.
+        // Lower than something still held: the hold-back puts it in order.
+        if (t.lamport < maxReleased) metrics.putsLate.increment();
+        else if (t.lamport < maxAdded) metrics.putsReordered.increment();
+        if (t.lamport > maxAdded) maxAdded = t.lamport;
+
+        long slot = (now + windowNanos + bucketNanos - 1) / bucketNanos;
+        if (held == 0) cursor = slot;
+        if (slot > lastSlot) lastSlot = slot;
+        int b = (int) (slot % buckets.length);
+        if (counts[b] == buckets[b].length) buckets[b] = Arrays.copyOf(buckets[b], counts[b] * 2);
+        buckets[b][counts[b]++] = t;
+        held++;
+    }
+
+    // Nanoseconds until the next bucket falls due; -1 when nothing is held
+    public long nextDueNanos(long now) {
+        if (held == 0) return -1;
+        if (windowNanos == 0) return 0;
+        return Math.max(0, cursor * bucketNanos - now);
+    }
+
+    // Move every PUT that may be applied now into `out`, in Lamport order
+    public void release(long now, List<PutWorker.PutTask> out) {
+        if (held == 0) return;
+        long threshold = windowNanos == 0 ? Long.MAX_VALUE : watermark(now);
+
+        // Due buckets: everything up to their highest Lamport time goes
+        for (; cursor <= lastSlot && cursor * bucketNanos <= now; cursor++) {
+            int b = (int) (cursor % buckets.length);
+            for (int i = 0; i < counts[b]; i++) threshold = Math.max(threshold, buckets[b][i].lamport);
+        }
+
+        int from = out.size();
+        for (int b = 0; b < buckets.length && threshold > Long.MIN_VALUE; b++) {
+            PutWorker.PutTask[] bucket = buckets[b];
+            int keep = 0;
+            for (int i = 0; i < counts[b]; i++) {
+                if (bucket[i].lamport <= threshold) out.add(bucket[i]);
+                else bucket[keep++] = bucket[i];
+            }
+            Arrays.fill(bucket, keep, counts[b], null);
+            held -= counts[b] - keep;
+            counts[b] = keep;
+        }
+        List<PutWorker.PutTask> released = out.subList(from, out.size());
+        released.sort(ORDER);
+        if (!released.isEmpty()) {
+            maxReleased = Math.max(maxReleased, released.get(released.size() - 1).lamport);
+        }
+    }
+
+    // Lowest watermark of the content servers seen recently; servers quiet
+    // for longer are forgotten so they cannot hold everyone else back
+    private long watermark(long now) {
+        long low = Long.MAX_VALUE;
+        List<Integer> idle = null;
+        for (int h = 0; h < servers.limit(); h++) {
+            if (servers.name(h) == null) continue;
+            if (now - seenAt[h] > activeNanos) {
+                if (idle == null) idle = new ArrayList<>();
+                idle.add(h);
+                continue;
+            }
+            low = Math.min(low, watermark[h]);
+        }
+        if (idle != null) {
+            for (int h : idle) {
+                servers.release(h);
+                seenAt[h] = 0;
+            }
+        }
+        return low == Long.MAX_VALUE ? Long.MIN_VALUE : low;
+    }
+}
@@ -0,0 +1,106 @@
+package agg;
+
+import java.util.Arrays;
+
+// Interns string ids to dense int handles so per-id state can be kept in
+// plain arrays. Released handles are reused, so the handle range stays as
+// small as the number of live ids. Not thread-safe; StateStore guards it.
+public class IdTable {
+    private String[] keys;     // open-addressing table of ids (linear probing)
+    private int[] slotHandle;  // handle of the id in the same slot
+    private String[] names;    // handle -> id, null if the handle is free
+    private int[] free;        // released handles, reused before new ones
+    private int freeCount;     // number of entries in free
+    private int limit;         // handles 0..limit-1 have been issued
+    private int size;          // live ids
+
+    public IdTable(int expected) {
+        int cap = Integer.highestOneBit(Math.max(16, expected * 2 - 1)) << 1;
+        keys = new String[cap];
+        slotHandle = new int[cap];
+        names = new String[Math.max(16, expected)];
+        free = new int[16];
+    }
+
+    // Handle of an id, or -1 if it is not interned
+    public int find(String id) {
+        int mask = keys.length - 1;
+        for (int i = spread(id.hashCode()) & mask; keys[i] != null; i = (i + 1) & mask) {
+            if (keys[i].equals(id)) return slotHandle[i];
+        }
+        return -1;
+    }
+
+    // Handle of an id, assigning one if needed
+    public int intern(String id) {
+        int mask = keys.length - 1;
+        int i = spread(id.hashCode()) & mask;
+        for (; keys[i] != null; i = (i + 1) & mask) {
+            if (keys[i].equals(id)) return slotHandle[i];
+        }
+        int h = freeCount > 0 ? free[--freeCount] : limit++;
+        if (h >= names.length) names = Arrays.copyOf(names, names.length * 2);
+        names[h] = id;
+        keys[i] = id;
+        slotHandle[i] = h;
+        if (++size * 2 > keys.length) rehash(keys.length * 2);
+        return h;
+    }
+
+    // The interned id for a handle (the same String instance every time)
+    public String name(int handle) {
+        return handle >= 0 && handle < limit ? names[handle] : null;
+    }
+
+    // Forget an id; its handle may be handed out again
+    public void release(int handle) {
+        String id = name(handle);
+        if (id == null) return;
+        int mask = keys.length - 1;
+        int i = spread(id.hashCode()) & mask;
+        while (!keys[i].equals(id)) i = (i + 1) & mask;
+
+        // Backward-shift deletion keeps probe chains intact without tombstones
+        keys[i] = null;
+        for (int j = (i + 1) & mask; keys[j] != null; j = (j + 1) & mask) {
+            int home = spread(keys[j].hashCode()) & mask;
+            boolean between = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+            if (between) continue;
+            keys[i] = keys[j];
+            slotHandle[i] = slotHandle[j];
+            keys[j] = null;
+            i = j;
+        }
+
+        names[handle] = null;
+        if (freeCount == free.length) free = Arrays.copyOf(free, free.length * 2);
+        free[freeCount++] = handle;
+        size--;
+    }
+
+    // Number of live ids
+    public int size() { return size; }
+
+    // Upper bound (exclusive) of handles issued so far; per-handle arrays need this many entries
+    public int limit() { return limit; }
+
+    private void rehash(int capacity) {
+        String[] oldKeys = keys;
+        int[] oldHandles = slotHandle;
+        keys = new String[capacity];
+        slotHandle = new int[capacity];
+        int mask = capacity - 1;
+        for (int s = 0; s < oldKeys.length; s++) {
+            if (oldKeys[s] == null) continue;
+            int i = spread(oldKeys[s].hashCode()) & mask;
+            while (keys[i] != null) i = (i + 1) & mask;
+            keys[i] = oldKeys[s];
+            slotHandle[i] = oldHandles[s];
+        }
+    }
+
+    private static int spread(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
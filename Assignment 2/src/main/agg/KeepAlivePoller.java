@@ -0,0 +1,140 @@
+package agg;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+// Holds idle connections (new ones and keep-alive ones between requests)
+// on a selector instead of a handler thread. When the next request starts
+// arriving the connection is switched back to blocking mode and its handler
+// is resubmitted to the pool. Connections idle longer than their timeout
+// are closed. Each wakeup looks only at the selected keys and at the head
+// of a deadline queue, so its cost does not grow with the number of quiet
+// parked connections.
+public class KeepAlivePoller implements Runnable {
+    private final Selector selector;       // watches parked connections for readability
+    private final Executor pool;           // handler pool to resume connections on
+    private final long idleTimeoutMillis;  // close connections idle for longer than this
+    private final Queue<Parked> pending = new ConcurrentLinkedQueue<>(); // waiting to be registered
+    private final PriorityQueue<Parked> deadlines =                     // registered, earliest deadline first
+            new PriorityQueue<>(Comparator.comparingLong((Parked p) -> p.deadline));
+    private volatile boolean running = true;
+
+    // A parked connection, the handler that resumes it and what to run if it is closed instead
+    private static class Parked {
+        final SocketChannel channel;
+        final Runnable resume;
+        final Runnable onClose;
+        final long deadline;   // closed if still idle at this time (millis)
+        SelectionKey key;      // set once registered; cancelled when resumed or closed
+        Parked(SocketChannel channel, Runnable resume, Runnable onClose, long idleMillis) {
+            this.channel = channel;
+            this.resume = resume;
+            this.onClose = onClose;
+            this.deadline = System.currentTimeMillis() + idleMillis;
+        }
+    }
+
+    public KeepAlivePoller(Executor pool, long idleTimeoutMillis) throws IOException {
+        this.selector = Selector.open();
+        this.pool = pool;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    // Park an idle connection until it is readable
+    public void park(SocketChannel channel, Runnable resume) {
+        park(channel, resume, null, idleTimeoutMillis);
+    }
+
+    public void park(SocketChannel channel, Runnable resume, Runnable onClose) {
+        park(channel, resume, onClose, idleTimeoutMillis);
+    }
+
+    // Same, with its own idle timeout; onClose (may be null) runs if the poller closes it
+    public void park(SocketChannel channel, Runnable resume, Runnable onClose, long idleMillis) {
+        pending.add(new Parked(channel, resume, onClose, idleMillis));
+        selector.wakeup();
+    }
+
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                Parked first = deadlines.peek();
+                long wait = first == null ? 0 : Math.max(1, first.deadline - System.currentTimeMillis());
+                selector.select(wait); // 0: until a connection is readable or parked
+
+                // Register newly parked connections
+                Parked p;
+                while ((p = pending.poll()) != null) {
+                    try {
+                        p.channel.configureBlocking(false);
+                        p.key = p.channel.register(selector, SelectionKey.OP_READ, p);
+                        deadlines.add(p);
+                    } catch (IOException e) {
+                        close(p);
+                    }
+                }
+
+                // Hand readable connections back to the pool
+                Queue<Parked> ready = new ArrayDeque<>();
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (key.isValid() && key.isReadable()) {
+                        key.cancel();
+                        ready.add((Parked) key.attachment()); // its deadline entry is skipped below
+                    }
+                }
+
+                // Close connections whose idle time is up; a cancelled key was resumed
+                long now = System.currentTimeMillis();
+                while ((p = deadlines.peek()) != null && p.deadline <= now) {
+                    deadlines.poll();
+                    if (!p.key.isValid()) continue;
+                    p.key.cancel();
+                    close(p);
+                }
+                if (ready.isEmpty()) continue;
+
+                // Flush the cancelled keys so the channels can go back to blocking mode
+                selector.selectNow();
+                for (Parked r : ready) {
+                    try {
+                        r.channel.configureBlocking(true);
+                        pool.execute(r.resume);
+                    } catch (IOException | RuntimeException e) {
+                        close(r);
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            // Selector failed; parked connections are dropped below
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.isValid()) close((Parked) key.attachment());
+            }
+            try { selector.close(); } catch (IOException ignored) { }
+        }
+    }
+
+    private static void close(Parked p) {
+        try { p.channel.close(); } catch (IOException ignored) { }
+        if (p.onClose != null) p.onClose.run();
+    }
+}
@@ -0,0 +1,97 @@
+package agg;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+// GETs that asked for a view at least as new as some Lamport time
+// (X-Min-Lamport), parked until the store shows it. No thread waits: each
+// request is a future, completed on the executor when the writer (PutWorker
+// on a primary, ReplicaClient on a replica) makes its Lamport time visible,
+// or failed with a TimeoutException after the wait limit. Only PUTs are
+// tracked; an expiry may show up a moment after its Lamport time is visible.
+public class LamportWaiters {
+    private static class Waiter implements Comparable<Waiter> {
+        final long lamport;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        Waiter(long lamport) { this.lamport = lamport; }
+        @Override
+        public int compareTo(Waiter o) { return Long.compare(lamport, o.lamport); }
+    }
+
+    private final Executor executor;       // runs the parked requests once released
+    private final long waitMillis;         // longest a request stays parked
+    private final int maxParked;           // further requests are rejected at once
+    private final PriorityQueue<Waiter> parked = new PriorityQueue<>(); // guarded by this
+
+    // Every write with a Lamport time <= visible is in the store. A primary
+    // starts at Long.MAX_VALUE and only lowers it while a write is being
+    // applied; a replica starts at 0 and raises it as records arrive.
+    private volatile long visible;
+
+    public LamportWaiters(long initialVisible, Executor executor, long waitMillis, int maxParked) {
+        this.visible = initialVisible;
+        this.executor = executor;
+        this.waitMillis = waitMillis;
+        this.maxParked = maxParked;
+    }
+
+    public long visible() { return visible; }
+
+    public synchronized int parked() { return parked.size(); }
+
+    // Completes once `lamport` is visible; at once if it already is
+    public CompletableFuture<Void> await(long lamport) {
+        if (lamport <= visible) return CompletableFuture.completedFuture(null);
+        Waiter w = new Waiter(lamport);
+        synchronized (this) {
+            if (parked.size() >= maxParked) {
+                return CompletableFuture.failedFuture(new RejectedExecutionException("too many parked reads"));
+            }
+            parked.add(w);
+        }
+        // The writer may have moved on between the check and the add
+        wake();
+        // The caller's future completes after the cleanup, so a timed-out
+        // request is no longer counted as parked by the time it is answered
+        return w.future.orTimeout(waitMillis, TimeUnit.MILLISECONDS).whenComplete((v, err) -> {
+            if (err != null) {
+                synchronized (this) { parked.remove(w); }
+            }
+        });
+    }
+
+    // Primary: a write is about to get a Lamport time of at least `lowerBound`.
+    // Called before the clock tick, so no reader can see the tick first.
+    public void applying(long lowerBound) {
+        visible = lowerBound - 1;
+    }
+
+    // Primary: the write is in the store; everything is visible again
+    public void applied() {
+        visible = Long.MAX_VALUE;
+        wake();
+    }
+
+    // Replica: records up to `lamport` have been applied
+    public void advance(long lamport) {
+        if (lamport > visible) visible = lamport;
+        wake();
+    }
+
+    // Release every parked request that is now visible
+    private void wake() {
+        List<Waiter> ready;
+        synchronized (this) {
+            if (parked.isEmpty() || parked.peek().lamport > visible) return;
+            ready = new ArrayList<>();
+            while (!parked.isEmpty() && parked.peek().lamport <= visible) ready.add(parked.poll());
+        }
+        // Completing on the executor keeps response building off the writer thread
+        for (Waiter w : ready) w.future.completeAsync(() -> null, executor);
+    }
+}
@@ -0,0 +1,31 @@
+package agg;
+
+import common.LamportClock;
+
+import java.io.IOException;
+
+// Refreshes content-server liveness without a PUT: no PutWorker queue and
+// no per-heartbeat WAL record, only an occasional SEEN checkpoint so expiry
+// can be reconstructed after a crash.
+public class LivenessTracker {
+    private final StateStore store;    // holds last-seen times
+    private final WalManager wal;      // receives rate-limited SEEN checkpoints
+    private final LamportClock clock;  // shared Lamport clock
+
+    public LivenessTracker(StateStore store, WalManager wal, LamportClock clock) {
+        this.store = store;
+        this.wal = wal;
+        this.clock = clock;
+    }
+
+    // Returns false if the content server has nothing stored (expired or never seen)
+    public boolean refresh(String contentServerId) {
+        if (!store.refreshLastSeen(contentServerId)) return false;
+        try {
+            wal.appendSeenIfDue(clock.peek(), contentServerId);
+        } catch (IOException e) {
+            // Liveness is still refreshed in memory; only crash recovery loses precision
+        }
+        return true;
+    }
+}
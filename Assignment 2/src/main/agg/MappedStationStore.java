@@ -0,0 +1,325 @@
+package agg;
+
+import common.LamportClock;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+// Copy of the current station records in a memory-mapped file, kept up to
+// date as a StateStore listener. On restart the records are loaded straight
+// from the mapping and only the WAL after the checkpointed offset is
+// replayed. Replaying records the mapping already holds is harmless, so any
+// checkpoint, however old, is a valid starting point.
+//
+// Layout:
+//   header, 64 bytes: magic, format, WAL offset, Lamport high-water mark,
+//                     slot capacity, arena capacity
+//   slots, 48 bytes each: state, crc, lamport, updatedAt millis, arena offset, length
+//   arena: entries [idLen u16][station id][csLen u16][content server id][json],
+//          appended; replaced or expired entries are garbage until compaction
+public class MappedStationStore implements StateStore.Listener {
+    private static final int MAGIC = 0x41474753; // "AGGS"
+    private static final int FORMAT = 1;
+    private static final int HEADER = 64;
+    private static final int SLOT = 48;
+    private static final int H_MAGIC = 0, H_FORMAT = 4, H_WAL_OFFSET = 8, H_LAMPORT = 16, H_SLOTS = 24, H_ARENA = 32;
+    private static final int S_STATE = 0, S_CRC = 4, S_LAMPORT = 8, S_UPDATED = 16, S_OFFSET = 24, S_LENGTH = 32;
+    private static final int FREE = 0, LIVE = 1;
+    private static final long MIN_GARBAGE = 1 << 20; // don't compact (or shrink below) this many bytes
+
+    private final Path path;                  // mapped file
+    private final WalManager wal;             // its position() is the offset the mapping covers
+    private final Object swap = new Object(); // orders compaction against checkpoints
+    private volatile MappedByteBuffer buf;    // current mapping, replaced by compaction
+    private int slotCapacity;                 // slots in the current file
+    private long arenaCapacity;               // arena bytes in the current file
+    private long arenaTop;                    // next free arena byte
+    private long liveBytes;                   // arena bytes referenced by live slots
+    private IdTable slots = new IdTable(1024); // station id -> slot
+    private volatile long appliedOffset;      // WAL bytes reflected in the mapping
+    private volatile long appliedLamport;     // highest Lamport time in the mapping
+    private volatile boolean failed;          // stop updating after an I/O error
+    private int compactions;                  // for logging/metrics
+
+    private MappedStationStore(Path path, WalManager wal) {
+        this.path = path;
+        this.wal = wal;
+    }
+
+    // Map an existing store file, or create one with the given capacities
+    public static MappedStationStore open(Path path, WalManager wal, int slots, long arenaBytes)
+            throws IOException {
+        MappedStationStore m = new MappedStationStore(path, wal);
+        if (Files.exists(path) && Files.size(path) >= HEADER) {
+            MappedByteBuffer b = map(path, Files.size(path), false);
+            if (b.getInt(H_MAGIC) == MAGIC && b.getInt(H_FORMAT) == FORMAT) {
+                m.buf = b;
+                m.slotCapacity = b.getInt(H_SLOTS);
+                m.arenaCapacity = b.getLong(H_ARENA);
+                m.appliedOffset = b.getLong(H_WAL_OFFSET);
+                m.appliedLamport = b.getLong(H_LAMPORT);
+                return m;
+            }
+            System.err.println("Ignoring unrecognised store file " + path);
+        }
+        m.slotCapacity = Math.max(16, slots);
+        m.arenaCapacity = Math.max(4096, arenaBytes);
+        m.buf = create(path, m.slotCapacity, m.arenaCapacity, 0, 0);
+        return m;
+    }
+
+    // Load the mapped records into the store; returns the WAL offset to replay from
+    public long load(StateStore store, LamportClock clock) {
+        List<StateStore.WeatherRecord> records = new ArrayList<>();
+        List<Integer> holes = new ArrayList<>();
+        long arenaBase = arenaBase(slotCapacity);
+        for (int s = 0; s < slotCapacity; s++) {
+            int base = HEADER + s * SLOT;
+            if (buf.getInt(base + S_STATE) != LIVE) {
+                holes.add(s);
+                continue;
+            }
+            long off = buf.getLong(base + S_OFFSET);
+            int len = buf.getInt(base + S_LENGTH);
+            StateStore.WeatherRecord rec = null;
+            if (off >= 0 && len >= 4 && off + len <= arenaCapacity) {
+                byte[] entry = new byte[len];
+                buf.get((int) (arenaBase + off), entry);
+                if (crc(entry) == buf.getInt(base + S_CRC)) {
+                    rec = decode(entry, buf.getLong(base + S_LAMPORT), buf.getLong(base + S_UPDATED));
+                }
+            }
+            if (rec == null || slots.find(rec.stationId) >= 0) {
+                // Torn or duplicate slot: drop it, the WAL tail restores anything newer
+                buf.putInt(base + S_STATE, FREE);
+                holes.add(s);
+                continue;
+            }
+            // Keep slot numbers: fill earlier holes with placeholders, released below
+            while (slots.limit() < s) slots.intern("\u0000hole-" + slots.limit());
+            slots.intern(rec.stationId);
+            records.add(rec);
+            arenaTop = Math.max(arenaTop, off + len);
+            liveBytes += len;
+        }
+        for (int s : holes) {
+            if (s < slots.limit()) slots.release(s);
+        }
+
+        store.load(records);
+        clock.onReceive(appliedLamport);
+        System.out.println("Loaded " + records.size() + " stations from " + path
+                + ", replaying WAL from byte " + appliedOffset);
+        return appliedOffset;
+    }
+
+    // Flush the mapping and record the WAL offset it now covers
+    public void checkpoint() {
+        synchronized (swap) {
+            if (failed) return;
+            long off = appliedOffset;
+            long lamport = appliedLamport;
+            MappedByteBuffer b = buf;
+            b.force();
+            b.putLong(H_WAL_OFFSET, off);
+            b.putLong(H_LAMPORT, lamport);
+            b.force(0, HEADER);
+        }
+    }
+
+    // Checkpoint loop for a background thread
+    public void runCheckpoints(long intervalMillis) {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Thread.sleep(intervalMillis);
+                checkpoint();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                System.err.println("Store checkpoint failed: " + e.getMessage());
+            }
+        }
+    }
+
+    public int compactions() { return compactions; }
+
+    // Called under the store's write lock, so updates never run concurrently
+    @Override
+    public void onPut(StateStore.WeatherRecord rec) {
+        if (failed) return;
+        try {
+            byte[] entry = encode(rec);
+            boolean added = slots.find(rec.stationId) < 0;
+            if ((added && slots.size() >= slotCapacity) || arenaTop + entry.length > arenaCapacity) {
+                compact(entry.length);
+            }
+            int s = slots.intern(rec.stationId); // after compact, which renumbers slots
+
+            int base = HEADER + s * SLOT;
+            if (buf.getInt(base + S_STATE) == LIVE) liveBytes -= buf.getInt(base + S_LENGTH);
+            buf.put((int) (arenaBase(slotCapacity) + arenaTop), entry);
+            // State goes last so a half-written slot is never read as live
+            buf.putInt(base + S_STATE, FREE);
+            buf.putInt(base + S_CRC, crc(entry));
+            buf.putLong(base + S_LAMPORT, rec.lamportApplied);
+            buf.putLong(base + S_UPDATED, rec.updatedAt.toEpochMilli());
+            buf.putLong(base + S_OFFSET, arenaTop);
+            buf.putInt(base + S_LENGTH, entry.length);
+            buf.putInt(base + S_STATE, LIVE);
+            arenaTop += entry.length;
+            liveBytes += entry.length;
+            applied(rec.lamportApplied);
+        } catch (IOException | RuntimeException e) {
+            fail(e);
+        }
+    }
+
+    @Override
+    public void onExpire(String contentServerId, List<String> stationIds, long lamport) {
+        if (failed) return;
+        try {
+            for (String id : stationIds) {
+                int s = slots.find(id);
+                if (s < 0) continue;
+                int base = HEADER + s * SLOT;
+                liveBytes -= buf.getInt(base + S_LENGTH);
+                buf.putInt(base + S_STATE, FREE);
+                slots.release(s);
+            }
+            applied(lamport);
+            // Reclaim the arena once most of it is garbage
+            long garbage = arenaTop - liveBytes;
+            if (garbage > MIN_GARBAGE && garbage > liveBytes) compact(0);
+        } catch (IOException | RuntimeException e) {
+            fail(e);
+        }
+    }
+
+    private void applied(long lamport) {
+        appliedLamport = Math.max(appliedLamport, lamport);
+        appliedOffset = wal.position(); // volatile write publishes the slot updates above
+    }
+
+    // Rewrite the live entries densely into a new file, growing it if needed,
+    // and swap it in with an atomic rename. The new file is flushed before
+    // the rename, so it is a complete checkpoint on its own.
+    private void compact(int extraBytes) throws IOException {
+        synchronized (swap) {
+            int newSlots = slotCapacity;
+            while (slots.size() + 1 > newSlots * 3L / 4) newSlots *= 2;
+            long newArena = arenaCapacity;
+            while (liveBytes + extraBytes > newArena / 2) newArena *= 2;
+            while (newArena > MIN_GARBAGE && (liveBytes + extraBytes) * 8 < newArena) newArena /= 2;
+            if (HEADER + (long) newSlots * SLOT + newArena > Integer.MAX_VALUE) {
+                throw new IOException("store file would exceed 2 GB");
+            }
+
+            Path tmp = path.resolveSibling(path.getFileName() + ".compact");
+            MappedByteBuffer nb = create(tmp, newSlots, newArena, appliedOffset, appliedLamport);
+            IdTable packed = new IdTable(Math.max(1024, slots.size()));
+            long oldArena = arenaBase(slotCapacity);
+            long newBase = arenaBase(newSlots);
+            long top = 0;
+            for (int s = 0; s < slots.limit(); s++) {
+                String id = slots.name(s);
+                if (id == null) continue;
+                int from = HEADER + s * SLOT;
+                int len = buf.getInt(from + S_LENGTH);
+                byte[] entry = new byte[len];
+                buf.get((int) (oldArena + buf.getLong(from + S_OFFSET)), entry);
+                nb.put((int) (newBase + top), entry);
+
+                int to = HEADER + packed.intern(id) * SLOT;
+                nb.putInt(to + S_CRC, buf.getInt(from + S_CRC));
+                nb.putLong(to + S_LAMPORT, buf.getLong(from + S_LAMPORT));
+                nb.putLong(to + S_UPDATED, buf.getLong(from + S_UPDATED));
+                nb.putLong(to + S_OFFSET, top);
+                nb.putInt(to + S_LENGTH, len);
+                nb.putInt(to + S_STATE, LIVE);
+                top += len;
+            }
+            nb.force();
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            buf = nb;
+            slots = packed;
+            slotCapacity = newSlots;
+            arenaCapacity = newArena;
+            arenaTop = top;
+            liveBytes = top;
+            compactions++;
+        }
+    }
+
+    private void fail(Exception e) {
+        // The last checkpoint stays valid; restart replays the WAL from it
+        failed = true;
+        System.err.println("Store file " + path + " disabled: " + e.getMessage());
+    }
+
+    private static MappedByteBuffer create(Path p, int slots, long arena, long walOffset, long lamport)
+            throws IOException {
+        Files.deleteIfExists(p);
+        MappedByteBuffer b = map(p, arenaBase(slots) + arena, true);
+        b.putInt(H_MAGIC, MAGIC);
+        b.putInt(H_FORMAT, FORMAT);
+        b.putLong(H_WAL_OFFSET, walOffset);
+        b.putLong(H_LAMPORT, lamport);
+        b.putInt(H_SLOTS, slots);
+        b.putLong(H_ARENA, arena);
+        return b;
+    }
+
+    private static MappedByteBuffer map(Path p, long size, boolean create) throws IOException {
+        try (FileChannel ch = create
+                ? FileChannel.open(p, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(p, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return ch.map(FileChannel.MapMode.READ_WRITE, 0, size); // stays valid after close
+        }
+    }
+
+    private static long arenaBase(int slots) {
+        return HEADER + (long) slots * SLOT;
+    }
+
+    private static byte[] encode(StateStore.WeatherRecord rec) {
+        byte[] id = rec.stationId.getBytes(StandardCharsets.UTF_8);
+        byte[] cs = rec.sourceContentServerId.getBytes(StandardCharsets.UTF_8);
+        if (id.length > 0xffff || cs.length > 0xffff) throw new IllegalArgumentException("id too long");
+        ByteBuffer e = ByteBuffer.allocate(4 + id.length + cs.length + rec.json.length);
+        e.putShort((short) id.length).put(id).putShort((short) cs.length).put(cs).put(rec.json);
+        return e.array();
+    }
+
+    private static StateStore.WeatherRecord decode(byte[] entry, long lamport, long updatedMillis) {
+        ByteBuffer e = ByteBuffer.wrap(entry);
+        int idLen = e.getShort() & 0xffff;
+        if (idLen + 4 > entry.length) return null;
+        String id = new String(entry, 2, idLen, StandardCharsets.UTF_8);
+        e.position(2 + idLen);
+        int csLen = e.getShort() & 0xffff;
+        int jsonFrom = 4 + idLen + csLen;
+        if (jsonFrom > entry.length) return null;
+        String cs = new String(entry, 4 + idLen, csLen, StandardCharsets.UTF_8);
+        byte[] json = new byte[entry.length - jsonFrom];
+        System.arraycopy(entry, jsonFrom, json, 0, json.length);
+        return new StateStore.WeatherRecord(id, json, cs, lamport, Instant.ofEpochMilli(updatedMillis));
+    }
+
+    private static int crc(byte[] entry) {
+        CRC32 c = new CRC32();
+        c.update(entry);
+        return (int) c.getValue();
+    }
+}
@@ -0,0 +1,47 @@
+package agg;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+// Server-wide counters, reported as JSON by GET /metrics
+public class Metrics {
+    public final LongAdder putsApplied = new LongAdder();      // PUTs written to the WAL and store
+    public final LongAdder putsDeduplicated = new LongAdder(); // PUTs identical to the stored record
+    public final LongAdder heartbeats = new LongAdder();       // content servers refreshed by POST /heartbeat
+    public final LongAdder putsReordered = new LongAdder();    // PUTs the hold-back put ahead of an earlier arrival
+    public final LongAdder putsLate = new LongAdder();         // PUTs that arrived after a higher Lamport time was applied
+    public final LongAdder putsRateLimited = new LongAdder();  // PUTs answered 429: over the content server's rate or queue share
+
+    // Connections refused or dropped by ConnectionGuard
+    public final LongAdder connectionsRejected = new LongAdder(); // over the per-address connection cap
+    public final LongAdder headerTimeouts = new LongAdder();      // header block not in before its deadline
+    public final LongAdder bodyTimeouts = new LongAdder();        // body not in before its deadline
+    public final LongAdder writeTimeouts = new LongAdder();       // response write did not finish in time
+    public final LongAdder headersTooLarge = new LongAdder();     // answered 431
+    public final LongAdder bodiesTooLarge = new LongAdder();      // answered 413
+
+    // Fraction of accepted PUTs that were duplicates (0 when there were none)
+    public double dedupHitRate() {
+        long applied = putsApplied.sum();
+        long dup = putsDeduplicated.sum();
+        return applied + dup == 0 ? 0.0 : (double) dup / (applied + dup);
+    }
+
+    public String toJson(StateStore store) {
+        return "{\"putsApplied\":" + putsApplied.sum()
+                + ",\"putsDeduplicated\":" + putsDeduplicated.sum()
+                + ",\"dedupHitRate\":" + String.format(Locale.ROOT, "%.4f", dedupHitRate())
+                + ",\"heartbeats\":" + heartbeats.sum()
+                + ",\"putsReordered\":" + putsReordered.sum()
+                + ",\"putsLate\":" + putsLate.sum()
+                + ",\"putsRateLimited\":" + putsRateLimited.sum()
+                + ",\"storeVersion\":" + store.version()
+                + ",\"rejected\":{\"connections\":" + connectionsRejected.sum()
+                + ",\"headerTimeouts\":" + headerTimeouts.sum()
+                + ",\"bodyTimeouts\":" + bodyTimeouts.sum()
+                + ",\"writeTimeouts\":" + writeTimeouts.sum()
+                + ",\"headersTooLarge\":" + headersTooLarge.sum()
+                + ",\"bodiesTooLarge\":" + bodiesTooLarge.sum() + "}"
+                + "}";
+    }
+}
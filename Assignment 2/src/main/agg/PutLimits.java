@@ -0,0 +1,168 @@
+package agg;
+
+import common.JsonUtil;
+
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+
+// Per-content-server admission limits. The default feed and binary ingest
+// share one instance, so a content server has one budget for both; each
+// named feed has its own. A token bucket per content server caps its PUT
+// rate; the fair queue in each PutWorker takes quantumBytes per content
+// server per round and holds at most maxQueued of its PUTs. All settings
+// can be changed while the server runs (POST /limits changes the default
+// feed's).
+public class PutLimits {
+    private static final int SWEEP_ABOVE = 4096;           // buckets kept before idle ones are dropped
+
+    // A PUT turned away for its content server's limits: 429, not 503
+    public static class Exceeded extends RejectedExecutionException {
+        private static final long serialVersionUID = 1L;
+
+        public final long retryAfterMillis;                 // when a retry can succeed; 0 if unknown
+
+        Exceeded(String message, long retryAfterMillis) {
+            super(message);
+            this.retryAfterMillis = retryAfterMillis;
+        }
+    }
+
+    // Rate and burst for one content server; rate <= 0 means unlimited
+    public static class Limit {
+        public final double ratePerSec;
+        public final double burst;         // tokens a quiet content server saves up (<= 0: one second's worth)
+
+        public Limit(double ratePerSec, double burst) {
+            this.ratePerSec = ratePerSec;
+            this.burst = burst;
+        }
+
+        double capacity() { return burst > 0 ? Math.max(1, burst) : Math.max(1, ratePerSec); }
+
+        String toJson() {
+            return String.format(Locale.ROOT, "{\"rate\":%s,\"burst\":%s}", num(ratePerSec), num(burst));
+        }
+    }
+
+    private static class Bucket {
+        double tokens;
+        long refilledAt;       // nanoTime of the last refill
+    }
+
+    private volatile Limit defaults;
+    private volatile int quantumBytes;                     // fair-queue share per content server per round
+    private volatile int maxQueued;                        // queued PUTs per content server and worker
+    private final Map<String, Limit> overrides = new ConcurrentHashMap<>();
+    private final Map<String, Bucket> buckets = new ConcurrentHashMap<>();
+    private long sweptAt;                                  // nanoTime of the last idle-bucket sweep
+
+    public PutLimits() {
+        this(new Limit(0, 0), 4096, 256);
+    }
+
+    public PutLimits(Limit defaults, int quantumBytes, int maxQueued) {
+        this.defaults = defaults;
+        this.quantumBytes = Math.max(1, quantumBytes);
+        this.maxQueued = Math.max(1, maxQueued);
+    }
+
+    public int quantumBytes() { return quantumBytes; }
+
+    public int maxQueued() { return maxQueued; }
+
+    public Limit defaults() { return defaults; }
+
+    public Limit limitFor(String contentServerId) {
+        return overrides.getOrDefault(contentServerId, defaults);
+    }
+
+    public void setDefaults(Limit limit) { defaults = limit; }
+
+    public void setQuantumBytes(int bytes) { quantumBytes = Math.max(1, bytes); }
+
+    public void setMaxQueued(int n) { maxQueued = Math.max(1, n); }
+
+    // A limit for one content server; null goes back to the defaults
+    public void setOverride(String contentServerId, Limit limit) {
+        if (limit == null) overrides.remove(contentServerId);
+        else overrides.put(contentServerId, limit);
+        buckets.remove(contentServerId); // starts again with a full bucket
+    }
+
+    // Take one token for a PUT, or throw Exceeded with the wait until the next one
+    public void acquire(String contentServerId, long now) {
+        Limit limit = limitFor(contentServerId);
+        if (limit.ratePerSec <= 0) return;
+        double burst = limit.capacity();
+        Bucket b = buckets.computeIfAbsent(contentServerId, k -> {
+            Bucket nb = new Bucket();
+            nb.tokens = burst;
+            nb.refilledAt = now;
+            return nb;
+        });
+        long waitNanos;
+        synchronized (b) {
+            b.tokens = Math.min(burst, b.tokens + (now - b.refilledAt) / 1e9 * limit.ratePerSec);
+            b.refilledAt = now;
+            if (b.tokens >= 1) {
+                b.tokens -= 1;
+                waitNanos = 0;
+            } else {
+                waitNanos = (long) ((1 - b.tokens) / limit.ratePerSec * 1e9);
+            }
+        }
+        if (buckets.size() > SWEEP_ABOVE) sweep(now);
+        if (waitNanos > 0) {
+            throw new Exceeded("rate limit for " + contentServerId, (waitNanos + 999_999) / 1_000_000);
+        }
+    }
+
+    // Give back the token of a PUT that acquire() let through but that was
+    // then turned away (queue full or queue share used), so a rejected PUT
+    // does not also count against the rate
+    public void refund(String contentServerId) {
+        Limit limit = limitFor(contentServerId);
+        Bucket b = buckets.get(contentServerId);
+        if (b == null || limit.ratePerSec <= 0) return;
+        synchronized (b) {
+            b.tokens = Math.min(limit.capacity(), b.tokens + 1);
+        }
+    }
+
+    // Drop buckets that have refilled completely: a fresh one is the same
+    private synchronized void sweep(long now) {
+        if (now - sweptAt < 1_000_000_000L) return;
+        sweptAt = now;
+        for (Iterator<Map.Entry<String, Bucket>> it = buckets.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Bucket> e = it.next();
+            Limit limit = limitFor(e.getKey());
+            Bucket b = e.getValue();
+            synchronized (b) {
+                double full = b.tokens + (now - b.refilledAt) / 1e9 * Math.max(0, limit.ratePerSec);
+                if (limit.ratePerSec <= 0 || full >= limit.capacity()) it.remove();
+            }
+        }
+    }
+
+    public String toJson() {
+        StringBuilder sb = new StringBuilder("{\"default\":").append(defaults.toJson())
+                .append(",\"quantumBytes\":").append(quantumBytes)
+                .append(",\"maxQueued\":").append(maxQueued)
+                .append(",\"overrides\":{");
+        boolean first = true;
+        for (Map.Entry<String, Limit> e : new TreeMap<>(overrides).entrySet()) {
+            if (!first) sb.append(',');
+            first = false;
+            sb.append('"').append(JsonUtil.escape(e.getKey())).append("\":").append(e.getValue().toJson());
+        }
+        return sb.append("}}").toString();
+    }
+
+    private static String num(double d) {
+        return d == Math.rint(d) ? Long.toString((long) d) : Double.toString(d);
+    }
+}
@@ -1,47 +1,54 @@
 package agg;
 
+import common.JsonUtil;
 import common.LamportClock;
 
 import java.io.IOException;
-import java.util.Objects;
-import java.util.concurrent.BlockingQueue;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 public class PutWorker implements Runnable {
 
     // Represents a single PUT request task
-    public static class PutTask implements Comparable<PutTask> {
+    public static class PutTask {
+        // Claim states: whoever moves a task out of QUEUED decides its outcome,
+        // so a PUT is never both applied and answered as timed out
+        static final int QUEUED = 0;
+        static final int APPLYING = 1;
+        static final int ABANDONED = 2;
+
         final long lamport;                    // Lamport timestamp from client
         final String contentServerId;          // ID of content server
         final String stationId;                // Station identifier
-        final String rawJson;                  // Weather data in JSON
+        final byte[] json;                     // Weather data, minified UTF-8 JSON
+        final long contentHash;                // JsonUtil.contentHash(json), computed off the worker thread
         final long arrivalSeq;                 // Sequence to break ties
+        final long queuedNanos;                // System.nanoTime() at submit, for tracing
+        final long deadlineNanos;              // System.nanoTime() after which the task is dropped
         final CompletableFuture<Result> resultFuture; // For async result
+        final AtomicInteger state = new AtomicInteger(QUEUED); // QUEUED, then APPLYING or ABANDONED
+        int serverHandle;                      // content server handle, set by the HoldBackBuffer
 
         public PutTask(long lamport, String contentServerId, String stationId,
-                       String rawJson, long arrivalSeq, CompletableFuture<Result> fut) {
+                       byte[] json, long arrivalSeq, long deadlineNanos,
+                       CompletableFuture<Result> fut) {
             this.lamport = lamport;
             this.contentServerId = contentServerId;
             this.stationId = stationId;
-            this.rawJson = rawJson;
+            this.json = json;
+            this.contentHash = JsonUtil.contentHash(json);
             this.arrivalSeq = arrivalSeq;
+            this.queuedNanos = System.nanoTime();
+            this.deadlineNanos = deadlineNanos;
             this.resultFuture = fut;
         }
-
-        @Override
-        public int compareTo(PutTask o) {
-            // Order primarily by Lamport timestamp
-            int c = Long.compare(this.lamport, o.lamport);
-            if (c != 0) return c;
-            // Break ties by content server ID
-            c = Objects.requireNonNullElse(this.contentServerId, "")
-                    .compareTo(Objects.requireNonNullElse(o.contentServerId, ""));
-            if (c != 0) return c;
-            // Finally break ties by arrival order
-            return Long.compare(this.arrivalSeq, o.arrivalSeq);
-        }
     }
 
     // Result returned after processing a PUT
@@ -57,56 +64,197 @@ public class PutWorker implements Runnable {
     private final StateStore store;            // In-memory state store
     private final WalManager wal;              // Write-Ahead Log manager
     private final LamportClock clock;          // Shared Lamport clock
-    private final BlockingQueue<PutTask> queue;// Priority queue for tasks
+    private final LivenessTracker liveness;    // refreshes last-seen for unchanged PUTs
+    private final Metrics metrics;             // applied/deduplicated counters
+    private final LamportWaiters waiters;      // reads waiting for a Lamport time (may be null)
+    private final PutLimits limits;            // per-content-server rate and queue share (shared)
+    private final FairQueue queue;             // Submitted tasks, round-robin across content servers
+    private final HoldBackBuffer holdBack;     // Reorders tasks by Lamport time (worker thread only)
+    private final Semaphore slots;             // Admission permits, one per queued or held task
+    private final int capacity;                // Total permits
+    private final long deadlineMillis;         // Max time a task may wait in the queue
     private volatile boolean running = true;
+    private long lastApplied;                  // Lamport time of the last write (worker thread only)
 
     public PutWorker(StateStore store, WalManager wal, LamportClock clock) {
+        this(store, wal, clock, 1024, 2000);
+    }
+
+    public PutWorker(StateStore store, WalManager wal, LamportClock clock,
+                     int capacity, long deadlineMillis) {
+        this(store, wal, clock, capacity, deadlineMillis, new Metrics());
+    }
+
+    public PutWorker(StateStore store, WalManager wal, LamportClock clock,
+                     int capacity, long deadlineMillis, Metrics metrics) {
+        this(store, wal, clock, capacity, deadlineMillis, metrics, null);
+    }
+
+    public PutWorker(StateStore store, WalManager wal, LamportClock clock,
+                     int capacity, long deadlineMillis, Metrics metrics, LamportWaiters waiters) {
+        this(store, wal, clock, capacity, deadlineMillis, metrics, waiters, 0);
+    }
+
+    // holdMillis: how long a PUT may be held back for one with a lower
+    // Lamport time to overtake it (0 applies in the order tasks are taken in)
+    public PutWorker(StateStore store, WalManager wal, LamportClock clock, int capacity,
+                     long deadlineMillis, Metrics metrics, LamportWaiters waiters, long holdMillis) {
+        this(store, wal, clock, capacity, deadlineMillis, metrics, waiters, holdMillis, new PutLimits());
+    }
+
+    public PutWorker(StateStore store, WalManager wal, LamportClock clock, int capacity, long deadlineMillis,
+                     Metrics metrics, LamportWaiters waiters, long holdMillis, PutLimits limits) {
         this.store = store;
         this.wal = wal;
         this.clock = clock;
-        this.queue = new PriorityBlockingQueue<>();
+        this.liveness = new LivenessTracker(store, wal, clock);
+        this.metrics = metrics;
+        this.waiters = waiters;
+        this.limits = limits;
+        this.queue = new FairQueue(limits);
+        this.holdBack = new HoldBackBuffer(holdMillis, metrics);
+        this.capacity = Math.max(1, capacity);
+        this.slots = new Semaphore(this.capacity);
+        this.deadlineMillis = deadlineMillis;
     }
 
     private final AtomicLong arrivalSeq = new AtomicLong();
 
     // Submit a new PUT request into the queue
-    public CompletableFuture<Result> submit(long lamport, String contentServerId, String stationId, String rawJson) {
+    // Fails fast with PutLimits.Exceeded when the content server is over its
+    // rate or queue share, and RejectedExecutionException when the queue is full
+    public CompletableFuture<Result> submit(long lamport, String contentServerId, String stationId, byte[] json) {
+        long now = System.nanoTime();
+        try {
+            limits.acquire(contentServerId, now);
+        } catch (PutLimits.Exceeded e) {
+            metrics.putsRateLimited.increment();
+            return CompletableFuture.failedFuture(e);
+        }
+        if (!slots.tryAcquire()) {
+            limits.refund(contentServerId);
+            return CompletableFuture.failedFuture(new RejectedExecutionException("put queue full"));
+        }
         CompletableFuture<Result> fut = new CompletableFuture<>();
-        PutTask t = new PutTask(lamport, contentServerId, stationId, rawJson,
-                arrivalSeq.incrementAndGet(), fut);
-        queue.add(t);
+        long deadline = now + deadlineMillis * 1_000_000L;
+        PutTask t = new PutTask(lamport, contentServerId, stationId, json,
+                arrivalSeq.incrementAndGet(), deadline, fut);
+        try {
+            queue.add(t);
+        } catch (PutLimits.Exceeded e) {
+            slots.release();
+            limits.refund(contentServerId);
+            metrics.putsRateLimited.increment();
+            return CompletableFuture.failedFuture(e);
+        }
+        // Past the deadline the caller gets a TimeoutException, but only if the
+        // worker has not started on the task; once applying, the real result stands
+        CompletableFuture.delayedExecutor(deadlineMillis, TimeUnit.MILLISECONDS).execute(() -> {
+            if (t.state.compareAndSet(PutTask.QUEUED, PutTask.ABANDONED)) {
+                fut.completeExceptionally(new TimeoutException("put deadline exceeded"));
+            }
+        });
         return fut;
     }
 
+    // Limits shared with the other workers, for GET/POST /limits
+    public PutLimits limits() { return limits; }
+
+    // Per-request deadline, so callers can bound their own wait
+    public long deadlineMillis() { return deadlineMillis; }
+
+    // Number of tasks currently waiting to be applied
+    public int queued() { return capacity - slots.availablePermits(); }
+
     // stop the worker
     public void shutdown() { running = false; }
 
     @Override
     public void run() {
+        List<PutTask> taken = new ArrayList<>();
+        List<PutTask> ready = new ArrayList<>();
         while (running) {
             try {
-                // Take next task from queue (blocking if empty)
-                PutTask t = queue.take();
+                // Wait for new tasks, but no longer than until held ones fall due;
+                // one fair round at a time, so a busy content server cannot crowd out the rest
+                long wait = holdBack.nextDueNanos(System.nanoTime());
+                queue.takeRound(wait, taken);
+                long now = System.nanoTime();
+                for (PutTask t : taken) holdBack.add(t, now);
+                taken.clear();
+                holdBack.release(System.nanoTime(), ready);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+
+            for (PutTask t : ready) {
+                slots.release();
+                TraceEvents.PutApply traced = new TraceEvents.PutApply();
+                long takenAt = traced.isEnabled() ? System.nanoTime() : 0;
+                traced.begin();
+                String outcome = apply(t);
+                traced.end();
+                if (traced.shouldCommit()) {
+                    traced.stationId = t.stationId;
+                    traced.contentServerId = t.contentServerId;
+                    traced.requestLamport = t.lamport;
+                    traced.appliedLamport = "applied".equals(outcome) ? lastApplied : -1;
+                    traced.outcome = outcome;
+                    traced.queueTime = takenAt - t.queuedNanos;
+                    traced.commit();
+                }
+            }
+            ready.clear();
+        }
+    }
 
-                // Synchronize Lamport clock with request
-                clock.onReceive(t.lamport);
-                long L = clock.tick(); // Tick for applying update
+    // Apply one task and complete its future; returns the outcome for tracing
+    private String apply(PutTask t) {
+        // Skip tasks that waited too long, or that the deadline already claimed
+        if (System.nanoTime() - t.deadlineNanos > 0) {
+            if (!t.state.compareAndSet(PutTask.QUEUED, PutTask.ABANDONED)) return "cancelled";
+            t.resultFuture.completeExceptionally(new TimeoutException("put deadline passed in queue"));
+            return "expired";
+        }
+        // Claim the task before any side effect; from here the deadline no longer answers for it
+        if (!t.state.compareAndSet(PutTask.QUEUED, PutTask.APPLYING)) return "cancelled";
 
-                // Log the PUT before applying (WAL first)
-                wal.appendPut(L, t.contentServerId, t.stationId, t.rawJson);
+        try {
+            // Synchronize Lamport clock with request
+            clock.onReceive(t.lamport);
 
-                // Apply to state store
-                boolean created = store.applyPut(t.stationId, t.rawJson, t.contentServerId, L);
+            // Same content from the same content server: only refresh
+            // last-seen, without a WAL record or a store change
+            if (store.isUnchanged(t.stationId, t.contentServerId, t.contentHash, t.json)) {
+                liveness.refresh(t.contentServerId);
+                metrics.putsDeduplicated.increment();
+                t.resultFuture.complete(new Result(false, clock.peek()));
+                return "unchanged";
+            }
 
-                // Complete the future with result
-                t.resultFuture.complete(new Result(created, L));
+            // Parked reads must not pass this write's Lamport time until it is applied
+            if (waiters != null) waiters.applying(clock.peek() + 1);
+            long L = clock.tick(); // Tick for applying update
+            lastApplied = L;
 
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                break;
-            } catch (IOException ioe) {
-                ioe.printStackTrace();
+            // Log the PUT, then apply it to the state store (WAL first)
+            boolean created;
+            try {
+                created = wal.appendAndApplyPut(store, L, t.contentServerId, t.stationId, t.json);
+            } finally {
+                if (waiters != null) waiters.applied();
             }
+            metrics.putsApplied.increment();
+
+            // Complete the future with result
+            t.resultFuture.complete(new Result(created, L));
+            return "applied";
+
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            t.resultFuture.completeExceptionally(ioe);
+            return "failed";
         }
     }
-}
\ No newline at end of file
+}
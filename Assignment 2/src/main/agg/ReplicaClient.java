@@ -0,0 +1,118 @@
+package agg;
+
+import common.HttpMessage.HttpResponse;
+import common.LamportClock;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+// Replica side of WAL shipping: follows a primary's replication stream,
+// rebuilding the local store from its snapshot and applying the record tail.
+// Reconnects (and resyncs from a fresh snapshot) whenever the stream breaks.
+public class ReplicaClient implements Runnable {
+    private static final int RETRY_DELAY_MS = 1000; // reconnect delay
+
+    private final String primaryHost;    // primary to follow
+    private final int primaryPort;
+    private final StateStore store;      // local read-only store
+    private final LamportClock clock;    // shared Lamport clock
+    private final LamportWaiters waiters; // reads waiting for a Lamport time (may be null)
+    private volatile boolean running = true;
+
+    private volatile boolean connected;       // stream currently open
+    private volatile long primaryLamport;     // primary's last applied Lamport (from heartbeats)
+    private volatile long appliedLamport;     // last Lamport applied locally
+
+    public ReplicaClient(String primaryHost, int primaryPort, StateStore store, LamportClock clock) {
+        this(primaryHost, primaryPort, store, clock, null);
+    }
+
+    public ReplicaClient(String primaryHost, int primaryPort, StateStore store, LamportClock clock,
+                         LamportWaiters waiters) {
+        this.waiters = waiters;
+        this.primaryHost = primaryHost;
+        this.primaryPort = primaryPort;
+        this.store = store;
+        this.clock = clock;
+    }
+
+    public String primary() { return primaryHost + ":" + primaryPort; }
+    public boolean isConnected() { return connected; }
+    public long primaryLamport() { return primaryLamport; }
+    public long appliedLamport() { return appliedLamport; }
+
+    // Replication lag in Lamport time
+    public long lag() { return Math.max(0, primaryLamport - appliedLamport); }
+
+    public void shutdown() { running = false; }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                follow();
+            } catch (IOException e) {
+                // Primary unreachable or stream broken; retry below
+            } finally {
+                connected = false;
+            }
+            try {
+                Thread.sleep(RETRY_DELAY_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void follow() throws IOException {
+        try (Socket socket = new Socket(primaryHost, primaryPort)) {
+            OutputStream out = socket.getOutputStream();
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+
+            String request =
+                    "GET " + ReplicationSource.PATH + " HTTP/1.1\r\n" +
+                            "Host: " + primary() + "\r\n" +
+                            "X-Lamport: " + clock.onSend() + "\r\n" +
+                            "\r\n";
+            out.write(request.getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+
+            HttpResponse head = HttpResponse.parse(in);
+            if (head.statusCode != 200) throw new IOException("primary refused replication: " + head.statusCode);
+            head.lamportHeader().ifPresent(clock::onReceive);
+            connected = true;
+
+            BufferedReader br = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            StateStore staging = null; // snapshot being collected
+            String line;
+            while (running && (line = br.readLine()) != null) {
+                if (line.startsWith("SNAPSHOT|")) {
+                    staging = new StateStore();
+                } else if (line.startsWith("SNAPSHOT-END|")) {
+                    // Swap the whole snapshot in at once so readers never see half of it
+                    if (staging != null) store.load(staging.snapshotRecords());
+                    staging = null;
+                    long L = Long.parseLong(line.substring("SNAPSHOT-END|".length()));
+                    appliedLamport = L;
+                    primaryLamport = Math.max(primaryLamport, L);
+                    if (waiters != null) waiters.advance(L);
+                } else if (line.startsWith("HEARTBEAT|")) {
+                    String[] f = line.split("\\|");
+                    long L = Long.parseLong(f[1]);
+                    clock.onReceive(L);
+                    primaryLamport = L;
+                    // Everything up to the watermark has been applied above
+                    if (waiters != null && f.length > 2) waiters.advance(Long.parseLong(f[2]));
+                } else {
+                    long L = WalManager.applyRecord(line, staging != null ? staging : store, clock);
+                    if (staging == null && L > appliedLamport) {
+                        appliedLamport = L;
+                        if (waiters != null) waiters.advance(L);
+                    }
+                }
+            }
+        }
+    }
+}
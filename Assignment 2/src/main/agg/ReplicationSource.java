@@ -0,0 +1,136 @@
+package agg;
+
+import common.HttpMessage.HttpResponse;
+import common.LamportClock;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Primary side of WAL shipping: streams a snapshot of the store followed by
+// every applied PUT/EXPIRE, in WAL record format, to a connected replica.
+//
+// Stream lines after the HTTP header:
+//   SNAPSHOT|L          start of snapshot, L = last applied Lamport
+//   PUT|...             one record per stored station
+//   SNAPSHOT-END|L
+//   PUT|... / EXPIRE|... tail records as they are applied
+//   HEARTBEAT|L|W       periodic, L = primary's last applied Lamport,
+//                       W = every write with Lamport <= W is already above
+public class ReplicationSource {
+    public static final String PATH = "/replication/stream";
+    private static final int MAX_BACKLOG = 65536; // records buffered per replica before it is dropped
+    private static final byte[] OVERFLOW = new byte[0]; // sentinel: replica fell too far behind
+
+    private final StateStore store;      // store being replicated
+    private final LamportClock clock;    // shared Lamport clock
+    private final long heartbeatMillis;  // heartbeat interval
+    private final LamportWaiters waiters; // the primary's in-flight write bound (may be null)
+    private final AtomicInteger replicas = new AtomicInteger(); // connected replicas
+
+    public ReplicationSource(StateStore store, LamportClock clock, long heartbeatMillis) {
+        this(store, clock, heartbeatMillis, null);
+    }
+
+    public ReplicationSource(StateStore store, LamportClock clock, long heartbeatMillis, LamportWaiters waiters) {
+        this.waiters = waiters;
+        this.store = store;
+        this.clock = clock;
+        this.heartbeatMillis = heartbeatMillis;
+    }
+
+    public int connectedReplicas() { return replicas.get(); }
+
+    // Take over the socket and stream on a dedicated thread
+    public void serve(Socket socket) {
+        Thread t = new Thread(() -> stream(socket), "replication-" + socket.getRemoteSocketAddress());
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private void stream(Socket socket) {
+        BlockingQueue<byte[]> tail = new LinkedBlockingQueue<>(MAX_BACKLOG);
+        StateStore.Listener listener = new StateStore.Listener() {
+            @Override public void onPut(StateStore.WeatherRecord rec) {
+                offer(tail, WalManager.formatPut(rec.lamportApplied, rec.sourceContentServerId,
+                        rec.stationId, rec.json, rec.updatedAt));
+            }
+            @Override public void onExpire(String contentServerId, List<String> stationIds, long lamport) {
+                offer(tail, WalManager.formatExpire(lamport, contentServerId, Instant.now()));
+            }
+        };
+
+        replicas.incrementAndGet();
+        try (Socket s = socket;
+             OutputStream out = new BufferedOutputStream(s.getOutputStream())) {
+            // Register before snapshotting so no change falls between the two
+            List<StateStore.WeatherRecord> snapshot = store.snapshotAndListen(listener);
+            long snapL = store.lastAppliedLamport();
+
+            HttpResponse head = new HttpResponse(200, "OK");
+            head.headers.put("Content-Type", "text/plain");
+            head.headers.put("Connection", "close");
+            head.headers.put("X-Lamport", Long.toString(clock.onSend()));
+            head.write(out);
+
+            write(out, "SNAPSHOT|" + snapL + "\n");
+            for (StateStore.WeatherRecord r : snapshot) {
+                out.write(WalManager.formatPut(r.lamportApplied, r.sourceContentServerId,
+                        r.stationId, r.json, r.updatedAt));
+            }
+            write(out, "SNAPSHOT-END|" + snapL + "\n");
+            out.flush();
+
+            long nextHeartbeat = System.currentTimeMillis();
+            stream:
+            while (true) {
+                byte[] line = tail.poll(heartbeatMillis, TimeUnit.MILLISECONDS);
+                if (line == OVERFLOW) break; // replica reconnects and resyncs
+                if (line != null) out.write(line);
+                long now = System.currentTimeMillis();
+                if (now >= nextHeartbeat) {
+                    // Clock first, then the in-flight bound: a write that starts
+                    // after either read gets a Lamport time above the watermark.
+                    // Writes finished before were queued already; drain them first.
+                    long clockNow = clock.peek();
+                    long watermark = waiters == null ? store.lastAppliedLamport()
+                            : Math.min(clockNow, waiters.visible());
+                    for (byte[] queued; (queued = tail.poll()) != null; ) {
+                        if (queued == OVERFLOW) break stream;
+                        out.write(queued);
+                    }
+                    write(out, "HEARTBEAT|" + store.lastAppliedLamport() + "|" + watermark + "\n");
+                    nextHeartbeat = now + heartbeatMillis;
+                }
+                if (tail.isEmpty()) out.flush();
+            }
+        } catch (IOException e) {
+            // Replica disconnected
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            store.removeListener(listener);
+            replicas.decrementAndGet();
+        }
+    }
+
+    // Queue a record without blocking the store's write lock
+    private static void offer(BlockingQueue<byte[]> tail, byte[] line) {
+        if (!tail.offer(line)) {
+            tail.clear();
+            tail.offer(OVERFLOW);
+        }
+    }
+
+    private static void write(OutputStream out, String line) throws IOException {
+        out.write(line.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -5,39 +5,130 @@ import common.HttpMessage.HttpResponse;
 import common.LamportClock;
 import common.JsonUtil;
 
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
 import java.util.OptionalLong;
-import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
 
 public class Router {
+    private static final int STREAM_THRESHOLD = 64 * 1024; // larger feeds go out chunked (HTTP/1.1)
+    private static final byte[] FEED_HEAD = "{\"stations\": [".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] FEED_TAIL = "]}".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] COMMA = {','};
+    private static final int DEFAULT_PAGE = 1000;          // ?cursor= without ?limit=
+    private static final int MAX_PAGE = 10000;             // largest ?limit= honoured
+
     private final StateStore store;        // in-memory store of weather data
     private final LamportClock clock;      // shared Lamport clock
     private final PutWorker putWorker;     // worker to handle PUT requests
-
-    private static final Pattern ID_FIELD = Pattern.compile("\"id\"\\s*:\\s*\"([^\"]+)\"");
+    private final int retryAfterSeconds;   // Retry-After hint sent with 503
+    private final ReplicaClient replica;   // non-null when running as a read-only replica
+    private final ReplicationSource replication; // non-null on a primary that ships its WAL
+    private final Cluster cluster;         // non-null when station ids are sharded across nodes
+    private final LivenessTracker liveness; // handles heartbeats (primary only)
+    private final Metrics metrics;         // counters reported by GET /metrics
+    private final StationHistory history;  // recent updates per station, or null if disabled
+    private final GeoIndex geo;            // station positions for geo queries, or null if disabled
+    private final LamportWaiters waiters;  // parks GETs until their X-Min-Lamport is visible, or null
+    private final Feeds feeds;             // named feeds under /feeds/, or null if disabled
+    private final String feedPath;         // GET/PUT path of this router's store
+    private final String heartbeatPath;    // POST path for heartbeats to this router's store
 
     public Router(StateStore store, LamportClock clock, PutWorker putWorker) {
+        this(store, clock, putWorker, 1);
+    }
+
+    public Router(StateStore store, LamportClock clock, PutWorker putWorker, int retryAfterSeconds) {
+        this(store, clock, putWorker, retryAfterSeconds, null, null, null, null, new Metrics(), null, null, null, null);
+    }
+
+    public Router(StateStore store, LamportClock clock, PutWorker putWorker, int retryAfterSeconds,
+                  ReplicaClient replica, ReplicationSource replication, Cluster cluster,
+                  LivenessTracker liveness, Metrics metrics, StationHistory history, GeoIndex geo,
+                  LamportWaiters waiters, Feeds feeds) {
+        this("/weather.json", "/heartbeat", store, clock, putWorker, retryAfterSeconds, replica, replication,
+                cluster, liveness, metrics, history, geo, waiters, feeds);
+    }
+
+    // One named feed: its own store and worker behind its own paths
+    Router(String feedPath, String heartbeatPath, StateStore store, LamportClock clock, PutWorker putWorker,
+           int retryAfterSeconds, LivenessTracker liveness, Metrics metrics) {
+        this(feedPath, heartbeatPath, store, clock, putWorker, retryAfterSeconds, null, null, null,
+                liveness, metrics, null, null, null, null);
+    }
+
+    private Router(String feedPath, String heartbeatPath, StateStore store, LamportClock clock,
+                   PutWorker putWorker, int retryAfterSeconds, ReplicaClient replica,
+                   ReplicationSource replication, Cluster cluster, LivenessTracker liveness, Metrics metrics,
+                   StationHistory history, GeoIndex geo, LamportWaiters waiters, Feeds feeds) {
+        this.feedPath = feedPath;
+        this.heartbeatPath = heartbeatPath;
+        this.feeds = feeds;
         this.store = store;
         this.clock = clock;
         this.putWorker = putWorker;
+        this.retryAfterSeconds = retryAfterSeconds;
+        this.replica = replica;
+        this.replication = replication;
+        this.cluster = cluster;
+        this.liveness = liveness;
+        this.metrics = metrics;
+        this.history = history;
+        this.geo = geo;
+        this.waiters = waiters;
     }
 
-    // Main request handler: routes GET and PUT
+    // Synchronous wrapper around handleAsync
     public HttpResponse handle(HttpRequest req) {
+        return handleAsync(req).join();
+    }
+
+    // Main request handler: routes GET and PUT
+    // PUT responses complete when the PutWorker applies (or sheds) the update
+    public CompletableFuture<HttpResponse> handleAsync(HttpRequest req) {
+        // Named feeds have their own routers
+        if (feeds != null && Feeds.owns(req.path)) return feeds.route(req);
+
         String method = req.method.toUpperCase();
         OptionalLong lamportHdr = req.lamportHeader();
         lamportHdr.ifPresent(clock::onReceive);
 
         switch (method) {
             case "GET":
-                if ("/weather.json".equals(req.path)) return handleGet();
+                if (feedPath.equals(req.path)) {
+                    String min = req.headers.get("X-Min-Lamport");
+                    if (min == null || waiters == null) return handleWeatherGet(req);
+                    return handleMinLamportGet(req, min);
+                }
+                if ("/replication/status".equals(req.path)) return CompletableFuture.completedFuture(handleReplicationStatus());
+                if ("/metrics".equals(req.path)) return CompletableFuture.completedFuture(handleMetrics());
+                if ("/history".equals(req.path)) return CompletableFuture.completedFuture(handleHistory(req));
+                if ("/limits".equals(req.path) && putWorker != null) {
+                    return CompletableFuture.completedFuture(handleLimits(req));
+                }
                 break;
             case "PUT":
-                if ("/weather.json".equals(req.path)) return handlePut(req);
+                if (feedPath.equals(req.path)) {
+                    if (replica != null) return CompletableFuture.completedFuture(readOnly());
+                    return handlePut(req);
+                }
+                break;
+            case "POST":
+                if (heartbeatPath.equals(req.path)) {
+                    if (replica != null) return CompletableFuture.completedFuture(readOnly());
+                    return CompletableFuture.completedFuture(handleHeartbeat(req));
+                }
+                if ("/limits".equals(req.path) && putWorker != null) {
+                    return CompletableFuture.completedFuture(handleLimits(req));
+                }
                 break;
             default:
                 break;
@@ -45,81 +136,499 @@ public class Router {
         // Fallback for unsupported methods/paths
         HttpResponse bad = HttpResponse.of(400, "Bad Request", null, null);
         bad.headers.put("X-Lamport", Long.toString(clock.peek()));
-        return bad;
+        return CompletableFuture.completedFuture(bad);
+    }
+
+    // Handle GET /weather.json with X-Min-Lamport: serve once the store holds
+    // every write up to that Lamport time, or 503 if it does not in time
+    private CompletableFuture<HttpResponse> handleMinLamportGet(HttpRequest req, String min) {
+        long minLamport;
+        try {
+            minLamport = Long.parseLong(min.trim());
+        } catch (NumberFormatException e) {
+            clock.tick();
+            HttpResponse r = HttpResponse.of(400, "Bad Request",
+                    "{\"error\":\"bad X-Min-Lamport\"}", "application/json");
+            r.headers.put("X-Lamport", Long.toString(clock.peek()));
+            return CompletableFuture.completedFuture(r);
+        }
+        return waiters.await(minLamport).handle((v, err) -> err).thenCompose(err -> {
+            if (err == null) return handleWeatherGet(req);
+            Throwable cause = err instanceof CompletionException && err.getCause() != null ? err.getCause() : err;
+            return CompletableFuture.completedFuture(unavailable(cause instanceof TimeoutException
+                    ? "min lamport not reached" : "too many waiting reads"));
+        });
+    }
+
+    // Handle GET /weather.json: plain, geo query, one shard, or the whole cluster
+    private CompletableFuture<HttpResponse> handleWeatherGet(HttpRequest req) {
+        GeoIndex.Query q;
+        try {
+            q = GeoIndex.Query.parse(req.queryParam("near"), req.queryParam("k"), req.queryParam("bbox"));
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.completedFuture(badGeoQuery(e.getMessage()));
+        }
+        if (q != null && geo == null) return CompletableFuture.completedFuture(badGeoQuery("geo index disabled"));
+        boolean paged = req.queryParam("limit") != null || req.queryParam("cursor") != null;
+        if (paged && (q != null || cluster != null)) {
+            // Cursors are store handles, which only mean something on one node's full feed
+            return CompletableFuture.completedFuture(badPageQuery("paging is only supported on a single node's full feed"));
+        }
+        if (paged) return CompletableFuture.completedFuture(handlePage(req));
+        if (cluster == null) return CompletableFuture.completedFuture(q != null ? handleGeoGet(req, q) : handleGet(req));
+        if ("local".equals(req.headers.get(Cluster.SCOPE_HEADER))) {
+            return CompletableFuture.completedFuture(handleShardGet(req, q));
+        }
+        return handleClusterGet(req, q);
     }
 
     // Handle GET /weather.json
-    private HttpResponse handleGet() {
+    private HttpResponse handleGet(HttpRequest req) {
         clock.tick();
         if (store.isEmpty()) {
             // No data → return 204
             HttpResponse r = HttpResponse.of(204, "No Content", null, null);
             r.headers.put("X-Lamport", Long.toString(clock.peek()));
+            if (replica != null) r.headers.put("X-Replication-Lag", Long.toString(replica.lag()));
+            return r;
+        }
+        HttpResponse r = segmentedFeedResponse(store.snapshotSegments());
+        r.headers.put("X-Lamport", Long.toString(clock.peek()));
+        if (replica != null) r.headers.put("X-Replication-Lag", Long.toString(replica.lag()));
+        return r;
+    }
+
+    // 200 with the whole feed from the store's cached segment chunks,
+    // gather-written with the separators between them
+    private static HttpResponse segmentedFeedResponse(List<byte[]> chunks) {
+        List<byte[]> parts = new ArrayList<>(chunks.size() * 2 + 1);
+        parts.add(FEED_HEAD);
+        for (byte[] chunk : chunks) {
+            if (parts.size() > 1) parts.add(COMMA);
+            parts.add(chunk);
+        }
+        parts.add(FEED_TAIL);
+        return HttpResponse.ofParts(200, "OK", parts, "application/json");
+    }
+
+    // Handle GET /weather.json?near=... or ?bbox=...: matching stations,
+    // nearest first for near queries; an empty match is still 200
+    private HttpResponse handleGeoGet(HttpRequest req, GeoIndex.Query q) {
+        clock.tick();
+        List<byte[]> raw = new ArrayList<>();
+        for (StateStore.WeatherRecord rec : q.run(geo)) raw.add(rec.json);
+        HttpResponse r = feedResponse(req, raw, "}");
+        r.headers.put("X-Lamport", Long.toString(clock.peek()));
+        if (replica != null) r.headers.put("X-Replication-Lag", Long.toString(replica.lag()));
+        return r;
+    }
+
+    // Handle GET /weather.json?limit=n&cursor=c: one page of the feed plus
+    // the cursor of the next page ("next":null on the last one)
+    private HttpResponse handlePage(HttpRequest req) {
+        clock.tick();
+        int limit;
+        long generation = -1;
+        int from = 0;
+        try {
+            String l = req.queryParam("limit");
+            limit = l == null || l.isEmpty() ? DEFAULT_PAGE : Math.min(MAX_PAGE, Integer.parseInt(l));
+            if (limit < 1) throw new NumberFormatException("limit");
+        } catch (NumberFormatException e) {
+            return badPageQuery("bad limit: expected a positive integer");
+        }
+        try {
+            String c = req.queryParam("cursor");
+            if (c != null && !c.isEmpty()) {
+                int dot = c.indexOf('.');
+                generation = Long.parseLong(c.substring(0, dot), 36);
+                from = Integer.parseInt(c.substring(dot + 1), 36);
+                if (generation < 0 || from < 0) throw new NumberFormatException("cursor");
+            }
+        } catch (RuntimeException e) {
+            return badPageQuery("bad cursor: pass the \"next\" value of the previous page");
+        }
+
+        StateStore.Page page = store.page(from, limit);
+        if (generation >= 0 && generation != page.generation) {
+            // The store was reloaded (replica resync); handles were reassigned
+            HttpResponse r = HttpResponse.of(410, "Gone", "{\"error\":\"cursor expired\"}", "application/json");
+            r.headers.put("X-Lamport", Long.toString(clock.peek()));
+            return r;
+        }
+        String next = page.next < 0 ? null
+                : Long.toString(page.generation, 36) + "." + Integer.toString(page.next, 36);
+        HttpResponse r = feedResponse(req, page.json, ",\"next\":" + (next == null ? "null" : "\"" + next + "\"") + "}");
+        if (next != null) r.headers.put("X-Next-Cursor", next);
+        r.headers.put("X-Lamport", Long.toString(clock.peek()));
+        if (replica != null) r.headers.put("X-Replication-Lag", Long.toString(replica.lag()));
+        return r;
+    }
+
+    // 200 with {"stations": [...] + tail. Small bodies are copied into one
+    // array; larger ones are streamed chunked straight from the snapshot so
+    // a GET holds one reference per station rather than the whole body
+    private static HttpResponse feedResponse(HttpRequest req, List<byte[]> stations, String tail) {
+        long size = 0;
+        for (byte[] s : stations) size += s.length + 1;
+        if (size > STREAM_THRESHOLD && "HTTP/1.1".equalsIgnoreCase(req.version)) {
+            return HttpResponse.streamed(200, "OK", "application/json",
+                    out -> JsonUtil.writeObjectsToArray(out, "{\"stations\": ", stations, tail));
+        }
+        return HttpResponse.ofBytes(200, "OK", JsonUtil.joinObjectsToArray("{\"stations\": ", stations, tail),
+                "application/json");
+    }
+
+    // 400 for a malformed geo query, or any geo query while the index is off
+    private HttpResponse badGeoQuery(String why) {
+        clock.tick();
+        HttpResponse r = HttpResponse.of(400, "Bad Request",
+                "{\"error\":\"" + JsonUtil.escape(String.valueOf(why)) + "\"}", "application/json");
+        r.headers.put("X-Lamport", Long.toString(clock.peek()));
+        return r;
+    }
+
+    // 400 for a malformed limit or cursor, or paging where cursors mean nothing
+    private HttpResponse badPageQuery(String why) {
+        clock.tick();
+        HttpResponse r = HttpResponse.of(400, "Bad Request",
+                "{\"error\":\"" + JsonUtil.escape(why) + "\"}", "application/json");
+        r.headers.put("X-Lamport", Long.toString(clock.peek()));
+        return r;
+    }
+
+    // Handle GET /weather.json for one shard: only the stations this node owns
+    private HttpResponse handleShardGet(HttpRequest req, GeoIndex.Query q) {
+        clock.tick();
+        List<byte[]> raw = ownedJson(q);
+        HttpResponse r = raw.isEmpty()
+                ? HttpResponse.of(204, "No Content", null, null)
+                : feedResponse(req, raw, "}");
+        r.headers.put("X-Lamport", Long.toString(clock.peek()));
+        return r;
+    }
+
+    // Handle GET /weather.json across the cluster: query every other shard in
+    // parallel and merge their stations with ours. Near queries take each
+    // shard's k nearest and keep the overall k nearest.
+    private CompletableFuture<HttpResponse> handleClusterGet(HttpRequest req, GeoIndex.Query q) {
+        List<String> peers = cluster.peers();
+        List<CompletableFuture<HttpResponse>> parts = new ArrayList<>();
+        for (String peer : peers) {
+            parts.add(cluster.fetchShard(peer, q != null ? req.query : null).exceptionally(e -> null));
+        }
+        List<byte[]> raw = ownedJson(q);
+        return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+            List<byte[]> merged = new ArrayList<>(raw);
+            List<String> missing = new ArrayList<>();
+            for (int i = 0; i < parts.size(); i++) {
+                HttpResponse shard = parts.get(i).join();
+                if (shard == null || (shard.statusCode != 200 && shard.statusCode != 204)) {
+                    missing.add(peers.get(i));
+                    continue;
+                }
+                if (q != null && q.near) {
+                    merged.addAll(Cluster.stationObjects(shard.body));
+                    continue;
+                }
+                byte[] elements = Cluster.stationElements(shard.body);
+                if (elements.length > 0) merged.add(elements);
+            }
+            if (q != null && q.near) {
+                merged.sort(Comparator.comparingDouble(q::distanceKm));
+                if (merged.size() > q.k) merged.subList(q.k, merged.size()).clear();
+            }
+            // Shard Lamport headers were merged into our clock as they arrived,
+            // so this tick is above the maximum of them
+            clock.tick();
+            HttpResponse r = merged.isEmpty() && q == null
+                    ? HttpResponse.of(204, "No Content", null, null)
+                    : feedResponse(req, merged, "}");
+            if (!missing.isEmpty()) r.headers.put("X-Shards-Missing", String.join(",", missing));
+            r.headers.put("X-Lamport", Long.toString(clock.peek()));
             return r;
+        });
+    }
+
+    // JSON of the stations this node owns under the current ring, limited to
+    // the geo query's matches when there is one
+    private List<byte[]> ownedJson(GeoIndex.Query q) {
+        List<byte[]> raw = new ArrayList<>();
+        for (StateStore.WeatherRecord rec : q != null ? q.run(geo) : store.snapshotRecords()) {
+            if (cluster.owns(rec.stationId)) raw.add(rec.json);
+        }
+        return raw;
+    }
+
+    // Handle POST /heartbeat: refresh last-seen for the X-Content-Server id,
+    // plus any further ids listed one per line in the body (coalesced heartbeats)
+    private HttpResponse handleHeartbeat(HttpRequest req) {
+        clock.tick();
+        List<String> ids = new ArrayList<>();
+        String header = req.headers.get("X-Content-Server");
+        if (header != null && !header.isBlank()) ids.add(header.trim());
+        if (req.body != null && req.body.length > 0) {
+            for (String line : new String(req.body, StandardCharsets.UTF_8).split("\n")) {
+                if (!line.isBlank()) ids.add(line.trim());
+            }
+        }
+        if (ids.isEmpty()) {
+            HttpResponse r = HttpResponse.of(400, "Bad Request",
+                    "{\"error\":\"missing X-Content-Server\"}", "application/json");
+            r.headers.put("X-Lamport", Long.toString(clock.peek()));
+            return r;
+        }
+
+        int refreshed = 0;
+        List<String> unknown = new ArrayList<>();
+        for (String id : ids) {
+            if (liveness.refresh(id)) {
+                refreshed++;
+                metrics.heartbeats.increment();
+            }
+            else unknown.add("\"" + JsonUtil.escape(id) + "\"");
+        }
+        // 404 tells a content server whose data expired to upload it again
+        String body = "{\"refreshed\":" + refreshed + ",\"unknown\":[" + String.join(",", unknown) + "]}";
+        HttpResponse r = refreshed == 0
+                ? HttpResponse.of(404, "Not Found", body, "application/json")
+                : HttpResponse.of(200, "OK", body, "application/json");
+        r.headers.put("X-Lamport", Long.toString(clock.peek()));
+        return r;
+    }
+
+    // Handle GET /history?id=...&from=...&to=... (epoch millis or ISO-8601)
+    private HttpResponse handleHistory(HttpRequest req) {
+        clock.tick();
+        String id = req.queryParam("id");
+        HttpResponse r;
+        if (history == null) {
+            r = HttpResponse.of(404, "Not Found", "{\"error\":\"history disabled\"}", "application/json");
+        } else if (id == null || id.isEmpty()) {
+            r = HttpResponse.of(400, "Bad Request", "{\"error\":\"missing id\"}", "application/json");
+        } else if (cluster != null && !cluster.owns(id)) {
+            r = HttpResponse.of(421, "Misdirected Request",
+                    "{\"error\":\"station owned by another shard\"}", "application/json");
+            r.headers.put("X-Shard-Owner", cluster.ownerOf(id));
+        } else {
+            try {
+                long from = parseTime(req.queryParam("from"), Long.MIN_VALUE);
+                long to = parseTime(req.queryParam("to"), Long.MAX_VALUE);
+                String body = history.toJson(id, from, to);
+                r = body == null
+                        ? HttpResponse.of(404, "Not Found", "{\"error\":\"unknown station\"}", "application/json")
+                        : HttpResponse.of(200, "OK", body, "application/json");
+            } catch (RuntimeException e) {
+                r = HttpResponse.of(400, "Bad Request", "{\"error\":\"bad from/to\"}", "application/json");
+            }
+        }
+        r.headers.put("X-Lamport", Long.toString(clock.peek()));
+        return r;
+    }
+
+    // Epoch millis or an ISO-8601 instant; throws on anything else
+    private static long parseTime(String v, long dflt) {
+        if (v == null || v.isEmpty()) return dflt;
+        if (v.chars().allMatch(Character::isDigit)) return Long.parseLong(v);
+        return Instant.parse(v).toEpochMilli();
+    }
+
+    // Handle GET /metrics
+    private HttpResponse handleMetrics() {
+        clock.tick();
+        HttpResponse r = HttpResponse.of(200, "OK", metrics.toJson(store), "application/json");
+        r.headers.put("X-Lamport", Long.toString(clock.peek()));
+        return r;
+    }
+
+    // GET /limits shows the PUT limits. POST /limits changes them, from the
+    // server's own host only: ?rate=&burst=&quantum=&maxQueued= set the
+    // defaults, ?id=<content server>&rate=&burst= one content server's
+    // limit, and ?id=<content server>&clear drops it again
+    private HttpResponse handleLimits(HttpRequest req) {
+        clock.tick();
+        PutLimits limits = putWorker.limits();
+        HttpResponse r;
+        if ("POST".equalsIgnoreCase(req.method) && !fromLoopback(req)) {
+            r = HttpResponse.of(403, "Forbidden", "{\"error\":\"limits can only be changed locally\"}",
+                    "application/json");
+        } else {
+            try {
+                if ("POST".equalsIgnoreCase(req.method)) {
+                    String id = req.queryParam("id");
+                    String rate = req.queryParam("rate");
+                    String burst = req.queryParam("burst");
+                    if (id != null && req.queryParam("clear") != null) {
+                        limits.setOverride(id, null);
+                    } else if (id != null || rate != null || burst != null) {
+                        PutLimits.Limit old = id != null ? limits.limitFor(id) : limits.defaults();
+                        PutLimits.Limit next = new PutLimits.Limit(
+                                rate != null ? Double.parseDouble(rate) : old.ratePerSec,
+                                burst != null ? Double.parseDouble(burst) : old.burst);
+                        if (id != null) limits.setOverride(id, next);
+                        else limits.setDefaults(next);
+                    }
+                    String quantum = req.queryParam("quantum");
+                    String maxQueued = req.queryParam("maxQueued");
+                    if (quantum != null) limits.setQuantumBytes(Integer.parseInt(quantum));
+                    if (maxQueued != null) limits.setMaxQueued(Integer.parseInt(maxQueued));
+                }
+                r = HttpResponse.of(200, "OK", limits.toJson(), "application/json");
+            } catch (NumberFormatException e) {
+                r = HttpResponse.of(400, "Bad Request", "{\"error\":\"bad number\"}", "application/json");
+            }
+        }
+        r.headers.put("X-Lamport", Long.toString(clock.peek()));
+        return r;
+    }
+
+    private static boolean fromLoopback(HttpRequest req) {
+        if (req.remoteAddress == null) return false;
+        try {
+            return InetAddress.getByName(req.remoteAddress).isLoopbackAddress(); // an IP literal: no lookup
+        } catch (UnknownHostException e) {
+            return false;
+        }
+    }
+
+    // Handle GET /replication/status
+    private HttpResponse handleReplicationStatus() {
+        clock.tick();
+        String body;
+        if (replica != null) {
+            body = "{\"role\":\"replica\",\"primary\":\"" + JsonUtil.escape(replica.primary()) + "\"" +
+                    ",\"connected\":" + replica.isConnected() +
+                    ",\"primaryLamport\":" + replica.primaryLamport() +
+                    ",\"appliedLamport\":" + replica.appliedLamport() +
+                    ",\"lag\":" + replica.lag() + "}";
+        } else {
+            body = "{\"role\":\"primary\"" +
+                    ",\"appliedLamport\":" + store.lastAppliedLamport() +
+                    ",\"replicas\":" + (replication == null ? 0 : replication.connectedReplicas()) + "}";
         }
-        // Serialize all station JSON into an array
-        List<String> raw = store.snapshotRawJson();
-        String array = JsonUtil.joinObjectsToArray(raw);
-        String body = "{\"stations\": " + array + "}";
         HttpResponse r = HttpResponse.of(200, "OK", body, "application/json");
         r.headers.put("X-Lamport", Long.toString(clock.peek()));
         return r;
     }
 
+    // Replicas do not accept writes; point the sender at the primary
+    private HttpResponse readOnly() {
+        clock.tick();
+        HttpResponse r = HttpResponse.of(421, "Misdirected Request",
+                "{\"error\":\"read-only replica\"}", "application/json");
+        r.headers.put("X-Primary", replica.primary());
+        r.headers.put("X-Lamport", Long.toString(clock.peek()));
+        return r;
+    }
+
     // Handle PUT /weather.json
-    private HttpResponse handlePut(HttpRequest req) {
+    private CompletableFuture<HttpResponse> handlePut(HttpRequest req) {
+        TraceEvents.PutValidate traced = new TraceEvents.PutValidate();
+        traced.begin();
+
         // Empty body → return 204
         if (req.body == null || req.body.length == 0) {
             clock.tick();
             HttpResponse r = HttpResponse.of(204, "No Content", null, null);
             r.headers.put("X-Lamport", Long.toString(clock.peek()));
-            return r;
+            return CompletableFuture.completedFuture(r);
         }
 
-        String body = new String(req.body, StandardCharsets.UTF_8);
+        // Stored and logged exactly as served: UTF-8 without insignificant whitespace
+        byte[] json = JsonUtil.minify(req.body);
 
         // Basic JSON format check
-        if (!body.trim().startsWith("{") || !body.trim().endsWith("}")) {
+        if (json.length < 2 || json[0] != '{' || json[json.length - 1] != '}') {
             clock.tick();
             HttpResponse r = HttpResponse.of(500, "Internal Server Error",
                     "{\"error\":\"invalid JSON format\"}", "application/json");
             r.headers.put("X-Lamport", Long.toString(clock.peek()));
-            return r;
+            return CompletableFuture.completedFuture(r);
         }
 
         // Extract station id
-        Matcher m = ID_FIELD.matcher(body);
-        if (!m.find()) {
+        String stationId = JsonUtil.stationId(json);
+        if (stationId == null) {
             clock.tick();
             HttpResponse r = HttpResponse.of(500, "Internal Server Error",
                     "{\"error\":\"missing id field\"}", "application/json");
             r.headers.put("X-Lamport", Long.toString(clock.peek()));
-            return r;
+            return CompletableFuture.completedFuture(r);
         }
-        String stationId = m.group(1);
 
-        // Identify content server (header or fallback id)
-        String contentServerId = req.headers.getOrDefault("X-Content-Server", "cs-" + UUID.randomUUID());
+        // In a cluster, only the owning shard accepts the station
+        if (cluster != null && !cluster.owns(stationId)) {
+            clock.tick();
+            HttpResponse r = HttpResponse.of(421, "Misdirected Request",
+                    "{\"error\":\"station owned by another shard\"}", "application/json");
+            r.headers.put("X-Shard-Owner", cluster.ownerOf(stationId));
+            r.headers.put("X-Lamport", Long.toString(clock.peek()));
+            return CompletableFuture.completedFuture(r);
+        }
 
-        // Submit to PutWorker
-        long Lreq = req.lamportHeader().orElse(clock.peek());
-        CompletableFuture<PutWorker.Result> fut = putWorker.submit(Lreq, contentServerId, stationId, body);
+        // Identify content server. Uploads without an id share one identity
+        // per client address, so anonymous PUTs cannot grow the id tables
+        String contentServerId = req.headers.get("X-Content-Server");
+        if (contentServerId == null || contentServerId.isBlank()) {
+            contentServerId = "anon-" + (req.remoteAddress != null ? req.remoteAddress : "unknown");
+        }
 
-        try {
-            // Wait for result and set proper status code
-            PutWorker.Result res = fut.get();
-            HttpResponse r = HttpResponse.of(res.created ? 201 : 200,
-                    res.created ? "Created" : "OK",
-                    null, null);
-            r.headers.put("X-Lamport", Long.toString(res.appliedLamport));
-            return r;
-        } catch (Exception e) {
+        // Submit to PutWorker; past its deadline a task still queued is abandoned
+        // with a TimeoutException, while one already being applied completes normally
+        long Lreq = req.lamportHeader().orElse(clock.peek());
+        CompletableFuture<PutWorker.Result> queued = putWorker.submit(Lreq, contentServerId, stationId, json);
+        traced.end();
+        if (traced.shouldCommit()) {
+            traced.stationId = stationId;
+            traced.contentServerId = contentServerId;
+            traced.lamport = Lreq;
+            traced.bodyBytes = req.body.length;
+            traced.queued = !queued.isCompletedExceptionally();
+            traced.commit();
+        }
+        return queued.handle((res, err) -> {
+            if (err == null) return putResult(res);
+            Throwable cause = err instanceof CompletionException && err.getCause() != null
+                    ? err.getCause() : err;
+            if (cause instanceof PutLimits.Exceeded e) return tooManyRequests(e);
+            if (cause instanceof RejectedExecutionException) return unavailable("put queue full");
+            if (cause instanceof TimeoutException) return unavailable("put deadline exceeded");
             // On failure return 500
             clock.tick();
             HttpResponse r = HttpResponse.of(500, "Internal Server Error",
                     "{\"error\":\"failed to apply PUT\"}", "application/json");
             r.headers.put("X-Lamport", Long.toString(clock.peek()));
             return r;
-        }
+        });
+    }
+
+    // 201 for a content server's first PUT, 200 afterwards
+    private HttpResponse putResult(PutWorker.Result res) {
+        HttpResponse r = HttpResponse.of(res.created ? 201 : 200,
+                res.created ? "Created" : "OK",
+                null, null);
+        r.headers.put("X-Lamport", Long.toString(res.appliedLamport));
+        return r;
+    }
+
+    // 429 with Retry-After: this content server is over its own limits
+    private HttpResponse tooManyRequests(PutLimits.Exceeded e) {
+        clock.tick();
+        HttpResponse r = HttpResponse.of(429, "Too Many Requests",
+                "{\"error\":\"" + JsonUtil.escape(e.getMessage()) + "\"}", "application/json");
+        long seconds = e.retryAfterMillis > 0 ? (e.retryAfterMillis + 999) / 1000 : retryAfterSeconds;
+        r.headers.put("Retry-After", Long.toString(seconds));
+        r.headers.put("X-Lamport", Long.toString(clock.peek()));
+        return r;
+    }
+
+    // 503 with Retry-After, used when the PUT pipeline is overloaded
+    private HttpResponse unavailable(String why) {
+        clock.tick();
+        HttpResponse r = HttpResponse.of(503, "Service Unavailable",
+                "{\"error\":\"" + why + "\"}", "application/json");
+        r.headers.put("Retry-After", Integer.toString(retryAfterSeconds));
+        r.headers.put("X-Lamport", Long.toString(clock.peek()));
+        return r;
     }
-}
\ No newline at end of file
+}
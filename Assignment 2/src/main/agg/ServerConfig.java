@@ -0,0 +1,86 @@
+package agg;
+
+// Tunable server settings, read from -Dagg.* system properties with defaults
+public class ServerConfig {
+    // PUT admission control
+    public final int putQueueCapacity = Integer.getInteger("agg.put.capacity", 1024);     // max queued PUTs
+    public final long putDeadlineMillis = Long.getLong("agg.put.deadlineMs", 2000L);      // max wait before 503
+    public final int retryAfterSeconds = Integer.getInteger("agg.retryAfterSec", 1);      // Retry-After hint on 503
+    public final long putHoldMillis = Long.getLong("agg.put.holdMs", 0L);                 // hold-back window for Lamport order (0 = off)
+    // Per content server: token bucket (rate 0 = unlimited; burst 0 = one second's worth),
+    // fair-queue share per round and queued PUTs per worker; all changeable via POST /limits
+    public final double putRate = Double.parseDouble(System.getProperty("agg.put.rate", "0"));
+    public final double putBurst = Double.parseDouble(System.getProperty("agg.put.burst", "0"));
+    public final int putQuantumBytes = Integer.getInteger("agg.put.quantumBytes", 4096);
+    public final int putMaxQueuedPerServer = Integer.getInteger("agg.put.maxQueuedPerServer", 256);
+
+    // Connections
+    public final long keepAliveIdleMillis = Long.getLong("agg.keepAlive.idleMs", 60000L); // close idle keep-alive connections
+    // Slow-client limits: each phase of a request has a whole-phase deadline,
+    // so trickling bytes does not keep a handler thread
+    public final long headerTimeoutMillis = Long.getLong("agg.http.headerTimeoutMs", 10000L);
+    public final long bodyTimeoutMillis = Long.getLong("agg.http.bodyTimeoutMs", 30000L);
+    public final long writeTimeoutMillis = Long.getLong("agg.http.writeTimeoutMs", 30000L);
+    public final int maxHeaderBytes = Integer.getInteger("agg.http.maxHeaderBytes", 16384);           // else 431
+    public final int maxBodyBytes = Integer.getInteger("agg.http.maxBodyBytes", 1 << 20);            // else 413
+    public final int maxConnectionsPerIp = Integer.getInteger("agg.http.maxConnectionsPerIp", 256);  // else 503
+
+    // Binary ingest protocol (common.BinaryIngest) on a second port, primary only (0 = off)
+    public final int binaryPort = Integer.getInteger("agg.binary.port", 0);
+    public final int binaryMaxFrameBytes = Integer.getInteger("agg.binary.maxFrameBytes", 1 << 20);
+    public final int binaryMaxInFlight = Integer.getInteger("agg.binary.maxInFlight", 64);          // frames per connection
+    public final int binaryMaxConnections = Integer.getInteger("agg.binary.maxConnections", 64);
+
+    // Persistence
+    public final String walPath = System.getProperty("agg.wal", "wal.log");               // WAL file location
+    // A PUT is logged as the members that changed since the station's last record, with a
+    // full record at least every walFullEvery PUTs per station (<= 1: always full)
+    public final int walFullEvery = Integer.getInteger("agg.wal.fullEvery", 16);
+    // fsync each WAL record before acknowledging it; off, a PUT survives a killed process but not a host crash
+    public final boolean walFsync = Boolean.parseBoolean(System.getProperty("agg.wal.fsync", "true"));
+    // Optional memory-mapped copy of the station records, so restarts only replay the WAL tail
+    public final String storePath = System.getProperty("agg.store");                      // null = disabled
+    public final long storeCheckpointMillis = Long.getLong("agg.store.checkpointMs", 1000L);
+    public final int storeSlots = Integer.getInteger("agg.store.slots", 65536);          // initial slot count
+    public final long storeArenaBytes = Long.getLong("agg.store.arenaMb", 16L) << 20;   // initial JSON arena size
+
+    // Memory-mapped copy of the GET /weather.json body for readers on this host (null = off)
+    public final String snapshotPath = System.getProperty("agg.snapshot");
+    public final long snapshotMinIntervalMillis = Long.getLong("agg.snapshot.minIntervalMs", 20L); // coalesces bursts
+
+    // Expiry: content servers silent for ttl are removed; heartbeats are
+    // checkpointed to the WAL at most once per seenInterval per content server
+    public final long ttlMillis = Long.getLong("agg.ttlSec", 30L) * 1000;
+    public final long seenIntervalMillis = Long.getLong("agg.seenIntervalMs", ttlMillis / 3);
+
+    // Named feeds at /feeds/{name}.json (primary, not clustered): agg.feeds=name[:ttlSec],...
+    // opens feeds at startup; a PUT to an unknown name creates it unless autoCreate is off
+    public final String feeds = System.getProperty("agg.feeds");
+    public final String feedsDir = System.getProperty("agg.feeds.dir", "feeds");          // one <name>.wal per feed
+    public final boolean feedsAutoCreate = Boolean.parseBoolean(System.getProperty("agg.feeds.autoCreate", "true"));
+    public final int feedsMax = Integer.getInteger("agg.feeds.max", 64);                  // 0 = feeds off
+
+    // Per-station history for GET /history: updates kept per station (0 = off)
+    // and the numeric fields recorded for each update
+    public final int historySize = Integer.getInteger("agg.history.size", 120);
+    public final String[] historyFields = System.getProperty("agg.history.fields",
+            "air_temp,apparent_t,dewpt,press,rel_hum,wind_spd_kmh").split(",");
+
+    // Geo queries (?near= / ?bbox=): grid cell size in degrees (0 = off)
+    public final double geoCellDeg = Double.parseDouble(System.getProperty("agg.geo.cellDeg", "1.0"));
+
+    // GETs with X-Min-Lamport wait at most this long for the store to catch
+    // up (then 503); at most maxWaiters such GETs are parked at a time
+    public final long minLamportWaitMillis = Long.getLong("agg.minLamport.waitMs", 2000L);
+    public final int minLamportMaxWaiters = Integer.getInteger("agg.minLamport.maxWaiters", 1024);
+
+    // Replication: set agg.replicaOf=host:port to run as a read-only replica
+    public final String replicaOf = System.getProperty("agg.replicaOf");
+    public final long replicationHeartbeatMillis = Long.getLong("agg.replication.heartbeatMs", 1000L);
+
+    // Sharding: agg.cluster=host:port,host:port,... lists every node; agg.self names this one
+    public final String clusterNodes = System.getProperty("agg.cluster");
+    public final String clusterSelf = System.getProperty("agg.self");                     // default localhost:<port>
+    public final int clusterVirtualNodes = Integer.getInteger("agg.cluster.vnodes", 128);
+    public final int clusterTimeoutMillis = Integer.getInteger("agg.cluster.timeoutMs", 2000); // per-shard GET timeout
+}
@@ -0,0 +1,178 @@
+package agg;
+
+import common.JsonUtil;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.VarHandle;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+import static common.SnapshotFile.*;
+
+// Publishes the GET /weather.json body into a memory-mapped file, so local
+// processes can read the feed without a socket (client.SnapshotReader).
+// The file has a header and two body slots. A new snapshot is written into
+// the slot readers are not pointed at, under that slot's own sequence
+// number (odd while writing), and then the header is switched to it under
+// the header sequence number (layout in common.SnapshotFile). Readers
+// never wait for a body copy; a read is retried only if its slot was
+// rewritten while it was being read, which takes two publishes.
+// When a snapshot outgrows the slots, a larger file already holding it
+// replaces this one and "moved" is set in the old mapping so readers
+// reopen the path.
+public class SnapshotPublisher implements Runnable, StateStore.Listener {
+    private static final String PREFIX = "{\"stations\": ";
+    private static final String SUFFIX = "}";
+
+    private final Path path;
+    private final StateStore store;
+    private final long minIntervalMillis;  // snapshots are at least this far apart; bursts are coalesced
+    private MappedByteBuffer buf;          // current mapping (publisher thread only)
+    private long slotSize;
+    private long published = -1;           // store version of the last snapshot
+    private volatile Thread thread;        // woken by store changes
+
+    public SnapshotPublisher(Path path, StateStore store, long minIntervalMillis) {
+        this.path = path;
+        this.store = store;
+        this.minIntervalMillis = minIntervalMillis;
+    }
+
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                if (store.version() != published) publish();
+                Thread.sleep(minIntervalMillis);
+                if (store.version() == published) LockSupport.park(this); // until the next change
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Snapshot publish failed: " + e.getMessage());
+                LockSupport.parkNanos(this, 1_000_000_000L);
+            }
+        }
+    }
+
+    // Called under the store's write lock: only wake the publisher
+    @Override
+    public void onPut(StateStore.WeatherRecord rec) { wake(); }
+
+    @Override
+    public void onExpire(String contentServerId, List<String> stationIds, long lamport) { wake(); }
+
+    @Override
+    public void onLoad(List<StateStore.WeatherRecord> records) { wake(); }
+
+    private void wake() {
+        Thread t = thread;
+        if (t != null) LockSupport.unpark(t);
+    }
+
+    // Write the store's current snapshot into the idle slot and point the header at it
+    void publish() throws IOException {
+        // Version and Lamport time are read first, so the snapshot holds at least what they say
+        long version = store.version();
+        long lamport = store.lastAppliedLamport();
+        List<byte[]> stations = store.snapshotSegments(); // comma-joined chunks, laid out like stations
+        long size = PREFIX.length() + 2 + SUFFIX.length() + Math.max(0, stations.size() - 1);
+        for (byte[] s : stations) size += s.length;
+        if (buf == null || size > slotSize) {
+            remap(Math.max(size * 2, 64 * 1024), stations, size, version, lamport);
+        } else {
+            int slot = 1 - (int) (long) LONGS.getAcquire(buf, CURRENT);
+            writeSlot(buf, slotSize, slot, stations);
+            writeHeader(buf, slot, size, version, lamport);
+        }
+        published = version;
+    }
+
+    // Body into one slot, under the slot's sequence number
+    private static void writeSlot(MappedByteBuffer buf, long slotSize, int slot, List<byte[]> stations)
+            throws IOException {
+        int slotSeq = SLOT_SEQ + 8 * slot;
+        long seq = (long) LONGS.getAcquire(buf, slotSeq);
+        LONGS.setOpaque(buf, slotSeq, seq + 1);
+        VarHandle.storeStoreFence(); // odd before any body byte
+        JsonUtil.writeObjectsToArray(new SlotStream(buf, HEADER + (int) (slot * slotSize)), PREFIX, stations, SUFFIX);
+        LONGS.setRelease(buf, slotSeq, seq + 2);
+    }
+
+    // Point the header at a written slot, under the header sequence number
+    private static void writeHeader(MappedByteBuffer buf, int slot, long size, long version, long lamport) {
+        long headerSeq = (long) LONGS.getAcquire(buf, HEADER_SEQ);
+        LONGS.setOpaque(buf, HEADER_SEQ, headerSeq + 1);
+        VarHandle.storeStoreFence();
+        LONGS.setOpaque(buf, CURRENT, (long) slot);
+        LONGS.setOpaque(buf, LENGTH, size);
+        LONGS.setOpaque(buf, VERSION, version);
+        LONGS.setOpaque(buf, LAMPORT, lamport);
+        LONGS.setOpaque(buf, PUBLISHED_AT, System.currentTimeMillis());
+        LONGS.setRelease(buf, HEADER_SEQ, headerSeq + 2);
+    }
+
+    // Build a file with larger slots beside the old one, holding the snapshot
+    // being published, then move it into place. Whoever opens the path, or
+    // reopens it on "moved", finds a complete snapshot rather than an empty file
+    private void remap(long newSlotSize, List<byte[]> stations, long size, long version, long lamport)
+            throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        MappedByteBuffer next;
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long fileSize = HEADER + 2 * newSlotSize;
+            if (fileSize > Integer.MAX_VALUE) throw new IOException("snapshot too large to map");
+            next = ch.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+        }
+        next.putLong(0, MAGIC);
+        next.putLong(SLOT_SIZE, newSlotSize);
+        writeSlot(next, newSlotSize, 0, stations);
+        writeHeader(next, 0, size, version, lamport);
+        if (buf == null) buf = mapLeftover();
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (buf != null) LONGS.setRelease(buf, MOVED, 1L); // readers of the old file reopen
+        buf = next;
+        slotSize = newSlotSize;
+    }
+
+    // A snapshot file left by an earlier run, so its readers can be told to reopen
+    private MappedByteBuffer mapLeftover() {
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (ch.size() < HEADER) return null;
+            MappedByteBuffer old = ch.map(FileChannel.MapMode.READ_WRITE, 0, HEADER);
+            return old.getLong(0) == MAGIC ? old : null;
+        } catch (IOException e) {
+            return null; // no file yet
+        }
+    }
+
+    // Sequential writes into one slot of the mapping
+    private static class SlotStream extends OutputStream {
+        private final MappedByteBuffer buf;
+        private int pos;
+
+        SlotStream(MappedByteBuffer buf, int pos) {
+            this.buf = buf;
+            this.pos = pos;
+        }
+
+        @Override
+        public void write(int b) {
+            buf.put(pos++, (byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            buf.put(pos, b, off, len);
+            pos += len;
+        }
+    }
+}
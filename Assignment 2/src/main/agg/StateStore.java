@@ -1,96 +1,433 @@
 package agg;
 
+import common.JsonUtil;
+
 import java.time.*;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class StateStore {
     // Represents a single station weather record
     public static class WeatherRecord {
         public final String stationId;              // station identifier
-        public final String rawJson;                // raw JSON string for the station
+        public final byte[] json;                   // minified UTF-8 JSON, served and logged as-is
         public final String sourceContentServerId;  // content server ID that sent it
         public final long lamportApplied;           // Lamport timestamp applied
         public final Instant updatedAt;             // time this record was updated
+        public final long contentHash;              // JsonUtil.contentHash of json
 
-        public WeatherRecord(String stationId, String rawJson, String sourceContentServerId,
+        public WeatherRecord(String stationId, byte[] json, String sourceContentServerId,
                              long lamportApplied, Instant updatedAt) {
             this.stationId = stationId;
-            this.rawJson = rawJson;
+            this.json = json;
             this.sourceContentServerId = sourceContentServerId;
             this.lamportApplied = lamportApplied;
             this.updatedAt = updatedAt;
+            this.contentHash = JsonUtil.contentHash(json);
         }
     }
 
-    // Maps stationId → WeatherRecord
-    private final Map<String, WeatherRecord> stations = new ConcurrentHashMap<>();
-    // Maps contentServerId -> last seen timestamp
-    private final Map<String, Instant> lastSeenByContent = new ConcurrentHashMap<>();
-    // Maps contentServerId -> set of stationIds uploaded by that server
-    private final Map<String, Set<String>> stationsByContent = new ConcurrentHashMap<>();
+    // Receives every change applied to the store, called under the write lock
+    // so it must not block (replication queues the change and returns)
+    public interface Listener {
+        void onPut(WeatherRecord rec);
+        void onExpire(String contentServerId, List<String> stationIds, long lamport);
+        // The whole store was replaced by load(); derived indexes rebuild here
+        default void onLoad(List<WeatherRecord> records) {}
+    }
+
+    // Station and content-server ids are interned to dense int handles so
+    // ownership and liveness live in flat arrays instead of per-id objects.
+    // Each content server's stations form a linked list threaded through
+    // nextOwned/prevOwned. All arrays are guarded by rw.
+    private IdTable stationIds;          // station id <-> station handle
+    private IdTable contentIds;          // content server id <-> content handle
+    private WeatherRecord[] records;     // station handle -> current record (null if free)
+    private int[] ownerOf;               // station handle -> content handle
+    private int[] nextOwned;             // station handle -> next station of the same owner, or -1
+    private int[] prevOwned;             // station handle -> previous station of the same owner, or -1
+    private int[] firstOwned;            // content handle -> first owned station, or -1
+    private int[] ownedCount;            // content handle -> number of owned stations
+    private AtomicLongArray lastSeen;    // content handle -> last seen, epoch millis
+    private int stationCount;            // live stations
+    // Handles are grouped into segments of SEGMENT_SIZE. Each segment has its
+    // own change counter and a cached chunk of its stations' JSON, so a GET
+    // re-serializes only the segments that changed since the last one.
+    private long[] segmentVersion;       // segment -> bumped on every change to one of its stations
+    private Chunk[] chunks;              // segment -> cached chunk, or null (filled by readers)
     // Lock for protecting snapshot/updates
     private final ReentrantReadWriteLock rw = new ReentrantReadWriteLock();
 
-    // Track which content servers have been seen this run
-    // (used to decide between 201 Created vs 200 OK)
-    private final Set<String> seenContentServersThisRun = ConcurrentHashMap.newKeySet();
+    // Change listeners (replication) and the Lamport time of the last applied change
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private volatile long lastLamport;
+    // Bumped on every change to the station set, so readers can tell when
+    // anything derived from a snapshot is stale
+    private volatile long version;
+    // Bumped whenever the handle tables are rebuilt (reload), which makes
+    // handle-based page cursors from before meaningless
+    private long generation;
+
+    static final int SEGMENT_SHIFT = 6;
+    static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT; // 64 stations
+
+    // One segment's stations as comma-joined JSON ("{..},{..}"; empty if it
+    // has none), valid while the segment's counter equals version. Readers
+    // build and store chunks under the read lock; two readers racing on a
+    // segment build the same bytes, and a chunk is immutable, so the race
+    // only costs a rebuild.
+    private static final class Chunk {
+        final long version;
+        final byte[] json;
+        Chunk(long version, byte[] json) {
+            this.version = version;
+            this.json = json;
+        }
+    }
+
+    public StateStore() {
+        reset();
+    }
 
     // Returns true if no stations stored
     public boolean isEmpty() {
         rw.readLock().lock();
-        try { return stations.isEmpty(); }
+        try { return stationCount == 0; }
         finally { rw.readLock().unlock(); }
     }
 
-    // Return a snapshot of all station raw JSON strings
-    public List<String> snapshotRawJson() {
+    // Return a snapshot of all station JSON (minified UTF-8, not copied)
+    public List<byte[]> snapshotJson() {
+        rw.readLock().lock();
+        try {
+            List<byte[]> list = new ArrayList<>(stationCount);
+            for (int s = 0; s < stationIds.limit(); s++) {
+                if (records[s] != null) list.add(records[s].json);
+            }
+            return list;
+        } finally { rw.readLock().unlock(); }
+    }
+
+    // The same stations in the same order as snapshotJson, as one chunk of
+    // comma-joined JSON per non-empty segment: joined with commas, the
+    // chunks are the feed. Only segments changed since their chunk was
+    // cached are re-serialized, and the read lock keeps the chunks one
+    // point-in-time snapshot.
+    public List<byte[]> snapshotSegments() {
         rw.readLock().lock();
         try {
-            List<String> list = new ArrayList<>(stations.size());
-            for (WeatherRecord r : stations.values()) list.add(r.rawJson);
+            int n = (stationIds.limit() + SEGMENT_SIZE - 1) >> SEGMENT_SHIFT;
+            List<byte[]> list = new ArrayList<>(n);
+            for (int g = 0; g < n; g++) {
+                Chunk c = chunks[g];
+                if (c == null || c.version != segmentVersion[g]) {
+                    c = buildChunk(g);
+                    chunks[g] = c;
+                }
+                if (c.json.length > 0) list.add(c.json);
+            }
             return list;
         } finally { rw.readLock().unlock(); }
     }
 
-    // Apply a new PUT record into the store
-    // Returns true if this content server is seen for the first time (-> 201 Created)
-    public boolean applyPut(String stationId, String rawJson, String contentServerId, long lamport) {
+    // Serialize one segment (under the read lock)
+    private Chunk buildChunk(int g) {
+        int from = g << SEGMENT_SHIFT;
+        int to = Math.min(from + SEGMENT_SIZE, stationIds.limit());
+        int len = -1;
+        for (int s = from; s < to; s++) {
+            if (records[s] != null) len += records[s].json.length + 1;
+        }
+        byte[] json = new byte[Math.max(0, len)];
+        int pos = 0;
+        for (int s = from; s < to; s++) {
+            if (records[s] == null) continue;
+            if (pos > 0) json[pos++] = ',';
+            System.arraycopy(records[s].json, 0, json, pos, records[s].json.length);
+            pos += records[s].json.length;
+        }
+        return new Chunk(segmentVersion[g], json);
+    }
+
+    // One page of station JSON in handle order. A station keeps its handle
+    // while it exists, so paging through returns every station that is
+    // present for the whole walk exactly once.
+    public static class Page {
+        public final List<byte[]> json;   // stations on this page
+        public final int next;            // handle to continue from, or -1 after the last page
+        public final long generation;     // generation the handles belong to
+        Page(List<byte[]> json, int next, long generation) {
+            this.json = json;
+            this.next = next;
+            this.generation = generation;
+        }
+    }
+
+    // Up to `limit` stations with handles >= from
+    public Page page(int from, int limit) {
+        rw.readLock().lock();
+        try {
+            List<byte[]> list = new ArrayList<>(Math.min(limit, stationCount));
+            int s = Math.max(0, from);
+            for (; s < stationIds.limit() && list.size() < limit; s++) {
+                if (records[s] != null) list.add(records[s].json);
+            }
+            // Look past the page so the last page says so itself
+            while (s < stationIds.limit() && records[s] == null) s++;
+            return new Page(list, s < stationIds.limit() ? s : -1, generation);
+        } finally { rw.readLock().unlock(); }
+    }
+
+    // Return all current records
+    public List<WeatherRecord> snapshotRecords() {
+        rw.readLock().lock();
+        try { return liveRecords(); }
+        finally { rw.readLock().unlock(); }
+    }
+
+    // Snapshot the records and register a listener atomically, so the
+    // listener sees exactly the changes made after the snapshot
+    public List<WeatherRecord> snapshotAndListen(Listener l) {
+        rw.readLock().lock();
+        try {
+            listeners.add(l);
+            return liveRecords();
+        } finally { rw.readLock().unlock(); }
+    }
+
+    public void addListener(Listener l) { listeners.add(l); }
+
+    public void removeListener(Listener l) { listeners.remove(l); }
+
+    // Lamport time of the most recent PUT or expiry applied
+    public long lastAppliedLamport() { return lastLamport; }
+
+    // Number of changes applied so far (PUTs, expiries, reloads)
+    public long version() { return version; }
+
+    // Number of stations and of content servers that own at least one
+    public int stationCount() {
+        rw.readLock().lock();
+        try { return stationCount; }
+        finally { rw.readLock().unlock(); }
+    }
+    public int contentServerCount() {
+        rw.readLock().lock();
+        try { return contentIds.size(); }
+        finally { rw.readLock().unlock(); }
+    }
+
+    // True if the station's current record came from this content server
+    // with the same normalized content, i.e. applying it again changes nothing.
+    // The hash only rules records out; equal hashes are confirmed on the bytes,
+    // so a collision is stored like any other change.
+    public boolean isUnchanged(String stationId, String contentServerId, long contentHash, byte[] json) {
+        rw.readLock().lock();
+        try {
+            int s = stationIds.find(stationId);
+            WeatherRecord rec = s >= 0 ? records[s] : null;
+            return rec != null && rec.contentHash == contentHash
+                    && rec.sourceContentServerId.equals(contentServerId)
+                    && Arrays.equals(rec.json, json);
+        } finally { rw.readLock().unlock(); }
+    }
+
+    // The station's current record, or null
+    public WeatherRecord record(String stationId) {
+        rw.readLock().lock();
+        try {
+            int s = stationIds.find(stationId);
+            return s >= 0 ? records[s] : null;
+        } finally { rw.readLock().unlock(); }
+    }
+
+    // Replace the whole store with the given records (replica resync)
+    public void load(Collection<WeatherRecord> records) {
         rw.writeLock().lock();
         try {
-            WeatherRecord rec = new WeatherRecord(stationId, rawJson, contentServerId, lamport, Instant.now());
-            stations.put(stationId, rec);
-            lastSeenByContent.put(contentServerId, Instant.now());
-            stationsByContent.computeIfAbsent(contentServerId, k -> ConcurrentHashMap.newKeySet())
-                    .add(stationId);
-            boolean firstTime = seenContentServersThisRun.add(contentServerId);
+            reset();
+            long now = System.currentTimeMillis();
+            long maxL = 0;
+            for (WeatherRecord r : records) {
+                int c = contentIds.intern(r.sourceContentServerId);
+                place(stationIds.intern(r.stationId), c, r);
+                lastSeen.set(c, now);
+                maxL = Math.max(maxL, r.lamportApplied);
+            }
+            lastLamport = maxL;
+            version++;
+            List<WeatherRecord> loaded = List.copyOf(records);
+            for (Listener l : listeners) l.onLoad(loaded);
+        } finally { rw.writeLock().unlock(); }
+    }
+
+    // Apply a new PUT record into the store; json must already be minified
+    // Returns true if this content server had no stored data (-> 201 Created)
+    public boolean applyPut(String stationId, byte[] json, String contentServerId, long lamport) {
+        return applyPut(stationId, json, contentServerId, lamport, Instant.now());
+    }
+
+    // Same, with an explicit last-seen time (WAL replay)
+    public boolean applyPut(String stationId, byte[] json, String contentServerId, long lamport,
+                            Instant seenAt) {
+        rw.writeLock().lock();
+        try {
+            int s = stationIds.intern(stationId);
+            int c = contentIds.intern(contentServerId);
+            boolean firstTime = c >= ownedCount.length || ownedCount[c] == 0;
+            // The record shares the interned id strings rather than the request's copies
+            WeatherRecord rec = new WeatherRecord(stationIds.name(s), json, contentIds.name(c),
+                    lamport, Instant.now());
+            place(s, c, rec);
+            lastSeen.set(c, seenAt.toEpochMilli());
+            lastLamport = Math.max(lastLamport, lamport);
+            version++;
+            for (Listener l : listeners) l.onPut(rec);
             return firstTime;
         } finally { rw.writeLock().unlock(); }
     }
 
     // Remove all stations belonging to a given content server (expired)
-    public List<String> removeAllFromContentServer(String contentServerId) {
+    public List<String> removeAllFromContentServer(String contentServerId, long lamport) {
         List<String> removed = new ArrayList<>();
         rw.writeLock().lock();
         try {
-            Set<String> ids = stationsByContent.getOrDefault(contentServerId, Collections.emptySet());
-            for (String sid : ids) {
-                if (stations.remove(sid) != null) removed.add(sid);
+            int c = contentIds.find(contentServerId);
+            if (c >= 0) {
+                for (int s = firstOwned[c]; s >= 0; ) {
+                    int next = nextOwned[s];
+                    removed.add(stationIds.name(s));
+                    records[s] = null;
+                    segmentVersion[s >> SEGMENT_SHIFT]++;
+                    stationIds.release(s);
+                    stationCount--;
+                    s = next;
+                }
+                firstOwned[c] = -1;
+                ownedCount[c] = 0;
+                releaseContent(c);
             }
-            stationsByContent.remove(contentServerId);
-            lastSeenByContent.remove(contentServerId);
+            lastLamport = Math.max(lastLamport, lamport);
+            version++;
+            for (Listener l : listeners) l.onExpire(contentServerId, removed, lamport);
         } finally { rw.writeLock().unlock(); }
         return removed;
     }
 
-    // Return a copy of last-seen timestamps for all content servers
+    // Return a copy of last-seen timestamps for all content servers with data
     public Map<String, Instant> lastSeenSnapshot() {
-        return new HashMap<>(lastSeenByContent);
+        rw.readLock().lock();
+        try {
+            Map<String, Instant> map = new HashMap<>();
+            for (int c = 0; c < contentIds.limit(); c++) {
+                if (ownedCount[c] > 0) map.put(contentIds.name(c), Instant.ofEpochMilli(lastSeen.get(c)));
+            }
+            return map;
+        } finally { rw.readLock().unlock(); }
     }
 
     // Refresh the last-seen timestamp for a given content server
-    public void refreshLastSeen(String contentServerId) {
-        lastSeenByContent.put(contentServerId, Instant.now());
+    // Returns false if the content server has no stations stored
+    public boolean refreshLastSeen(String contentServerId) {
+        return refreshLastSeen(contentServerId, Instant.now());
+    }
+
+    public boolean refreshLastSeen(String contentServerId, Instant seenAt) {
+        rw.readLock().lock();
+        try {
+            int c = contentIds.find(contentServerId);
+            if (c < 0 || ownedCount[c] == 0) return false;
+            lastSeen.accumulateAndGet(c, seenAt.toEpochMilli(), Math::max);
+            return true;
+        } finally { rw.readLock().unlock(); }
+    }
+
+    // Store a record under the write lock, moving the station to its new owner
+    private void place(int s, int c, WeatherRecord rec) {
+        ensureStationCapacity(stationIds.limit());
+        ensureContentCapacity(contentIds.limit());
+        if (records[s] == null) {
+            stationCount++;
+            link(s, c);
+        } else if (ownerOf[s] != c) {
+            int old = ownerOf[s];
+            unlink(s, old);
+            if (ownedCount[old] == 0) releaseContent(old); // its last station was taken over
+            link(s, c);
+        }
+        records[s] = rec;
+        segmentVersion[s >> SEGMENT_SHIFT]++;
+    }
+
+    private void link(int s, int c) {
+        ownerOf[s] = c;
+        prevOwned[s] = -1;
+        nextOwned[s] = firstOwned[c];
+        if (firstOwned[c] >= 0) prevOwned[firstOwned[c]] = s;
+        firstOwned[c] = s;
+        ownedCount[c]++;
+    }
+
+    private void unlink(int s, int c) {
+        if (prevOwned[s] >= 0) nextOwned[prevOwned[s]] = nextOwned[s];
+        else firstOwned[c] = nextOwned[s];
+        if (nextOwned[s] >= 0) prevOwned[nextOwned[s]] = prevOwned[s];
+        ownedCount[c]--;
+    }
+
+    private void releaseContent(int c) {
+        lastSeen.set(c, 0);
+        contentIds.release(c);
+    }
+
+    private List<WeatherRecord> liveRecords() {
+        List<WeatherRecord> list = new ArrayList<>(stationCount);
+        for (int s = 0; s < stationIds.limit(); s++) {
+            if (records[s] != null) list.add(records[s]);
+        }
+        return list;
+    }
+
+    private void ensureStationCapacity(int n) {
+        if (n <= records.length) return;
+        int cap = Math.max(n, records.length * 2);
+        records = Arrays.copyOf(records, cap);
+        ownerOf = Arrays.copyOf(ownerOf, cap);
+        nextOwned = Arrays.copyOf(nextOwned, cap);
+        prevOwned = Arrays.copyOf(prevOwned, cap);
+        int segments = (cap + SEGMENT_SIZE - 1) >> SEGMENT_SHIFT;
+        segmentVersion = Arrays.copyOf(segmentVersion, segments);
+        chunks = Arrays.copyOf(chunks, segments);
+    }
+
+    private void ensureContentCapacity(int n) {
+        if (n <= firstOwned.length) return;
+        int old = firstOwned.length;
+        int cap = Math.max(n, old * 2);
+        firstOwned = Arrays.copyOf(firstOwned, cap);
+        Arrays.fill(firstOwned, old, cap, -1);
+        ownedCount = Arrays.copyOf(ownedCount, cap);
+        AtomicLongArray grown = new AtomicLongArray(cap);
+        for (int i = 0; i < old; i++) grown.set(i, lastSeen.get(i));
+        lastSeen = grown;
+    }
+
+    private void reset() {
+        stationIds = new IdTable(1024);
+        contentIds = new IdTable(64);
+        records = new WeatherRecord[1024];
+        ownerOf = new int[1024];
+        nextOwned = new int[1024];
+        prevOwned = new int[1024];
+        segmentVersion = new long[1024 >> SEGMENT_SHIFT];
+        chunks = new Chunk[1024 >> SEGMENT_SHIFT];
+        firstOwned = new int[64];
+        Arrays.fill(firstOwned, -1);
+        ownedCount = new int[64];
+        lastSeen = new AtomicLongArray(64);
+        stationCount = 0;
+        generation++;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,118 @@
+package agg;
+
+import common.JsonUtil;
+
+import java.time.Instant;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Bounded recent history per station, kept up to date as a StateStore
+// listener. Each station has a ring of its last `capacity` updates in
+// primitive arrays: time, Lamport and one float column per tracked numeric
+// field (NaN when an update did not carry the field). History lives in
+// memory only and is dropped when the station's content server expires
+// or, after a resync, when the station is no longer in the store.
+public class StationHistory implements StateStore.Listener {
+    private final int capacity;        // updates kept per station
+    private final String[] fields;     // tracked numeric fields
+    private final byte[][] keys;       // JsonUtil.fieldKey of each field
+    private final Map<String, Ring> rings = new ConcurrentHashMap<>(); // station id -> ring
+
+    // One station's updates, oldest overwritten first
+    private static final class Ring {
+        final long[] time;       // epoch millis of each update
+        final long[] lamport;    // Lamport time each update was applied at
+        final float[][] values;  // [field][entry]
+        int next;                // slot the next update goes into
+        int size;                // entries in use
+
+        Ring(int capacity, int fields) {
+            time = new long[capacity];
+            lamport = new long[capacity];
+            values = new float[fields][capacity];
+        }
+    }
+
+    public StationHistory(int capacity, String[] fields) {
+        this.capacity = capacity;
+        this.fields = fields.clone();
+        this.keys = new byte[fields.length][];
+        for (int f = 0; f < fields.length; f++) keys[f] = JsonUtil.fieldKey(fields[f]);
+    }
+
+    // Bytes of ring storage per station, for sizing the capacity
+    public long bytesPerStation() {
+        return (long) capacity * (8 + 8 + 4L * fields.length);
+    }
+
+    // Called under the store's write lock; parsing is a few scans of the record bytes
+    @Override
+    public void onPut(StateStore.WeatherRecord rec) {
+        Ring r = rings.computeIfAbsent(rec.stationId, k -> new Ring(capacity, fields.length));
+        synchronized (r) {
+            int i = r.next;
+            r.time[i] = rec.updatedAt.toEpochMilli();
+            r.lamport[i] = rec.lamportApplied;
+            for (int f = 0; f < fields.length; f++) {
+                r.values[f][i] = (float) JsonUtil.numberField(rec.json, keys[f]);
+            }
+            r.next = (i + 1) % capacity;
+            if (r.size < capacity) r.size++;
+        }
+    }
+
+    @Override
+    public void onExpire(String contentServerId, List<String> stationIds, long lamport) {
+        for (String id : stationIds) rings.remove(id);
+    }
+
+    // The store was replaced (a replica resync): drop stations that are gone
+    // and add each loaded record unless it is already a station's latest entry
+    @Override
+    public void onLoad(List<StateStore.WeatherRecord> records) {
+        Set<String> loaded = new HashSet<>();
+        for (StateStore.WeatherRecord rec : records) {
+            loaded.add(rec.stationId);
+            Ring r = rings.get(rec.stationId);
+            boolean latest;
+            if (r == null) {
+                latest = false;
+            } else {
+                synchronized (r) {
+                    latest = r.size > 0 && r.lamport[(r.next - 1 + capacity) % capacity] == rec.lamportApplied;
+                }
+            }
+            if (!latest) onPut(rec);
+        }
+        rings.keySet().retainAll(loaded);
+    }
+
+    // Updates of a station with from <= time <= to (epoch millis), oldest
+    // first, as JSON; null if the station has no history
+    public String toJson(String stationId, long from, long to) {
+        Ring r = rings.get(stationId);
+        if (r == null) return null;
+        StringBuilder sb = new StringBuilder(256);
+        sb.append("{\"id\":\"").append(JsonUtil.escape(stationId)).append("\",\"points\":[");
+        synchronized (r) {
+            boolean first = true;
+            for (int n = 0; n < r.size; n++) {
+                int i = (r.next - r.size + n + capacity) % capacity;
+                if (r.time[i] < from || r.time[i] > to) continue;
+                if (!first) sb.append(',');
+                first = false;
+                sb.append("{\"time\":\"").append(Instant.ofEpochMilli(r.time[i]))
+                        .append("\",\"lamport\":").append(r.lamport[i]);
+                for (int f = 0; f < fields.length; f++) {
+                    float v = r.values[f][i];
+                    if (!Float.isNaN(v)) sb.append(",\"").append(fields[f]).append("\":").append(v);
+                }
+                sb.append('}');
+            }
+        }
+        return sb.append("]}").toString();
+    }
+}
@@ -0,0 +1,103 @@
+package agg;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+// Java Flight Recorder events, one per phase of a request. Record with
+//   java -XX:StartFlightRecording=filename=agg.jfr ... agg.AggregationServer
+// and summarise with agg.TraceReport. Each event is created, begun and
+// committed on one thread, and its fields are only filled in behind
+// shouldCommit(), so with no recording running the JIT drops them entirely.
+// A phase that spans threads is carried as a nanoTime() taken at its start
+// plus a @Timespan field, never as an event object held across threads.
+public final class TraceEvents {
+    private TraceEvents() { }
+
+    @Name("agg.RequestParse")
+    @Label("Request Parse")
+    @Category({"Aggregation Server", "HTTP"})
+    @Description("Reading and parsing one request's header block and body")
+    public static class RequestParse extends Event {
+        @Label("Method") String method;
+        @Label("Path") String path;
+        @Label("Content Server") String contentServerId;
+        @Label("Lamport") long lamport;           // X-Lamport sent by the client, -1 if none
+        @Label("Body") @DataAmount long bodyBytes;
+    }
+
+    @Name("agg.PutValidate")
+    @Label("PUT Validate")
+    @Category({"Aggregation Server", "PUT"})
+    @Description("Minifying and checking a PUT body and queueing it; rejected bodies are not recorded")
+    public static class PutValidate extends Event {
+        @Label("Station") String stationId;
+        @Label("Content Server") String contentServerId;
+        @Label("Lamport") long lamport;
+        @Label("Body") @DataAmount long bodyBytes;
+        @Label("Queued") boolean queued;          // false if the queue was full
+    }
+
+    @Name("agg.PutApply")
+    @Label("PUT Apply")
+    @Category({"Aggregation Server", "PUT"})
+    @Description("One PUT on the worker thread; the duration excludes the time spent queued")
+    public static class PutApply extends Event {
+        @Label("Station") String stationId;
+        @Label("Content Server") String contentServerId;
+        @Label("Request Lamport") long requestLamport;
+        @Label("Applied Lamport") long appliedLamport; // -1 when nothing was written
+        @Label("Outcome") String outcome;             // applied, unchanged, expired, cancelled or failed
+        @Label("Queue Time") @Timespan(Timespan.NANOSECONDS) long queueTime; // hold-back included
+    }
+
+    @Name("agg.WalAppend")
+    @Label("WAL Append")
+    @Category({"Aggregation Server", "WAL"})
+    @Description("Writing, flushing and syncing one WAL record")
+    public static class WalAppend extends Event {
+        @Label("Kind") String kind;                   // PUT, EXPIRE or SEEN
+        @Label("Content Server") String contentServerId;
+        @Label("Lamport") long lamport;
+        @Label("Size") @DataAmount long bytes;
+    }
+
+    @Name("agg.StoreApply")
+    @Label("Store Apply")
+    @Category({"Aggregation Server", "Store"})
+    @Description("Applying a logged record to the state store, listeners included")
+    public static class StoreApply extends Event {
+        @Label("Kind") String kind;                   // PUT or EXPIRE
+        @Label("Station") String stationId;           // null for EXPIRE
+        @Label("Content Server") String contentServerId;
+        @Label("Lamport") long lamport;
+        @Label("Stations") int stations;              // stations created (PUT) or removed (EXPIRE)
+    }
+
+    @Name("agg.Expire")
+    @Label("Expire Content Server")
+    @Category({"Aggregation Server", "Store"})
+    @Description("The sweeper expiring one silent content server")
+    public static class Expire extends Event {
+        @Label("Content Server") String contentServerId;
+        @Label("Lamport") long lamport;
+        @Label("Stations") int stations;
+        @Label("Silence") @Timespan(Timespan.MILLISECONDS) long silence;
+    }
+
+    @Name("agg.ResponseWrite")
+    @Label("Response Write")
+    @Category({"Aggregation Server", "HTTP"})
+    @Description("Writing one response; Handler Time is from the end of parsing until the response was ready")
+    public static class ResponseWrite extends Event {
+        @Label("Method") String method;
+        @Label("Path") String path;
+        @Label("Status") int status;
+        @Label("Lamport") long lamport;               // X-Lamport sent back
+        @Label("Handler Time") @Timespan(Timespan.NANOSECONDS) long handlerTime;
+    }
+}
@@ -0,0 +1,126 @@
+package agg;
+
+import jdk.jfr.Timespan;
+import jdk.jfr.ValueDescriptor;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Offline per-phase latency breakdown of a Flight Recorder file:
+//   java -cp out agg.TraceReport agg.jfr
+// Every agg.* event (see TraceEvents) is a phase, split by its kind or
+// outcome field when it has one; each @Timespan field (queue time,
+// handler time, ...) is reported as a phase of its own.
+public class TraceReport {
+    // Phases are listed in the order a PUT passes through them
+    private static final List<String> PIPELINE = List.of(
+            "agg.RequestParse", "agg.PutValidate", "agg.PutApply", "agg.WalAppend",
+            "agg.StoreApply", "agg.ResponseWrite", "agg.Expire");
+
+    // Latency samples of one phase, in nanoseconds
+    public static class Phase {
+        public final String name;
+        private long[] samples = new long[64];
+        private int count;
+        private boolean sorted;
+
+        Phase(String name) { this.name = name; }
+
+        void add(long nanos) {
+            if (count == samples.length) samples = Arrays.copyOf(samples, count * 2);
+            samples[count++] = nanos;
+            sorted = false;
+        }
+
+        public int count() { return count; }
+
+        // Nearest-rank percentile, 0 < p <= 100
+        public long percentile(double p) {
+            if (count == 0) return 0;
+            if (!sorted) {
+                Arrays.sort(samples, 0, count);
+                sorted = true;
+            }
+            int rank = (int) Math.ceil(p / 100.0 * count);
+            return samples[Math.max(0, Math.min(count, rank) - 1)];
+        }
+
+        public long total() {
+            long sum = 0;
+            for (int i = 0; i < count; i++) sum += samples[i];
+            return sum;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("usage: java agg.TraceReport <recording.jfr>");
+            System.exit(2);
+        }
+        Map<String, Phase> phases = summarize(Path.of(args[0]));
+        if (phases.isEmpty()) {
+            System.out.println("no agg.* events in " + args[0]);
+            return;
+        }
+        System.out.printf(Locale.ROOT, "%-36s %8s %10s %10s %10s %10s %12s%n",
+                "phase (us)", "count", "p50", "p90", "p99", "max", "total");
+        for (Phase p : phases.values()) {
+            System.out.printf(Locale.ROOT, "%-36s %8d %10.1f %10.1f %10.1f %10.1f %12.1f%n",
+                    p.name, p.count(), p.percentile(50) / 1e3, p.percentile(90) / 1e3,
+                    p.percentile(99) / 1e3, p.percentile(100) / 1e3, p.total() / 1e3);
+        }
+    }
+
+    // Phases found in a recording, in pipeline order
+    public static Map<String, Phase> summarize(Path recording) throws IOException {
+        Map<String, Phase> phases = new TreeMap<>(Comparator
+                .comparingInt(TraceReport::pipelineIndex)
+                .thenComparing(Comparator.naturalOrder()));
+        try (RecordingFile file = new RecordingFile(recording)) {
+            while (file.hasMoreEvents()) {
+                RecordedEvent e = file.readEvent();
+                String type = e.getEventType().getName();
+                if (!type.startsWith("agg.")) continue;
+
+                String key = type + variant(e);
+                phases.computeIfAbsent(key, Phase::new).add(e.getDuration().toNanos());
+                for (ValueDescriptor field : e.getEventType().getFields()) {
+                    if ("duration".equals(field.getName())) continue;
+                    if (!Timespan.class.getName().equals(field.getContentType())) continue;
+                    phases.computeIfAbsent(key + "." + field.getName(), Phase::new)
+                            .add(e.getDuration(field.getName()).toNanos());
+                }
+            }
+        }
+        return phases;
+    }
+
+    // "[applied]", "[PUT]", ... for events that say what kind they are
+    private static String variant(RecordedEvent e) {
+        for (String field : new String[]{"outcome", "kind"}) {
+            if (e.hasField(field)) {
+                String v = e.getString(field);
+                return v != null ? "[" + v + "]" : "";
+            }
+        }
+        return "";
+    }
+
+    private static int pipelineIndex(String phase) {
+        int end = phase.length();
+        for (int i = 4; i < phase.length(); i++) {
+            char c = phase.charAt(i);
+            if (c == '[' || c == '.') { end = i; break; }
+        }
+        int i = PIPELINE.indexOf(phase.substring(0, end));
+        return i >= 0 ? i : PIPELINE.size();
+    }
+}
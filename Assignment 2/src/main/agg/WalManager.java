@@ -2,93 +2,527 @@ package agg;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.ReentrantLock;
 
+import common.JsonUtil;
 import common.LamportClock;
 
+// Write-ahead log. The first line names the record format; records follow,
+// one per line, with fields separated by '|' and '|', '\' and newlines in
+// fields escaped with '\'. A log without the header was written by the
+// first version (no '\' escapes) and is rewritten in this format on open.
 public class WalManager implements Closeable {
+    static final String FORMAT = "WAL|2";     // header line of logs in this format
+
     private final File file;                 // WAL file on disk
     private final ReentrantLock lock = new ReentrantLock(); // lock for thread safety
-    private final OutputStream out;          // append stream to WAL file
+    private final FileOutputStream out;      // append stream to WAL file; each record is one write
+    private final boolean fsync;             // sync each record to the device before it is acknowledged
+    private final long seenIntervalMillis;   // min gap between logged liveness records per content server
+    private final Map<String, Long> lastLoggedAt = new ConcurrentHashMap<>(); // contentServerId -> last PUT/SEEN logged
+    private volatile long position;          // bytes in the log, including what was there at open
+    private final int fullEvery;             // a station's PUT is logged in full at least this often; <= 1: always
+    private final Map<String, Integer> sinceFull = new HashMap<>(); // stationId -> DELTA records since its last PUT (under lock)
 
     public WalManager(File file) throws IOException {
+        this(file, 10000);
+    }
+
+    public WalManager(File file, long seenIntervalMillis) throws IOException {
+        this(file, seenIntervalMillis, 1);
+    }
+
+    public WalManager(File file, long seenIntervalMillis, int fullEvery) throws IOException {
+        this(file, seenIntervalMillis, fullEvery, true);
+    }
+
+    public WalManager(File file, long seenIntervalMillis, int fullEvery, boolean fsync) throws IOException {
         this.file = file;
-        this.out = new BufferedOutputStream(new FileOutputStream(file, true)); // append mode
+        this.seenIntervalMillis = seenIntervalMillis;
+        this.fullEvery = fullEvery;
+        this.fsync = fsync;
+        truncateTornRecord(file);
+        upgradeIfUnversioned(file);
+        this.out = new FileOutputStream(file, true); // append mode
+        if (file.length() == 0) {
+            out.write((FORMAT + "\n").getBytes(StandardCharsets.US_ASCII));
+            if (fsync) out.getFD().sync();
+        }
+        this.position = file.length();
+    }
+
+    // A crash can leave the last record half written. It was never
+    // acknowledged, and appending after it would glue the next record onto
+    // it, so the log is cut back to just after its last newline.
+    private static void truncateTornRecord(File file) throws IOException {
+        if (!file.exists()) return;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            long length = raf.length();
+            long end = length;
+            byte[] buf = new byte[4096];
+            while (end > 0) {
+                int n = (int) Math.min(buf.length, end);
+                raf.seek(end - n);
+                raf.readFully(buf, 0, n);
+                int i = n - 1;
+                while (i >= 0 && buf[i] != '\n') i--;
+                if (i >= 0) {
+                    end = end - n + i + 1;
+                    break;
+                }
+                end -= n;
+            }
+            if (end == length) return;
+            raf.setLength(end);
+            raf.getFD().sync();
+            System.out.println("Dropped " + (length - end) + " bytes of a torn record at the end of " + file);
+        }
+    }
+
+    // Check the header; a log without one is rewritten in this format with
+    // the first version's parsing, and an unknown format is refused
+    private static void upgradeIfUnversioned(File file) throws IOException {
+        if (!file.exists() || file.length() == 0) return;
+        List<String> lines;
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+                StandardCharsets.UTF_8))) {
+            String first = br.readLine();
+            if (FORMAT.equals(first)) return;
+            if (first != null && first.startsWith("WAL|")) {
+                throw new IOException("unsupported WAL format \"" + first + "\" in " + file);
+            }
+            lines = new ArrayList<>();
+            for (String line = first; line != null; line = br.readLine()) lines.add(line);
+        }
+
+        File tmp = new File(file.getPath() + ".upgrade");
+        int records = 0;
+        try (FileOutputStream up = new FileOutputStream(tmp)) {
+            up.write((FORMAT + "\n").getBytes(StandardCharsets.US_ASCII));
+            for (String line : lines) {
+                byte[] record = upgradeRecord(line);
+                if (record == null) continue; // malformed: the first version skipped it too
+                up.write(record);
+                records++;
+            }
+            up.getFD().sync();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        System.out.println("Upgraded WAL " + file + " from the unversioned format (" + records + " records)");
+    }
+
+    // One record of the first version in this format, or null. That version
+    // split on every '|' and escaped only '|' and newlines, as \| and \n.
+    // A \n outside JSON strings was a newline between tokens and is dropped
+    // with the other whitespace; inside a string it is JSON's own escape, as
+    // are \" and \\, and is kept.
+    static byte[] upgradeRecord(String line) {
+        String[] parts = line.split("\\|", -1);
+        try {
+            if ("PUT".equals(parts[0]) && parts.length >= 5) {
+                Instant at = parts.length > 5 ? Instant.parse(parts[5]) : Instant.now();
+                byte[] json = JsonUtil.minify(legacyJson(parts[4]).getBytes(StandardCharsets.UTF_8));
+                return formatPut(Long.parseLong(parts[1]), legacyUnesc(parts[2]), legacyUnesc(parts[3]), json, at);
+            } else if ("EXPIRE".equals(parts[0]) && parts.length >= 3) {
+                Instant at = parts.length > 3 ? Instant.parse(parts[3]) : Instant.now();
+                return formatExpire(Long.parseLong(parts[1]), legacyUnesc(parts[2]), at);
+            }
+        } catch (RuntimeException e) {
+            // skip corrupted entries, as replay always has
+        }
+        return null;
+    }
+
+    private static String legacyUnesc(String s) {
+        return s.replace("\\|", "|").replace("\\n", "\n");
+    }
+
+    private static String legacyJson(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        boolean inString = false, escaped = false;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (inString) {
+                if (escaped) escaped = false;
+                else if (c == '\\') escaped = true;
+                else if (c == '"') inString = false;
+            } else if (c == '"') {
+                inString = true;
+            } else if (c == '\\' && i + 1 < s.length() && s.charAt(i + 1) == 'n') {
+                i++; // an escaped newline between tokens
+                continue;
+            }
+            sb.append(c);
+        }
+        return sb.toString();
     }
 
     // Append a PUT entry into WAL
-    public void appendPut(long lamport, String contentServerId, String stationId, String rawJson) throws IOException {
-        String line = String.format(
-                "PUT|%d|%s|%s|%s|%s\n",
-                lamport, esc(contentServerId), esc(stationId), esc(rawJson), Instant.now().toString()
-        );
-        writeLine(line);
+    public void appendPut(long lamport, String contentServerId, String stationId, byte[] json) throws IOException {
+        writeLine(formatPut(lamport, contentServerId, stationId, json, Instant.now()), "PUT", contentServerId, lamport);
+        lastLoggedAt.put(contentServerId, System.currentTimeMillis());
+    }
+
+    // Log a PUT and apply it to the store under the log lock, so that
+    // position() never covers a record the store has not applied yet.
+    // When the station already has a record, the PUT may be logged as a
+    // DELTA against it: replay applies records in order, so the store then
+    // holds the same base, also when replay starts from a checkpoint.
+    public boolean appendAndApplyPut(StateStore store, long lamport, String contentServerId,
+                                     String stationId, byte[] json) throws IOException {
+        lock.lock();
+        try {
+            StateStore.WeatherRecord base = fullEvery > 1 ? store.record(stationId) : null;
+            int deltas = base != null ? sinceFull.getOrDefault(stationId, 0) : 0;
+            byte[] delta = base != null && deltas + 1 < fullEvery
+                    ? formatDelta(lamport, contentServerId, stationId, base.lamportApplied, base.json, json, Instant.now())
+                    : null;
+            // A delta is only kept when it is shorter than the whole body
+            if (delta != null && delta.length < json.length) {
+                writeLine(delta, "DELTA", contentServerId, lamport);
+                lastLoggedAt.put(contentServerId, System.currentTimeMillis());
+                sinceFull.put(stationId, deltas + 1);
+            } else {
+                appendPut(lamport, contentServerId, stationId, json);
+                if (fullEvery > 1) sinceFull.put(stationId, 0);
+            }
+            TraceEvents.StoreApply traced = new TraceEvents.StoreApply();
+            traced.begin();
+            boolean created = store.applyPut(stationId, json, contentServerId, lamport);
+            traced.end();
+            if (traced.shouldCommit()) {
+                traced.kind = "PUT";
+                traced.stationId = stationId;
+                traced.contentServerId = contentServerId;
+                traced.lamport = lamport;
+                traced.stations = created ? 1 : 0;
+                traced.commit();
+            }
+            return created;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Log an expiry and apply it to the store under the log lock
+    public List<String> appendAndApplyExpire(StateStore store, long lamport, String contentServerId)
+            throws IOException {
+        lock.lock();
+        try {
+            appendExpire(lamport, contentServerId);
+            TraceEvents.StoreApply traced = new TraceEvents.StoreApply();
+            traced.begin();
+            List<String> removed = store.removeAllFromContentServer(contentServerId, lamport);
+            sinceFull.keySet().removeAll(removed);
+            traced.end();
+            if (traced.shouldCommit()) {
+                traced.kind = "EXPIRE";
+                traced.contentServerId = contentServerId;
+                traced.lamport = lamport;
+                traced.stations = removed.size();
+                traced.commit();
+            }
+            return removed;
+        } finally {
+            lock.unlock();
+        }
     }
 
+    // Byte length of the log; a StateStore.Listener sees every record
+    // before this offset already applied
+    public long position() { return position; }
+
     // Append an EXPIRE entry into WAL
     public void appendExpire(long lamport, String contentServerId) throws IOException {
-        String line = String.format(
-                "EXPIRE|%d|%s|%s\n",
-                lamport, esc(contentServerId), Instant.now().toString()
-        );
-        writeLine(line);
+        writeLine(formatExpire(lamport, contentServerId, Instant.now()), "EXPIRE", contentServerId, lamport);
+        lastLoggedAt.remove(contentServerId);
+    }
+
+    // Heartbeats are not logged individually. A SEEN record is written only
+    // when nothing was logged for the content server in the last interval,
+    // so after a crash its last-seen time is known to within one interval.
+    public void appendSeenIfDue(long lamport, String contentServerId) throws IOException {
+        long now = System.currentTimeMillis();
+        Long last = lastLoggedAt.get(contentServerId);
+        if (last != null && now - last < seenIntervalMillis) return;
+        lastLoggedAt.put(contentServerId, now);
+        writeLine(("SEEN|" + lamport + "|" + esc(contentServerId) + "|" + Instant.now() + "\n")
+                .getBytes(StandardCharsets.UTF_8), "SEEN", contentServerId, lamport);
     }
 
-    // Low-level write with flushing + fsync
-    private void writeLine(String line) throws IOException {
+    // WAL record lines, also used as the replication stream format.
+    // The station JSON is copied in as bytes, escaped, without decoding it.
+    public static byte[] formatPut(long lamport, String contentServerId, String stationId,
+                                   byte[] json, Instant at) {
+        byte[] head = ("PUT|" + lamport + "|" + esc(contentServerId) + "|" + esc(stationId) + "|")
+                .getBytes(StandardCharsets.UTF_8);
+        byte[] tail = ("|" + at + "\n").getBytes(StandardCharsets.US_ASCII);
+        ByteArrayOutputStream line = new ByteArrayOutputStream(head.length + json.length + tail.length + 8);
+        line.write(head, 0, head.length);
+        escBytes(line, json, 0, json.length);
+        line.write(tail, 0, tail.length);
+        return line.toByteArray();
+    }
+
+    // DELTA|lamport|cs|station|baseLamport|members|index|member|index|member...|time
+    // The body is cut into its top-level members at the commas between them,
+    // and only members that differ from the base (by position) are written, so
+    // joining the members again with ',' gives back the exact bytes
+    public static byte[] formatDelta(long lamport, String contentServerId, String stationId,
+                                     long baseLamport, byte[] base, byte[] json, Instant at) {
+        int[] was = memberEnds(base);
+        int[] now = memberEnds(json);
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        byte[] head = ("DELTA|" + lamport + "|" + esc(contentServerId) + "|" + esc(stationId) + "|"
+                + baseLamport + "|" + now.length).getBytes(StandardCharsets.UTF_8);
+        line.write(head, 0, head.length);
+        for (int i = 0; i < now.length; i++) {
+            int from = i == 0 ? 0 : now[i - 1] + 1;
+            if (i < was.length) {
+                int baseFrom = i == 0 ? 0 : was[i - 1] + 1;
+                if (Arrays.equals(json, from, now[i], base, baseFrom, was[i])) continue;
+            }
+            byte[] idx = ("|" + i + "|").getBytes(StandardCharsets.US_ASCII);
+            line.write(idx, 0, idx.length);
+            escBytes(line, json, from, now[i]);
+        }
+        byte[] tail = ("|" + at + "\n").getBytes(StandardCharsets.US_ASCII);
+        line.write(tail, 0, tail.length);
+        return line.toByteArray();
+    }
+
+    // Rebuild a DELTA body from the base and the members in parts[from..to);
+    // null if the base is not the record the delta was written against
+    private static byte[] applyDelta(StateStore.WeatherRecord base, long baseLamport, int members,
+                                     String[] parts, int from, int to) {
+        if (base == null || base.lamportApplied != baseLamport || (to - from) % 2 != 0) return null;
+        byte[][] changed = new byte[members][];
+        for (int i = from; i < to; i += 2) {
+            changed[Integer.parseInt(parts[i])] = unesc(parts[i + 1]).getBytes(StandardCharsets.UTF_8);
+        }
+        int[] was = memberEnds(base.json);
+        ByteArrayOutputStream body = new ByteArrayOutputStream(base.json.length + 64);
+        for (int i = 0; i < members; i++) {
+            if (i > 0) body.write(',');
+            if (changed[i] != null) {
+                body.write(changed[i], 0, changed[i].length);
+            } else if (i < was.length) {
+                int start = i == 0 ? 0 : was[i - 1] + 1;
+                body.write(base.json, start, was[i] - start);
+            } else {
+                return null; // member missing from both
+            }
+        }
+        return body.toByteArray();
+    }
+
+    // End offset of each top-level member: the commas at depth 1 outside
+    // strings, then the end of the body
+    private static int[] memberEnds(byte[] json) {
+        int[] ends = new int[8];
+        int n = 0, depth = 0;
+        boolean inString = false, escaped = false;
+        for (int i = 0; i < json.length; i++) {
+            byte b = json[i];
+            if (inString) {
+                if (escaped) escaped = false;
+                else if (b == '\\') escaped = true;
+                else if (b == '"') inString = false;
+            } else if (b == '"') {
+                inString = true;
+            } else if (b == '{' || b == '[') {
+                depth++;
+            } else if (b == '}' || b == ']') {
+                depth--;
+            } else if (b == ',' && depth == 1) {
+                if (n == ends.length) ends = Arrays.copyOf(ends, n * 2);
+                ends[n++] = i;
+            }
+        }
+        if (n == ends.length) ends = Arrays.copyOf(ends, n + 1);
+        ends[n++] = json.length;
+        return Arrays.copyOf(ends, n);
+    }
+
+    // Copy bytes into a record, escaping the separator, newlines and the escape character
+    private static void escBytes(ByteArrayOutputStream line, byte[] b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            byte c = b[i];
+            if (c == '|' || c == '\\') {
+                line.write('\\');
+                line.write(c);
+            } else if (c == '\n') {
+                line.write('\\');
+                line.write('n');
+            } else {
+                line.write(c);
+            }
+        }
+    }
+
+    public static byte[] formatExpire(long lamport, String contentServerId, Instant at) {
+        return ("EXPIRE|" + lamport + "|" + esc(contentServerId) + "|" + at + "\n")
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Low-level write + fsync; the rest is for tracing. The record is in the
+    // OS page cache once write returns, which is enough to survive the process
+    // being killed; the sync is what makes it survive a crash of the host.
+    private void writeLine(byte[] line, String kind, String contentServerId, long lamport) throws IOException {
+        TraceEvents.WalAppend traced = new TraceEvents.WalAppend();
+        traced.begin();
         lock.lock();
         try {
-            out.write(line.getBytes(StandardCharsets.UTF_8));
-            out.flush();
-            if (out instanceof FileOutputStream fos) {
-                fos.getFD().sync(); // ensure durability
-            }
+            out.write(line);
+            position += line.length;
+            if (fsync) out.getFD().sync();
         } finally {
             lock.unlock();
         }
+        traced.end();
+        if (traced.shouldCommit()) {
+            traced.kind = kind;
+            traced.contentServerId = contentServerId;
+            traced.lamport = lamport;
+            traced.bytes = line.length;
+            traced.commit();
+        }
     }
 
     // Replay WAL into memory after crash/restart
-    public void replay(StateStore store, LamportClock clock) throws IOException {
-        if (!file.exists()) return;
+    public long replay(StateStore store, LamportClock clock) throws IOException {
+        return replayFrom(0, store, clock);
+    }
 
-        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
+    // Replay only the records from a byte offset on (the tail after a store
+    // checkpoint). Re-applying records the store already holds is harmless,
+    // so an offset past the end of a replaced log falls back to the whole log.
+    // Returns the number of records applied.
+    public long replayFrom(long offset, StateStore store, LamportClock clock) throws IOException {
+        long applied = 0;
+        if (!file.exists()) return applied;
+
+        try (InputStream in = new FileInputStream(file)) {
+            if (offset > 0 && offset <= file.length()) in.skipNBytes(offset);
+            BufferedReader br = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
             String line;
             while ((line = br.readLine()) != null) {
-                String[] parts = line.split("\\|", -1);
-                if (parts.length < 2) continue; // skip malformed lines
-
-                try {
-                    String type = parts[0];
-                    if ("PUT".equals(type) && parts.length >= 5) {
-                        long L = Long.parseLong(parts[1]);
-                        String csId = unesc(parts[2]);
-                        String stId = unesc(parts[3]);
-                        String rawJson = unesc(parts[4]);
-                        clock.onReceive(L); // update Lamport clock
-                        store.applyPut(stId, rawJson, csId, L);
-                    } else if ("EXPIRE".equals(type) && parts.length >= 3) {
-                        long L = Long.parseLong(parts[1]);
-                        String csId = unesc(parts[2]);
-                        clock.onReceive(L); // update Lamport clock
-                        store.removeAllFromContentServer(csId);
-                    }
-                } catch (Exception ignored) {
-                    // skip corrupted WAL entries
-                }
+                if (applyRecord(line, store, clock, seenIntervalMillis) >= 0) applied++;
+            }
+        }
+        return applied;
+    }
+
+    // Apply one WAL record line to the store; returns its Lamport time,
+    // or -1 if the line is malformed or not a PUT/DELTA/EXPIRE/SEEN record
+    public static long applyRecord(String line, StateStore store, LamportClock clock) {
+        return applyRecord(line, store, clock, 0);
+    }
+
+    // seenSlackMillis: unlogged heartbeats may have followed a record by up to
+    // this long, so last-seen is restored as record time + slack (never past now)
+    static long applyRecord(String line, StateStore store, LamportClock clock, long seenSlackMillis) {
+        String[] parts = splitFields(line);
+        if (parts.length < 2) return -1; // skip malformed lines
+
+        try {
+            String type = parts[0];
+            if ("PUT".equals(type) && parts.length >= 5) {
+                long L = Long.parseLong(parts[1]);
+                String csId = unesc(parts[2]);
+                String stId = unesc(parts[3]);
+                byte[] json = unesc(parts[4]).getBytes(StandardCharsets.UTF_8);
+                clock.onReceive(L); // update Lamport clock
+                store.applyPut(stId, json, csId, L, seenAt(parts, 5, seenSlackMillis));
+                return L;
+            } else if ("DELTA".equals(type) && parts.length >= 7) {
+                long L = Long.parseLong(parts[1]);
+                String csId = unesc(parts[2]);
+                String stId = unesc(parts[3]);
+                byte[] json = applyDelta(store.record(stId), Long.parseLong(parts[4]), Integer.parseInt(parts[5]),
+                        parts, 6, parts.length - 1);
+                if (json == null) return -1; // base missing: the log was cut before it
+                clock.onReceive(L); // update Lamport clock
+                store.applyPut(stId, json, csId, L, seenAt(parts, parts.length - 1, seenSlackMillis));
+                return L;
+            } else if ("EXPIRE".equals(type) && parts.length >= 3) {
+                long L = Long.parseLong(parts[1]);
+                String csId = unesc(parts[2]);
+                clock.onReceive(L); // update Lamport clock
+                store.removeAllFromContentServer(csId, L);
+                return L;
+            } else if ("SEEN".equals(type) && parts.length >= 4) {
+                long L = Long.parseLong(parts[1]);
+                String csId = unesc(parts[2]);
+                clock.onReceive(L); // update Lamport clock
+                store.refreshLastSeen(csId, seenAt(parts, 3, seenSlackMillis));
+                return L;
             }
+        } catch (Exception ignored) {
+            // skip corrupted WAL entries
+        }
+        return -1;
+    }
+
+    // Last-seen time restored from a record's timestamp field
+    private static Instant seenAt(String[] parts, int idx, long slackMillis) {
+        Instant now = Instant.now();
+        if (parts.length <= idx) return now; // older records without a timestamp
+        try {
+            Instant t = Instant.parse(parts[idx]).plusMillis(slackMillis);
+            return t.isAfter(now) ? now : t;
+        } catch (RuntimeException e) {
+            return now;
         }
     }
 
-    // Escape special characters for safe logging
+    // Escape the field separator, newlines and the escape character itself
     private static String esc(String s) {
-        return s.replace("|", "\\|").replace("\n", "\\n");
+        return s.replace("\\", "\\\\").replace("|", "\\|").replace("\n", "\\n");
     }
 
     // Reverse escape for replay
     private static String unesc(String s) {
-        return s.replace("\\|", "|").replace("\\n", "\n");
+        if (s.indexOf('\\') < 0) return s;
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length()) {
+                char n = s.charAt(++i);
+                if (n == 'n') sb.append('\n');
+                else if (n == '|' || n == '\\') sb.append(n);
+                else sb.append(c).append(n); // not an escape we write
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    // Split a record line on unescaped '|' separators, leaving escapes in place
+    private static String[] splitFields(String line) {
+        List<String> fields = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '\\') {
+                i++; // skip the escaped character
+            } else if (c == '|') {
+                fields.add(line.substring(start, i));
+                start = i + 1;
+            }
+        }
+        fields.add(line.substring(start));
+        return fields.toArray(new String[0]);
     }
 
     @Override
@@ -1,27 +1,56 @@
 package client;
 
+import common.BinaryIngest;
+import common.ConsistentHashRing;
+import common.HttpMessage.HttpResponse;
 import common.LamportClock;
 
 import java.io.*;
+import java.net.InetAddress;
 import java.net.Socket;
 import java.net.URI;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
 
 public class ContentServer {
     private static final LamportClock clock = new LamportClock(); // local Lamport clock
+    private static final int MAX_RETRIES = 5;          // number of upload attempts
+    private static final long BASE_BACKOFF_MS = 500;   // first backoff step
+    private static final long MAX_BACKOFF_MS = 10000;  // backoff cap
+    static final int CLUSTER_VIRTUAL_NODES = 128; // must match the servers' agg.cluster.vnodes
 
     public static void main(String[] args) throws Exception {
         if (args.length < 2) {
-            System.err.println("Usage: java client.ContentServer <server:port> <datafile.txt>");
+            System.err.println("Usage: java client.ContentServer <server:port[,server:port...]> <datafile.txt>"
+                    + " [--binary <port>]");
+            System.err.println("       java client.ContentServer <server:port[,server:port...]> --watch <dir>"
+                    + " [--id <contentServerId>] [--heartbeat-sec <n>]");
             System.exit(1);
         }
 
-        // Parse server URI and extract host/port
-        URI uri = parseServerUri(args[0]);
-        String host = uri.getHost() == null ? "localhost" : uri.getHost();
-        int port = (uri.getPort() == -1 ? 4567 : uri.getPort());
+        // Daemon mode: keep a directory of station files uploaded
+        if ("--watch".equals(args[1])) {
+            if (args.length < 3) {
+                System.err.println("Error: --watch needs a directory");
+                System.exit(1);
+            }
+            String id = null;
+            long heartbeatSec = 10;
+            for (int i = 3; i + 1 < args.length; i += 2) {
+                if ("--id".equals(args[i])) id = args[i + 1];
+                else if ("--heartbeat-sec".equals(args[i])) heartbeatSec = Long.parseLong(args[i + 1]);
+            }
+            if (id == null) id = stableContentServerId(args[2]);
+            new ContentServerDaemon(args[0], new File(args[2]).toPath(), id, heartbeatSec * 1000).run();
+            return;
+        }
+
         String filePath = args[1];
+        String contentServerId = stableContentServerId(filePath);
+        int binaryPort = 0; // > 0: upload over the binary ingest protocol instead of HTTP
+        if (args.length >= 4 && "--binary".equals(args[2])) binaryPort = Integer.parseInt(args[3]);
 
         // Read key-value pairs from file and build JSON
         Map<String, String> fields = readKeyValueFile(filePath);
@@ -31,10 +60,68 @@ public class ContentServer {
         }
         String json = buildJson(fields);
 
-        // Connect to aggregation server
+        // Pick the target: with several servers, the shard that owns this station
+        String target = args[0];
+        if (target.contains(",")) {
+            target = ConsistentHashRing.parse(target, CLUSTER_VIRTUAL_NODES).nodeFor(fields.get("id"));
+        }
+        URI uri = parseServerUri(target);
+        String host = uri.getHost() == null ? "localhost" : uri.getHost();
+        int port = (uri.getPort() == -1 ? 4567 : uri.getPort());
+
+        // Upload, backing off on 503, 429 or connection errors
+        for (int attempt = 1; ; attempt++) {
+            long retryAfterSec = 0;
+            try {
+                if (binaryPort > 0) {
+                    byte status = sendBinary(host, binaryPort, contentServerId, fields);
+                    if (status == BinaryIngest.CREATED || status == BinaryIngest.OK) return;
+                    if (status == BinaryIngest.MISDIRECTED) {
+                        // An ACK does not name the owner; a PUT here gets a 421 that does, and is followed below
+                        System.err.println("Station is owned by another shard; uploading over HTTP");
+                        binaryPort = 0;
+                        continue;
+                    }
+                    if (status != BinaryIngest.RETRY) {
+                        System.err.println("Update refused with status " + status);
+                        System.exit(1);
+                    }
+                    retryAfterSec = 1; // an ACK carries no Retry-After; use the server default
+                } else {
+                    HttpResponse resp = sendPut(host, port, contentServerId, json);
+                    String owner = resp.header("X-Shard-Owner");
+                    if (resp.statusCode == 421 && owner != null && attempt < MAX_RETRIES) {
+                        // Our ring disagrees with the cluster's; follow the owner it names
+                        uri = parseServerUri(owner);
+                        host = uri.getHost();
+                        port = uri.getPort();
+                        continue;
+                    }
+                    if (resp.statusCode != 503 && resp.statusCode != 429) return;
+                    String ra = resp.header("Retry-After");
+                    if (ra != null) {
+                        try { retryAfterSec = Long.parseLong(ra.trim()); }
+                        catch (NumberFormatException ignored) { }
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Attempt " + attempt + " failed: " + e.getMessage());
+            }
+            if (attempt >= MAX_RETRIES) {
+                System.err.println("ALL RETRIES FAILED. EXITING.");
+                System.exit(1);
+            }
+            long delay = backoffMillis(attempt, retryAfterSec);
+            System.err.println("Retrying in " + delay + " ms");
+            Thread.sleep(delay);
+        }
+    }
+
+    // Send one PUT and return the parsed response
+    private static HttpResponse sendPut(String host, int port, String contentServerId, String json) throws IOException {
         try (Socket socket = new Socket(host, port)) {
             OutputStream out = socket.getOutputStream();
-            InputStream in = socket.getInputStream();
+            InputStream in = new BufferedInputStream(socket.getInputStream());
 
             long L = clock.onSend(); // increment Lamport clock for send
 
@@ -46,7 +133,7 @@ public class ContentServer {
                             "Content-Type: application/json\r\n" +
                             "Content-Length: " + body.length + "\r\n" +
                             "X-Lamport: " + L + "\r\n" +
-                            "X-Content-Server: cs1\r\n" +
+                            "X-Content-Server: " + contentServerId + "\r\n" +
                             "\r\n";
 
             // Send request + body
@@ -55,28 +142,54 @@ public class ContentServer {
             out.flush();
 
             // Read server response
-            BufferedReader br = new BufferedReader(new InputStreamReader(in));
-            String statusLine = br.readLine();
-            if (statusLine == null) {
-                System.err.println("No response from server");
-                return;
+            HttpResponse resp = HttpResponse.parse(in);
+            System.out.println("HTTP/1.1 " + resp.statusCode + " " + resp.reason);
+            for (Map.Entry<String, String> h : resp.headers.entrySet()) {
+                System.out.println(h.getKey() + ": " + h.getValue());
             }
-            System.out.println(statusLine);
+            resp.lamportHeader().ifPresent(clock::onReceive); // update Lamport clock
+            return resp;
+        }
+    }
 
-            // Process headers
-            String line;
-            while ((line = br.readLine()) != null && !line.isEmpty()) {
-                System.out.println(line);
-                if (line.toLowerCase().startsWith("x-lamport:")) {
-                    long Lresp = Long.parseLong(line.split(":")[1].trim());
-                    clock.onReceive(Lresp); // update Lamport clock
-                }
-            }
+    // Send one update over the binary protocol and return its ACK status
+    private static byte sendBinary(String host, int port, String contentServerId, Map<String, String> fields)
+            throws IOException {
+        try (Socket socket = new Socket(host, port)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            BinaryIngest.writeUpdates(out, 1, clock.onSend(), contentServerId,
+                    List.of(BinaryIngest.Update.fromText(fields)));
+            out.flush();
+            BinaryIngest.Ack ack = BinaryIngest.readAck(in);
+            clock.onReceive(ack.lamport);
+            System.out.println("ACK " + ack.seq + " status " + ack.statuses[0] + " lamport " + ack.lamport);
+            return ack.statuses[0];
         }
     }
 
+    // Content server id that stays the same across runs: host name plus a
+    // hash of the data file or directory path
+    static String stableContentServerId(String path) {
+        String host;
+        try { host = InetAddress.getLocalHost().getHostName(); }
+        catch (IOException e) { host = "localhost"; }
+        String canonical;
+        try { canonical = new File(path).getCanonicalPath(); }
+        catch (IOException e) { canonical = new File(path).getAbsolutePath(); }
+        return "cs-" + host + "-" + Integer.toHexString(canonical.hashCode());
+    }
+
+    // Exponential backoff with jitter, never shorter than the server's Retry-After
+    public static long backoffMillis(int attempt, long retryAfterSec) {
+        long exp = Math.min(MAX_BACKOFF_MS, BASE_BACKOFF_MS << Math.min(attempt - 1, 20));
+        long floor = Math.max(retryAfterSec * 1000, exp / 2);
+        long ceil = Math.max(floor, exp);
+        return floor + ThreadLocalRandom.current().nextLong(ceil - floor + 1);
+    }
+
     // Ensure "localhost:4567" etc. can be parsed into a URI
-    private static URI parseServerUri(String arg) throws Exception {
+    static URI parseServerUri(String arg) throws Exception {
         if (!arg.startsWith("http")) {
             arg = "http://" + arg;
         }
@@ -84,7 +197,7 @@ public class ContentServer {
     }
 
     // Read text file of key:value pairs into a map
-    private static Map<String, String> readKeyValueFile(String path) throws IOException {
+    static Map<String, String> readKeyValueFile(String path) throws IOException {
         Map<String, String> map = new LinkedHashMap<>();
         try (BufferedReader br = new BufferedReader(new FileReader(path))) {
             String line;
@@ -99,7 +212,7 @@ public class ContentServer {
     }
 
     // Build JSON string from the map
-    private static String buildJson(Map<String, String> map) {
+    static String buildJson(Map<String, String> map) {
         StringBuilder sb = new StringBuilder();
         sb.append("{\n");
         boolean first = true;
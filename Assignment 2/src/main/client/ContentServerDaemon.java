@@ -0,0 +1,202 @@
+package client;
+
+import common.ConsistentHashRing;
+import common.HttpMessage.HttpResponse;
+import common.LamportClock;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+// Long-running content server: watches a directory of station files and
+// keeps the aggregation server(s) up to date over persistent connections.
+// Only files whose parsed content changed are re-uploaded; in between,
+// heartbeats keep this content server's data from expiring.
+public class ContentServerDaemon {
+    private final String servers;            // server list as given on the command line
+    private final ConsistentHashRing ring;   // station -> shard, or null for a single server
+    private final Path dir;                  // directory of station .txt files
+    private final String contentServerId;    // stable X-Content-Server id
+    private final long heartbeatMillis;      // max silence per server before a heartbeat
+    private final LamportClock clock = new LamportClock();
+
+    private final Map<Path, Station> stations = new HashMap<>();           // file -> parsed station
+    private final Map<String, HttpConnection> connections = new HashMap<>(); // server -> connection
+    private final Map<String, Long> lastContact = new HashMap<>();         // server -> last successful request
+
+    // Latest parsed content of one station file
+    private static class Station {
+        final String id;
+        final String json;
+        String node;              // server the station was last uploaded to
+        boolean dirty = true;     // needs uploading
+        int attempts;             // failed uploads in a row
+        long retryAt;             // earliest time for the next attempt
+        Station(String id, String json) { this.id = id; this.json = json; }
+    }
+
+    public ContentServerDaemon(String servers, Path dir, String contentServerId, long heartbeatMillis) {
+        this.servers = servers;
+        this.ring = servers.contains(",")
+                ? ConsistentHashRing.parse(servers, ContentServer.CLUSTER_VIRTUAL_NODES) : null;
+        this.dir = dir;
+        this.contentServerId = contentServerId;
+        this.heartbeatMillis = heartbeatMillis;
+    }
+
+    public void run() throws IOException, InterruptedException {
+        System.out.println("ContentServer " + contentServerId + " watching " + dir);
+        try (WatchService ws = FileSystems.getDefault().newWatchService()) {
+            dir.register(ws, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            scanAll();
+            while (true) {
+                uploadDirty();
+                sendHeartbeats();
+
+                WatchKey key = ws.poll(nextWakeMillis(), TimeUnit.MILLISECONDS);
+                if (key == null) continue;
+                for (WatchEvent<?> ev : key.pollEvents()) {
+                    if (ev.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        scanAll();
+                    } else {
+                        reload(dir.resolve((Path) ev.context()));
+                    }
+                }
+                key.reset();
+            }
+        } finally {
+            for (HttpConnection c : connections.values()) c.close();
+        }
+    }
+
+    // Re-read every station file in the directory
+    private void scanAll() throws IOException {
+        Set<Path> seen = new HashSet<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "*.txt")) {
+            for (Path p : ds) {
+                seen.add(p);
+                reload(p);
+            }
+        }
+        stations.keySet().retainAll(seen);
+    }
+
+    // Re-parse one file; marks it for upload only if the JSON changed.
+    // Removed files stop being uploaded (there is no delete request, so their
+    // stations stay on the server until this content server goes silent).
+    private void reload(Path p) {
+        if (!p.getFileName().toString().endsWith(".txt")) return;
+        if (!Files.isRegularFile(p)) {
+            stations.remove(p);
+            return;
+        }
+        try {
+            Map<String, String> fields = ContentServer.readKeyValueFile(p.toString());
+            if (!fields.containsKey("id")) {
+                System.err.println("Skipping " + p + ": no 'id' field");
+                return;
+            }
+            String json = ContentServer.buildJson(fields);
+            Station prev = stations.get(p);
+            if (prev != null && prev.json.equals(json) && prev.id.equals(fields.get("id"))) return; // unchanged
+            stations.put(p, new Station(fields.get("id"), json));
+        } catch (IOException e) {
+            System.err.println("Cannot read " + p + ": " + e.getMessage());
+        }
+    }
+
+    private void uploadDirty() throws InterruptedException {
+        long now = System.currentTimeMillis();
+        for (Station st : stations.values()) {
+            if (!st.dirty || st.retryAt > now) continue;
+            String node = st.node != null ? st.node : route(st.id);
+            long retryAfterSec = 0;
+            try {
+                HttpResponse resp = connection(node).send("PUT", "/weather.json", Map.of(
+                        "Content-Type", "application/json",
+                        "X-Content-Server", contentServerId),
+                        st.json.getBytes(StandardCharsets.UTF_8));
+                System.out.println("PUT " + st.id + " -> " + node + ": " + resp.statusCode + " " + resp.reason);
+                if (resp.statusCode == 200 || resp.statusCode == 201 || resp.statusCode == 204) {
+                    st.dirty = false;
+                    st.attempts = 0;
+                    st.node = node;
+                    lastContact.put(node, System.currentTimeMillis());
+                    continue;
+                }
+                if (resp.statusCode == 421 && resp.header("X-Shard-Owner") != null) {
+                    st.node = resp.header("X-Shard-Owner"); // retry at the owner straight away
+                    continue;
+                }
+                String ra = resp.header("Retry-After");
+                if (ra != null) {
+                    try { retryAfterSec = Long.parseLong(ra.trim()); }
+                    catch (NumberFormatException ignored) { }
+                }
+            } catch (IOException e) {
+                System.err.println("PUT " + st.id + " -> " + node + " failed: " + e.getMessage());
+                connection(node).close();
+            }
+            st.attempts++;
+            st.retryAt = System.currentTimeMillis() + ContentServer.backoffMillis(st.attempts, retryAfterSec);
+        }
+    }
+
+    // Keep each server that holds our stations from expiring them
+    private void sendHeartbeats() {
+        long now = System.currentTimeMillis();
+        Set<String> nodes = new HashSet<>();
+        for (Station st : stations.values()) {
+            if (!st.dirty && st.node != null) nodes.add(st.node);
+        }
+        for (String node : nodes) {
+            if (now - lastContact.getOrDefault(node, 0L) < heartbeatMillis) continue;
+            try {
+                HttpResponse resp = connection(node).send("POST", "/heartbeat",
+                        Map.of("X-Content-Server", contentServerId), new byte[0]);
+                if (resp.statusCode == 200) {
+                    lastContact.put(node, now);
+                } else if (resp.statusCode == 404) {
+                    // The server expired our data (e.g. after a long outage): upload it again
+                    for (Station st : stations.values()) {
+                        if (node.equals(st.node)) st.dirty = true;
+                    }
+                }
+            } catch (IOException ex) {
+                System.err.println("Heartbeat to " + node + " failed: " + ex.getMessage());
+                connection(node).close();
+            }
+        }
+    }
+
+    // How long to wait for file events before the next upload/heartbeat check
+    private long nextWakeMillis() {
+        long now = System.currentTimeMillis();
+        long wake = now + heartbeatMillis;
+        for (Station st : stations.values()) {
+            if (st.dirty) wake = Math.min(wake, Math.max(now, st.retryAt));
+        }
+        for (long t : lastContact.values()) wake = Math.min(wake, t + heartbeatMillis);
+        return Math.max(10, wake - now);
+    }
+
+    private String route(String stationId) {
+        return ring != null ? ring.nodeFor(stationId) : servers;
+    }
+
+    private HttpConnection connection(String node) {
+        return connections.computeIfAbsent(node, n -> {
+            try {
+                URI uri = ContentServer.parseServerUri(n);
+                return new HttpConnection(uri.getHost() == null ? "localhost" : uri.getHost(),
+                        uri.getPort() == -1 ? 4567 : uri.getPort(), clock);
+            } catch (Exception e) {
+                throw new IllegalArgumentException("bad server address: " + n, e);
+            }
+        });
+    }
+}
@@ -1,31 +1,63 @@
 package client;
 
+import common.HttpMessage.HttpResponse;
+import common.JsonStreamReader;
+import common.JsonStreamReader.Token;
+import common.JsonUtil;
 import common.LamportClock;
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 
+// Fetches and prints the feed. With several servers (a primary and its
+// replicas) they are asked in parallel, and the answer with the highest
+// X-Lamport that arrives within the timeout is printed:
+//   java -cp out client.GETClient localhost:4567,localhost:4568 --timeout 500
 public class GETClient {
     private static final LamportClock clock = new LamportClock(); // local Lamport clock
     private static final int MAX_RETRIES = 3;     // number of retry attempts
     private static final int RETRY_DELAY_MS = 2000; // retry delay (2 seconds)
+    private static final int FANOUT_TIMEOUT_MS = 2000; // default per-server timeout with several servers
 
     public static void main(String[] args) throws Exception {
         if (args.length < 1) {
-            System.err.println("java client.GETClient <server:port> [stationId]");
+            System.err.println("java client.GETClient <server:port>[,<server:port>...] [stationId] [--timeout ms]");
             System.exit(1);
         }
-        // Parse server URI
-        URI uri = parseServerUri(args[0]);
-        String host = uri.getHost() == null ? "localhost" : uri.getHost();
-        int port = (uri.getPort() == -1 ? 4567 : uri.getPort());
+        // Parse server URIs
+        List<InetSocketAddress> servers = new ArrayList<>();
+        for (String s : args[0].split(",")) {
+            URI uri = parseServerUri(s.trim());
+            String host = uri.getHost() == null ? "localhost" : uri.getHost();
+            int port = (uri.getPort() == -1 ? 4567 : uri.getPort());
+            servers.add(new InetSocketAddress(host, port));
+        }
+        int timeoutMs = servers.size() > 1 ? FANOUT_TIMEOUT_MS : 0; // 0: wait as long as it takes
+        for (int i = 1; i < args.length - 1; i++) {
+            if ("--timeout".equals(args[i])) timeoutMs = Integer.parseInt(args[i + 1]);
+        }
 
         // Retry loop for robustness
         boolean success = false;
         for (int attempt = 1; attempt <= MAX_RETRIES && !success; attempt++) {
             try {
-                runGetRequest(host, port);
+                Answer answer = servers.size() == 1 ? requestHead(servers.get(0), timeoutMs)
+                        : fetchFreshest(servers, timeoutMs);
+                try (answer) {
+                    printResponse(answer);
+                }
                 success = true;
             } catch (IOException e) {
                 System.err.println("Attempt " + attempt + " failed: " + e.getMessage());
@@ -39,57 +71,152 @@ public class GETClient {
         }
     }
 
-    // Perform GET /weather.json request to the server
-    private static void runGetRequest(String host, int port) throws IOException {
-        try (Socket socket = new Socket(host, port)) {
+    // One server's answer: the response head, with the body still to be read from the connection
+    public static class Answer implements Closeable {
+        public final InetSocketAddress server;
+        public final HttpResponse head;
+        private final Socket socket;
+        private final InputStream in;
+
+        Answer(InetSocketAddress server, HttpResponse head, Socket socket, InputStream in) {
+            this.server = server;
+            this.head = head;
+            this.socket = socket;
+            this.in = in;
+        }
+
+        // The body as it arrives (Content-Length or chunked)
+        public InputStream body() throws IOException {
+            return head.bodyStream(in);
+        }
+
+        // X-Lamport of the response, or -1 without one
+        public long lamport() {
+            return head.lamportHeader().orElse(-1);
+        }
+
+        @Override
+        public void close() {
+            try { socket.close(); } catch (IOException ignored) { }
+        }
+    }
+
+    // Send GET /weather.json and read the response head; timeoutMs bounds
+    // the connect and each read (0 = no limit)
+    public static Answer requestHead(InetSocketAddress server, int timeoutMs) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(server, timeoutMs);
+            socket.setSoTimeout(timeoutMs);
             OutputStream out = socket.getOutputStream();
-            InputStream in = socket.getInputStream();
+            InputStream in = new BufferedInputStream(socket.getInputStream());
 
             long L = clock.onSend(); // Lamport tick for sending
 
             // Build and send GET request
             String request =
                     "GET /weather.json HTTP/1.1\r\n" +
-                            "Host: " + host + ":" + port + "\r\n" +
+                            "Host: " + server.getHostString() + ":" + server.getPort() + "\r\n" +
                             "X-Lamport: " + L + "\r\n" +
                             "\r\n";
-            out.write(request.getBytes());
+            out.write(request.getBytes(StandardCharsets.US_ASCII));
             out.flush();
 
-            // Read status line
-            BufferedReader br = new BufferedReader(new InputStreamReader(in));
-            String statusLine = br.readLine();
-            if (statusLine == null) {
-                System.err.println("No response from server");
-                return;
+            // Read status line and headers
+            HttpResponse head;
+            try {
+                head = HttpResponse.parseHead(in);
+            } catch (EOFException e) {
+                throw new IOException("No response from " + server.getHostString() + ":" + server.getPort());
+            }
+            return new Answer(server, head, socket, in);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    // Ask every server in parallel and keep the successful answer with the
+    // highest X-Lamport among those whose head arrives within timeoutMs. A
+    // slow server costs at most the timeout; its answer is dropped.
+    public static Answer fetchFreshest(List<InetSocketAddress> servers, int timeoutMs) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(servers.size(), r -> {
+            Thread t = new Thread(r, "get-fanout");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<CompletableFuture<Answer>> calls = new ArrayList<>();
+            for (InetSocketAddress server : servers) {
+                calls.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return requestHead(server, timeoutMs);
+                    } catch (IOException e) {
+                        return null; // this server is down or too slow
+                    }
+                }, pool));
+            }
+            try {
+                CompletableFuture.allOf(calls.toArray(new CompletableFuture<?>[0])).get(timeoutMs, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                // go with the answers that are in
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
             }
-            System.out.println(statusLine);
-
-            // Read headers
-            int contentLength = 0;
-            String line;
-            while (!(line = br.readLine()).isEmpty()) {
-                System.out.println(line);
-                if (line.toLowerCase().startsWith("content-length:")) {
-                    contentLength = Integer.parseInt(line.split(":")[1].trim());
+
+            Answer best = null;
+            int answered = 0;
+            for (CompletableFuture<Answer> call : calls) {
+                Answer a = call.getNow(null);
+                if (a == null) {
+                    call.thenAccept(late -> { if (late != null) late.close(); });
+                    continue;
                 }
-                if (line.toLowerCase().startsWith("x-lamport:")) {
-                    long Lresp = Long.parseLong(line.split(":")[1].trim());
-                    clock.onReceive(Lresp); // update Lamport clock
+                answered++;
+                if (best == null || better(a, best)) {
+                    if (best != null) best.close();
+                    best = a;
+                } else {
+                    a.close();
                 }
             }
+            if (best == null) throw new IOException("no server answered within " + timeoutMs + " ms");
+            System.out.println("Answered by " + best.server.getHostString() + ":" + best.server.getPort()
+                    + " with X-Lamport " + best.lamport() + " (" + answered + " of " + servers.size() + " servers)");
+            return best;
+        } finally {
+            pool.shutdown();
+        }
+    }
 
-            // Read and pretty-print body if present
-            if (contentLength > 0) {
-                char[] buf = new char[contentLength];
-                int read = br.read(buf);
-                String body = new String(buf, 0, read);
-                System.out.println("\n ---Weather Data---");
-                prettyPrintJson(body);
-            } else {
-                System.out.println("No Content");
-            }
+    // A successful answer beats a failed one, then the higher X-Lamport wins
+    private static boolean better(Answer a, Answer b) {
+        boolean okA = a.head.statusCode < 300, okB = b.head.statusCode < 300;
+        if (okA != okB) return okA;
+        return a.lamport() > b.lamport();
+    }
+
+    // Print the status, headers and body of an answer
+    private static void printResponse(Answer answer) throws IOException {
+        HttpResponse head = answer.head;
+        System.out.println("HTTP/1.1 " + head.statusCode + " " + head.reason);
+        for (Map.Entry<String, String> h : head.headers.entrySet()) {
+            System.out.println(h.getKey() + ": " + h.getValue());
+        }
+        head.lamportHeader().ifPresent(clock::onReceive); // update Lamport clock
+
+        // Print the body as it arrives, so a large feed is never held in memory
+        BufferedReader body = new BufferedReader(new InputStreamReader(answer.body(), StandardCharsets.UTF_8));
+        body.mark(1);
+        if (body.read() == -1) {
+            System.out.println("No Content");
+            return;
         }
+        body.reset();
+        System.out.println("\n ---Weather Data---");
+        printFeed(body, System.out);
     }
 
     // Normalize server URI string
@@ -100,20 +227,69 @@ public class GETClient {
         return new URI(arg);
     }
 
-    // Simple pretty-print of JSON into key = value pairs
-    private static void prettyPrintJson(String json) {
-        json = json.replace("{", "")
-                .replace("}", "")
-                .replace("[", "")
-                .replace("]", "");
-        String[] pairs = json.split(",");
-        for (String p : pairs) {
-            String[] kv = p.split(":", 2);
-            if (kv.length == 2) {
-                String key = kv[0].trim().replaceAll("\"", "");
-                String val = kv[1].trim().replaceAll("\"", "");
-                System.out.println(key + " = " + val);
+    // Print a feed as key = value lines, one station after another with a
+    // blank line between them, reading one JSON token at a time. Accepts
+    // {"stations": [...], ...}, a bare array of stations, or one station.
+    // Returns the number of stations printed.
+    public static int printFeed(Reader body, PrintStream out) throws IOException {
+        JsonStreamReader json = new JsonStreamReader(body);
+        Token t = json.next();
+        if (t == Token.BEGIN_ARRAY) return printStations(json, out);
+        if (t != Token.BEGIN_OBJECT) {
+            if (t != Token.END) out.println(json.text());
+            return 0;
+        }
+        int stations = 0;
+        for (t = json.next(); t == Token.NAME; t = json.next()) {
+            String name = json.text();
+            Token v = json.next();
+            if (v == Token.BEGIN_ARRAY) stations += printStations(json, out);
+            else out.println(name + " = " + value(json, v));
+        }
+        return stations;
+    }
+
+    // Each object of an array as one station; returns how many
+    private static int printStations(JsonStreamReader json, PrintStream out) throws IOException {
+        int n = 0;
+        for (Token t = json.next(); t != Token.END_ARRAY; t = json.next()) {
+            if (t == Token.END) throw new IOException("unexpected end of JSON");
+            if (t != Token.BEGIN_OBJECT) {
+                out.println(value(json, t));
+                continue;
+            }
+            if (n++ > 0) out.println();
+            for (Token m = json.next(); m == Token.NAME; m = json.next()) {
+                String key = json.text();
+                out.println(key + " = " + value(json, json.next()));
+            }
+        }
+        return n;
+    }
+
+    // A value as printed: scalars as their text, objects and arrays as compact JSON
+    private static String value(JsonStreamReader json, Token t) throws IOException {
+        if (t == Token.END) throw new IOException("unexpected end of JSON");
+        if (t != Token.BEGIN_OBJECT && t != Token.BEGIN_ARRAY) return json.text();
+        StringBuilder sb = new StringBuilder(t == Token.BEGIN_OBJECT ? "{" : "[");
+        int depth = json.depth();
+        Token prev = t;
+        while (json.depth() >= depth) {
+            Token n = json.next();
+            if (n == Token.END) throw new IOException("unexpected end of JSON");
+            boolean closes = n == Token.END_OBJECT || n == Token.END_ARRAY;
+            if (!closes && prev != Token.BEGIN_OBJECT && prev != Token.BEGIN_ARRAY && prev != Token.NAME) sb.append(',');
+            switch (n) {
+                case NAME: sb.append('"').append(JsonUtil.escape(json.text())).append("\":"); break;
+                case STRING: sb.append('"').append(JsonUtil.escape(json.text())).append('"'); break;
+                case BEGIN_OBJECT: sb.append('{'); break;
+                case BEGIN_ARRAY: sb.append('['); break;
+                case END_OBJECT: sb.append('}'); break;
+                case END_ARRAY: sb.append(']'); break;
+                default: sb.append(json.text());
             }
+            prev = n;
         }
+        return sb.toString();
     }
-}
\ No newline at end of file
+}
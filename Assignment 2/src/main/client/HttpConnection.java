@@ -0,0 +1,82 @@
+package client;
+
+import common.HttpMessage.HttpResponse;
+import common.LamportClock;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+// A persistent (keep-alive) HTTP/1.1 connection to one aggregation server.
+// Opens lazily, and reconnects once if the server closed an idle connection.
+public class HttpConnection implements Closeable {
+    private static final int TIMEOUT_MS = 10000; // connect/read timeout
+
+    private final String host;
+    private final int port;
+    private final LamportClock clock;   // Lamport clock shared by the caller
+    private Socket socket;
+    private InputStream in;
+    private OutputStream out;
+
+    public HttpConnection(String host, int port, LamportClock clock) {
+        this.host = host;
+        this.port = port;
+        this.clock = clock;
+    }
+
+    // Send one request and read its response
+    public synchronized HttpResponse send(String method, String path, Map<String, String> headers,
+                                          byte[] body) throws IOException {
+        boolean reused = socket != null;
+        try {
+            return exchange(method, path, headers, body);
+        } catch (IOException e) {
+            close();
+            if (!reused) throw e;
+            // The server may have dropped the idle connection; try once on a fresh one
+            return exchange(method, path, headers, body);
+        }
+    }
+
+    private HttpResponse exchange(String method, String path, Map<String, String> headers,
+                                  byte[] body) throws IOException {
+        if (socket == null) open();
+        StringBuilder sb = new StringBuilder();
+        sb.append(method).append(' ').append(path).append(" HTTP/1.1\r\n");
+        sb.append("Host: ").append(host).append(':').append(port).append("\r\n");
+        sb.append("X-Lamport: ").append(clock.onSend()).append("\r\n");
+        for (Map.Entry<String, String> h : headers.entrySet()) {
+            sb.append(h.getKey()).append(": ").append(h.getValue()).append("\r\n");
+        }
+        sb.append("Content-Length: ").append(body == null ? 0 : body.length).append("\r\n\r\n");
+        out.write(sb.toString().getBytes(StandardCharsets.US_ASCII));
+        if (body != null) out.write(body);
+        out.flush();
+
+        HttpResponse resp = HttpResponse.parse(in);
+        resp.lamportHeader().ifPresent(clock::onReceive);
+        if ("close".equalsIgnoreCase(resp.header("Connection"))) close();
+        return resp;
+    }
+
+    private void open() throws IOException {
+        socket = new Socket();
+        socket.connect(new InetSocketAddress(host, port), TIMEOUT_MS);
+        socket.setSoTimeout(TIMEOUT_MS);
+        in = new BufferedInputStream(socket.getInputStream());
+        out = new BufferedOutputStream(socket.getOutputStream());
+    }
+
+    @Override
+    public synchronized void close() {
+        if (socket != null) {
+            try { socket.close(); } catch (IOException ignored) { }
+        }
+        socket = null;
+        in = null;
+        out = null;
+    }
+}
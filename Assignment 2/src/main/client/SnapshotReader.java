@@ -0,0 +1,159 @@
+package client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.function.Function;
+
+import static common.SnapshotFile.*;
+
+// Reads the feed a server on this host publishes with -Dagg.snapshot=<file>,
+// straight from shared memory: no socket, and with read(Function) no copy.
+// A read never sees a half-written snapshot; it is retried if the server
+// rewrote the slot while it was being read.
+//   java -cp out client.SnapshotReader agg.snap [--watch]
+public class SnapshotReader implements Closeable {
+    private static final int MAX_ATTEMPTS = 1000; // retries before a read gives up
+
+    // One consistent snapshot
+    public static class Snapshot {
+        public final long version;          // store version it was taken at
+        public final long lamport;          // highest Lamport time it includes
+        public final long publishedAt;      // epoch millis
+        public final byte[] json;           // the GET /weather.json body
+
+        Snapshot(long version, long lamport, long publishedAt, byte[] json) {
+            this.version = version;
+            this.lamport = lamport;
+            this.publishedAt = publishedAt;
+            this.json = json;
+        }
+    }
+
+    private final Path path;
+    private MappedByteBuffer buf;
+
+    public SnapshotReader(Path path) throws IOException {
+        this.path = path;
+        open();
+    }
+
+    private void open() throws IOException {
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        }
+        if (buf.capacity() < HEADER || buf.getLong(0) != MAGIC) throw new IOException(path + " is not a snapshot file");
+    }
+
+    // Store version of the current snapshot (-1 before the first), to poll for changes cheaply
+    public long version() throws IOException {
+        ensureOpen();
+        if ((long) LONGS.getAcquire(buf, MOVED) != 0) open();
+        return (long) LONGS.getAcquire(buf, VERSION);
+    }
+
+    // A copy of the current snapshot, or null if none has been published yet
+    public Snapshot read() throws IOException {
+        long[] meta = new long[3];
+        byte[] json = read(body -> {
+            byte[] copy = new byte[body.remaining()];
+            body.get(copy);
+            return copy;
+        }, meta);
+        return json == null ? null : new Snapshot(meta[0], meta[1], meta[2], json);
+    }
+
+    // Run fn over the current body in place (a read-only buffer positioned
+    // at the body). fn may run more than once and may see torn data on the
+    // attempts that are thrown away, so it must not keep the buffer or act
+    // on what it reads until read returns.
+    public <T> T read(Function<ByteBuffer, T> fn) throws IOException {
+        return read(fn, new long[3]);
+    }
+
+    // meta receives version, Lamport time and publish time
+    private <T> T read(Function<ByteBuffer, T> fn, long[] meta) throws IOException {
+        ensureOpen();
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            if ((long) LONGS.getAcquire(buf, MOVED) != 0) open();
+            MappedByteBuffer b = buf;
+
+            // Header fields under the header sequence number
+            long h = (long) LONGS.getAcquire(b, HEADER_SEQ);
+            int slot = (int) (long) LONGS.getOpaque(b, CURRENT);
+            long length = (long) LONGS.getOpaque(b, LENGTH);
+            long version = (long) LONGS.getOpaque(b, VERSION);
+            long lamport = (long) LONGS.getOpaque(b, LAMPORT);
+            long at = (long) LONGS.getOpaque(b, PUBLISHED_AT);
+            long slotSize = (long) LONGS.getOpaque(b, SLOT_SIZE);
+            int slotSeq = SLOT_SEQ + 8 * (slot & 1);
+            long s = (long) LONGS.getAcquire(b, slotSeq);
+            VarHandle.loadLoadFence();
+            if ((h & 1) != 0 || (s & 1) != 0 || (long) LONGS.getOpaque(b, HEADER_SEQ) != h) {
+                Thread.onSpinWait();
+                continue;
+            }
+            if (version < 0) return null;
+
+            // The body, valid if its slot was not rewritten meanwhile
+            T result;
+            try {
+                ByteBuffer body = b.slice((int) (HEADER + (slot & 1) * slotSize), (int) length).asReadOnlyBuffer();
+                result = fn.apply(body);
+            } catch (RuntimeException e) {
+                result = null; // torn data; validated below
+            }
+            VarHandle.loadLoadFence();
+            if ((long) LONGS.getOpaque(b, slotSeq) == s && (long) LONGS.getAcquire(b, MOVED) == 0) {
+                meta[0] = version;
+                meta[1] = lamport;
+                meta[2] = at;
+                return result;
+            }
+        }
+        throw new IOException("snapshot kept changing while being read");
+    }
+
+    private void ensureOpen() {
+        if (buf == null) throw new IllegalStateException("closed");
+    }
+
+    // Reads after this throw IllegalStateException
+    @Override
+    public void close() {
+        buf = null; // the mapping goes with the buffer
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("java client.SnapshotReader <snapshot file> [--watch]");
+            System.exit(1);
+        }
+        boolean watch = args.length > 1 && "--watch".equals(args[1]);
+        try (SnapshotReader reader = new SnapshotReader(Paths.get(args[0]))) {
+            long seen = -2;
+            do {
+                if (reader.version() != seen) {
+                    Snapshot snap = reader.read();
+                    if (snap == null) {
+                        System.out.println("No snapshot published yet");
+                    } else {
+                        seen = snap.version;
+                        System.out.println("version " + snap.version + ", Lamport " + snap.lamport
+                                + ", published " + Instant.ofEpochMilli(snap.publishedAt));
+                        System.out.println(new String(snap.json, StandardCharsets.UTF_8));
+                    }
+                }
+                if (watch) Thread.sleep(100);
+            } while (watch);
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Binary ingest protocol, an alternative to HTTP PUT for high-rate content
+// servers. Every frame is a u32 length, then a u8 type and its payload
+// (big-endian; a string is a u16 byte count and UTF-8 bytes):
+//   UPDATES  u32 seq, u64 lamport, str contentServerId, u16 count, then per update:
+//            str stationId, u16 fields, then per field: str name, u8 tag, value
+//            (STRING: str, LONG: i64, DOUBLE: f64, NUMBER: str holding the
+//            number as written, so "1.50" is stored as 1.50, not 1.5)
+//   ACK      u32 seq, u64 lamport, u16 count, then one u8 status per update
+// A client may send many UPDATES frames without waiting; ACKs come back in
+// the same order, each naming the frame it answers.
+public final class BinaryIngest {
+    public static final byte UPDATES = 1;
+    public static final byte ACK = 2;
+
+    public static final byte STRING = 0;
+    public static final byte LONG = 1;
+    public static final byte DOUBLE = 2;
+    public static final byte NUMBER = 3;
+
+    private static final String NUMBER_TEXT = "-?\\d+(\\.\\d+)?"; // what ContentServer.buildJson leaves unquoted
+
+    // Per-update status in an ACK, matching the HTTP PUT outcomes
+    public static final byte CREATED = 0;      // 201
+    public static final byte OK = 1;           // 200
+    public static final byte RETRY = 2;        // 503: queue full or deadline passed
+    public static final byte INVALID = 3;      // 500: no station id
+    public static final byte MISDIRECTED = 4;  // 421: station owned by another shard
+    public static final byte FAILED = 5;       // 500: could not be applied
+
+    private BinaryIngest() { }
+
+    // One station update as sent by a content server: fields in file order, without "id"
+    public static class Update {
+        public final String stationId;
+        public final Map<String, Object> fields = new LinkedHashMap<>(); // String, Long, Double or NumberText values
+
+        public Update(String stationId) { this.stationId = stationId; }
+
+        // Typed the way ContentServer.buildJson quotes values: integers and
+        // decimals are numbers, kept as written so the stored JSON is the
+        // same as after an HTTP PUT of the file; everything else is a string
+        public static Update fromText(Map<String, String> kv) {
+            Update u = new Update(kv.get("id"));
+            for (Map.Entry<String, String> e : kv.entrySet()) {
+                if ("id".equals(e.getKey())) continue;
+                String v = e.getValue();
+                u.fields.put(e.getKey(), v.matches(NUMBER_TEXT) ? new NumberText(v) : v);
+            }
+            return u;
+        }
+    }
+
+    // A number sent as its text
+    public record NumberText(String text) { }
+
+    // An UPDATES frame as the server sees it: station ids and minified JSON
+    public static class Frame {
+        public final int seq;
+        public final long lamport;
+        public final String contentServerId;
+        public final List<String> stationIds = new ArrayList<>();
+        public final List<byte[]> json = new ArrayList<>();
+
+        Frame(int seq, long lamport, String contentServerId) {
+            this.seq = seq;
+            this.lamport = lamport;
+            this.contentServerId = contentServerId;
+        }
+    }
+
+    // An ACK frame as the client sees it
+    public static class Ack {
+        public final int seq;
+        public final long lamport;
+        public final byte[] statuses;
+
+        Ack(int seq, long lamport, byte[] statuses) {
+            this.seq = seq;
+            this.lamport = lamport;
+            this.statuses = statuses;
+        }
+    }
+
+    public static void writeUpdates(DataOutputStream out, int seq, long lamport, String contentServerId,
+                                    List<Update> updates) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(64 + updates.size() * 256);
+        DataOutputStream body = new DataOutputStream(buf);
+        body.writeByte(UPDATES);
+        body.writeInt(seq);
+        body.writeLong(lamport);
+        writeString(body, contentServerId);
+        body.writeShort(updates.size());
+        for (Update u : updates) {
+            writeString(body, u.stationId);
+            body.writeShort(u.fields.size());
+            for (Map.Entry<String, Object> f : u.fields.entrySet()) {
+                writeString(body, f.getKey());
+                Object v = f.getValue();
+                if (v instanceof Long l) {
+                    body.writeByte(LONG);
+                    body.writeLong(l);
+                } else if (v instanceof Double d) {
+                    body.writeByte(DOUBLE);
+                    body.writeDouble(d);
+                } else if (v instanceof NumberText n) {
+                    if (!n.text().matches(NUMBER_TEXT)) throw new IOException("not a number: " + n.text());
+                    body.writeByte(NUMBER);
+                    writeString(body, n.text());
+                } else {
+                    body.writeByte(STRING);
+                    writeString(body, String.valueOf(v));
+                }
+            }
+        }
+        out.writeInt(buf.size());
+        buf.writeTo(out);
+    }
+
+    public static void writeAck(DataOutputStream out, int seq, long lamport, byte[] statuses) throws IOException {
+        out.writeInt(1 + 4 + 8 + 2 + statuses.length);
+        out.writeByte(ACK);
+        out.writeInt(seq);
+        out.writeLong(lamport);
+        out.writeShort(statuses.length);
+        out.write(statuses);
+    }
+
+    // Next UPDATES frame, with each update already turned into the minified
+    // JSON the store keeps ({"id":...} first, then the fields in order);
+    // null at a clean end of stream
+    public static Frame readUpdates(DataInputStream stream, int maxFrameBytes) throws IOException {
+        int len;
+        try {
+            len = stream.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (len < 1 || len > maxFrameBytes) throw new IOException("bad frame length " + len);
+        // Parsed from a copy, so a frame can never read past its own length
+        byte[] bytes = new byte[len];
+        stream.readFully(bytes);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+
+        if (in.readByte() != UPDATES) throw new IOException("expected an UPDATES frame");
+        Frame f = new Frame(in.readInt(), in.readLong(), readString(in));
+        int count = in.readUnsignedShort();
+        StringBuilder sb = new StringBuilder(256);
+        for (int i = 0; i < count; i++) {
+            String stationId = readString(in);
+            sb.setLength(0);
+            sb.append("{\"id\":\"").append(JsonUtil.escape(stationId)).append('"');
+            int fields = in.readUnsignedShort();
+            for (int j = 0; j < fields; j++) {
+                sb.append(",\"").append(JsonUtil.escape(readString(in))).append("\":");
+                byte tag = in.readByte();
+                switch (tag) {
+                    case STRING -> sb.append('"').append(JsonUtil.escape(readString(in))).append('"');
+                    case LONG -> sb.append(in.readLong());
+                    case DOUBLE -> {
+                        double d = in.readDouble();
+                        if (Double.isFinite(d)) sb.append(d);
+                        else sb.append("null"); // JSON has no NaN or infinity
+                    }
+                    case NUMBER -> {
+                        String n = readString(in);
+                        if (!n.matches(NUMBER_TEXT)) throw new IOException("bad number " + n);
+                        sb.append(n);
+                    }
+                    default -> throw new IOException("unknown field tag " + tag);
+                }
+            }
+            sb.append('}');
+            f.stationIds.add(stationId);
+            f.json.add(sb.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        if (in.available() != 0) throw new IOException("trailing bytes in frame");
+        return f;
+    }
+
+    public static Ack readAck(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (in.readByte() != ACK) throw new IOException("expected an ACK frame");
+        int seq = in.readInt();
+        long lamport = in.readLong();
+        byte[] statuses = new byte[in.readUnsignedShort()];
+        if (len != 1 + 4 + 8 + 2 + statuses.length) throw new IOException("bad ACK length " + len);
+        in.readFully(statuses);
+        return new Ack(seq, lamport, statuses);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        if (b.length > 0xFFFF) throw new IOException("string too long for a frame");
+        out.writeShort(b.length);
+        out.write(b);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] b = new byte[in.readUnsignedShort()];
+        in.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,73 @@
+package common;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// Consistent hash ring with virtual nodes, used to partition station ids
+// across aggregation servers. Adding or removing a node only moves the keys
+// in the ranges its virtual nodes cover.
+public class ConsistentHashRing {
+    private final int virtualNodes;                           // points per node on the ring
+    private final TreeMap<Long, String> ring = new TreeMap<>(); // hash point -> node
+    private final Set<String> nodes = new LinkedHashSet<>();   // member nodes (host:port)
+
+    public ConsistentHashRing(int virtualNodes) {
+        this.virtualNodes = Math.max(1, virtualNodes);
+    }
+
+    public ConsistentHashRing(Collection<String> nodes, int virtualNodes) {
+        this(virtualNodes);
+        for (String n : nodes) addNode(n);
+    }
+
+    // Parse a comma separated node list, e.g. "localhost:4567,localhost:4568"
+    public static ConsistentHashRing parse(String nodeList, int virtualNodes) {
+        List<String> list = new ArrayList<>();
+        for (String n : nodeList.split(",")) {
+            if (!n.isBlank()) list.add(n.trim());
+        }
+        return new ConsistentHashRing(list, virtualNodes);
+    }
+
+    public synchronized void addNode(String node) {
+        if (!nodes.add(node)) return;
+        for (int i = 0; i < virtualNodes; i++) {
+            ring.put(hash(node + "#" + i), node);
+        }
+    }
+
+    public synchronized void removeNode(String node) {
+        if (!nodes.remove(node)) return;
+        for (int i = 0; i < virtualNodes; i++) {
+            ring.remove(hash(node + "#" + i), node);
+        }
+    }
+
+    public synchronized List<String> nodes() {
+        return new ArrayList<>(nodes);
+    }
+
+    public synchronized boolean isEmpty() {
+        return nodes.isEmpty();
+    }
+
+    // Owner of a key: first ring point clockwise from the key's hash
+    public synchronized String nodeFor(String key) {
+        if (ring.isEmpty()) return null;
+        Map.Entry<Long, String> e = ring.ceilingEntry(hash(key));
+        return e != null ? e.getValue() : ring.firstEntry().getValue();
+    }
+
+    // 64-bit FNV-1a followed by a splitmix64 finalizer for good spread
+    static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+            h ^= (b & 0xff);
+            h *= 0x100000001b3L;
+        }
+        h ^= (h >>> 30); h *= 0xbf58476d1ce4e5b9L;
+        h ^= (h >>> 27); h *= 0x94d049bb133111ebL;
+        h ^= (h >>> 31);
+        return h;
+    }
+}
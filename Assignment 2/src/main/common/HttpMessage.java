@@ -1,106 +1,116 @@
 package common;
 
 import java.io.*;
+import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 public final class HttpMessage {
 
     public static final String CRLF = "\r\n"; // HTTP line ending
+    private static final int GATHER_BUFFER = 8192; // parts at least this big skip the copy
+
+    // A request over one of the parse limits; status is the code to answer with
+    public static class LimitExceededException extends IOException {
+        private static final long serialVersionUID = 1L;
+        public final int status;
+        public final String reason;
+        public LimitExceededException(int status, String reason) {
+            super(status + " " + reason);
+            this.status = status;
+            this.reason = reason;
+        }
+    }
 
     //  HTTP Request
     public static class HttpRequest {
         public final String method;
-        public final String path;
+        public final String path;     // request target without the query string
+        public final String query;    // raw query string after '?', or null
         public final String version;
         public final Map<String, String> headers;
         public final byte[] body;
+        public String remoteAddress;  // client IP, filled in by the server after parsing (may be null)
 
-        private HttpRequest(String method, String path, String version,
+        private HttpRequest(String method, String path, String query, String version,
                             Map<String, String> headers, byte[] body) {
             this.method = method;
             this.path = path;
+            this.query = query;
             this.version = version;
             this.headers = headers;
             this.body = body;
         }
 
-        // Parse an HTTP request from InputStream
+        // Parse an HTTP request from InputStream; pass the same BufferedInputStream
+        // for every request on a keep-alive connection so no bytes are lost
         public static HttpRequest parse(InputStream in) throws IOException {
-            BufferedInputStream bin = new BufferedInputStream(in);
-            bin.mark(8192);
-            ByteArrayOutputStream headerBuf = new ByteArrayOutputStream();
-
-            // Read until CRLFCRLF (end of headers)
-            int prev = -1, prev2 = -1, prev3 = -1;
-            while (true) {
-                int b = bin.read();
-                if (b == -1) throw new EOFException("unexpected EOF while reading headers");
-                headerBuf.write(b);
-                if (prev3 == '\r' && prev2 == '\n' && prev == '\r' && b == '\n') {
-                    break; // found header terminator
-                }
-                prev3 = prev2; prev2 = prev; prev = b;
-            }
+            return parse(in, Integer.MAX_VALUE, Integer.MAX_VALUE, null);
+        }
 
-            // Split headers
-            String headerText = headerBuf.toString(StandardCharsets.US_ASCII);
-            String[] lines = headerText.split("\\r?\\n");
+        // Same, refusing a header block over maxHeaderBytes (431) or a body
+        // over maxBodyBytes (413). beforeBody, if set, runs once the headers
+        // are in, so the caller can switch read deadlines.
+        public static HttpRequest parse(InputStream in, int maxHeaderBytes, int maxBodyBytes,
+                                        Runnable beforeBody) throws IOException {
+            BufferedInputStream bin = in instanceof BufferedInputStream b ? b : new BufferedInputStream(in);
+            String[] lines = readHead(bin, maxHeaderBytes);
             if (lines.length == 0) throw new IOException("empty request");
 
             // Parse request line: METHOD PATH VERSION
             String[] reqLine = lines[0].split(" ", 3);
             if (reqLine.length < 3) throw new IOException("bad request line");
             String method = reqLine[0];
-            String path = reqLine[1];
+            String target = reqLine[1];
+            int q = target.indexOf('?');
+            String path = q < 0 ? target : target.substring(0, q);
+            String query = q < 0 ? null : target.substring(q + 1);
             String version = reqLine[2];
 
-            // Parse headers
-            Map<String, String> headers = new LinkedHashMap<>();
-            for (int i = 1; i < lines.length; i++) {
-                String line = lines[i];
-                if (line.isEmpty()) continue;
-                int idx = line.indexOf(":");
-                if (idx > 0) {
-                    String k = line.substring(0, idx).trim();
-                    String v = line.substring(idx + 1).trim();
-                    headers.put(k, v);
-                }
-            }
+            Map<String, String> headers = parseHeaders(lines);
+            if (beforeBody != null) beforeBody.run();
+            byte[] body = readBody(bin, headers, maxBodyBytes);
+            return new HttpRequest(method, path, query, version, headers, body);
+        }
 
-            // Parse body if Content-Length present
-            int contentLen = 0;
-            if (headers.containsKey("Content-Length")) {
-                try { contentLen = Integer.parseInt(headers.get("Content-Length")); }
-                catch (NumberFormatException e) { throw new IOException("invalid Content-Length"); }
-            }
+        // Extract Lamport clock header if present
+        public OptionalLong lamportHeader() {
+            return parseLong(headers.get("X-Lamport"));
+        }
 
-            byte[] body = new byte[contentLen];
-            int read = 0;
-            while (read < contentLen) {
-                int r = bin.read(body, read, contentLen - read);
-                if (r == -1) throw new EOFException("unexpected EOF while reading body");
-                read += r;
+        // Decoded value of a query parameter, or null (first one wins if repeated)
+        public String queryParam(String name) {
+            if (query == null) return null;
+            for (String pair : query.split("&")) {
+                int eq = pair.indexOf('=');
+                String key = eq < 0 ? pair : pair.substring(0, eq);
+                if (decode(key).equals(name)) return eq < 0 ? "" : decode(pair.substring(eq + 1));
             }
-
-            return new HttpRequest(method, path, version, headers, body);
+            return null;
         }
 
-        // Extract Lamport clock header if present
-        public OptionalLong lamportHeader() {
-            String v = headers.get("X-Lamport");
-            if (v == null) return OptionalLong.empty();
-            try { return OptionalLong.of(Long.parseLong(v)); }
-            catch (NumberFormatException e) { return OptionalLong.empty(); }
+        private static String decode(String s) {
+            try {
+                return URLDecoder.decode(s, StandardCharsets.UTF_8);
+            } catch (IllegalArgumentException e) {
+                return s; // malformed %-escape: use the text as given
+            }
         }
     }
 
+    // Produces a response body straight onto the connection
+    public interface BodyWriter {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
     //  HTTP Response
     public static class HttpResponse {
         public int statusCode;
         public String reason;
         public Map<String, String> headers = new LinkedHashMap<>();
         public byte[] body = new byte[0];
+        public BodyWriter stream;   // when set, the body is written by this and sent chunked
+        public List<byte[]> parts;  // when set, the body is these arrays back to back (gather write)
 
         public HttpResponse(int statusCode, String reason) {
             this.statusCode = statusCode;
@@ -120,19 +130,335 @@ public final class HttpMessage {
             return r;
         }
 
+        // Create a response whose body is already encoded
+        public static HttpResponse ofBytes(int code, String reason, byte[] body, String contentType) {
+            HttpResponse r = new HttpResponse(code, reason);
+            r.body = body;
+            r.headers.put("Content-Length", Integer.toString(body.length));
+            if (contentType != null) r.headers.put("Content-Type", contentType);
+            return r;
+        }
+
+        // Create a response whose body is written while it is sent, with
+        // Transfer-Encoding: chunked, so it never exists as one array
+        public static HttpResponse streamed(int code, String reason, String contentType, BodyWriter writer) {
+            HttpResponse r = new HttpResponse(code, reason);
+            r.stream = writer;
+            r.headers.put("Transfer-Encoding", "chunked");
+            if (contentType != null) r.headers.put("Content-Type", contentType);
+            return r;
+        }
+
+        // Create a response whose body is the given arrays in order, sent
+        // with a Content-Length but never joined into one array
+        public static HttpResponse ofParts(int code, String reason, List<byte[]> parts, String contentType) {
+            HttpResponse r = new HttpResponse(code, reason);
+            long length = 0;
+            for (byte[] p : parts) length += p.length;
+            r.parts = parts;
+            r.headers.put("Content-Length", Long.toString(length));
+            if (contentType != null) r.headers.put("Content-Type", contentType);
+            return r;
+        }
+
+        // Parse an HTTP response from InputStream (client side)
+        public static HttpResponse parse(InputStream in) throws IOException {
+            HttpResponse r = parseHead(in);
+            r.body = readBody(in, r.headers, Integer.MAX_VALUE);
+            return r;
+        }
+
+        // Parse only the status line and headers; read the body with bodyStream
+        public static HttpResponse parseHead(InputStream in) throws IOException {
+            String[] lines = readHead(in, Integer.MAX_VALUE);
+            if (lines.length == 0) throw new IOException("empty response");
+
+            // Parse status line: VERSION CODE REASON
+            String[] statusLine = lines[0].split(" ", 3);
+            if (statusLine.length < 2) throw new IOException("bad status line");
+            HttpResponse r;
+            try { r = new HttpResponse(Integer.parseInt(statusLine[1]), statusLine.length > 2 ? statusLine[2] : ""); }
+            catch (NumberFormatException e) { throw new IOException("bad status code"); }
+            r.headers = parseHeaders(lines);
+            return r;
+        }
+
+        // The body of a response read with parseHead, as a stream that ends
+        // where the body ends (chunked or Content-Length)
+        public InputStream bodyStream(InputStream in) throws IOException {
+            if ("chunked".equalsIgnoreCase(header("Transfer-Encoding"))) return new ChunkedInputStream(in);
+            return new LimitedInputStream(in, contentLength(headers));
+        }
+
+        // Look up a header, ignoring case
+        public String header(String name) {
+            return findHeader(headers, name);
+        }
+
+        // Extract Lamport clock header if present
+        public OptionalLong lamportHeader() {
+            return parseLong(header("X-Lamport"));
+        }
+
         // Serialize response to OutputStream
         public void write(OutputStream out) throws IOException {
-            String statusLine = "HTTP/1.1 " + statusCode + " " + reason + CRLF;
-            out.write(statusLine.getBytes(StandardCharsets.US_ASCII));
+            // The head goes out in one write: separate small writes on a
+            // keep-alive socket stall on Nagle and delayed ACK
+            StringBuilder head = new StringBuilder(256);
+            head.append("HTTP/1.1 ").append(statusCode).append(' ').append(reason).append(CRLF);
             for (Map.Entry<String, String> e : headers.entrySet()) {
-                String h = e.getKey() + ": " + e.getValue() + CRLF;
-                out.write(h.getBytes(StandardCharsets.US_ASCII));
+                head.append(e.getKey()).append(": ").append(e.getValue()).append(CRLF);
+            }
+            head.append(CRLF); // end headers
+            if (parts != null) {
+                // Parts smaller than the buffer are coalesced with the head
+                // and each other; larger ones are written from their own arrays
+                OutputStream gather = new BufferedOutputStream(out, GATHER_BUFFER);
+                gather.write(head.toString().getBytes(StandardCharsets.US_ASCII));
+                for (byte[] p : parts) gather.write(p);
+                gather.flush();
+                return;
             }
-            out.write(CRLF.getBytes(StandardCharsets.US_ASCII)); // end headers
-            if (body.length > 0) {
+            out.write(head.toString().getBytes(StandardCharsets.US_ASCII));
+            if (stream != null) {
+                ChunkedOutputStream chunked = new ChunkedOutputStream(out);
+                stream.writeTo(chunked);
+                chunked.finish();
+            } else if (body.length > 0) {
                 out.write(body);
             }
             out.flush();
         }
     }
-}
\ No newline at end of file
+
+    // Read the start line and headers up to CRLFCRLF, one byte at a time so
+    // nothing past the header block is consumed
+    private static String[] readHead(InputStream in, int maxBytes) throws IOException {
+        ByteArrayOutputStream headerBuf = new ByteArrayOutputStream();
+        int prev = -1, prev2 = -1, prev3 = -1;
+        while (true) {
+            int b = in.read();
+            if (b == -1) throw new EOFException("unexpected EOF while reading headers");
+            if (headerBuf.size() >= maxBytes) throw new LimitExceededException(431, "Request Header Fields Too Large");
+            headerBuf.write(b);
+            if (prev3 == '\r' && prev2 == '\n' && prev == '\r' && b == '\n') {
+                break; // found header terminator
+            }
+            prev3 = prev2; prev2 = prev; prev = b;
+        }
+        String headerText = headerBuf.toString(StandardCharsets.US_ASCII);
+        return headerText.split("\\r?\\n");
+    }
+
+    // Parse "Key: Value" lines after the start line
+    private static Map<String, String> parseHeaders(String[] lines) {
+        Map<String, String> headers = new LinkedHashMap<>();
+        for (int i = 1; i < lines.length; i++) {
+            String line = lines[i];
+            if (line.isEmpty()) continue;
+            int idx = line.indexOf(":");
+            if (idx > 0) {
+                String k = line.substring(0, idx).trim();
+                String v = line.substring(idx + 1).trim();
+                headers.put(k, v);
+            }
+        }
+        return headers;
+    }
+
+    // Read a Content-Length delimited or chunked body of at most maxBytes
+    private static byte[] readBody(InputStream in, Map<String, String> headers, int maxBytes) throws IOException {
+        if ("chunked".equalsIgnoreCase(findHeader(headers, "Transfer-Encoding"))) {
+            InputStream chunked = new ChunkedInputStream(in);
+            byte[] body = chunked.readNBytes(maxBytes);
+            if (chunked.read() != -1) throw new LimitExceededException(413, "Content Too Large");
+            return body;
+        }
+        int contentLen = contentLength(headers);
+        if (contentLen > maxBytes) throw new LimitExceededException(413, "Content Too Large");
+
+        byte[] body = new byte[contentLen];
+        int read = 0;
+        while (read < contentLen) {
+            int r = in.read(body, read, contentLen - read);
+            if (r == -1) throw new EOFException("unexpected EOF while reading body");
+            read += r;
+        }
+        return body;
+    }
+
+    private static int contentLength(Map<String, String> headers) throws IOException {
+        String cl = findHeader(headers, "Content-Length");
+        if (cl == null) return 0;
+        int n;
+        try { n = Integer.parseInt(cl); }
+        catch (NumberFormatException e) { throw new IOException("invalid Content-Length"); }
+        if (n < 0) throw new IOException("invalid Content-Length");
+        return n;
+    }
+
+    // Chunked transfer encoding. Each chunk goes out as one write of
+    // size line, data and CRLF; finish() sends the terminating empty chunk.
+    public static class ChunkedOutputStream extends OutputStream {
+        private static final int CHUNK = 8192;
+        private static final int PREFIX = 10;         // room for 8 hex digits + CRLF
+        private final OutputStream out;
+        private final byte[] buf = new byte[PREFIX + CHUNK + 2];
+        private int count;                            // data bytes buffered
+
+        public ChunkedOutputStream(OutputStream out) { this.out = out; }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == CHUNK) flushChunk();
+            buf[PREFIX + count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (count == CHUNK) flushChunk();
+                int n = Math.min(len, CHUNK - count);
+                System.arraycopy(b, off, buf, PREFIX + count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            flushChunk();
+            out.flush();
+        }
+
+        // Send what is buffered and the last chunk; the underlying stream stays open
+        public void finish() throws IOException {
+            flushChunk();
+            out.write("0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+        }
+
+        private void flushChunk() throws IOException {
+            if (count == 0) return;
+            byte[] size = (Integer.toHexString(count) + CRLF).getBytes(StandardCharsets.US_ASCII);
+            int start = PREFIX - size.length;
+            System.arraycopy(size, 0, buf, start, size.length);
+            buf[PREFIX + count] = '\r';
+            buf[PREFIX + count + 1] = '\n';
+            out.write(buf, start, size.length + count + 2);
+            count = 0;
+        }
+    }
+
+    // Decodes a chunked body; ends at the last chunk and leaves the
+    // underlying stream positioned after the trailer
+    public static class ChunkedInputStream extends InputStream {
+        private final InputStream in;
+        private long remaining;      // bytes left in the current chunk
+        private boolean afterData;   // a chunk's data was read; its closing CRLF is next
+        private boolean done;
+
+        public ChunkedInputStream(InputStream in) { this.in = in; }
+
+        @Override
+        public int read() throws IOException {
+            if (!nextChunk()) return -1;
+            int b = in.read();
+            if (b == -1) throw new EOFException("unexpected EOF in chunk");
+            remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (!nextChunk()) return -1;
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n == -1) throw new EOFException("unexpected EOF in chunk");
+            remaining -= n;
+            return n;
+        }
+
+        // Make sure the current chunk has data; false at the end of the body
+        private boolean nextChunk() throws IOException {
+            if (done) return false;
+            if (remaining > 0) return true;
+            if (afterData) {
+                // Chunk data is followed by exactly CRLF, not by more data or extra lines
+                if (in.read() != '\r' || in.read() != '\n') throw new IOException("missing CRLF after chunk data");
+                afterData = false;
+            }
+            String line = readLine();
+            int semi = line.indexOf(';');          // chunk extensions are ignored
+            try {
+                remaining = Long.parseLong((semi < 0 ? line : line.substring(0, semi)).trim(), 16);
+            } catch (NumberFormatException e) {
+                throw new IOException("bad chunk size");
+            }
+            if (remaining < 0) throw new IOException("bad chunk size");
+            if (remaining == 0) {
+                while (!readLine().isEmpty()) { } // trailer lines
+                done = true;
+                return false;
+            }
+            afterData = true;
+            return true;
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder sb = new StringBuilder();
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b == -1) throw new EOFException("unexpected EOF in chunk header");
+                if (b != '\r') sb.append((char) b);
+                if (sb.length() > 1024) throw new IOException("chunk header too long");
+            }
+            return sb.toString();
+        }
+    }
+
+    // Reads at most a fixed number of bytes from the underlying stream
+    private static class LimitedInputStream extends InputStream {
+        private final InputStream in;
+        private long remaining;
+
+        LimitedInputStream(InputStream in, long length) {
+            this.in = in;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining == 0) return -1;
+            int b = in.read();
+            if (b == -1) throw new EOFException("unexpected EOF while reading body");
+            remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining == 0) return -1;
+            if (len == 0) return 0;
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n == -1) throw new EOFException("unexpected EOF while reading body");
+            remaining -= n;
+            return n;
+        }
+    }
+
+    private static String findHeader(Map<String, String> headers, String name) {
+        String v = headers.get(name);
+        if (v != null) return v;
+        for (Map.Entry<String, String> e : headers.entrySet()) {
+            if (e.getKey().equalsIgnoreCase(name)) return e.getValue();
+        }
+        return null;
+    }
+
+    private static OptionalLong parseLong(String v) {
+        if (v == null) return OptionalLong.empty();
+        try { return OptionalLong.of(Long.parseLong(v)); }
+        catch (NumberFormatException e) { return OptionalLong.empty(); }
+    }
+}
@@ -0,0 +1,139 @@
+package common;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+// Pull reader for JSON text: next() returns one token at a time, so a feed
+// of any size is walked with one token in memory. Strings come back
+// unescaped; numbers and literals as written. Commas and colons are only
+// separators, and the reader does not check that they are in the right
+// places.
+public class JsonStreamReader {
+    public enum Token { BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, NAME, STRING, NUMBER, TRUE, FALSE, NULL, END }
+
+    private static final int MAX_TOKEN = 1 << 20; // longest string or number accepted, in chars
+
+    private final Reader in;
+    private final Deque<Boolean> scopes = new ArrayDeque<>(); // true for an object, false for an array
+    private final StringBuilder text = new StringBuilder();
+    private boolean expectName;  // the next string in this object is a member name
+    private int peeked = -2;     // one char of lookahead, -2 when empty
+
+    public JsonStreamReader(Reader in) {
+        this.in = in;
+    }
+
+    // Advance to the next token; END once the input is used up
+    public Token next() throws IOException {
+        text.setLength(0);
+        int c = read();
+        while (c == ' ' || c == '\t' || c == '\r' || c == '\n' || c == ',' || c == ':') {
+            if (c == ',') expectName = inObject();
+            c = read();
+        }
+        switch (c) {
+            case -1:
+                return Token.END;
+            case '{':
+                scopes.push(true);
+                expectName = true;
+                return Token.BEGIN_OBJECT;
+            case '[':
+                scopes.push(false);
+                expectName = false;
+                return Token.BEGIN_ARRAY;
+            case '}':
+            case ']':
+                if (scopes.isEmpty() || scopes.pop() != (c == '}')) throw new IOException("unbalanced '" + (char) c + "'");
+                expectName = false;
+                return c == '}' ? Token.END_OBJECT : Token.END_ARRAY;
+            case '"':
+                readString();
+                if (expectName) {
+                    expectName = false;
+                    return Token.NAME;
+                }
+                return Token.STRING;
+            default:
+                return readLiteral(c);
+        }
+    }
+
+    // Text of the last NAME, STRING, NUMBER or literal
+    public String text() {
+        return text.toString();
+    }
+
+    // Nesting depth: objects and arrays open at this point
+    public int depth() {
+        return scopes.size();
+    }
+
+    private boolean inObject() {
+        return !scopes.isEmpty() && scopes.peek();
+    }
+
+    private void readString() throws IOException {
+        for (int c = read(); c != '"'; c = read()) {
+            if (c == -1) throw new IOException("unterminated string");
+            if (c == '\\') {
+                int e = read();
+                switch (e) {
+                    case 'b': c = '\b'; break;
+                    case 'f': c = '\f'; break;
+                    case 'n': c = '\n'; break;
+                    case 'r': c = '\r'; break;
+                    case 't': c = '\t'; break;
+                    case 'u':
+                        int code = 0;
+                        for (int i = 0; i < 4; i++) {
+                            int d = Character.digit(read(), 16);
+                            if (d < 0) throw new IOException("bad \\u escape");
+                            code = code * 16 + d;
+                        }
+                        c = code;
+                        break;
+                    case -1: throw new IOException("unterminated string");
+                    default: c = e; // \" \\ \/
+                }
+            }
+            append(c);
+        }
+    }
+
+    private Token readLiteral(int c) throws IOException {
+        while (c != -1 && c != ',' && c != ':' && c != '}' && c != ']' && c != '"'
+                && c != ' ' && c != '\t' && c != '\r' && c != '\n') {
+            append(c);
+            c = read();
+        }
+        peeked = c;
+        String t = text.toString();
+        switch (t) {
+            case "true": return Token.TRUE;
+            case "false": return Token.FALSE;
+            case "null": return Token.NULL;
+            default:
+                if (t.isEmpty() || !(t.charAt(0) == '-' || Character.isDigit(t.charAt(0)))) {
+                    throw new IOException("unexpected '" + (t.isEmpty() ? (char) c : t) + "' in JSON");
+                }
+                return Token.NUMBER;
+        }
+    }
+
+    private void append(int c) throws IOException {
+        if (text.length() == MAX_TOKEN) throw new IOException("JSON token longer than " + MAX_TOKEN + " chars");
+        text.append((char) c);
+    }
+
+    private int read() throws IOException {
+        if (peeked != -2) {
+            int c = peeked;
+            peeked = -2;
+            return c;
+        }
+        return in.read();
+    }
+}
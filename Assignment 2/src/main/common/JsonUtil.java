@@ -1,8 +1,14 @@
 package common;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Collection;
 
 public class JsonUtil {
+    private static final byte[] ID_KEY = "\"id\":\"".getBytes(StandardCharsets.US_ASCII); // "id":" in minified JSON
+
     private JsonUtil(){} // prevent instantiation
 
     // Escape a string so it is safe for JSON values
@@ -28,17 +34,149 @@ public class JsonUtil {
         return sb.toString();
     }
 
-    // Combine multiple raw JSON objects into a JSON array string
-    public static String joinObjectsToArray(Collection<String> rawObjects) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("[");
+    // Join JSON objects (UTF-8) into prefix + [a,b,...] + suffix with a
+    // single copy of each object's bytes
+    public static byte[] joinObjectsToArray(String prefix, Collection<byte[]> rawObjects, String suffix) {
+        byte[] pre = prefix.getBytes(StandardCharsets.UTF_8);
+        byte[] suf = suffix.getBytes(StandardCharsets.UTF_8);
+        int len = pre.length + 2 + suf.length + Math.max(0, rawObjects.size() - 1);
+        for (byte[] obj : rawObjects) len += obj == null ? 2 : obj.length;
+
+        byte[] out = new byte[len];
+        int pos = 0;
+        System.arraycopy(pre, 0, out, pos, pre.length);
+        pos += pre.length;
+        out[pos++] = '[';
         boolean first = true;
-        for (String obj : rawObjects) {
-            if (!first) sb.append(',');
-            sb.append(obj == null ? "{}" : obj); // null safety
+        for (byte[] obj : rawObjects) {
+            if (!first) out[pos++] = ',';
+            if (obj == null) { // null safety
+                out[pos++] = '{';
+                out[pos++] = '}';
+            } else {
+                System.arraycopy(obj, 0, out, pos, obj.length);
+                pos += obj.length;
+            }
             first = false;
         }
-        sb.append("]");
-        return sb.toString();
+        out[pos++] = ']';
+        System.arraycopy(suf, 0, out, pos, suf.length);
+        return out;
+    }
+
+    // Same layout as joinObjectsToArray, written to a stream instead of an array
+    public static void writeObjectsToArray(OutputStream out, String prefix, Collection<byte[]> rawObjects,
+                                           String suffix) throws IOException {
+        out.write(prefix.getBytes(StandardCharsets.UTF_8));
+        out.write('[');
+        boolean first = true;
+        for (byte[] obj : rawObjects) {
+            if (!first) out.write(',');
+            if (obj == null) {
+                out.write('{');
+                out.write('}');
+            } else {
+                out.write(obj);
+            }
+            first = false;
+        }
+        out.write(']');
+        out.write(suffix.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Remove whitespace outside strings. Works on UTF-8 directly: JSON
+    // whitespace is ASCII and never occurs inside a multi-byte sequence.
+    public static byte[] minify(byte[] json) {
+        byte[] out = new byte[json.length];
+        int n = 0;
+        boolean inString = false;
+        boolean escaped = false;
+        for (byte b : json) {
+            if (inString) {
+                if (escaped) escaped = false;
+                else if (b == '\\') escaped = true;
+                else if (b == '"') inString = false;
+            } else if (b == '"') {
+                inString = true;
+            } else if (b == ' ' || b == '\t' || b == '\n' || b == '\r') {
+                continue;
+            }
+            out[n++] = b;
+        }
+        return n == json.length ? out : Arrays.copyOf(out, n);
+    }
+
+    // 64-bit FNV-1a hash of (minified) JSON bytes, used to spot unchanged uploads
+    public static long contentHash(byte[] json) {
+        long h = 0xcbf29ce484222325L;
+        if (json == null) return h;
+        for (byte b : json) {
+            h ^= (b & 0xff);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    // Value of the top-level "id" string field in minified JSON, or null.
+    // An "id" inside a nested object or array, or inside a string, is skipped.
+    // The value ends at the first quote, so an id holding \" is cut there.
+    public static String stationId(byte[] json) {
+        byte[] key = ID_KEY;
+        int depth = 0;
+        boolean inString = false, escaped = false;
+        for (int i = 0; i < json.length; i++) {
+            byte b = json[i];
+            if (inString) {
+                if (escaped) escaped = false;
+                else if (b == '\\') escaped = true;
+                else if (b == '"') inString = false;
+            } else if (b == '{' || b == '[') {
+                depth++;
+            } else if (b == '}' || b == ']') {
+                depth--;
+            } else if (b == '"') {
+                if (depth == 1 && Arrays.equals(json, i, Math.min(i + key.length, json.length), key, 0, key.length)) {
+                    int start = i + key.length;
+                    for (int end = start; end < json.length; end++) {
+                        if (json[end] == '"') {
+                            return end > start ? new String(json, start, end - start, StandardCharsets.UTF_8) : null;
+                        }
+                    }
+                    return null;
+                }
+                inString = true;
+            }
+        }
+        return null;
+    }
+
+    // Search key for numberField: the quoted field name followed by ':'
+    public static byte[] fieldKey(String name) {
+        return ("\"" + name + "\":").getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Value of a numeric field in minified JSON, or NaN if it is absent or not a number
+    public static double numberField(byte[] json, byte[] key) {
+        outer:
+        for (int i = 0; i + key.length <= json.length; i++) {
+            if (i > 0 && json[i - 1] == '\\') continue; // an escaped quote inside a string
+            for (int j = 0; j < key.length; j++) {
+                if (json[i + j] != key[j]) continue outer;
+            }
+            int start = i + key.length;
+            int end = start;
+            while (end < json.length && isNumberChar(json[end])) end++;
+            if (end == start) return Double.NaN;
+            try {
+                return Double.parseDouble(new String(json, start, end - start, StandardCharsets.US_ASCII));
+            } catch (NumberFormatException e) {
+                return Double.NaN;
+            }
+        }
+        return Double.NaN;
+    }
+
+    private static boolean isNumberChar(byte b) {
+        return (b >= '0' && b <= '9') || b == '-' || b == '+' || b == '.' || b == 'e' || b == 'E';
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,32 @@
+package common;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+// Layout of the memory-mapped snapshot file written by agg.SnapshotPublisher
+// and read by client.SnapshotReader. A header, then two slots that each hold
+// a whole GET /weather.json body. All header fields are big-endian longs:
+//   0 magic   8 header seq   16 moved   24 slot size   32 current slot
+//   40 body length   48 store version (-1 before the first snapshot)
+//   56 Lamport time   64 published at (epoch ms)   72 slot 0 seq   80 slot 1 seq
+// Slot i starts at HEADER + i * slot size. A sequence number is odd while
+// what it guards is being written.
+public final class SnapshotFile {
+    public static final long MAGIC = 0x4147475f534e4150L; // "AGG_SNAP"
+    public static final int HEADER_SEQ = 8;
+    public static final int MOVED = 16;          // 1 once a larger file has replaced this one
+    public static final int SLOT_SIZE = 24;
+    public static final int CURRENT = 32;
+    public static final int LENGTH = 40;
+    public static final int VERSION = 48;
+    public static final int LAMPORT = 56;
+    public static final int PUBLISHED_AT = 64;
+    public static final int SLOT_SEQ = 72;       // slot i's seq is at SLOT_SEQ + 8 * i
+    public static final int HEADER = 128;
+
+    // Ordered access to the header longs of a mapping
+    public static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    private SnapshotFile() { }
+}
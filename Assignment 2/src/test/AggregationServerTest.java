@@ -209,6 +209,112 @@ public class AggregationServerTest {
         assertTrue(lamport2 >= lamport1, "Lamport clock must be monotonic");
     }
 
+    @Test @Order(10)
+    void testHeartbeatRefreshesKnownContentServer() throws Exception {
+        // crashCS has data since test 8; an unknown id has nothing to refresh
+        String known = "POST /heartbeat HTTP/1.1\r\nHost: localhost:4567\r\nX-Lamport: 13\r\n" +
+                "X-Content-Server: crashCS\r\nContent-Length: 0\r\n\r\n";
+        assertTrue(sendRawHttp(known).contains("200 OK"));
+
+        String unknown = "POST /heartbeat HTTP/1.1\r\nHost: localhost:4567\r\nX-Lamport: 14\r\n" +
+                "X-Content-Server: neverSeenCS\r\nContent-Length: 0\r\n\r\n";
+        assertTrue(sendRawHttp(unknown).contains("404 Not Found"));
+    }
+
+    @Test @Order(11)
+    void testUnchangedPutIsDeduplicated() throws Exception {
+        // Same station and content (modulo whitespace) from the same content server
+        String body1 = "{\"id\":\"IDS88888\",\"name\":\"Steady\",\"air_temp\":20.0}";
+        String body2 = "{ \"id\" : \"IDS88888\", \"name\" : \"Steady\", \"air_temp\" : 20.0 }";
+        for (String body : new String[]{body1, body2}) {
+            String req = "PUT /weather.json HTTP/1.1\r\n" +
+                    "Host: localhost:4567\r\n" +
+                    "Content-Type: application/json\r\n" +
+                    "Content-Length: " + body.length() + "\r\n" +
+                    "X-Lamport: 15\r\n" +
+                    "X-Content-Server: steadyCS\r\n\r\n" +
+                    body;
+            String resp = sendRawHttp(req);
+            assertTrue(resp.contains("200 OK") || resp.contains("201 Created"));
+        }
+
+        String metrics = sendRawHttp("GET /metrics HTTP/1.1\r\nHost: localhost:4567\r\nX-Lamport: 16\r\n\r\n");
+        assertTrue(metrics.contains("\"putsDeduplicated\":1"));
+    }
+
+    @Test @Order(12)
+    void testHistoryKeepsEarlierReadings() throws Exception {
+        for (String temp : new String[]{"11.5", "12.5"}) {
+            String body = "{\"id\":\"IDS99999\",\"name\":\"Trend\",\"air_temp\":" + temp + "}";
+            String req = "PUT /weather.json HTTP/1.1\r\n" +
+                    "Host: localhost:4567\r\n" +
+                    "Content-Type: application/json\r\n" +
+                    "Content-Length: " + body.length() + "\r\n" +
+                    "X-Lamport: 17\r\n" +
+                    "X-Content-Server: histCS\r\n\r\n" +
+                    body;
+            sendRawHttp(req);
+        }
+
+        String resp = sendRawHttp("GET /history?id=IDS99999 HTTP/1.1\r\nHost: localhost:4567\r\nX-Lamport: 18\r\n\r\n");
+        assertTrue(resp.contains("200 OK"));
+        int older = resp.indexOf("\"air_temp\":11.5");
+        assertTrue(older >= 0 && older < resp.indexOf("\"air_temp\":12.5"));
+
+        String unknown = sendRawHttp("GET /history?id=NOPE HTTP/1.1\r\nHost: localhost:4567\r\nX-Lamport: 19\r\n\r\n");
+        assertTrue(unknown.contains("404 Not Found"));
+    }
+
+    @Test @Order(13)
+    void testNearQueryReturnsClosestStationsFirst() throws Exception {
+        String[][] stations = {{"GEO001", "-34.9", "138.6"}, {"GEO002", "-37.8", "144.9"}, {"GEO003", "-31.9", "115.8"}};
+        for (String[] st : stations) {
+            String body = "{\"id\":\"" + st[0] + "\",\"lat\":" + st[1] + ",\"lon\":" + st[2] + "}";
+            sendRawHttp("PUT /weather.json HTTP/1.1\r\n" +
+                    "Host: localhost:4567\r\n" +
+                    "Content-Type: application/json\r\n" +
+                    "Content-Length: " + body.length() + "\r\n" +
+                    "X-Lamport: 20\r\n" +
+                    "X-Content-Server: geoCS\r\n\r\n" +
+                    body);
+        }
+
+        String resp = sendRawHttp("GET /weather.json?near=-35.0,139.0&k=2 HTTP/1.1\r\nHost: localhost:4567\r\nX-Lamport: 21\r\n\r\n");
+        assertTrue(resp.contains("200 OK"));
+        int adelaide = resp.indexOf("GEO001");
+        assertTrue(adelaide >= 0 && adelaide < resp.indexOf("GEO002"));
+        assertFalse(resp.contains("GEO003"));
+
+        String bad = sendRawHttp("GET /weather.json?near=95,0 HTTP/1.1\r\nHost: localhost:4567\r\nX-Lamport: 22\r\n\r\n");
+        assertTrue(bad.contains("400 Bad Request"));
+    }
+
+    @Test @Order(14)
+    void testPagesCoverTheWholeFeedOnce() throws Exception {
+        String full = sendRawHttp("GET /weather.json HTTP/1.1\r\nHost: localhost:4567\r\nX-Lamport: 23\r\n\r\n");
+        int total = full.split("\"id\":", -1).length - 1;
+        assertTrue(total >= 3);
+
+        int seen = 0;
+        String cursor = "";
+        for (int pages = 0; cursor != null && pages < 100; pages++) {
+            String resp = sendRawHttp("GET /weather.json?limit=2&cursor=" + cursor + " HTTP/1.1\r\n" +
+                    "Host: localhost:4567\r\nX-Lamport: 24\r\n\r\n");
+            assertTrue(resp.contains("200 OK"));
+            seen += resp.split("\"id\":", -1).length - 1;
+            int at = resp.indexOf("\"next\":\"");
+            cursor = at < 0 ? null : resp.substring(at + 8, resp.indexOf('"', at + 8));
+        }
+        assertEquals(total, seen);
+
+        String bad = sendRawHttp("GET /weather.json?limit=0 HTTP/1.1\r\nHost: localhost:4567\r\nX-Lamport: 25\r\n\r\n");
+        assertTrue(bad.contains("400 Bad Request"));
+        assertTrue(bad.contains("bad limit"));
+        String badCursor = sendRawHttp("GET /weather.json?limit=2&cursor=zz HTTP/1.1\r\nHost: localhost:4567\r\nX-Lamport: 25\r\n\r\n");
+        assertTrue(badCursor.contains("400 Bad Request"));
+        assertTrue(badCursor.contains("bad cursor"));
+    }
+
     // Helper to extract Lamport header value from HTTP response
     private int extractLamport(String resp) {
         for (String line : resp.split("\n")) {
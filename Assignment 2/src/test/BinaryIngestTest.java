@@ -0,0 +1,125 @@
+package test;
+
+import common.BinaryIngest;
+import common.JsonUtil;
+import org.junit.jupiter.api.*;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BinaryIngestTest {
+    private static final int PORT = 4660;
+    private static final int BINARY_PORT = 4661;
+    private static Process server;  // server with the binary listener on
+    private static File walFile;    // kept apart from the default wal.log
+
+    @BeforeAll
+    static void startServer() throws Exception {
+        walFile = Files.createTempFile("binary-wal", ".log").toFile();
+        server = new ProcessBuilder(
+                "java", "-Dagg.wal=" + walFile.getAbsolutePath(), "-Dagg.binary.port=" + BINARY_PORT,
+                "-Dagg.feeds.max=0",
+                "-cp", "out", "agg.AggregationServer", Integer.toString(PORT)
+        ).inheritIO().start();
+        Thread.sleep(1000);
+    }
+
+    @AfterAll
+    static void stopServer() {
+        server.destroy();
+        walFile.delete();
+    }
+
+    private static BinaryIngest.Update update(String id, String temp) {
+        Map<String, String> kv = new LinkedHashMap<>();
+        kv.put("id", id);
+        kv.put("name", "Adelaide \"West\"");
+        kv.put("air_temp", temp);
+        kv.put("local_date_time_full", "20230715160000");
+        return BinaryIngest.Update.fromText(kv);
+    }
+
+    @Test
+    void testFrameDecodesToTheJsonHttpWouldStore() throws Exception {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        BinaryIngest.writeUpdates(new DataOutputStream(wire), 7, 42, "cs1",
+                List.of(update("IDS1", "13.3"), update("IDS2", "-2")));
+        BinaryIngest.Frame f = BinaryIngest.readUpdates(
+                new DataInputStream(new ByteArrayInputStream(wire.toByteArray())), 1 << 20);
+
+        assertEquals(7, f.seq);
+        assertEquals(42, f.lamport);
+        assertEquals("cs1", f.contentServerId);
+        assertEquals(List.of("IDS1", "IDS2"), f.stationIds);
+        assertEquals("{\"id\":\"IDS1\",\"name\":\"Adelaide \\\"West\\\"\",\"air_temp\":13.3,"
+                + "\"local_date_time_full\":20230715160000}", new String(f.json.get(0), StandardCharsets.UTF_8));
+        assertTrue(new String(f.json.get(1), StandardCharsets.UTF_8).contains("\"air_temp\":-2,"));
+
+        // A frame that claims to be shorter than its contents is rejected
+        byte[] bytes = wire.toByteArray();
+        bytes[3] -= 10;
+        assertThrows(IOException.class, () -> BinaryIngest.readUpdates(
+                new DataInputStream(new ByteArrayInputStream(bytes)), 1 << 20));
+    }
+
+    @Test
+    void testNumbersKeepTheirTextAsWritten() throws Exception {
+        Map<String, String> kv = new LinkedHashMap<>();
+        kv.put("id", "IDS1");
+        kv.put("air_temp", "1.50");
+        kv.put("rain", "-0.0");
+        kv.put("wind", "12345678901234567890123");
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        BinaryIngest.writeUpdates(new DataOutputStream(wire), 1, 1, "cs1", List.of(BinaryIngest.Update.fromText(kv)));
+        BinaryIngest.Frame f = BinaryIngest.readUpdates(
+                new DataInputStream(new ByteArrayInputStream(wire.toByteArray())), 1 << 20);
+
+        // Same bytes as the minified body of an HTTP PUT of that file
+        byte[] http = JsonUtil.minify("{\n  \"id\": \"IDS1\",\n  \"air_temp\": 1.50,\n  \"rain\": -0.0,\n  \"wind\": 12345678901234567890123\n}"
+                .getBytes(StandardCharsets.UTF_8));
+        assertEquals(new String(http, StandardCharsets.UTF_8), new String(f.json.get(0), StandardCharsets.UTF_8));
+
+        BinaryIngest.Update bad = new BinaryIngest.Update("IDS1");
+        bad.fields.put("x", new BinaryIngest.NumberText("1,\"y\":2"));
+        assertThrows(IOException.class, () -> BinaryIngest.writeUpdates(
+                new DataOutputStream(new ByteArrayOutputStream()), 1, 1, "cs1", List.of(bad)));
+    }
+
+    @Test
+    void testPipelinedFramesAreAcknowledgedInOrder() throws Exception {
+        List<BinaryIngest.Ack> acks = new ArrayList<>();
+        try (Socket socket = new Socket("localhost", BINARY_PORT)) {
+            socket.setSoTimeout(5000);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            // All frames go out before any ACK is read
+            for (int seq = 1; seq <= 20; seq++) {
+                BinaryIngest.writeUpdates(out, seq, seq, "binCs",
+                        List.of(update("BIN" + seq % 3, Integer.toString(seq)), update("BINX", "1")));
+            }
+            out.flush();
+            for (int i = 0; i < 20; i++) acks.add(BinaryIngest.readAck(in));
+        }
+
+        for (int i = 0; i < 20; i++) assertEquals(i + 1, acks.get(i).seq);
+        assertArrayEquals(new byte[]{BinaryIngest.CREATED, BinaryIngest.OK}, acks.get(0).statuses);
+        assertArrayEquals(new byte[]{BinaryIngest.OK, BinaryIngest.OK}, acks.get(19).statuses);
+
+        // Same store as HTTP: the last update of each station wins
+        String get;
+        try (Socket socket = new Socket("localhost", PORT)) {
+            socket.getOutputStream().write("GET /weather.json HTTP/1.1\r\nConnection: close\r\n\r\n"
+                    .getBytes(StandardCharsets.US_ASCII));
+            get = new String(socket.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        }
+        assertTrue(get.contains("\"id\":\"BIN2\",\"name\":\"Adelaide \\\"West\\\"\",\"air_temp\":20,"));
+    }
+}
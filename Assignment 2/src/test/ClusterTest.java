@@ -0,0 +1,100 @@
+package test;
+
+import common.ConsistentHashRing;
+import org.junit.jupiter.api.*;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+public class ClusterTest {
+    private static final String NODES = "localhost:4620,localhost:4621";
+    private static final ConsistentHashRing RING = ConsistentHashRing.parse(NODES, 128);
+    private static final Process[] nodes = new Process[2];  // shard processes
+    private static final File[] wals = new File[2];         // one WAL per shard
+
+    @BeforeAll
+    static void startCluster() throws Exception {
+        for (int i = 0; i < 2; i++) {
+            wals[i] = Files.createTempFile("cluster-wal", ".log").toFile();
+            nodes[i] = new ProcessBuilder(
+                    "java", "-Dagg.cluster=" + NODES, "-Dagg.wal=" + wals[i].getAbsolutePath(),
+                    "-cp", "out", "agg.AggregationServer", Integer.toString(4620 + i)
+            ).inheritIO().start();
+        }
+        Thread.sleep(1000);
+    }
+
+    @AfterAll
+    static void stopCluster() {
+        for (int i = 0; i < 2; i++) {
+            nodes[i].destroy();
+            wals[i].delete();
+        }
+    }
+
+    // Utility to send a raw HTTP request string and return the full response
+    private String sendRawHttp(String node, String request) throws Exception {
+        String[] hp = node.split(":");
+        try (Socket socket = new Socket(hp[0], Integer.parseInt(hp[1]))) {
+            OutputStream out = socket.getOutputStream();
+            out.write(request.getBytes(StandardCharsets.UTF_8));
+            out.flush();
+
+            BufferedReader br = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            StringBuilder sb = new StringBuilder();
+            String line;
+            while ((line = br.readLine()) != null) sb.append(line).append("\n");
+            return sb.toString();
+        }
+    }
+
+    private String put(String node, String stationId) throws Exception {
+        String body = "{\"id\":\"" + stationId + "\",\"name\":\"Shard " + stationId + "\"}";
+        return sendRawHttp(node, "PUT /weather.json HTTP/1.1\r\n" +
+                "Host: " + node + "\r\n" +
+                "Content-Length: " + body.length() + "\r\n" +
+                "X-Lamport: 1\r\n" +
+                "Connection: close\r\n" +
+                "X-Content-Server: clusterCS\r\n\r\n" +
+                body);
+    }
+
+    // Find a station id owned by the given node
+    private String stationOwnedBy(String node) {
+        for (int i = 0; ; i++) {
+            if (node.equals(RING.nodeFor("CL" + i))) return "CL" + i;
+        }
+    }
+
+    @Test @Order(1)
+    void testPutToOwnerAccepted() throws Exception {
+        for (String node : RING.nodes()) {
+            String resp = put(node, stationOwnedBy(node));
+            assertTrue(resp.contains("201 Created") || resp.contains("200 OK"), resp);
+        }
+    }
+
+    @Test @Order(2)
+    void testPutToWrongShardRedirected() throws Exception {
+        String owner = "localhost:4620";
+        String resp = put("localhost:4621", stationOwnedBy(owner));
+        assertTrue(resp.contains("421"));
+        assertTrue(resp.contains("X-Shard-Owner: " + owner));
+    }
+
+    @Test @Order(3)
+    void testGetFromAnyNodeGathersAllShards() throws Exception {
+        for (String node : RING.nodes()) {
+            String resp = sendRawHttp(node, "GET /weather.json HTTP/1.1\r\nHost: " + node + "\r\nX-Lamport: 1\r\nConnection: close\r\n\r\n");
+            assertTrue(resp.contains("200 OK"));
+            for (String owner : RING.nodes()) {
+                assertTrue(resp.contains(stationOwnedBy(owner)), "missing station of " + owner);
+            }
+        }
+    }
+}
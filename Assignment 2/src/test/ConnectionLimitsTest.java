@@ -0,0 +1,89 @@
+package test;
+
+import org.junit.jupiter.api.*;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ConnectionLimitsTest {
+    private static final int PORT = 4630;
+    private static Process server;  // server with tight connection limits
+    private static File walFile;    // kept apart from the default wal.log
+
+    @BeforeAll
+    static void startServer() throws Exception {
+        walFile = Files.createTempFile("limits-wal", ".log").toFile();
+        server = new ProcessBuilder(
+                "java", "-Dagg.wal=" + walFile.getAbsolutePath(),
+                "-Dagg.http.headerTimeoutMs=500", "-Dagg.http.maxHeaderBytes=1024",
+                "-Dagg.http.maxBodyBytes=1000", "-Dagg.http.maxConnectionsPerIp=4",
+                "-cp", "out", "agg.AggregationServer", Integer.toString(PORT)
+        ).inheritIO().start();
+        Thread.sleep(1000);
+    }
+
+    @AfterAll
+    static void stopServer() {
+        server.destroy();
+        walFile.delete();
+    }
+
+    // Send raw bytes and read until the server closes the connection
+    private String sendRaw(String request) throws Exception {
+        try (Socket socket = new Socket("localhost", PORT)) {
+            socket.setSoTimeout(5000);
+            socket.getOutputStream().write(request.getBytes(StandardCharsets.UTF_8));
+            return new String(socket.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private String get(String path) throws Exception {
+        return sendRaw("GET " + path + " HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+    }
+
+    @Test
+    void testOversizedRequestsAreRefused() throws Exception {
+        String bigHeader = "GET /weather.json HTTP/1.1\r\nX-Pad: " + "a".repeat(2000) + "\r\n\r\n";
+        assertTrue(sendRaw(bigHeader).startsWith("HTTP/1.1 431"));
+
+        String bigBody = "PUT /weather.json HTTP/1.1\r\nContent-Length: 5000\r\nX-Content-Server: cs\r\n\r\n";
+        assertTrue(sendRaw(bigBody).startsWith("HTTP/1.1 413"));
+    }
+
+    @Test
+    void testSlowAndSilentClientsDoNotBlockOthers() throws Exception {
+        List<Socket> idle = new ArrayList<>();
+        try {
+            // Three connections that never finish their headers, one that sends nothing
+            for (int i = 0; i < 3; i++) {
+                Socket s = new Socket("localhost", PORT);
+                s.getOutputStream().write("GET /weather.json HTTP/1.1\r\n".getBytes(StandardCharsets.US_ASCII));
+                idle.add(s);
+            }
+            idle.add(new Socket("localhost", PORT));
+
+            // A fifth connection from the same address is over the cap
+            assertTrue(get("/weather.json").startsWith("HTTP/1.1 503"));
+
+            // Once the header deadline passes they are dropped and the slots come back
+            Thread.sleep(1500);
+            for (Socket s : idle) {
+                s.setSoTimeout(2000);
+                assertEquals(-1, s.getInputStream().read());
+            }
+            assertFalse(get("/weather.json").startsWith("HTTP/1.1 503"));
+        } finally {
+            for (Socket s : idle) s.close();
+        }
+
+        String metrics = get("/metrics");
+        assertTrue(metrics.contains("\"connections\":1"));
+        assertFalse(metrics.contains("\"headerTimeouts\":0"));
+    }
+}
@@ -0,0 +1,60 @@
+package test;
+
+import common.ConsistentHashRing;
+import org.junit.jupiter.api.*;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ConsistentHashRingTest {
+    private static final int KEYS = 10000;
+
+    private Map<String, String> owners(ConsistentHashRing ring) {
+        Map<String, String> m = new HashMap<>();
+        for (int i = 0; i < KEYS; i++) m.put("IDS" + i, ring.nodeFor("IDS" + i));
+        return m;
+    }
+
+    @Test
+    void testKeysSpreadAcrossNodes() {
+        ConsistentHashRing ring = ConsistentHashRing.parse("a:1,b:2,c:3,d:4", 128);
+        Map<String, Integer> counts = new HashMap<>();
+        for (String owner : owners(ring).values()) counts.merge(owner, 1, Integer::sum);
+        assertEquals(4, counts.size());
+        for (int c : counts.values()) {
+            // Each node should get roughly a quarter of the keys
+            assertTrue(c > KEYS / 8 && c < KEYS / 2, "unbalanced: " + counts);
+        }
+    }
+
+    @Test
+    void testAddingNodeOnlyMovesKeysToIt() {
+        ConsistentHashRing ring = ConsistentHashRing.parse("a:1,b:2,c:3", 128);
+        Map<String, String> before = owners(ring);
+        ring.addNode("d:4");
+        Map<String, String> after = owners(ring);
+
+        int moved = 0;
+        for (String k : before.keySet()) {
+            if (!before.get(k).equals(after.get(k))) {
+                assertEquals("d:4", after.get(k)); // keys only move to the new node
+                moved++;
+            }
+        }
+        assertTrue(moved > 0 && moved < KEYS / 2, "moved " + moved);
+    }
+
+    @Test
+    void testRemovingNodeOnlyMovesItsKeys() {
+        ConsistentHashRing ring = ConsistentHashRing.parse("a:1,b:2,c:3", 128);
+        Map<String, String> before = owners(ring);
+        ring.removeNode("b:2");
+        Map<String, String> after = owners(ring);
+
+        for (String k : before.keySet()) {
+            if (!"b:2".equals(before.get(k))) assertEquals(before.get(k), after.get(k));
+            else assertNotEquals("b:2", after.get(k));
+        }
+    }
+}
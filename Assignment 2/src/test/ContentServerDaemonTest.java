@@ -0,0 +1,168 @@
+package test;
+
+import agg.LivenessTracker;
+import agg.Metrics;
+import agg.PutWorker;
+import agg.Router;
+import agg.StateStore;
+import agg.WalManager;
+import client.ContentServerDaemon;
+import common.HttpMessage.HttpRequest;
+import common.LamportClock;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ContentServerDaemonTest {
+    @TempDir Path dir;
+
+    private final StateStore store = new StateStore();
+    private final List<String> requests = Collections.synchronizedList(new ArrayList<>()); // "METHOD path"
+    private final AtomicInteger connections = new AtomicInteger();
+    private ServerSocket server;
+    private Thread daemon;
+
+    // An in-process aggregation server: a real Router over a plain blocking
+    // socket loop, which closes a connection after idleMillis without a request
+    private String startServer(int idleMillis) throws Exception {
+        LamportClock clock = new LamportClock();
+        WalManager wal = new WalManager(dir.resolve("wal.log").toFile());
+        PutWorker worker = new PutWorker(store, wal, clock);
+        Thread t = new Thread(worker, "test-put-worker");
+        t.setDaemon(true);
+        t.start();
+        Router router = new Router(store, clock, worker, 1, null, null, null,
+                new LivenessTracker(store, wal, clock), new Metrics(), null, null, null, null);
+
+        server = new ServerSocket(0);
+        Thread acceptor = new Thread(() -> {
+            while (!server.isClosed()) {
+                try {
+                    Socket s = server.accept();
+                    connections.incrementAndGet();
+                    s.setSoTimeout(idleMillis);
+                    Thread h = new Thread(() -> serve(s, router));
+                    h.setDaemon(true);
+                    h.start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return "localhost:" + server.getLocalPort();
+    }
+
+    private void serve(Socket s, Router router) {
+        try (s) {
+            InputStream in = new BufferedInputStream(s.getInputStream());
+            OutputStream out = new BufferedOutputStream(s.getOutputStream());
+            while (true) {
+                HttpRequest req = HttpRequest.parse(in);
+                requests.add(req.method + " " + req.path);
+                router.handle(req).write(out);
+                out.flush();
+            }
+        } catch (IOException e) {
+            // client gone, or idle for too long
+        }
+    }
+
+    private void startDaemon(String servers, long heartbeatMillis) {
+        daemon = new Thread(() -> {
+            try {
+                new ContentServerDaemon(servers, dir, "daemon-cs", heartbeatMillis).run();
+            } catch (IOException | InterruptedException e) {
+                // stopped by the test
+            }
+        }, "test-daemon");
+        daemon.setDaemon(true);
+        daemon.start();
+    }
+
+    @AfterEach
+    void stop() throws Exception {
+        if (daemon != null) daemon.interrupt();
+        if (server != null) server.close();
+    }
+
+    private int count(String request) {
+        synchronized (requests) {
+            return (int) requests.stream().filter(request::equals).count();
+        }
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < end, "timed out");
+            Thread.sleep(20);
+        }
+    }
+
+    private void writeStation(String file, String id, String temp) throws IOException {
+        Files.writeString(dir.resolve(file), "id:" + id + "\nname:Test\nair_temp:" + temp + "\n");
+    }
+
+    @Test
+    void testOneConnectionAndUploadsOnlyOnChange() throws Exception {
+        writeStation("a.txt", "IDA", "10.5");
+        writeStation("b.txt", "IDB", "3");
+        startDaemon(startServer(60000), 60000);
+        waitFor(() -> count("PUT /weather.json") == 2);
+
+        writeStation("a.txt", "IDA", "10.5"); // rewritten with the same content
+        Thread.sleep(500);
+        assertEquals(2, count("PUT /weather.json"));
+
+        writeStation("b.txt", "IDB", "4");
+        waitFor(() -> count("PUT /weather.json") == 3);
+        waitFor(() -> store.record("IDB") != null && new String(store.record("IDB").json).contains("\"air_temp\":4"));
+        assertEquals(1, connections.get()); // every request on the same keep-alive connection
+    }
+
+    @Test
+    void testHeartbeatRefreshesLastSeen() throws Exception {
+        writeStation("a.txt", "IDA", "10.5");
+        startDaemon(startServer(60000), 200);
+        waitFor(() -> store.record("IDA") != null);
+        Instant uploaded = store.lastSeenSnapshot().get("daemon-cs");
+
+        waitFor(() -> count("POST /heartbeat") >= 2);
+        assertEquals(1, count("PUT /weather.json")); // kept alive without uploading again
+        waitFor(() -> store.lastSeenSnapshot().get("daemon-cs").isAfter(uploaded));
+        assertEquals(1, connections.get());
+    }
+
+    @Test
+    void testReconnectsAfterTheServerClosesAnIdleConnection() throws Exception {
+        writeStation("a.txt", "IDA", "1");
+        startDaemon(startServer(200), 60000);
+        waitFor(() -> count("PUT /weather.json") == 1);
+        Thread.sleep(600); // the server drops the idle connection
+
+        writeStation("a.txt", "IDA", "2");
+        waitFor(() -> count("PUT /weather.json") == 2);
+        assertEquals(2, connections.get());
+        assertTrue(new String(store.record("IDA").json).contains("\"air_temp\":2"));
+    }
+}
@@ -0,0 +1,107 @@
+package test;
+
+import agg.Feeds;
+import agg.Metrics;
+import agg.ServerConfig;
+import common.HttpMessage.HttpRequest;
+import common.HttpMessage.HttpResponse;
+import common.LamportClock;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// In-process Feeds, configured through system properties the way the server reads them
+public class FeedsOpenTest {
+    @TempDir Path dir;
+
+    private Feeds feeds(Map<String, String> props) throws Exception {
+        System.setProperty("agg.feeds.dir", dir.toString());
+        props.forEach(System::setProperty);
+        try {
+            return new Feeds(new ServerConfig(), new LamportClock(), new Metrics());
+        } finally {
+            System.clearProperty("agg.feeds.dir");
+            props.keySet().forEach(System::clearProperty);
+        }
+    }
+
+    private static HttpRequest put(String feed, String contentServerId, String id) throws Exception {
+        String body = "{\"id\":\"" + id + "\"}";
+        String wire = "PUT /feeds/" + feed + ".json HTTP/1.1\r\nX-Content-Server: " + contentServerId + "\r\n"
+                + "Content-Length: " + body.length() + "\r\n\r\n" + body;
+        HttpRequest req = HttpRequest.parse(new ByteArrayInputStream(wire.getBytes(StandardCharsets.US_ASCII)));
+        req.remoteAddress = "127.0.0.1";
+        return req;
+    }
+
+    // Run every call at once and collect the status codes
+    private static List<Integer> concurrently(List<Callable<HttpResponse>> calls) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(calls.size());
+        CountDownLatch go = new CountDownLatch(1);
+        try {
+            List<Future<HttpResponse>> results = new ArrayList<>();
+            for (Callable<HttpResponse> c : calls) {
+                results.add(pool.submit(() -> {
+                    go.await();
+                    return c.call();
+                }));
+            }
+            go.countDown();
+            List<Integer> codes = new ArrayList<>();
+            for (Future<HttpResponse> r : results) codes.add(r.get(10, TimeUnit.SECONDS).statusCode);
+            return codes;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    void testConcurrentFirstPutsOpenOneFeed() throws Exception {
+        Feeds feeds = feeds(Map.of());
+        List<Callable<HttpResponse>> calls = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            String id = "S" + i;
+            calls.add(() -> feeds.route(put("race", "cs" + id, id)).get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(List.of(201, 201, 201, 201, 201, 201, 201, 201), concurrently(calls));
+        assertEquals(1, feeds.size());
+        assertEquals(8, feeds.get("race").stationCount()); // no PUT went to a feed that was then replaced
+    }
+
+    @Test
+    void testCapHoldsUnderConcurrentCreation() throws Exception {
+        Feeds feeds = feeds(Map.of("agg.feeds.max", "2"));
+        List<Callable<HttpResponse>> calls = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            String name = "f" + i;
+            calls.add(() -> feeds.route(put(name, "cs", "S")).get(5, TimeUnit.SECONDS));
+        }
+        List<Integer> codes = concurrently(calls);
+        assertEquals(2, codes.stream().filter(c -> c == 201).count());
+        assertEquals(4, codes.stream().filter(c -> c == 403).count());
+        assertEquals(2, feeds.size());
+    }
+
+    @Test
+    void testEachFeedHasItsOwnRateLimit() throws Exception {
+        Feeds feeds = feeds(Map.of("agg.put.rate", "0.001", "agg.put.burst", "1"));
+        assertEquals(201, feeds.route(put("a", "cs1", "S1")).get(5, TimeUnit.SECONDS).statusCode);
+        assertEquals(201, feeds.route(put("b", "cs1", "S1")).get(5, TimeUnit.SECONDS).statusCode);
+        assertEquals(429, feeds.route(put("a", "cs1", "S2")).get(5, TimeUnit.SECONDS).statusCode);
+        assertNotSame(feeds.get("a").limits(), feeds.get("b").limits());
+    }
+}
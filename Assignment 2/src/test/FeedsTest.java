@@ -0,0 +1,81 @@
+package test;
+
+import org.junit.jupiter.api.*;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FeedsTest {
+    private static final int PORT = 4640;
+    private static Process server;  // server with one configured feed
+    private static File walFile;    // kept apart from the default wal.log
+    private static Path feedsDir;   // per-feed WAL files
+
+    @BeforeAll
+    static void startServer() throws Exception {
+        walFile = Files.createTempFile("feeds-wal", ".log").toFile();
+        feedsDir = Files.createTempDirectory("feeds");
+        server = new ProcessBuilder(
+                "java", "-Dagg.wal=" + walFile.getAbsolutePath(),
+                "-Dagg.feeds.dir=" + feedsDir, "-Dagg.feeds=alerts:1",
+                "-cp", "out", "agg.AggregationServer", Integer.toString(PORT)
+        ).inheritIO().start();
+        Thread.sleep(1000);
+    }
+
+    @AfterAll
+    static void stopServer() throws IOException {
+        server.destroy();
+        walFile.delete();
+        try (Stream<Path> files = Files.walk(feedsDir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    private String send(String method, String path, String body) throws Exception {
+        String req = method + " " + path + " HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n"
+                + "X-Content-Server: cs1\r\nContent-Length: " + body.length() + "\r\n\r\n" + body;
+        try (Socket socket = new Socket("localhost", PORT)) {
+            socket.setSoTimeout(5000);
+            socket.getOutputStream().write(req.getBytes(StandardCharsets.UTF_8));
+            return new String(socket.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    @Test
+    void testFeedsAreSeparateAndCreatedOnDemand() throws Exception {
+        assertTrue(send("PUT", "/feeds/ocean.json", "{\"id\":\"BUOY1\",\"temp\":14}").startsWith("HTTP/1.1 201"));
+        assertTrue(send("PUT", "/feeds/ocean.json", "{\"id\":\"BUOY1\",\"temp\":15}").startsWith("HTTP/1.1 200"));
+        assertTrue(send("GET", "/feeds/ocean.json", "").contains("\"temp\":15"));
+        assertFalse(send("GET", "/weather.json", "").contains("BUOY1"));
+        assertTrue(Files.exists(feedsDir.resolve("ocean.wal")));
+
+        String list = send("GET", "/feeds", "");
+        assertTrue(list.contains("\"name\":\"ocean\",\"stations\":1"));
+        assertTrue(list.contains("\"name\":\"alerts\""));
+
+        assertTrue(send("GET", "/feeds/nosuch.json", "").startsWith("HTTP/1.1 404"));
+        assertTrue(send("PUT", "/feeds/bad%20name.json", "{\"id\":\"X\"}").startsWith("HTTP/1.1 400"));
+    }
+
+    @Test
+    void testEachFeedHasItsOwnTtl() throws Exception {
+        assertTrue(send("PUT", "/feeds/alerts.json", "{\"id\":\"A1\",\"level\":3}").startsWith("HTTP/1.1 201"));
+        assertTrue(send("PUT", "/feeds/tide.json", "{\"id\":\"T1\",\"h\":2}").startsWith("HTTP/1.1 201"));
+
+        // alerts expires after 1s; tide keeps the 30s default
+        Thread.sleep(2500);
+        assertTrue(send("GET", "/feeds/alerts.json", "").startsWith("HTTP/1.1 204"));
+        assertTrue(send("GET", "/feeds/tide.json", "").contains("\"id\":\"T1\""));
+
+        // A feed's own heartbeat path keeps it alive
+        assertTrue(send("POST", "/feeds/tide/heartbeat", "").startsWith("HTTP/1.1 200"));
+    }
+}
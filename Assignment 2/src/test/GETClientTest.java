@@ -0,0 +1,80 @@
+package test;
+
+import client.GETClient;
+import common.HttpMessage.HttpRequest;
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class GETClientTest {
+    // A server that answers one GET after delayMillis with the given X-Lamport
+    private static ServerSocket fakeServer(long lamport, long delayMillis) throws IOException {
+        ServerSocket server = new ServerSocket(0);
+        Thread t = new Thread(() -> {
+            try (Socket s = server.accept()) {
+                HttpRequest.parse(s.getInputStream());
+                Thread.sleep(delayMillis);
+                byte[] body = ("{\"stations\": [{\"id\":\"S" + lamport + "\"}]}").getBytes(StandardCharsets.UTF_8);
+                s.getOutputStream().write(("HTTP/1.1 200 OK\r\nContent-Length: " + body.length + "\r\nX-Lamport: "
+                        + lamport + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                s.getOutputStream().write(body);
+                s.getOutputStream().flush();
+                Thread.sleep(delayMillis + 1000); // leave the connection open for the body read
+            } catch (Exception ignored) {
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+        return server;
+    }
+
+    @Test
+    void testFeedIsPrintedFieldByFieldWithCommasAndQuotesInValues() throws Exception {
+        String feed = "{\"stations\": [{\"id\":\"A\",\"name\":\"West Terrace, Adelaide\",\"note\":\"say \\\"hi\\\"\","
+                + "\"air_temp\":-3.5e1},\n {\"id\":\"B\",\"extra\":{\"a\":[1,\"x,y\"],\"b\":null},\"ok\":true}],"
+                + "\"next\":null}";
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(buf, true, StandardCharsets.UTF_8);
+        assertEquals(2, GETClient.printFeed(new StringReader(feed), out));
+        assertEquals(String.join(System.lineSeparator(),
+                "id = A", "name = West Terrace, Adelaide", "note = say \"hi\"", "air_temp = -3.5e1", "",
+                "id = B", "extra = {\"a\":[1,\"x,y\"],\"b\":null}", "ok = true", "next = null", ""),
+                buf.toString(StandardCharsets.UTF_8));
+
+        assertThrows(IOException.class, () -> GETClient.printFeed(new StringReader("{\"stations\": [{\"id\":\"A\"},"),
+                new PrintStream(OutputStream.nullOutputStream())));
+    }
+
+    @Test
+    void testFanOutKeepsTheHighestLamportThatAnswersInTime() throws Exception {
+        List<ServerSocket> servers = new ArrayList<>();
+        try {
+            servers.add(fakeServer(5, 0));
+            servers.add(fakeServer(9, 0));
+            servers.add(fakeServer(50, 3000)); // freshest but too slow
+            ServerSocket closed = new ServerSocket(0);
+            closed.close();                    // nothing listening
+            List<InetSocketAddress> addresses = new ArrayList<>();
+            for (ServerSocket s : servers) addresses.add(new InetSocketAddress("localhost", s.getLocalPort()));
+            addresses.add(new InetSocketAddress("localhost", closed.getLocalPort()));
+
+            long start = System.nanoTime();
+            try (GETClient.Answer answer = GETClient.fetchFreshest(addresses, 500)) {
+                assertTrue((System.nanoTime() - start) / 1_000_000 < 2500); // did not wait for the slow one
+                assertEquals(9, answer.lamport());
+                assertEquals("{\"stations\": [{\"id\":\"S9\"}]}",
+                        new String(answer.body().readAllBytes(), StandardCharsets.UTF_8));
+            }
+        } finally {
+            for (ServerSocket s : servers) s.close();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package test;
+
+import agg.GeoIndex;
+import agg.StateStore;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class GeoIndexTest {
+    private static byte[] json(String id, double lat, double lon) {
+        return ("{\"id\":\"" + id + "\",\"lat\":" + lat + ",\"lon\":" + lon + "}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static List<String> ids(List<StateStore.WeatherRecord> recs) {
+        List<String> out = new ArrayList<>();
+        for (StateStore.WeatherRecord r : recs) out.add(r.stationId);
+        return out;
+    }
+
+    @Test
+    void testNearestMatchesBruteForce() {
+        StateStore store = new StateStore();
+        GeoIndex geo = new GeoIndex(1.0);
+        store.addListener(geo);
+        Random rnd = new Random(42);
+        double[][] pos = new double[5000][];
+        for (int i = 0; i < pos.length; i++) {
+            pos[i] = new double[]{rnd.nextDouble() * 180 - 90, rnd.nextDouble() * 360 - 180};
+            store.applyPut("S" + i, json("S" + i, pos[i][0], pos[i][1]), "cs" + (i % 10), i + 1);
+        }
+        // Ordinary points plus the antimeridian and near the poles
+        double[][] queries = {{-34.9, 138.6}, {0, 179.9}, {10, -179.95}, {89.5, 20}, {-89.9, -100}};
+        for (double[] q : queries) {
+            Integer[] order = new Integer[pos.length];
+            for (int i = 0; i < order.length; i++) order[i] = i;
+            Arrays.sort(order, Comparator.comparingDouble(i -> GeoIndex.distanceKm(q[0], q[1], pos[i][0], pos[i][1])));
+            List<String> expected = new ArrayList<>();
+            for (int i = 0; i < 7; i++) expected.add("S" + order[i]);
+            assertEquals(expected, ids(geo.nearest(q[0], q[1], 7)));
+        }
+    }
+
+    @Test
+    void testIndexFollowsMovesExpiryAndBoxes() {
+        StateStore store = new StateStore();
+        GeoIndex geo = new GeoIndex(0.5);
+        store.addListener(geo);
+        store.applyPut("ADL", json("ADL", -34.9, 138.6), "csA", 1);
+        store.applyPut("MEL", json("MEL", -37.8, 144.9), "csB", 2);
+        store.applyPut("FIJ", json("FIJ", -17.7, 178.1), "csB", 3);
+        store.applyPut("SAM", json("SAM", -13.8, -171.8), "csB", 4);
+
+        assertEquals(List.of("ADL", "MEL"), ids(geo.nearest(-35, 139, 2)));
+        assertEquals(Set.of("FIJ", "SAM"), new HashSet<>(ids(geo.within(-20, 170, -10, -170)))); // crosses 180
+        assertEquals(List.of("MEL"), ids(geo.within(-40, 140, -30, 150)));
+
+        store.applyPut("ADL", json("ADL", -37.7, 144.8), "csA", 5); // moved next to MEL
+        assertEquals(List.of("ADL", "MEL"), ids(geo.within(-40, 140, -30, 150)).stream().sorted().toList());
+
+        store.removeAllFromContentServer("csB", 6);
+        assertEquals(List.of("ADL"), ids(geo.nearest(-17, 178, 5)));
+        assertEquals(1, geo.size());
+
+        store.load(List.of()); // replica resync replaces everything
+        assertEquals(0, geo.size());
+    }
+}
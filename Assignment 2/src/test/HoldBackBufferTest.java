@@ -0,0 +1,79 @@
+package test;
+
+import agg.Metrics;
+import agg.PutWorker;
+import agg.StateStore;
+import agg.WalManager;
+import common.LamportClock;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HoldBackBufferTest {
+    @TempDir Path dir;
+
+    private static byte[] json(String id, int v) {
+        return ("{\"id\":\"" + id + "\",\"v\":" + v + "}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static long applied(CompletableFuture<PutWorker.Result> f) throws Exception {
+        return f.get(1, TimeUnit.SECONDS).appliedLamport;
+    }
+
+    @Test
+    void testLaterArrivalWithLowerLamportIsAppliedFirst() throws Exception {
+        Metrics metrics = new Metrics();
+        try (WalManager wal = new WalManager(dir.resolve("wal.log").toFile())) {
+            PutWorker worker = new PutWorker(new StateStore(), wal, new LamportClock(),
+                    64, 10_000, metrics, null, 5_000);
+            Thread t = new Thread(worker);
+            t.start();
+            try {
+                // Each content server's first PUT passes its own watermark at once
+                applied(worker.submit(1, "csA", "A", json("A", 1)));
+                applied(worker.submit(1, "csB", "B", json("B", 1)));
+
+                // csA's PUT waits: csB could still send something older
+                CompletableFuture<PutWorker.Result> a = worker.submit(10, "csA", "A", json("A", 10));
+                long b = applied(worker.submit(5, "csB", "B", json("B", 5)));
+                Thread.sleep(100);
+                assertFalse(a.isDone());
+
+                // csB moving past 10 lets it go, well before the window ends
+                worker.submit(12, "csB", "B", json("B", 12));
+                assertTrue(b < applied(a));
+                assertEquals(1, metrics.putsReordered.sum());
+                assertEquals(0, metrics.putsLate.sum());
+            } finally {
+                worker.shutdown();
+                t.interrupt();
+            }
+        }
+    }
+
+    @Test
+    void testWithoutWindowLowerLamportIsCountedLate() throws Exception {
+        Metrics metrics = new Metrics();
+        try (WalManager wal = new WalManager(dir.resolve("wal.log").toFile())) {
+            PutWorker worker = new PutWorker(new StateStore(), wal, new LamportClock(),
+                    64, 10_000, metrics, null, 0);
+            Thread t = new Thread(worker);
+            t.start();
+            try {
+                applied(worker.submit(10, "csA", "A", json("A", 10)));
+                applied(worker.submit(5, "csB", "B", json("B", 5)));
+                assertEquals(0, metrics.putsReordered.sum());
+                assertEquals(1, metrics.putsLate.sum());
+            } finally {
+                worker.shutdown();
+                t.interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package test;
+
+import common.HttpMessage.HttpResponse;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HttpMessageTest {
+    @Test
+    void testChunkedBodyRoundTrip() throws Exception {
+        byte[] payload = new byte[50_000]; // several chunks
+        for (int i = 0; i < payload.length; i++) payload[i] = (byte) ('a' + i % 26);
+        HttpResponse sent = HttpResponse.streamed(200, "OK", "text/plain", out -> {
+            out.write(payload, 0, 3);
+            out.write(payload, 3, payload.length - 3);
+        });
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        sent.write(wire);
+        wire.write("HTTP/1.1 204 No Content\r\nContent-Length: 0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+
+        // The whole body is decoded, and the next response on the connection is intact
+        InputStream in = new ByteArrayInputStream(wire.toByteArray());
+        HttpResponse got = HttpResponse.parse(in);
+        assertEquals("chunked", got.header("Transfer-Encoding"));
+        assertArrayEquals(payload, got.body);
+        assertEquals(204, HttpResponse.parse(in).statusCode);
+    }
+
+    @Test
+    void testBodyStreamStopsAtChunkedEnd() throws Exception {
+        String wire = "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + "5;ext=1\r\nhello\r\n1\r\n!\r\n0\r\nX-Trailer: t\r\n\r\nNEXT";
+        InputStream in = new ByteArrayInputStream(wire.getBytes(StandardCharsets.US_ASCII));
+        HttpResponse head = HttpResponse.parseHead(in);
+        assertEquals("hello!", new String(head.bodyStream(in).readAllBytes(), StandardCharsets.US_ASCII));
+        assertEquals("NEXT", new String(in.readAllBytes(), StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    void testChunkDataMustEndWithCrlf() throws Exception {
+        for (String body : new String[]{
+                "5\r\nhello\r\n\r\n1\r\n!\r\n0\r\n\r\n",  // stray empty line
+                "5\r\nhelloX\r\n0\r\n\r\n",             // more data than the size says
+                "5\r\nhello1\r\n!\r\n0\r\n\r\n",        // no CRLF at all
+                "\r\n5\r\nhello\r\n0\r\n\r\n"}) {        // empty line instead of a size
+            String wire = "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n" + body;
+            InputStream in = new ByteArrayInputStream(wire.getBytes(StandardCharsets.US_ASCII));
+            HttpResponse head = HttpResponse.parseHead(in);
+            assertThrows(IOException.class, () -> head.bodyStream(in).readAllBytes(), body);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package test;
+
+import common.BinaryIngest;
+import common.HttpMessage.HttpResponse;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+// Throughput of HTTP PUT against the binary ingest protocol, run against a
+// server started with -Dagg.binary.port:
+//   java -cp out test.IngestBenchmark localhost 4567 4568 [updates]
+// HTTP sends one PUT at a time on a keep-alive connection; the binary runs
+// pipeline up to 64 frames, with 1 and with 16 updates per frame.
+public class IngestBenchmark {
+    private static final String[][] STATION = {
+            {"name", "Adelaide (West Terrace / ngayirdapira)"}, {"state", "SA"}, {"time_zone", "CST"},
+            {"lat", "-34.9"}, {"lon", "138.6"}, {"local_date_time", "15/04:00pm"},
+            {"local_date_time_full", "20230715160000"}, {"air_temp", "13.3"}, {"apparent_t", "9.5"},
+            {"cloud", "Partly cloudy"}, {"dewpt", "5.7"}, {"press", "1023.9"}, {"rel_hum", "60"},
+            {"wind_dir", "S"}, {"wind_spd_kmh", "15"}, {"wind_spd_kt", "8"}};
+
+    public static void main(String[] args) throws Exception {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int httpPort = args.length > 1 ? Integer.parseInt(args[1]) : 4567;
+        int binaryPort = args.length > 2 ? Integer.parseInt(args[2]) : 4568;
+        int n = args.length > 3 ? Integer.parseInt(args[3]) : 20000;
+
+        for (int round = 0; round < 2; round++) { // the first round warms up both sides
+            report(round, "HTTP PUT, keep-alive", n, http(host, httpPort, n, round));
+            report(round, "binary, 1 per frame", n, binary(host, binaryPort, n, 1, round));
+            report(round, "binary, 16 per frame", n, binary(host, binaryPort, n, 16, round));
+        }
+    }
+
+    private static void report(int round, String what, int n, long nanos) {
+        if (round == 0) return;
+        System.out.printf(Locale.ROOT, "%-22s %8d updates %8.0f updates/s %8.1f us/update%n",
+                what, n, n / (nanos / 1e9), nanos / 1e3 / n);
+    }
+
+    private static Map<String, String> station(int i, int round) {
+        Map<String, String> kv = new LinkedHashMap<>();
+        kv.put("id", "BENCH" + (i % 500));
+        for (String[] f : STATION) kv.put(f[0], f[1]);
+        kv.put("air_temp", Integer.toString(i + round * 1_000_000)); // every update changes the station
+        return kv;
+    }
+
+    // The JSON ContentServer would PUT for the same fields
+    private static String json(Map<String, String> kv) {
+        StringBuilder sb = new StringBuilder("{");
+        for (Map.Entry<String, String> e : kv.entrySet()) {
+            if (sb.length() > 1) sb.append(",\n");
+            boolean number = e.getValue().matches("-?\\d+(\\.\\d+)?");
+            sb.append("  \"").append(e.getKey()).append("\": ")
+                    .append(number ? e.getValue() : "\"" + e.getValue() + "\"");
+        }
+        return sb.append("\n}").toString();
+    }
+
+    private static long http(String host, int port, int n, int round) throws IOException {
+        try (Socket socket = new Socket(host, port)) {
+            socket.setTcpNoDelay(true);
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            long start = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                byte[] body = json(station(i, round)).getBytes(StandardCharsets.UTF_8);
+                out.write(("PUT /weather.json HTTP/1.1\r\nHost: " + host + "\r\nContent-Type: application/json\r\n"
+                        + "Content-Length: " + body.length + "\r\nX-Lamport: " + i + "\r\n"
+                        + "X-Content-Server: bench-http\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                out.write(body);
+                out.flush();
+                HttpResponse resp = HttpResponse.parse(in);
+                if (resp.statusCode >= 300) throw new IOException("PUT answered " + resp.statusCode);
+            }
+            return System.nanoTime() - start;
+        }
+    }
+
+    private static long binary(String host, int port, int n, int perFrame, int round) throws Exception {
+        try (Socket socket = new Socket(host, port)) {
+            socket.setTcpNoDelay(true);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            int frames = (n + perFrame - 1) / perFrame;
+
+            // ACKs are read on their own thread so frames keep flowing
+            long[] failed = new long[1];
+            Thread reader = new Thread(() -> {
+                try {
+                    for (int i = 0; i < frames; i++) {
+                        for (byte s : BinaryIngest.readAck(in).statuses) {
+                            if (s > BinaryIngest.OK) failed[0]++;
+                        }
+                    }
+                } catch (IOException e) {
+                    failed[0] = -1;
+                }
+            });
+            long start = System.nanoTime();
+            reader.start();
+            for (int f = 0, i = 0; f < frames; f++) {
+                List<BinaryIngest.Update> batch = new ArrayList<>(perFrame);
+                for (int k = 0; k < perFrame && i < n; k++, i++) batch.add(BinaryIngest.Update.fromText(station(i, round)));
+                BinaryIngest.writeUpdates(out, f, i, "bench-binary-" + perFrame, batch);
+            }
+            out.flush();
+            reader.join();
+            long elapsed = System.nanoTime() - start;
+            if (failed[0] != 0) throw new IOException(failed[0] + " updates not applied");
+            return elapsed;
+        }
+    }
+}
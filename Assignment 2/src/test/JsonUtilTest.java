@@ -0,0 +1,38 @@
+package test;
+
+import common.JsonUtil;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class JsonUtilTest {
+    private static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String minify(String s) {
+        return new String(JsonUtil.minify(utf8(s)), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void testMinifyKeepsStringsIntact() {
+        assertEquals("{\"id\":\"A B\",\"t\":[1,2],\"q\":\"x \\\" y\\\\\",\"z\":\"  \"}",
+                minify("{ \"id\" : \"A B\",\n\t\"t\": [ 1, 2 ],\r\n \"q\": \"x \\\" y\\\\\", \"z\": \"  \" }"));
+        assertEquals("{\"name\":\"Ngayirdapira, 30°\"}", minify("{ \"name\": \"Ngayirdapira, 30°\" }"));
+        byte[] already = utf8("{\"id\":\"A\"}");
+        assertArrayEquals(already, JsonUtil.minify(already));
+    }
+
+    @Test
+    void testStationIdIsTheTopLevelId() {
+        assertEquals("IDS60901", JsonUtil.stationId(utf8("{\"name\":\"x\",\"id\":\"IDS60901\"}")));
+        assertEquals("top", JsonUtil.stationId(utf8("{\"site\":{\"id\":\"nested\"},\"id\":\"top\"}")));
+        assertEquals("top", JsonUtil.stationId(utf8("{\"list\":[{\"id\":\"n\"}],\"note\":\"\\\"id\\\":\\\"s\\\"\",\"id\":\"top\"}")));
+        assertNull(JsonUtil.stationId(utf8("{\"site\":{\"id\":\"nested\"}}")));
+        assertNull(JsonUtil.stationId(utf8("{\"id\":\"\"}")));
+        assertNull(JsonUtil.stationId(utf8("{\"id\":42}")));
+        assertNull(JsonUtil.stationId(utf8("{\"id\":\"unterminated")));
+    }
+}
@@ -0,0 +1,101 @@
+package test;
+
+import agg.KeepAlivePoller;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class KeepAlivePollerTest {
+    private ServerSocketChannel listener;
+    private ExecutorService pool;
+    private KeepAlivePoller poller;
+    private final List<Socket> clients = new ArrayList<>();
+    private final AtomicInteger unexpected = new AtomicInteger(); // callbacks that should not have run
+
+    @BeforeEach
+    void start() throws Exception {
+        listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress("localhost", 0));
+        pool = Executors.newFixedThreadPool(2);
+        poller = new KeepAlivePoller(pool, 60000);
+        Thread t = new Thread(poller, "test-poller");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    @AfterEach
+    void stop() throws Exception {
+        poller.shutdown();
+        pool.shutdownNow();
+        for (Socket c : clients) c.close();
+        listener.close();
+    }
+
+    // A client socket and the server side of its connection
+    private SocketChannel connect() throws IOException {
+        Socket client = new Socket("localhost", listener.socket().getLocalPort());
+        client.setSoTimeout(5000);
+        clients.add(client);
+        return listener.accept();
+    }
+
+    @Test
+    void testReadableConnectionIsResumedInBlockingMode() throws Exception {
+        SocketChannel ch = connect();
+        CountDownLatch resumed = new CountDownLatch(1);
+        poller.park(ch, () -> {
+            if (ch.isBlocking()) resumed.countDown();
+        }, unexpected::incrementAndGet);
+        Thread.sleep(100);
+        assertEquals(1, resumed.getCount()); // nothing sent yet
+
+        clients.get(0).getOutputStream().write('G');
+        assertTrue(resumed.await(2, TimeUnit.SECONDS));
+        assertEquals(0, unexpected.get());
+    }
+
+    @Test
+    void testIdleConnectionsCloseInDeadlineOrder() throws Exception {
+        List<String> closed = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch twoClosed = new CountDownLatch(2);
+        // Parked longest first, so the order of closing comes from the deadlines alone
+        poller.park(connect(), unexpected::incrementAndGet, () -> { closed.add("long"); twoClosed.countDown(); }, 10000);
+        poller.park(connect(), unexpected::incrementAndGet, () -> { closed.add("mid"); twoClosed.countDown(); }, 400);
+        poller.park(connect(), unexpected::incrementAndGet, () -> { closed.add("short"); twoClosed.countDown(); }, 100);
+
+        assertTrue(twoClosed.await(3, TimeUnit.SECONDS));
+        assertEquals(List.of("short", "mid"), closed);
+        assertEquals(-1, clients.get(2).getInputStream().read()); // the client sees the close
+        assertEquals(0, unexpected.get());
+    }
+
+    @Test
+    void testResumedConnectionIsNotClosedAtItsOldDeadline() throws Exception {
+        SocketChannel ch = connect();
+        CountDownLatch resumed = new CountDownLatch(1);
+        List<String> closed = Collections.synchronizedList(new ArrayList<>());
+        poller.park(ch, resumed::countDown, () -> closed.add("closed"), 200);
+        clients.get(0).getOutputStream().write('G');
+        assertTrue(resumed.await(2, TimeUnit.SECONDS));
+
+        Thread.sleep(400); // past the deadline it was parked with
+        assertTrue(closed.isEmpty());
+        assertTrue(ch.isOpen());
+    }
+}
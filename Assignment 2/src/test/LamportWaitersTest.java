@@ -0,0 +1,101 @@
+package test;
+
+import agg.LamportWaiters;
+import agg.Metrics;
+import agg.PutWorker;
+import agg.Router;
+import agg.StateStore;
+import agg.WalManager;
+import common.HttpMessage.HttpRequest;
+import common.HttpMessage.HttpResponse;
+import common.LamportClock;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// X-Min-Lamport on a primary: a GET waits only for a write that is being
+// applied. The tests drive LamportWaiters the way PutWorker.apply does:
+// applying() before the clock tick, applied() once the store has the record.
+public class LamportWaitersTest {
+    @TempDir Path dir;
+
+    private final ExecutorService pool = Executors.newFixedThreadPool(2);
+    private final StateStore store = new StateStore();
+    private final LamportClock clock = new LamportClock();
+
+    @AfterEach
+    void stop() {
+        pool.shutdownNow();
+    }
+
+    private Router router(LamportWaiters waiters) throws Exception {
+        PutWorker worker = new PutWorker(store, new WalManager(dir.resolve("wal.log").toFile()), clock);
+        return new Router(store, clock, worker, 1, null, null, null, null, new Metrics(), null, null, waiters, null);
+    }
+
+    private static HttpRequest get(long minLamport) throws Exception {
+        String wire = "GET /weather.json HTTP/1.1\r\nX-Min-Lamport: " + minLamport + "\r\n\r\n";
+        return HttpRequest.parse(new ByteArrayInputStream(wire.getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    private static String body(HttpResponse r) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        r.write(out);
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void testGetWaitsForTheWriteInFlight() throws Exception {
+        LamportWaiters waiters = new LamportWaiters(Long.MAX_VALUE, pool, 5000, 16);
+        Router router = router(waiters);
+
+        // Nothing being written: served at once, whatever the time asked for
+        assertTrue(router.handleAsync(get(1_000)).isDone());
+
+        waiters.applying(clock.peek() + 1);
+        long L = clock.tick();
+        CompletableFuture<HttpResponse> pending = router.handleAsync(get(L));
+        HttpResponse earlier = router.handleAsync(get(L - 1)).get(1, TimeUnit.SECONDS); // already visible
+        assertEquals(204, earlier.statusCode);
+        Thread.sleep(100);
+        assertFalse(pending.isDone());
+        assertEquals(1, waiters.parked());
+
+        store.applyPut("S1", "{\"id\":\"S1\"}".getBytes(StandardCharsets.UTF_8), "cs1", L);
+        waiters.applied();
+        HttpResponse r = pending.get(2, TimeUnit.SECONDS);
+        assertEquals(200, r.statusCode);
+        assertTrue(body(r).contains("\"id\":\"S1\""));
+        assertEquals(0, waiters.parked());
+    }
+
+    @Test
+    void testGetTimesOutWith503WhenTheWriteNeverLands() throws Exception {
+        LamportWaiters waiters = new LamportWaiters(Long.MAX_VALUE, pool, 100, 16);
+        Router router = router(waiters);
+
+        waiters.applying(clock.peek() + 1);
+        long L = clock.tick();
+        long t0 = System.nanoTime();
+        HttpResponse r = router.handleAsync(get(L)).get(5, TimeUnit.SECONDS);
+        assertEquals(503, r.statusCode);
+        assertEquals("1", r.header("Retry-After"));
+        assertTrue(body(r).contains("min lamport not reached"));
+        assertTrue(System.nanoTime() - t0 < TimeUnit.SECONDS.toNanos(2));
+        assertEquals(0, waiters.parked()); // the timed-out request is not left behind
+
+        HttpResponse zero = router.handleAsync(get(0)).get(1, TimeUnit.SECONDS);
+        assertEquals(204, zero.statusCode); // 0 is always visible, even mid-write
+    }
+}
@@ -0,0 +1,74 @@
+package test;
+
+import agg.MappedStationStore;
+import agg.StateStore;
+import agg.WalManager;
+import common.LamportClock;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MappedStationStoreTest {
+    @TempDir Path dir;
+
+    private static byte[] json(String id, int v) {
+        return ("{\"id\":\"" + id + "\",\"v\":" + v + "}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Write through the WAL with the mapped store listening, like the server does
+    private MappedStationStore openAndLoad(StateStore store, WalManager wal) throws Exception {
+        MappedStationStore mapped = MappedStationStore.open(dir.resolve("stations.map"), wal, 16, 4096);
+        long offset = mapped.load(store, new LamportClock());
+        store.addListener(mapped);
+        wal.replayFrom(offset, store, new LamportClock());
+        return mapped;
+    }
+
+    @Test
+    void testRestartLoadsRecordsAndReplaysOnlyTail() throws Exception {
+        StateStore store = new StateStore();
+        try (WalManager wal = new WalManager(dir.resolve("wal.log").toFile())) {
+            MappedStationStore mapped = openAndLoad(store, wal);
+            for (int i = 0; i < 10; i++) wal.appendAndApplyPut(store, i + 1, "csA", "S" + i, json("S" + i, i));
+            mapped.checkpoint();
+            wal.appendAndApplyPut(store, 11, "csA", "S0", json("S0", 100)); // only in the WAL tail
+        }
+
+        StateStore restarted = new StateStore();
+        try (WalManager wal = new WalManager(dir.resolve("wal.log").toFile())) {
+            openAndLoad(restarted, wal);
+        }
+        assertEquals(10, restarted.stationCount());
+        assertTrue(restarted.snapshotJson().stream()
+                .anyMatch(b -> new String(b, StandardCharsets.UTF_8).contains("\"v\":100")));
+        assertEquals(11, restarted.lastAppliedLamport());
+    }
+
+    @Test
+    void testGrowthAndExpiryCompactKeepLiveRecords() throws Exception {
+        StateStore store = new StateStore();
+        try (WalManager wal = new WalManager(dir.resolve("wal.log").toFile())) {
+            MappedStationStore mapped = openAndLoad(store, wal);
+            long L = 1;
+            for (int round = 0; round < 5; round++) {
+                for (int i = 0; i < 200; i++) {
+                    wal.appendAndApplyPut(store, L++, i % 2 == 0 ? "even" : "odd", "S" + i, json("S" + i, round));
+                }
+            }
+            wal.appendAndApplyExpire(store, L++, "odd");
+            mapped.checkpoint();
+            assertTrue(mapped.compactions() > 0);
+        }
+
+        StateStore restarted = new StateStore();
+        try (WalManager wal = new WalManager(dir.resolve("wal.log").toFile())) {
+            openAndLoad(restarted, wal);
+        }
+        assertEquals(100, restarted.stationCount());
+        assertFalse(restarted.refreshLastSeen("odd"));
+    }
+}
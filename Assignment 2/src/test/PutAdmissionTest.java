@@ -0,0 +1,145 @@
+package test;
+
+import agg.PutWorker;
+import agg.Router;
+import agg.StateStore;
+import agg.WalManager;
+import client.ContentServer;
+import common.HttpMessage.HttpRequest;
+import common.HttpMessage.HttpResponse;
+import common.LamportClock;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PutAdmissionTest {
+    @TempDir Path dir;
+
+    private static HttpRequest put(String contentServerId, String id) throws Exception {
+        String body = "{\"id\":\"" + id + "\"}";
+        String wire = "PUT /weather.json HTTP/1.1\r\nX-Content-Server: " + contentServerId + "\r\n"
+                + "Content-Length: " + body.length() + "\r\n\r\n" + body;
+        HttpRequest req = HttpRequest.parse(new ByteArrayInputStream(wire.getBytes(StandardCharsets.US_ASCII)));
+        req.remoteAddress = "127.0.0.1";
+        return req;
+    }
+
+    private static void start(PutWorker worker) {
+        Thread t = new Thread(worker, "test-put-worker");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    @Test
+    void testFullQueueAnswers503WithRetryAfter() throws Exception {
+        StateStore store = new StateStore();
+        LamportClock clock = new LamportClock();
+        // Worker not started, so the first PUT holds the only slot
+        PutWorker worker = new PutWorker(store, new WalManager(dir.resolve("wal.log").toFile()), clock, 1, 5000);
+        Router router = new Router(store, clock, worker, 7);
+
+        CompletableFuture<HttpResponse> first = router.handleAsync(put("cs1", "S1"));
+        HttpResponse second = router.handleAsync(put("cs2", "S2")).get(1, TimeUnit.SECONDS);
+        assertEquals(503, second.statusCode);
+        assertEquals("7", second.header("Retry-After"));
+        assertNotNull(second.header("X-Lamport"));
+        assertFalse(first.isDone());
+
+        start(worker);
+        assertEquals(201, first.get(5, TimeUnit.SECONDS).statusCode);
+        assertEquals(201, router.handle(put("cs2", "S2")).statusCode); // room again
+        assertNotNull(store.record("S2"));
+    }
+
+    @Test
+    void testDeadlineAnswers503AndTheTaskIsNotAppliedLater() throws Exception {
+        StateStore store = new StateStore();
+        LamportClock clock = new LamportClock();
+        PutWorker worker = new PutWorker(store, new WalManager(dir.resolve("wal.log").toFile()), clock, 16, 100);
+        Router router = new Router(store, clock, worker, 2);
+
+        long t0 = System.nanoTime();
+        HttpResponse r = router.handleAsync(put("cs1", "S1")).get(5, TimeUnit.SECONDS);
+        assertEquals(503, r.statusCode);
+        assertEquals("2", r.header("Retry-After"));
+        assertTrue(System.nanoTime() - t0 < TimeUnit.SECONDS.toNanos(2)); // bounded by the deadline, not the worker
+
+        // The worker drops a task whose deadline passed while it waited
+        CompletableFuture<PutWorker.Result> late = worker.submit(1, "cs2", "S2",
+                "{\"id\":\"S2\"}".getBytes(StandardCharsets.UTF_8));
+        Thread.sleep(200);
+        start(worker);
+        CompletionException e = assertThrows(CompletionException.class, late::join);
+        assertInstanceOf(TimeoutException.class, e.getCause());
+        Thread.sleep(100);
+        assertNull(store.record("S1"));
+        assertNull(store.record("S2"));
+    }
+
+    // A WAL whose append outlasts the PUT deadline
+    private static class SlowWal extends WalManager {
+        SlowWal(File file) throws IOException { super(file); }
+
+        @Override
+        public boolean appendAndApplyPut(StateStore store, long lamport, String contentServerId,
+                                         String stationId, byte[] json) throws IOException {
+            try {
+                Thread.sleep(300);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return super.appendAndApplyPut(store, lamport, contentServerId, stationId, json);
+        }
+    }
+
+    @Test
+    void testDeadlineDuringApplyWaitsForTheRealResult() throws Exception {
+        StateStore store = new StateStore();
+        LamportClock clock = new LamportClock();
+        PutWorker worker = new PutWorker(store, new SlowWal(dir.resolve("wal.log").toFile()), clock, 16, 100);
+        Router router = new Router(store, clock, worker, 2);
+        start(worker);
+
+        // The deadline passes while the worker is inside the append: the PUT
+        // is logged and visible, so the client must be told so, not 503
+        HttpResponse first = router.handleAsync(put("cs1", "S1")).get(5, TimeUnit.SECONDS);
+        assertEquals(201, first.statusCode);
+        assertEquals(Long.parseLong(first.header("X-Lamport")), store.record("S1").lamportApplied);
+
+        HttpResponse second = router.handleAsync(put("cs1", "S2")).get(5, TimeUnit.SECONDS);
+        assertEquals(200, second.statusCode);
+        assertNotNull(store.record("S2"));
+    }
+
+    @Test
+    void testBackoffHonoursRetryAfterWithJitter() {
+        for (int attempt = 1; attempt <= 6; attempt++) {
+            long min = Long.MAX_VALUE, max = 0;
+            for (int i = 0; i < 200; i++) {
+                long d = ContentServer.backoffMillis(attempt, 3);
+                assertTrue(d >= 3000, "never before Retry-After: " + d);
+                min = Math.min(min, d);
+                max = Math.max(max, d);
+            }
+            if (attempt >= 5) assertTrue(max > min, "jittered"); // backoff above Retry-After from here on
+        }
+        // Without Retry-After: exponential, capped, and spread between half and full step
+        for (int i = 0; i < 200; i++) {
+            long d1 = ContentServer.backoffMillis(1, 0);
+            assertTrue(d1 >= 250 && d1 <= 500, "first step: " + d1);
+            long d10 = ContentServer.backoffMillis(10, 0);
+            assertTrue(d10 >= 5000 && d10 <= 10000, "capped: " + d10);
+        }
+    }
+}
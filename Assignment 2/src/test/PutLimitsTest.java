@@ -0,0 +1,113 @@
+package test;
+
+import agg.FairQueue;
+import agg.Metrics;
+import agg.PutLimits;
+import agg.PutWorker;
+import agg.Router;
+import agg.StateStore;
+import agg.WalManager;
+import common.HttpMessage.HttpRequest;
+import common.HttpMessage.HttpResponse;
+import common.LamportClock;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PutLimitsTest {
+    @TempDir Path dir;
+
+    private static PutWorker.PutTask task(String contentServerId, int v) {
+        byte[] json = ("{\"id\":\"S\",\"v\":" + v + "}").getBytes(StandardCharsets.UTF_8); // 16-17 bytes
+        return new PutWorker.PutTask(v, contentServerId, "S", json, v, Long.MAX_VALUE, new CompletableFuture<>());
+    }
+
+    private static HttpRequest request(String method, String target, String contentServerId, String body)
+            throws Exception {
+        String wire = method + " " + target + " HTTP/1.1\r\nX-Content-Server: " + contentServerId + "\r\n"
+                + "Content-Length: " + body.length() + "\r\n\r\n" + body;
+        HttpRequest req = HttpRequest.parse(new ByteArrayInputStream(wire.getBytes(StandardCharsets.US_ASCII)));
+        req.remoteAddress = "127.0.0.1";
+        return req;
+    }
+
+    @Test
+    void testFairQueueGivesAQuietContentServerItsTurn() throws Exception {
+        PutLimits limits = new PutLimits(new PutLimits.Limit(0, 0), 40, 50);
+        FairQueue queue = new FairQueue(limits);
+        List<PutWorker.PutTask> flood = new ArrayList<>();
+        for (int i = 10; i < 60; i++) flood.add(task("flood", i));
+        for (PutWorker.PutTask t : flood) queue.add(t);
+        PutWorker.PutTask quiet1 = task("quiet", 1);
+        PutWorker.PutTask quiet2 = task("quiet", 2);
+        queue.add(quiet1);
+        queue.add(quiet2);
+        assertThrows(PutLimits.Exceeded.class, () -> queue.add(task("flood", 99))); // share used up
+
+        // One round: two small PUTs from each, each content server in arrival order
+        List<PutWorker.PutTask> round = new ArrayList<>();
+        assertTrue(queue.takeRound(0, round));
+        assertEquals(List.of(flood.get(0), flood.get(1), quiet1, quiet2), round);
+        assertEquals(48, queue.size());
+    }
+
+    @Test
+    void testRefundGivesBackTheTokenOfARejectedPut() {
+        PutLimits limits = new PutLimits(new PutLimits.Limit(1, 2), 4096, 256);
+        long now = System.nanoTime();
+        limits.acquire("cs", now);
+        limits.acquire("cs", now);
+        assertThrows(PutLimits.Exceeded.class, () -> limits.acquire("cs", now));
+        limits.refund("cs");  // the second PUT was then turned away by the queue
+        limits.acquire("cs", now);
+        limits.refund("cs");
+        limits.refund("cs");
+        limits.refund("cs");  // never above the burst
+        limits.acquire("cs", now);
+        limits.acquire("cs", now);
+        assertThrows(PutLimits.Exceeded.class, () -> limits.acquire("cs", now));
+        limits.refund("other"); // no bucket: nothing to give back
+    }
+
+    @Test
+    void testRateLimitAnswers429AndCanBeChangedAtRuntime() throws Exception {
+        Metrics metrics = new Metrics();
+        PutLimits limits = new PutLimits(new PutLimits.Limit(0.5, 2), 4096, 256);
+        try (WalManager wal = new WalManager(dir.resolve("wal.log").toFile())) {
+            PutWorker worker = new PutWorker(new StateStore(), wal, new LamportClock(), 64, 2000,
+                    metrics, null, 0, limits);
+            Thread t = new Thread(worker);
+            t.start();
+            try {
+                Router router = new Router(new StateStore(), new LamportClock(), worker);
+                assertEquals(201, router.handle(request("PUT", "/weather.json", "csA", "{\"id\":\"A\",\"v\":1}")).statusCode);
+                assertEquals(200, router.handle(request("PUT", "/weather.json", "csA", "{\"id\":\"A\",\"v\":2}")).statusCode);
+                HttpResponse limited = router.handle(request("PUT", "/weather.json", "csA", "{\"id\":\"A\",\"v\":3}"));
+                assertEquals(429, limited.statusCode);
+                assertEquals("2", limited.header("Retry-After"));
+                assertEquals(201, router.handle(request("PUT", "/weather.json", "csB", "{\"id\":\"B\",\"v\":1}")).statusCode);
+                assertEquals(1, metrics.putsRateLimited.sum());
+
+                // Lift csA's limit without a restart
+                HttpResponse set = router.handle(request("POST", "/limits?id=csA&rate=0", "admin", ""));
+                assertTrue(new String(set.body, StandardCharsets.UTF_8).contains("\"csA\":{\"rate\":0,\"burst\":2}"));
+                assertEquals(200, router.handle(request("PUT", "/weather.json", "csA", "{\"id\":\"A\",\"v\":3}")).statusCode);
+
+                HttpRequest remote = request("POST", "/limits?rate=100", "admin", "");
+                remote.remoteAddress = "192.0.2.7";
+                assertEquals(403, router.handle(remote).statusCode);
+            } finally {
+                worker.shutdown();
+                t.interrupt();
+            }
+        }
+    }
+}
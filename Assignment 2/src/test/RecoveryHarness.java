@@ -0,0 +1,288 @@
+package test;
+
+import agg.StateStore;
+import agg.WalManager;
+import common.HttpMessage.HttpResponse;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Crash recovery under load: writers PUT against a real AggregationServer
+// process, which is killed with SIGKILL at a random point, restarted on the
+// same WAL and checked for every update it acknowledged (200/201). After
+// every other kill the WAL is also left ending in a half-written record, as
+// a crash in the middle of a write would leave it. Then the
+// server is started on WALs of growing size to chart recovery time:
+//   java -cp out test.RecoveryHarness [port] [kills] [writers] [max records]
+// Servers run in a scratch directory; extra server flags can be given as
+// -Dharness.serverArgs="-Dagg.wal.fsync=false ...".
+public class RecoveryHarness {
+    private static final int STATIONS_PER_WRITER = 25;
+    private static final Pattern STATION = Pattern.compile("\"id\":\"(W\\d+S\\d+)\"[^}]*\"seq\":(\\d+)");
+    private static final Pattern RECOVERED =
+            Pattern.compile("Recovered (\\d+) WAL records \\((\\d+) bytes\\) in ([\\d.]+) ms");
+
+    private static int port;
+    private static int starts;
+
+    public static void main(String[] args) throws Exception {
+        port = args.length > 0 ? Integer.parseInt(args[0]) : 4680;
+        int kills = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int writers = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        int maxRecords = args.length > 3 ? Integer.parseInt(args[3]) : 400_000;
+
+        Path dir = Files.createTempDirectory("recovery");
+        System.out.println("Scratch directory " + dir);
+        boolean ok = crashes(dir.resolve("crash"), kills, writers);
+        curve(dir.resolve("curve"), maxRecords);
+        System.exit(ok ? 0 : 1);
+    }
+
+    // ---- kill -9 under load ----
+
+    // One content server: its own connection and stations. Per station, the
+    // last value acknowledged and the last value sent; after a crash the
+    // server must hold a value in between (a PUT in flight may or may not
+    // have made it).
+    private static class Writer implements Runnable {
+        final String id;
+        final long[] acked = new long[STATIONS_PER_WRITER];
+        final long[] sent = new long[STATIONS_PER_WRITER];
+        long seq;
+        long puts;
+        volatile boolean stop;
+
+        Writer(int n) { this.id = "W" + n; }
+
+        String station(int i) { return id + "S" + i; }
+
+        @Override
+        public void run() {
+            try (Socket socket = new Socket("localhost", port)) {
+                socket.setTcpNoDelay(true);
+                OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+                InputStream in = new BufferedInputStream(socket.getInputStream());
+                while (!stop) {
+                    int i = (int) (seq % STATIONS_PER_WRITER);
+                    long v = ++seq;
+                    byte[] body = ("{\"id\":\"" + station(i) + "\",\"name\":\"Harness " + id + "\",\"air_temp\":"
+                            + (v % 400) / 10.0 + ",\"rel_hum\":" + v % 100 + ",\"seq\":" + v + "}")
+                            .getBytes(StandardCharsets.UTF_8);
+                    sent[i] = v;
+                    out.write(("PUT /weather.json HTTP/1.1\r\nHost: localhost\r\nContent-Type: application/json\r\n"
+                            + "Content-Length: " + body.length + "\r\nX-Content-Server: " + id + "\r\n\r\n")
+                            .getBytes(StandardCharsets.US_ASCII));
+                    out.write(body);
+                    out.flush();
+                    int status = HttpResponse.parse(in).statusCode;
+                    if (status == 200 || status == 201) acked[i] = v;
+                    puts++;
+                }
+            } catch (IOException e) {
+                // the server was killed
+            }
+        }
+    }
+
+    private static boolean crashes(Path dir, int kills, int writerCount) throws Exception {
+        Files.createDirectories(dir);
+        Random random = new Random();
+        List<Writer> writers = new ArrayList<>();
+        for (int i = 0; i < writerCount; i++) writers.add(new Writer(i));
+        int lost = 0;
+        System.out.printf("%-5s %8s %8s %5s %10s %10s %8s %8s%n",
+                "kill", "PUTs", "at ms", "torn", "WAL bytes", "recover ms", "in flight", "lost");
+
+        Process server = startServer(dir);
+        awaitReady();
+        for (int k = 1; k <= kills; k++) {
+            List<Thread> threads = new ArrayList<>();
+            long before = 0;
+            for (Writer w : writers) {
+                before += w.puts;
+                w.stop = false;
+                Thread t = new Thread(w, "writer-" + w.id);
+                t.start();
+                threads.add(t);
+            }
+            long at = 200 + random.nextInt(1300);
+            Thread.sleep(at);
+            server.destroyForcibly(); // SIGKILL: no shutdown hooks, nothing flushed on the way out
+            server.waitFor();
+            for (Writer w : writers) w.stop = true;
+            for (Thread t : threads) t.join();
+            boolean torn = k % 2 == 0;
+            if (torn) {
+                // Never acknowledged; the seq would show up as more than was sent if it were applied
+                Files.writeString(dir.resolve("wal.log"),
+                        "PUT|" + Long.MAX_VALUE / 2 + "|W0|W0S0|{\"id\":\"W0S0\",\"seq\":99999",
+                        StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+            }
+
+            server = startServer(dir);
+            awaitReady();
+            double recoverMillis = recovered(dir)[2];
+            String body = get("/weather.json");
+            long[][] found = new long[writerCount][STATIONS_PER_WRITER];
+            Matcher m = STATION.matcher(body);
+            while (m.find()) {
+                String station = m.group(1);
+                int s = station.indexOf('S');
+                found[Integer.parseInt(station.substring(1, s))][Integer.parseInt(station.substring(s + 1))] =
+                        Long.parseLong(m.group(2));
+            }
+            int inFlight = 0;
+            int lostNow = 0;
+            long puts = 0;
+            for (int w = 0; w < writerCount; w++) {
+                Writer writer = writers.get(w);
+                puts += writer.puts;
+                for (int i = 0; i < STATIONS_PER_WRITER; i++) {
+                    long f = found[w][i];
+                    if (f < writer.acked[i] || f > writer.sent[i]) {
+                        lostNow++;
+                        System.out.println("  " + writer.station(i) + ": acknowledged " + writer.acked[i]
+                                + ", sent " + writer.sent[i] + ", recovered " + f);
+                    } else if (f > writer.acked[i]) {
+                        inFlight++;
+                        writer.acked[i] = f; // the server has it now, so it must survive the next kill too
+                    }
+                }
+            }
+            lost += lostNow;
+            System.out.printf(Locale.ROOT, "%-5d %8d %8d %5s %10d %10.1f %8d %8d%n",
+                    k, puts - before, at, torn ? "yes" : "no", Files.size(dir.resolve("wal.log")), recoverMillis,
+                    inFlight, lostNow);
+        }
+        server.destroyForcibly();
+        server.waitFor();
+        System.out.println(lost == 0 ? "No acknowledged update was lost" : lost + " acknowledged updates lost");
+        System.out.println();
+        return lost == 0;
+    }
+
+    // ---- recovery time against WAL size ----
+
+    private static void curve(Path dir, int maxRecords) throws Exception {
+        List<long[]> rows = new ArrayList<>(); // records, bytes, replay us, ready us
+        for (int records = 0; ; records = records == 0 ? Math.max(1, maxRecords >> 5) : records * 2) {
+            if (records > maxRecords) records = maxRecords;
+            Path d = dir.resolve(Integer.toString(records));
+            Files.createDirectories(d);
+            writeWal(d.resolve("wal.log").toFile(), records);
+
+            long start = System.nanoTime();
+            Process server = startServer(d);
+            awaitReady();
+            long ready = System.nanoTime() - start;
+            server.destroyForcibly();
+            server.waitFor();
+            double[] r = recovered(d);
+            rows.add(new long[]{(long) r[0], (long) r[1], (long) (r[2] * 1000), ready / 1000});
+            if (records == maxRecords) break;
+        }
+
+        long most = 1;
+        for (long[] row : rows) most = Math.max(most, row[3]);
+        System.out.println("Recovery time against WAL size (# replay, - rest of start-up until the first GET)");
+        for (long[] row : rows) {
+            int replay = (int) (50 * row[2] / most);
+            int total = (int) (50 * row[3] / most);
+            System.out.printf(Locale.ROOT, "%8d records %6.1f MB |%s%s %.0f ms%n", row[0], row[1] / 1e6,
+                    "#".repeat(replay), "-".repeat(Math.max(0, total - replay)), row[3] / 1e3);
+        }
+        System.out.println();
+        System.out.println("records,wal_bytes,replay_ms,ready_ms,replay_us_per_record");
+        for (long[] row : rows) {
+            System.out.printf(Locale.ROOT, "%d,%d,%.1f,%.1f,%.2f%n", row[0], row[1], row[2] / 1e3, row[3] / 1e3,
+                    row[0] == 0 ? 0.0 : (double) row[2] / row[0]);
+        }
+    }
+
+    // A WAL like the crash run leaves: 1000 stations from 10 content servers,
+    // written through WalManager so it has the same mix of PUT and DELTA records
+    private static void writeWal(File file, int records) throws IOException {
+        StateStore store = new StateStore();
+        try (WalManager wal = new WalManager(file, 10000, 16, false)) {
+            for (int v = 1; v <= records; v++) {
+                String station = "W" + v % 10 + "S" + v % 1000;
+                byte[] json = ("{\"id\":\"" + station + "\",\"name\":\"Harness W" + v % 10 + "\",\"air_temp\":"
+                        + (v % 400) / 10.0 + ",\"rel_hum\":" + v % 100 + ",\"seq\":" + v + "}")
+                        .getBytes(StandardCharsets.UTF_8);
+                wal.appendAndApplyPut(store, v, "W" + v % 10, station, json);
+            }
+        }
+    }
+
+    // ---- server process ----
+
+    private static Process startServer(Path dir) throws IOException {
+        List<String> cmd = new ArrayList<>();
+        cmd.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        cmd.add("-cp");
+        cmd.add(classPath());
+        cmd.add("-Dagg.wal=" + dir.resolve("wal.log").toAbsolutePath());
+        cmd.add("-Dagg.ttlSec=3600"); // nothing expires while the harness runs
+        cmd.add("-Dagg.feeds.max=0");
+        String extra = System.getProperty("harness.serverArgs", "").trim();
+        if (!extra.isEmpty()) cmd.addAll(List.of(extra.split("\\s+")));
+        cmd.add("agg.AggregationServer");
+        cmd.add(Integer.toString(port));
+        starts++;
+        return new ProcessBuilder(cmd).directory(dir.toFile()).redirectErrorStream(true)
+                .redirectOutput(dir.resolve("server-" + starts + ".log").toFile()).start();
+    }
+
+    // This JVM's class path with absolute entries, since servers run elsewhere
+    private static String classPath() {
+        StringBuilder sb = new StringBuilder();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            if (sb.length() > 0) sb.append(File.pathSeparator);
+            sb.append(Paths.get(entry).toAbsolutePath());
+        }
+        return sb.toString();
+    }
+
+    // Records, bytes and milliseconds from the started server's recovery line
+    private static double[] recovered(Path dir) throws IOException {
+        String log = Files.readString(dir.resolve("server-" + starts + ".log"));
+        Matcher m = RECOVERED.matcher(log);
+        if (!m.find()) throw new IOException("no recovery line in " + dir.resolve("server-" + starts + ".log"));
+        return new double[]{Double.parseDouble(m.group(1)), Double.parseDouble(m.group(2)),
+                Double.parseDouble(m.group(3))};
+    }
+
+    private static void awaitReady() throws Exception {
+        for (int i = 0; i < 6000; i++) {
+            try {
+                get("/weather.json");
+                return;
+            } catch (IOException e) {
+                Thread.sleep(5);
+            }
+        }
+        throw new IOException("server did not come up on port " + port);
+    }
+
+    private static String get(String path) throws IOException {
+        try (Socket socket = new Socket("localhost", port)) {
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET " + path + " HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            HttpResponse resp = HttpResponse.parse(new BufferedInputStream(socket.getInputStream()));
+            return resp.body == null ? "" : new String(resp.body, StandardCharsets.UTF_8);
+        }
+    }
+}
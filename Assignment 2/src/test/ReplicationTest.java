@@ -0,0 +1,140 @@
+package test;
+
+import org.junit.jupiter.api.*;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+public class ReplicationTest {
+    private static final int PRIMARY_PORT = 4610;
+    private static final int REPLICA_PORT = 4611;
+    private static Process primary;  // primary server process
+    private static Process replica;  // replica server process
+    private static File walFile;     // primary WAL, kept apart from the default wal.log
+
+    @BeforeAll
+    static void startPrimary() throws Exception {
+        walFile = Files.createTempFile("replication-wal", ".log").toFile();
+        primary = new ProcessBuilder(
+                "java", "-Dagg.wal=" + walFile.getAbsolutePath(), "-cp", "out",
+                "agg.AggregationServer", Integer.toString(PRIMARY_PORT)
+        ).inheritIO().start();
+        Thread.sleep(1000);
+    }
+
+    @AfterAll
+    static void stopAll() {
+        if (replica != null) replica.destroy();
+        primary.destroy();
+        walFile.delete();
+    }
+
+    // Utility to send a raw HTTP request string and return the full response
+    private String sendRawHttp(int port, String request) throws Exception {
+        try (Socket socket = new Socket("localhost", port)) {
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+            out.write(request.getBytes(StandardCharsets.UTF_8));
+            out.flush();
+
+            BufferedReader br = new BufferedReader(new InputStreamReader(in));
+            StringBuilder sb = new StringBuilder();
+            String line;
+            while ((line = br.readLine()) != null) {
+                sb.append(line).append("\n");
+            }
+            return sb.toString();
+        }
+    }
+
+    private String put(int port, String cs, String body) throws Exception {
+        return sendRawHttp(port, "PUT /weather.json HTTP/1.1\r\n" +
+                "Host: localhost\r\n" +
+                "Content-Type: application/json\r\n" +
+                "Content-Length: " + body.length() + "\r\n" +
+                "X-Lamport: 1\r\n" +
+                "Connection: close\r\n" +
+                "X-Content-Server: " + cs + "\r\n\r\n" +
+                body);
+    }
+
+    private String get(int port, String path) throws Exception {
+        return sendRawHttp(port, "GET " + path + " HTTP/1.1\r\nHost: localhost\r\nX-Lamport: 1\r\nConnection: close\r\n\r\n");
+    }
+
+    // Poll the replica until the feed contains the text or the timeout passes
+    private String awaitReplica(String text) throws Exception {
+        String resp = "";
+        for (int i = 0; i < 50; i++) {
+            resp = get(REPLICA_PORT, "/weather.json");
+            if (resp.contains(text)) break;
+            Thread.sleep(100);
+        }
+        return resp;
+    }
+
+    @Test @Order(1)
+    void testReplicaCatchesUpFromSnapshot() throws Exception {
+        // Data written before the replica starts arrives through the snapshot
+        String resp = put(PRIMARY_PORT, "repCS", "{\"id\":\"REP001\",\"name\":\"Snapshot\",\"air_temp\":1.0}");
+        assertTrue(resp.contains("201 Created") || resp.contains("200 OK"));
+
+        replica = new ProcessBuilder(
+                "java", "-Dagg.replicaOf=localhost:" + PRIMARY_PORT, "-cp", "out",
+                "agg.AggregationServer", Integer.toString(REPLICA_PORT)
+        ).inheritIO().start();
+        Thread.sleep(1000);
+
+        assertTrue(awaitReplica("Snapshot").contains("Snapshot"));
+    }
+
+    @Test @Order(2)
+    void testReplicaAppliesLogTail() throws Exception {
+        // Later writes arrive through the streamed WAL tail
+        put(PRIMARY_PORT, "repCS", "{\"id\":\"REP002\",\"name\":\"Tail\",\"air_temp\":2.0}");
+        String resp = awaitReplica("Tail");
+        assertTrue(resp.contains("Tail"));
+        assertTrue(resp.contains("X-Replication-Lag:"));
+    }
+
+    @Test @Order(3)
+    void testReplicaRejectsPut() throws Exception {
+        String resp = put(REPLICA_PORT, "repCS", "{\"id\":\"REP003\",\"name\":\"Nope\"}");
+        assertTrue(resp.contains("421"));
+        assertTrue(resp.contains("X-Primary: localhost:" + PRIMARY_PORT));
+    }
+
+    @Test @Order(4)
+    void testReplicationStatusReportsLag() throws Exception {
+        Thread.sleep(1500); // let a heartbeat arrive
+        String resp = get(REPLICA_PORT, "/replication/status");
+        assertTrue(resp.contains("\"role\":\"replica\""));
+        assertTrue(resp.contains("\"connected\":true"));
+        assertTrue(resp.contains("\"lag\":0"));
+    }
+
+    @Test @Order(5)
+    void testReplicaGetWaitsForMinLamport() throws Exception {
+        // Read-your-writes: the PUT's Lamport time is enough, no polling
+        String putResp = put(PRIMARY_PORT, "repCS", "{\"id\":\"REP004\",\"name\":\"Fresh\",\"air_temp\":4.0}");
+        long written = -1;
+        for (String line : putResp.split("\n")) {
+            if (line.toLowerCase().startsWith("x-lamport:")) written = Long.parseLong(line.substring(10).trim());
+        }
+        String resp = sendRawHttp(REPLICA_PORT, "GET /weather.json HTTP/1.1\r\nHost: localhost\r\n" +
+                "X-Min-Lamport: " + written + "\r\nConnection: close\r\n\r\n");
+        assertTrue(resp.contains("200 OK"));
+        assertTrue(resp.contains("Fresh"));
+
+        // A Lamport time the primary never reaches times out with 503
+        String late = sendRawHttp(REPLICA_PORT, "GET /weather.json HTTP/1.1\r\nHost: localhost\r\n" +
+                "X-Min-Lamport: 999999999\r\nConnection: close\r\n\r\n");
+        assertTrue(late.contains("503 Service Unavailable"));
+        assertTrue(late.contains("Retry-After:"));
+    }
+}
@@ -0,0 +1,111 @@
+package test;
+
+import agg.PutWorker;
+import agg.Router;
+import agg.StateStore;
+import agg.WalManager;
+import common.HttpMessage.HttpRequest;
+import common.HttpMessage.HttpResponse;
+import common.LamportClock;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RouterAsyncTest {
+    @TempDir Path dir;
+
+    private static HttpRequest request(String method, String target, String body) throws Exception {
+        String wire = method + " " + target + " HTTP/1.1\r\nX-Content-Server: cs1\r\n"
+                + "Content-Length: " + body.length() + "\r\n\r\n" + body;
+        HttpRequest req = HttpRequest.parse(new ByteArrayInputStream(wire.getBytes(StandardCharsets.US_ASCII)));
+        req.remoteAddress = "127.0.0.1";
+        return req;
+    }
+
+    private static PutWorker started(PutWorker worker) {
+        Thread t = new Thread(worker, "test-put-worker");
+        t.setDaemon(true);
+        t.start();
+        return worker;
+    }
+
+    @Test
+    void testPutReturnsAtOnceAndCompletesWhenApplied() throws Exception {
+        StateStore store = new StateStore();
+        LamportClock clock = new LamportClock();
+        PutWorker worker = new PutWorker(store, new WalManager(dir.resolve("wal.log").toFile()), clock, 16, 5000);
+        Router router = new Router(store, clock, worker);
+
+        // With the worker not yet running, the caller gets a pending future
+        // back straight away instead of blocking until the PUT is applied
+        long t0 = System.nanoTime();
+        CompletableFuture<HttpResponse> pending = router.handleAsync(request("PUT", "/weather.json", "{\"id\":\"S1\"}"));
+        assertTrue(System.nanoTime() - t0 < TimeUnit.MILLISECONDS.toNanos(500));
+        assertFalse(pending.isDone());
+
+        started(worker);
+        HttpResponse r = pending.get(5, TimeUnit.SECONDS);
+        assertEquals(201, r.statusCode);
+        assertEquals(Long.parseLong(r.header("X-Lamport")), store.record("S1").lamportApplied);
+    }
+
+    @Test
+    void testFailedApplyCompletesWith500() throws Exception {
+        StateStore store = new StateStore();
+        LamportClock clock = new LamportClock();
+        WalManager wal = new WalManager(dir.resolve("wal.log").toFile());
+        Router router = new Router(store, clock, started(new PutWorker(store, wal, clock, 16, 5000)));
+        wal.close(); // the append fails, so the worker completes the future exceptionally
+
+        HttpResponse r = router.handleAsync(request("PUT", "/weather.json", "{\"id\":\"S1\"}")).get(5, TimeUnit.SECONDS);
+        assertEquals(500, r.statusCode);
+        assertNotNull(r.header("X-Lamport"));
+        assertNull(store.record("S1")); // not applied without its WAL record
+    }
+
+    @Test
+    void testSynchronousWrapperMatchesTheFuture() throws Exception {
+        List<String[]> requests = List.of(
+                new String[]{"PUT", "/weather.json", "{\"id\":\"S1\",\"t\":1}"},
+                new String[]{"PUT", "/weather.json", "{\"id\":\"S1\",\"t\":2}"},
+                new String[]{"PUT", "/weather.json", ""},
+                new String[]{"PUT", "/weather.json", "{not json"},
+                new String[]{"GET", "/weather.json", ""},
+                new String[]{"DELETE", "/weather.json", ""});
+
+        StateStore syncStore = new StateStore(), asyncStore = new StateStore();
+        LamportClock syncClock = new LamportClock(), asyncClock = new LamportClock();
+        Router sync = new Router(syncStore, syncClock, started(new PutWorker(syncStore,
+                new WalManager(dir.resolve("sync.log").toFile()), syncClock)));
+        Router async = new Router(asyncStore, asyncClock, started(new PutWorker(asyncStore,
+                new WalManager(dir.resolve("async.log").toFile()), asyncClock)));
+
+        int[] expected = {201, 200, 204, 500, 200, 400};
+        for (int i = 0; i < requests.size(); i++) {
+            String[] q = requests.get(i);
+            HttpResponse a = sync.handle(request(q[0], q[1], q[2]));
+            HttpResponse b = async.handleAsync(request(q[0], q[1], q[2])).get(5, TimeUnit.SECONDS);
+            String what = q[0] + " " + q[2];
+            assertEquals(expected[i], a.statusCode, what);
+            assertEquals(a.statusCode, b.statusCode, what);
+            assertEquals(a.header("X-Lamport"), b.header("X-Lamport"), what);
+            assertArrayEquals(body(a), body(b), what);
+        }
+    }
+
+    private static byte[] body(HttpResponse r) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        r.write(out);
+        String s = out.toString(StandardCharsets.UTF_8);
+        return s.substring(s.indexOf("\r\n\r\n") + 4).getBytes(StandardCharsets.UTF_8);
+    }
+}
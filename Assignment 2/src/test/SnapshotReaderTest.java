@@ -0,0 +1,163 @@
+package test;
+
+import agg.SnapshotPublisher;
+import agg.StateStore;
+import client.SnapshotReader;
+import common.JsonUtil;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SnapshotReaderTest {
+    @TempDir Path dir;
+
+    // The pad length follows v, so a torn read shows up as a mismatch
+    private static byte[] json(String id, int v) {
+        return ("{\"id\":\"" + id + "\",\"v\":" + v + ",\"pad\":\"" + "x".repeat(v % 97) + "\"}")
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static Thread start(SnapshotPublisher publisher) {
+        Thread t = new Thread(publisher);
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    private static SnapshotReader.Snapshot awaitVersion(SnapshotReader reader, long version) throws Exception {
+        for (int i = 0; i < 500 && reader.version() != version; i++) Thread.sleep(10);
+        return reader.read();
+    }
+
+    @Test
+    void testReaderSeesEachPublishedSnapshotAndFollowsGrowth() throws Exception {
+        StateStore store = new StateStore();
+        Path file = dir.resolve("agg.snap");
+        SnapshotPublisher publisher = new SnapshotPublisher(file, store, 1);
+        store.addListener(publisher);
+        Thread t = start(publisher);
+        try {
+            for (int i = 0; i < 500 && !Files.exists(file); i++) Thread.sleep(10);
+            try (SnapshotReader reader = new SnapshotReader(file)) {
+                store.applyPut("S1", json("S1", 1), "csA", 7);
+                SnapshotReader.Snapshot snap = awaitVersion(reader, store.version());
+                assertEquals("{\"stations\": [" + new String(json("S1", 1), StandardCharsets.UTF_8) + "]}",
+                        new String(snap.json, StandardCharsets.UTF_8));
+                assertEquals(7, snap.lamport);
+
+                // Past the first file's slots: the publisher swaps in a bigger file
+                for (int i = 0; i < 2000; i++) store.applyPut("G" + i, json("G" + i, i), "csB", 8 + i);
+                snap = awaitVersion(reader, store.version());
+                assertEquals(store.version(), snap.version);
+                assertArrayEquals(JsonUtil.joinObjectsToArray("{\"stations\": ", store.snapshotJson(), "}"), snap.json);
+                assertTrue(snap.json.length > 64 * 1024);
+            }
+        } finally {
+            t.interrupt();
+        }
+    }
+
+    @Test
+    void testClosedReaderThrowsIllegalState() throws Exception {
+        StateStore store = new StateStore();
+        Path file = dir.resolve("agg.snap");
+        SnapshotPublisher publisher = new SnapshotPublisher(file, store, 1);
+        store.addListener(publisher);
+        Thread t = start(publisher);
+        try {
+            for (int i = 0; i < 500 && !Files.exists(file); i++) Thread.sleep(10);
+            SnapshotReader reader = new SnapshotReader(file);
+            reader.close();
+            assertEquals("closed", assertThrows(IllegalStateException.class, reader::read).getMessage());
+            assertThrows(IllegalStateException.class, reader::version);
+            assertThrows(IllegalStateException.class, () -> reader.read(b -> b.remaining()));
+        } finally {
+            t.interrupt();
+        }
+    }
+
+    @Test
+    void testReadsAreNeverTornWhileTheStoreChanges() throws Exception {
+        StateStore store = new StateStore();
+        Path file = dir.resolve("agg.snap");
+        SnapshotPublisher publisher = new SnapshotPublisher(file, store, 0);
+        store.addListener(publisher);
+        store.applyPut("S", json("S", 0), "csA", 1);
+        Thread t = start(publisher);
+        Thread writer = new Thread(() -> {
+            for (int v = 1; !Thread.currentThread().isInterrupted(); v++) store.applyPut("S", json("S", v), "csA", v);
+        });
+        try {
+            for (int i = 0; i < 500 && !Files.exists(file); i++) Thread.sleep(10);
+            Pattern p = Pattern.compile("\\{\"stations\": \\[\\{\"id\":\"S\",\"v\":(\\d+),\"pad\":\"(x*)\"}]}");
+            int seen = 0;
+            long last = -1;
+            try (SnapshotReader reader = new SnapshotReader(file)) {
+                assertNotNull(reader.read()); // the file only appears with its first snapshot in it
+                writer.start();
+                for (int i = 0; i < 5000; i++) {
+                    // In place, without copying the body out
+                    String body = reader.read(b -> StandardCharsets.UTF_8.decode(b).toString());
+                    assertNotNull(body);
+                    Matcher m = p.matcher(body);
+                    assertTrue(m.matches(), body);
+                    assertEquals(Integer.parseInt(m.group(1)) % 97, m.group(2).length());
+                    long version = reader.version();
+                    if (version != last) seen++;
+                    last = version;
+                }
+            }
+            assertTrue(seen > 1); // the snapshot really moved during the reads
+        } finally {
+            writer.interrupt();
+            t.interrupt();
+        }
+    }
+
+    @Test
+    void testEverySnapshotIsReadableWhileTheFileGrows() throws Exception {
+        StateStore store = new StateStore();
+        Path file = dir.resolve("agg.snap");
+        SnapshotPublisher publisher = new SnapshotPublisher(file, store, 0);
+        store.addListener(publisher);
+        store.applyPut("S", json("S", 0), "csA", 1);
+        Thread t = start(publisher);
+        // Enough new stations to outgrow the slots several times over
+        Thread writer = new Thread(() -> {
+            for (int i = 0; i < 6000 && !Thread.currentThread().isInterrupted(); i++) {
+                store.applyPut("G" + i, json("G" + i, i), "csB", 2 + i);
+            }
+        });
+        try {
+            for (int i = 0; i < 500 && !Files.exists(file); i++) Thread.sleep(10);
+            try (SnapshotReader reader = new SnapshotReader(file)) {
+                assertNotNull(reader.read());
+                writer.start();
+                int reads = 0;
+                while (writer.isAlive() || reads < 100) {
+                    // A reader that follows "moved" to each new file, and one opening the path afresh
+                    assertNotEquals(-1, reader.version());
+                    assertNotNull(reader.read());
+                    try (SnapshotReader fresh = new SnapshotReader(file)) {
+                        assertNotEquals(-1, fresh.version());
+                        assertNotNull(fresh.read());
+                    }
+                    reads++;
+                }
+                SnapshotReader.Snapshot snap = awaitVersion(reader, store.version());
+                assertArrayEquals(JsonUtil.joinObjectsToArray("{\"stations\": ", store.snapshotJson(), "}"), snap.json);
+                assertTrue(snap.json.length > 4 * 64 * 1024); // several remaps behind it
+            }
+        } finally {
+            writer.interrupt();
+            t.interrupt();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package test;
+
+import agg.StateStore;
+import common.JsonUtil;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StateStoreTest {
+    private static byte[] json(String id) {
+        return ("{\"id\":\"" + id + "\"}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void testExpiryRemovesOnlyStationsStillOwned() {
+        StateStore store = new StateStore();
+        assertTrue(store.applyPut("S1", json("S1"), "csA", 1));
+        store.applyPut("S2", json("S2"), "csA", 2);
+        assertTrue(store.applyPut("S2", json("S2"), "csB", 3)); // csB takes S2 over
+
+        List<String> removed = store.removeAllFromContentServer("csA", 4);
+        assertEquals(List.of("S1"), removed);
+        assertEquals(1, store.stationCount());
+        assertFalse(store.refreshLastSeen("csA"));
+        assertTrue(store.refreshLastSeen("csB"));
+    }
+
+    @Test
+    void testContentServerWithoutStationsIsReleased() {
+        StateStore store = new StateStore();
+        store.applyPut("S1", json("S1"), "csA", 1);
+        store.applyPut("S1", json("S1"), "csB", 2); // csA loses its only station
+        assertEquals(1, store.contentServerCount());
+        assertFalse(store.lastSeenSnapshot().containsKey("csA"));
+        // Coming back after losing everything counts as a fresh upload
+        assertTrue(store.applyPut("S3", json("S3"), "csA", 3));
+    }
+
+    @Test
+    void testHandlesAreReusedAfterExpiry() {
+        StateStore store = new StateStore();
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 5000; i++) {
+                String id = "R" + round + "-" + i;
+                store.applyPut(id, json(id), "cs" + (i % 50), round * 10000L + i);
+            }
+            for (int c = 0; c < 50; c++) store.removeAllFromContentServer("cs" + c, round * 10000L + 9999);
+            assertTrue(store.isEmpty());
+            assertEquals(0, store.contentServerCount());
+        }
+        store.applyPut("last", json("last"), "cs0", 99999);
+        assertEquals(1, store.snapshotJson().size());
+    }
+
+    @Test
+    void testSegmentChunksMatchTheFeedAndOnlyChangedOnesAreRebuilt() {
+        StateStore store = new StateStore();
+        for (int i = 0; i < 200; i++) store.applyPut("S" + i, json("S" + i), i < 100 ? "csA" : "csB", i);
+        List<byte[]> before = store.snapshotSegments();
+        assertEquals(4, before.size()); // 64 stations per segment
+        assertArrayEquals(JsonUtil.joinObjectsToArray("", store.snapshotJson(), ""),
+                JsonUtil.joinObjectsToArray("", before, ""));
+
+        store.applyPut("S70", "{\"id\":\"S70\",\"v\":2}".getBytes(StandardCharsets.UTF_8), "csA", 300);
+        List<byte[]> after = store.snapshotSegments();
+        assertSame(before.get(0), after.get(0));
+        assertNotSame(before.get(1), after.get(1));
+        assertSame(before.get(2), after.get(2));
+        assertSame(before.get(3), after.get(3));
+
+        // Expiry empties the last segment and changes two others
+        store.removeAllFromContentServer("csB", 301);
+        after = store.snapshotSegments();
+        assertEquals(2, after.size());
+        assertSame(before.get(0), after.get(0));
+        assertArrayEquals(JsonUtil.joinObjectsToArray("", store.snapshotJson(), ""),
+                JsonUtil.joinObjectsToArray("", after, ""));
+    }
+
+    @Test
+    void testUnchangedNeedsEqualBytesNotJustEqualHashes() {
+        StateStore store = new StateStore();
+        byte[] stored = "{\"id\":\"S1\",\"t\":1}".getBytes(StandardCharsets.UTF_8);
+        store.applyPut("S1", stored, "csA", 1);
+        long hash = JsonUtil.contentHash(stored);
+        assertTrue(store.isUnchanged("S1", "csA", hash, stored.clone()));
+        assertFalse(store.isUnchanged("S1", "csB", hash, stored));
+        // A body that collides with the stored one's hash is still a change
+        byte[] other = "{\"id\":\"S1\",\"t\":2}".getBytes(StandardCharsets.UTF_8);
+        assertFalse(store.isUnchanged("S1", "csA", hash, other));
+    }
+}
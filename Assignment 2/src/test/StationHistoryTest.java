@@ -0,0 +1,50 @@
+package test;
+
+import agg.StateStore;
+import agg.StationHistory;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StationHistoryTest {
+    private static byte[] json(String id, double temp) {
+        return ("{\"id\":\"" + id + "\",\"air_temp\":" + temp + "}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static StateStore.WeatherRecord record(String id, double temp, long lamport) {
+        return new StateStore.WeatherRecord(id, json(id, temp), "cs", lamport, Instant.ofEpochMilli(lamport * 1000));
+    }
+
+    private static int points(StationHistory h, String id) {
+        String s = h.toJson(id, 0, Long.MAX_VALUE);
+        return s == null ? -1 : s.split("\"time\"", -1).length - 1;
+    }
+
+    @Test
+    void testLoadKeepsHistoryOfStationsStillPresentAndDropsTheRest() {
+        StateStore store = new StateStore();
+        StationHistory history = new StationHistory(10, new String[]{"air_temp"});
+        store.addListener(history);
+        store.applyPut("A", json("A", 1), "cs", 1);
+        store.applyPut("A", json("A", 2), "cs", 2);
+        store.applyPut("B", json("B", 5), "cs", 3);
+
+        // Resync: A unchanged since its last update, B gone, C new
+        StateStore.WeatherRecord a = store.record("A");
+        store.load(List.of(a, record("C", 7, 4)));
+
+        assertEquals(2, points(history, "A"));  // not doubled by the reload
+        assertEquals(-1, points(history, "B"));
+        assertEquals(1, points(history, "C"));
+        assertTrue(history.toJson("C", 0, Long.MAX_VALUE).contains("\"air_temp\":7.0"));
+
+        // A record newer than the ring's latest entry is added to it
+        store.load(List.of(record("A", 3, 9)));
+        assertEquals(3, points(history, "A"));
+        assertEquals(-1, points(history, "C"));
+    }
+}
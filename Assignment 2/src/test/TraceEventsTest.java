@@ -0,0 +1,68 @@
+package test;
+
+import agg.PutWorker;
+import agg.Router;
+import agg.StateStore;
+import agg.TraceEvents;
+import agg.TraceReport;
+import agg.WalManager;
+import common.HttpMessage.HttpRequest;
+import common.LamportClock;
+import jdk.jfr.Recording;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TraceEventsTest {
+    @TempDir Path dir;
+
+    private static HttpRequest put(String body) throws Exception {
+        String wire = "PUT /weather.json HTTP/1.1\r\nX-Content-Server: csA\r\nX-Lamport: 1\r\n"
+                + "Content-Length: " + body.length() + "\r\n\r\n" + body;
+        return HttpRequest.parse(new ByteArrayInputStream(wire.getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    @Test
+    void testPutPhasesAreRecordedAndSummarised() throws Exception {
+        StateStore store = new StateStore();
+        LamportClock clock = new LamportClock();
+        Path jfr = dir.resolve("trace.jfr");
+        try (WalManager wal = new WalManager(dir.resolve("wal.log").toFile());
+             Recording recording = new Recording()) {
+            recording.enable(TraceEvents.PutValidate.class);
+            recording.enable(TraceEvents.PutApply.class);
+            recording.enable(TraceEvents.WalAppend.class);
+            recording.enable(TraceEvents.StoreApply.class);
+            recording.start();
+
+            PutWorker worker = new PutWorker(store, wal, clock);
+            Thread t = new Thread(worker);
+            t.start();
+            Router router = new Router(store, clock, worker);
+            assertEquals(201, router.handle(put("{\"id\":\"S1\",\"v\":1}")).statusCode);
+            assertEquals(200, router.handle(put("{\"id\":\"S1\",\"v\":1}")).statusCode); // unchanged
+            worker.shutdown();
+            t.interrupt();
+
+            recording.stop();
+            recording.dump(jfr);
+        }
+
+        Map<String, TraceReport.Phase> phases = TraceReport.summarize(jfr);
+        assertEquals(2, phases.get("agg.PutValidate").count());
+        assertEquals(1, phases.get("agg.PutApply[applied]").count());
+        assertEquals(1, phases.get("agg.PutApply[unchanged]").count());
+        assertEquals(1, phases.get("agg.PutApply[applied].queueTime").count());
+        assertEquals(1, phases.get("agg.WalAppend[PUT]").count());
+        assertEquals(1, phases.get("agg.StoreApply[PUT]").count());
+
+        // Listed in the order a PUT passes through them
+        assertEquals("agg.PutValidate", phases.keySet().iterator().next());
+    }
+}
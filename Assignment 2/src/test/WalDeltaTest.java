@@ -0,0 +1,88 @@
+package test;
+
+import agg.MappedStationStore;
+import agg.StateStore;
+import agg.WalManager;
+import common.LamportClock;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WalDeltaTest {
+    @TempDir Path dir;
+
+    private static byte[] json(String id, int temp, String extra) {
+        return ("{\"id\":\"" + id + "\",\"name\":\"Adelaide, West | Terrace\",\"state\":\"SA\",\"lat\":-34.9,"
+                + "\"lon\":138.6,\"wind\":{\"dir\":\"S\",\"kmh\":15},\"air_temp\":" + temp + extra + "}")
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String body(StateStore store, String stationId) {
+        return new String(store.record(stationId).json, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void testDeltaRecordsReplayToExactBodies() throws Exception {
+        File log = dir.resolve("wal.log").toFile();
+        StateStore store = new StateStore();
+        try (WalManager wal = new WalManager(log, 10000, 4)) {
+            long L = 1;
+            for (int i = 0; i < 10; i++) wal.appendAndApplyPut(store, L++, "csA", "S1", json("S1", i, ""));
+            wal.appendAndApplyPut(store, L++, "csA", "S1", json("S1", 99, ",\"cloud\":\"a\\\\b\\n\""));
+            wal.appendAndApplyPut(store, L++, "csB", "S1", json("S1", 99, "")); // member removed, new owner
+            wal.appendAndApplyPut(store, L++, "csA", "S2", json("S2", 1, ""));
+            wal.appendAndApplyExpire(store, L++, "csA");
+            wal.appendAndApplyPut(store, L++, "csA", "S2", json("S2", 2, "")); // base gone: logged in full
+        }
+
+        List<String> lines = Files.readAllLines(log.toPath());
+        assertEquals("WAL|2", lines.get(0));
+        assertTrue(lines.get(1).startsWith("PUT|"));
+        assertTrue(lines.get(2).startsWith("DELTA|2|csA|S1|1|7|6|\"air_temp\":1}|"));
+        assertTrue(lines.get(5).startsWith("PUT|5|")); // at least every 4 records per station
+        assertTrue(lines.get(lines.size() - 1).startsWith("PUT|"));
+
+        StateStore replayed = new StateStore();
+        LamportClock clock = new LamportClock();
+        try (WalManager wal = new WalManager(log)) {
+            wal.replay(replayed, clock);
+        }
+        assertEquals(body(store, "S1"), body(replayed, "S1"));
+        assertEquals(body(store, "S2"), body(replayed, "S2"));
+        assertEquals("csB", replayed.record("S1").sourceContentServerId);
+        assertEquals(store.stationCount(), replayed.stationCount());
+        assertTrue(clock.peek() >= 15);
+    }
+
+    @Test
+    void testReplayFromCheckpointUsesCheckpointedBase() throws Exception {
+        StateStore store = new StateStore();
+        Path map = dir.resolve("stations.map");
+        try (WalManager wal = new WalManager(dir.resolve("wal.log").toFile(), 10000, 16)) {
+            MappedStationStore mapped = MappedStationStore.open(map, wal, 16, 4096);
+            mapped.load(store, new LamportClock());
+            store.addListener(mapped);
+            for (int i = 0; i < 5; i++) wal.appendAndApplyPut(store, i + 1, "csA", "S1", json("S1", i, ""));
+            mapped.checkpoint();
+            // Deltas against the checkpointed record, only in the WAL tail
+            for (int i = 5; i < 8; i++) wal.appendAndApplyPut(store, i + 1, "csA", "S1", json("S1", i, ""));
+        }
+
+        StateStore restarted = new StateStore();
+        try (WalManager wal = new WalManager(dir.resolve("wal.log").toFile())) {
+            MappedStationStore mapped = MappedStationStore.open(map, wal, 16, 4096);
+            long offset = mapped.load(restarted, new LamportClock());
+            assertTrue(offset > 0);
+            wal.replayFrom(offset, restarted, new LamportClock());
+        }
+        assertEquals(body(store, "S1"), body(restarted, "S1"));
+        assertEquals(8, restarted.record("S1").lamportApplied);
+    }
+}
@@ -0,0 +1,105 @@
+package test;
+
+import agg.StateStore;
+import agg.WalManager;
+import common.JsonUtil;
+import common.LamportClock;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WalFormatTest {
+    @TempDir Path dir;
+
+    @Test
+    void testSeparatorBackslashAndNewlineRoundTrip() {
+        String body = "{\"id\":\"S|1\",\"note\":\"a|b \\\\| c\\\\\\\\d\\nend\\\\n\",\"x\":\"\\\\\"}";
+        byte[] json = body.getBytes(StandardCharsets.UTF_8);
+        byte[] line = WalManager.formatPut(7, "cs|A\\B\nC", "S|1", json, Instant.parse("2025-01-01T00:00:00Z"));
+        assertEquals(1, new String(line, StandardCharsets.UTF_8).split("\n", -1).length - 1); // one line, newline escaped
+
+        StateStore store = new StateStore();
+        String record = new String(line, 0, line.length - 1, StandardCharsets.UTF_8);
+        assertEquals(7, WalManager.applyRecord(record, store, new LamportClock()));
+        StateStore.WeatherRecord rec = store.record("S|1");
+        assertEquals(body, new String(rec.json, StandardCharsets.UTF_8));
+        assertEquals("cs|A\\B\nC", rec.sourceContentServerId);
+
+        byte[] expire = WalManager.formatExpire(8, "cs|A\\B\nC", Instant.now());
+        assertEquals(8, WalManager.applyRecord(new String(expire, 0, expire.length - 1, StandardCharsets.UTF_8),
+                store, new LamportClock()));
+        assertTrue(store.isEmpty());
+    }
+
+    @Test
+    void testUnversionedLogIsUpgradedWithItsOwnParsing() throws Exception {
+        // As the first version wrote it: raw JSON, only '|' and newlines escaped
+        String raw = "{\n  \"id\": \"IDS1\",\n  \"note\": \"say \\\"hi\\\" to C:\\\\temp\\nnext line\"\n}";
+        File log = dir.resolve("wal.log").toFile();
+        Files.writeString(log.toPath(),
+                "PUT|9|cs1|IDS1|" + raw.replace("\n", "\\n") + "|2025-09-12T09:11:43.819850Z\n"
+                        + "PUT|10|cs2|IDS2|{\"id\":\"IDS2\"}|2025-09-12T09:11:44Z\n"
+                        + "EXPIRE|11|cs2|2025-09-12T09:12:13.981242Z\n"
+                        + "garbage\n", StandardCharsets.UTF_8);
+
+        StateStore store = new StateStore();
+        LamportClock clock = new LamportClock();
+        try (WalManager wal = new WalManager(log)) {
+            assertEquals(3, wal.replay(store, clock));
+            wal.appendPut(12, "cs1", "IDS3", "{\"id\":\"IDS3\"}".getBytes(StandardCharsets.UTF_8));
+        }
+        assertEquals(new String(JsonUtil.minify(raw.getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8),
+                new String(store.record("IDS1").json, StandardCharsets.UTF_8));
+        assertNull(store.record("IDS2"));
+        assertTrue(clock.peek() >= 11);
+
+        List<String> lines = Files.readAllLines(log.toPath());
+        assertEquals("WAL|2", lines.get(0));
+        assertEquals(5, lines.size()); // header, three upgraded records, the new PUT
+        StateStore again = new StateStore();
+        try (WalManager wal = new WalManager(log)) {
+            assertEquals(4, wal.replay(again, new LamportClock()));
+        }
+        assertArrayEquals(store.record("IDS1").json, again.record("IDS1").json);
+    }
+
+    @Test
+    void testUnknownFormatIsRefused() throws Exception {
+        File log = dir.resolve("wal.log").toFile();
+        Files.writeString(log.toPath(), "WAL|3\nPUT|1|cs|S|{}|x\n");
+        IOException e = assertThrows(IOException.class, () -> new WalManager(log));
+        assertTrue(e.getMessage().contains("WAL|3"));
+    }
+
+    @Test
+    void testTornLastRecordIsCutOffBeforeAppending() throws Exception {
+        File log = dir.resolve("wal.log").toFile();
+        try (WalManager wal = new WalManager(log)) {
+            wal.appendPut(1, "cs", "S1", "{\"id\":\"S1\"}".getBytes(StandardCharsets.UTF_8));
+        }
+        long intact = log.length();
+        Files.writeString(log.toPath(), "PUT|2|cs|S2|{\"id\":\"S", StandardOpenOption.APPEND); // crash mid-write
+
+        try (WalManager wal = new WalManager(log)) {
+            assertEquals(intact, wal.position());
+            wal.appendPut(3, "cs", "S3", "{\"id\":\"S3\"}".getBytes(StandardCharsets.UTF_8));
+        }
+        StateStore store = new StateStore();
+        try (WalManager wal = new WalManager(log)) {
+            assertEquals(2, wal.replay(store, new LamportClock()));
+        }
+        assertNotNull(store.record("S1"));
+        assertNull(store.record("S2"));
+        assertNotNull(store.record("S3")); // acknowledged after the restart, so it must survive
+    }
+}